@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.Connections;
+import org.forgerock.opendj.ldap.Entry;
+import org.forgerock.opendj.ldap.LDAPListener;
+import org.forgerock.opendj.ldap.LinkedHashMapEntry;
+import org.forgerock.opendj.ldap.MemoryBackend;
+import org.forgerock.opendj.ldif.LDIF;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory directory (OpenDJ SDK {@link MemoryBackend}) listening on an ephemeral loopback port, holding the base
+ * entry, the administrator entry used by {@link LDAPManager} to bind, and the generated shares.
+ * <p>
+ * <p>Share {@literal i} is owned by {@literal user-(i % owners)}, protects {@literal /data/item-i} and is registered
+ * as the resource set {@literal rs-i}. The memory backend does not maintain operational attributes such as
+ * {@literal createTimestamp}, so the share index catch-up only sees the shares loaded at startup.
+ */
+class EmbeddedDirectory {
+
+    static final String BASE_DN = "dc=openig,dc=forgerock,dc=org";
+    static final String ADMIN_DN = "cn=Directory Manager";
+    static final String ADMIN_PASSWORD = "password";
+
+    private final MemoryBackend backend = new MemoryBackend();
+    private LDAPListener listener;
+
+    /**
+     * Loads the base and administrator entries and the shares.
+     *
+     * @param shares        number of shares
+     * @param owners        number of share owners
+     * @param realm         UMA realm of the shares
+     * @param clientId      OAuth 2.0 client of the shares
+     * @param compositeKeys {@code true} to store the share composite keys
+     * @throws IOException if the entries cannot be loaded
+     */
+    void load(final int shares,
+              final int owners,
+              final String realm,
+              final String clientId,
+              final boolean compositeKeys) throws IOException {
+        List<Entry> entries = new ArrayList<>(shares + 2);
+        entries.add(new LinkedHashMapEntry(BASE_DN)
+                            .addAttribute("objectClass", "top", "domain")
+                            .addAttribute("dc", "openig"));
+        entries.add(new LinkedHashMapEntry(ADMIN_DN)
+                            .addAttribute("objectClass", "top", "person")
+                            .addAttribute("cn", "Directory Manager")
+                            .addAttribute("sn", "Manager")
+                            .addAttribute("userPassword", ADMIN_PASSWORD));
+        for (int i = 0; i < shares; i++) {
+            String id = "share-" + i;
+            String uri = uri(i);
+            String userId = owner(i, owners);
+            Entry entry = new LinkedHashMapEntry("umaResourceId=" + id + "," + BASE_DN)
+                    .addAttribute("objectclass", "top")
+                    .addAttribute("objectclass", "frUmaRS")
+                    .addAttribute("umaResourceSetId", resourceSetId(i))
+                    .addAttribute("umaResourceId", id)
+                    .addAttribute("umaResourceURI", uri)
+                    .addAttribute("umaResourcePolicyURI", "http://localhost/openam/XUI/#uma/share/" + id)
+                    .addAttribute("umaResourceUserID", userId)
+                    .addAttribute("umaResourceRealm", realm)
+                    .addAttribute("umaResourceClientId", clientId)
+                    .addAttribute("umaResourceName", "item-" + i)
+                    .addAttribute("umaResoucePAT", "pat:" + userId);
+            if (compositeKeys) {
+                entry.addAttribute("umaResourceKey", ShareKeys.shareKey(realm, clientId, uri, userId));
+                entry.addAttribute("umaResourceUriKey", ShareKeys.uriKey(realm, clientId, uri));
+            }
+            entries.add(entry);
+        }
+        backend.importLDIF(LDIF.newEntryCollectionReader(entries));
+    }
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     *
+     * @return the listening port
+     * @throws IOException if the listener cannot be started
+     */
+    int start() throws IOException {
+        listener = new LDAPListener(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                                    Connections.newServerConnectionFactory(backend));
+        return ((InetSocketAddress) listener.getSocketAddress()).getPort();
+    }
+
+    void stop() {
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+    static String uri(final int share) {
+        return "/data/item-" + share;
+    }
+
+    static String owner(final int share, final int owners) {
+        return "user-" + share % owners;
+    }
+
+    static String resourceSetId(final int share) {
+        return "rs-" + share;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Allocation budget of the UmaFilterExt common cases: a cached share lookup, a cached allow decision and the
+ * introspection form encoding of a usual token. Each operation is run in a loop on this thread, and the bytes it
+ * allocated (as counted by the JVM for the thread) are reported per operation, with the time per operation.
+ * <p>
+ * <p>The run fails when an operation allocates more than its budget, {@literal 0} bytes per operation for all of
+ * them (the {@link String} of the request URI and the RPT come from the request and are not counted). Escape analysis
+ * can remove short-lived allocations once the code is compiled, so the strict check runs without it:
+ * {@code MAVEN_OPTS=-XX:-DoEscapeAnalysis}.
+ * <p>
+ * <p>Run with {@code mvn -Ploadtest verify -Dloadtest.main=org.forgerock.openig.uma.HotPathAllocationBenchmark
+ * -Dloadtest.args="operations=10000000"}. Parameters (all optional, {@literal key=value}): {@literal operations}
+ * (10000000), {@literal keys} (1000).
+ */
+public final class HotPathAllocationBenchmark {
+
+    private static final String PREFIX = ShareExt.lookupKeyPrefix("/", "OpenIG");
+
+    private final Properties parameters;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private HotPathAllocationBenchmark(final Properties parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args {@literal key=value} parameters
+     */
+    public static void main(final String[] args) {
+        Properties parameters = new Properties();
+        for (String arg : args) {
+            for (String pair : arg.trim().split("\\s+")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    parameters.setProperty(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        new HotPathAllocationBenchmark(parameters).run();
+    }
+
+    private void run() {
+        int keys = integer("keys", 1000);
+        final String[] uris = new String[keys];
+        final String[] shareIds = new String[keys];
+        final String[] rpts = new String[keys];
+        final ShareLookupCache lookupCache = new ShareLookupCache(Long.MAX_VALUE, keys * 2);
+        final DecisionCache decisionCache = new DecisionCache(Long.MAX_VALUE, keys * 2);
+        for (int i = 0; i < keys; i++) {
+            uris[i] = "/history/emp" + i;
+            ShareExt share = new ShareExt(null, uris[i], "user" + i, "/", "OpenIG");
+            share.setId(UUID.randomUUID().toString());
+            shareIds[i] = share.getId();
+            rpts[i] = UUID.randomUUID().toString();
+            lookupCache.put(PREFIX, uris[i], null, share);
+            decisionCache.allow(shareIds[i], rpts[i], 0L);
+        }
+
+        System.out.printf("%-22s %12s %12s %10s%n", "operation", "bytes/op", "ns/op", "budget");
+        boolean overBudget = false;
+        overBudget |= measure("share lookup (cached)", 0, new Operation() {
+            @Override
+            public boolean run(final int i) {
+                return lookupCache.get(PREFIX, uris[i], null) != null;
+            }
+        }, keys);
+        overBudget |= measure("allow (cached)", 0, new Operation() {
+            @Override
+            public boolean run(final int i) {
+                return decisionCache.isAllowed(shareIds[i], rpts[i]);
+            }
+        }, keys);
+        overBudget |= measure("form encode (token)", 0, new Operation() {
+            @Override
+            public boolean run(final int i) {
+                return UmaResourceServerFilterExt.formEncode(rpts[i]) == rpts[i];
+            }
+        }, keys);
+        if (overBudget) {
+            throw new IllegalStateException("Allocation budget exceeded");
+        }
+    }
+
+    /**
+     * Measures an operation.
+     *
+     * @return {@code true} if over budget
+     */
+    private boolean measure(final String name, final long budget, final Operation operation, final int keys) {
+        int operations = integer("operations", 10000000);
+        // Warm-up (JIT, escape analysis), then measurement
+        loop(operation, operations / 10, keys);
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        loop(operation, operations, keys);
+        long elapsed = System.nanoTime() - start;
+        double bytes = (double) (threads.getThreadAllocatedBytes(thread) - bytesBefore) / operations;
+        // Rounded: the measurement itself allocates a few bytes
+        boolean over = Math.round(bytes) > budget;
+        System.out.printf(Locale.ROOT, "%-22s %12.2f %12.1f %10s%n",
+                          name, bytes, (double) elapsed / operations, over ? "EXCEEDED" : budget);
+        return over;
+    }
+
+    private static void loop(final Operation operation, final int operations, final int keys) {
+        int hits = 0;
+        for (int i = 0; i < operations; i++) {
+            if (operation.run(i % keys)) {
+                hits++;
+            }
+        }
+        if (hits != operations) {
+            throw new IllegalStateException("Unexpected miss: " + (operations - hits));
+        }
+    }
+
+    private int integer(final String name, final int defaultValue) {
+        return Integer.parseInt(parameters.getProperty(name, Integer.toString(defaultValue)));
+    }
+
+    private interface Operation {
+        boolean run(int i);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Micro-benchmark of the on-heap {@link ShareIndex} against the {@link OffHeapShareIndex}: for each, the index is
+ * loaded with generated shares, then its footprint (heap retained after a full GC, plus direct buffers) and its
+ * lookup latency by id and by owner are measured, along with the GC time spent during the lookups.
+ * <p>
+ * <p>Lookups are timed in batches (the histograms have a microsecond resolution) and reported per lookup.
+ * <p>
+ * <p>Run with {@code mvn -Ploadtest verify -Dloadtest.main=org.forgerock.openig.uma.ShareIndexBenchmark
+ * -Dloadtest.args="shares=1000000"} (give the JVM enough heap for the on-heap index). Parameters (all optional,
+ * {@literal key=value}): {@literal shares} (1000000), {@literal owners} (10000), {@literal lookups} (2000000),
+ * {@literal batch} (100).
+ */
+public final class ShareIndexBenchmark {
+
+    private static final String REALM = "/";
+    private static final String CLIENT_ID = "OpenIG";
+    private static final String POLICY_PREFIX = "https://as.example.com/openam/XUI/?realm=/#uma/share/";
+
+    private final Properties parameters;
+
+    private ShareIndexBenchmark(final Properties parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args {@literal key=value} parameters
+     */
+    public static void main(final String[] args) {
+        Properties parameters = new Properties();
+        for (String arg : args) {
+            for (String pair : arg.trim().split("\\s+")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    parameters.setProperty(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        new ShareIndexBenchmark(parameters).run();
+    }
+
+    private void run() {
+        int shares = integer("shares", 1000000);
+        int owners = integer("owners", 10000);
+        System.out.printf("%d shares, %d owners%n", shares, owners);
+        System.out.printf("%-10s %12s %12s %10s %10s %10s %10s %10s %10s%n",
+                          "index", "heap MB", "off-heap MB", "get p50", "get p99", "get p99.9",
+                          "owner p50", "owner p99", "GC ms");
+        measure("on-heap", new ShareIndex(), shares, owners);
+        measure("off-heap", new OffHeapShareIndex(REALM, CLIENT_ID), shares, owners);
+    }
+
+    private void measure(final String name, final ShareIndex index, final int shares, final int owners) {
+        long heapBefore = usedHeapAfterGc();
+        String[] ids = new String[shares];
+        for (int i = 0; i < shares; i++) {
+            ShareExt share = newShare(i, owners);
+            ids[i] = share.getId();
+            index.add(share);
+        }
+        // Includes the lookup ids, which are also the share ids of the on-heap index
+        long heap = usedHeapAfterGc() - heapBefore;
+        long offHeap = index instanceof OffHeapShareIndex ? ((OffHeapShareIndex) index).getOffHeapBytes() : 0L;
+
+        int lookups = integer("lookups", 2000000);
+        int batch = integer("batch", 100);
+        // Warm-up, then measurement
+        lookUp(index, ids, owners, lookups / 10, batch, new LatencyHistogram(), new LatencyHistogram());
+        LatencyHistogram gets = new LatencyHistogram();
+        LatencyHistogram ownerLists = new LatencyHistogram();
+        long gcBefore = gcMillis();
+        lookUp(index, ids, owners, lookups, batch, gets, ownerLists);
+        long gc = gcMillis() - gcBefore;
+
+        System.out.printf(Locale.ROOT, "%-10s %12.1f %12.1f %10s %10s %10s %10s %10s %10d%n",
+                          name,
+                          heap / 1048576.0,
+                          offHeap / 1048576.0,
+                          perLookup(gets, 50, batch),
+                          perLookup(gets, 99, batch),
+                          perLookup(gets, 99.9, batch),
+                          perLookup(ownerLists, 50, batch),
+                          perLookup(ownerLists, 99, batch),
+                          gc);
+    }
+
+    private static void lookUp(final ShareIndex index,
+                               final String[] ids,
+                               final int owners,
+                               final int lookups,
+                               final int batch,
+                               final LatencyHistogram gets,
+                               final LatencyHistogram ownerLists) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long found = 0;
+        for (int done = 0; done < lookups; done += batch) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                if (index.get(ids[random.nextInt(ids.length)]) != null) {
+                    found++;
+                }
+            }
+            gets.record(System.nanoTime() - start);
+            // Owner lists are larger: a tenth of the batch
+            start = System.nanoTime();
+            for (int i = 0; i < batch / 10; i++) {
+                found += index.listByOwner("user" + random.nextInt(owners)).size();
+            }
+            ownerLists.record((System.nanoTime() - start) * 10);
+        }
+        if (found == 0) {
+            throw new IllegalStateException("No share found");
+        }
+    }
+
+    private static String perLookup(final LatencyHistogram histogram, final double percentile, final int batch) {
+        // Batch latency in microseconds, per lookup in nanoseconds
+        return String.format(Locale.ROOT, "%dns", histogram.getValueAtPercentile(percentile) * 1000 / batch);
+    }
+
+    private static ShareExt newShare(final int i, final int owners) {
+        String resourceId = UUID.randomUUID().toString();
+        ShareExt share = new ShareExt(resourceId,
+                                      "resource-" + i,
+                                      "pat-" + UUID.randomUUID(),
+                                      "/data/resource-" + i,
+                                      POLICY_PREFIX + resourceId,
+                                      "user" + (i % owners),
+                                      REALM,
+                                      CLIENT_ID);
+        share.setId(UUID.randomUUID().toString());
+        share.setRevision(share.getId() + ".20170101000000Z");
+        return share;
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private int integer(final String name, final int defaultValue) {
+        return Integer.parseInt(parameters.getProperty(name, Integer.toString(defaultValue)));
+    }
+}
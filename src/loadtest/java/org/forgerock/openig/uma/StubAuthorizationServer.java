@@ -0,0 +1,225 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback stub of the UMA Authorization Server endpoints called by the UMA service: token introspection, permission
+ * requests, resource set registration, UMA configuration.
+ * <p>
+ * <p>Tokens are self-describing, so the stub holds no state:
+ * <ul>
+ * <li>{@literal rpt:<resource set id>[,<resource set id>...]} is an active RPT granting the configured scopes on
+ * these resource sets</li>
+ * <li>{@literal pat:<user>} is an active PAT of that user</li>
+ * <li>anything else is inactive</li>
+ * </ul>
+ * <p>
+ * <p>Every response is delayed by {@code latencyMillis} plus a uniform jitter of at most {@code jitterMillis}, and a
+ * {@code errorRate} fraction of the calls answer {@literal 503}.
+ */
+class StubAuthorizationServer {
+
+    private final List<String> scopes;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Creates a stub AS.
+     *
+     * @param scopes        scopes granted by the RPTs
+     * @param latencyMillis minimum response delay
+     * @param jitterMillis  maximum additional (uniformly distributed) response delay
+     * @param errorRate     fraction of the calls answering {@literal 503}
+     */
+    StubAuthorizationServer(final List<String> scopes,
+                            final long latencyMillis,
+                            final long jitterMillis,
+                            final double errorRate) {
+        this.scopes = scopes;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     *
+     * @param threads number of threads serving the requests
+     * @return the base URI of the stub AS
+     * @throws IOException if the server cannot be started
+     */
+    URI start(final int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return URI.create("http://" + server.getAddress().getAddress().getHostAddress()
+                                  + ":" + server.getAddress().getPort() + "/openam/");
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    long getCalls() {
+        return calls.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    private void serve(final HttpExchange exchange) throws IOException {
+        calls.incrementAndGet();
+        String body = read(exchange.getRequestBody());
+        delay();
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            send(exchange, 503, "{\"error\":\"injected\"}");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (path.endsWith("/introspect")) {
+            String token = parameter(exchange.getRequestURI().getRawQuery(), "token");
+            if (token == null) {
+                token = parameter(body, "token");
+            }
+            send(exchange, 200, introspection(token));
+        } else if (path.endsWith("/permission_request")) {
+            send(exchange, 201, "{\"ticket\":\"" + UUID.randomUUID() + "\"}");
+        } else if (path.endsWith("/resource_set") && "POST".equals(method)) {
+            String id = UUID.randomUUID().toString();
+            send(exchange, 201, "{\"_id\":\"" + id + "\",\"user_access_policy_uri\":\""
+                    + "http://localhost/openam/XUI/?realm=/#uma/share/" + id + "\"}");
+        } else if (path.contains("/resource_set")) {
+            send(exchange, "GET".equals(method) ? 200 : 204, "GET".equals(method) ? "[]" : "");
+        } else if (path.endsWith("/uma2-configuration")) {
+            send(exchange, 200, "{\"issuer\":\"stub\"}");
+        } else {
+            send(exchange, 404, "{\"error\":\"not_found\"}");
+        }
+    }
+
+    private String introspection(final String token) {
+        long exp = System.currentTimeMillis() / 1000 + 3600;
+        if (token != null && token.startsWith("rpt:")) {
+            StringBuilder json = new StringBuilder("{\"active\":true,\"exp\":").append(exp).append(",\"permissions\":[");
+            String[] resourceIds = token.substring(4).split(",");
+            for (int i = 0; i < resourceIds.length; i++) {
+                json.append(i == 0 ? "" : ",").append("{\"resource_id\":\"").append(resourceIds[i])
+                    .append("\",\"resource_scopes\":[");
+                for (int j = 0; j < scopes.size(); j++) {
+                    json.append(j == 0 ? "\"" : ",\"").append(scopes.get(j)).append('"');
+                }
+                json.append("]}");
+            }
+            return json.append("]}").toString();
+        }
+        if (token != null && token.startsWith("pat:")) {
+            return "{\"active\":true,\"exp\":" + exp + ",\"sub\":\"" + token.substring(4) + "\"}";
+        }
+        return "{\"active\":false}";
+    }
+
+    private void delay() {
+        long millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+        if (millis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String parameter(final String form, final String name) throws IOException {
+        if (form == null) {
+            return null;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && name.equals(pair.substring(0, eq))) {
+                return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.http.routing.UriRouterContext;
+import org.forgerock.services.context.ClientContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.resource.Resources.newHandler;
+import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
+import static org.forgerock.openig.util.CrestUtil.newCrestApplication;
+
+/**
+ * End-to-end macro-benchmark of the UMA extension: the real {@link UmaSharingServiceExt},
+ * {@link UmaResourceServerFilterExt} and {@link ShareCollectionProviderExt} are wired to a
+ * {@link StubAuthorizationServer} and an {@link EmbeddedDirectory} loaded with generated shares, both on loopback.
+ * <p>
+ * <p>Traffic is open-loop: request {@literal n} is due at {@code start + n / rate}, whatever the progress of the
+ * previous ones, and its latency is measured from that due time, so a slow system gets a growing latency (and not a
+ * lower request rate). Latencies are reported per outcome (response status) after a warm-up period.
+ * <p>
+ * <p>Run with {@code mvn -Ploadtest verify -Dloadtest.args="rate=2000 duration=60 shares=100000"}. Parameters (all
+ * optional, {@literal key=value}):
+ * <ul>
+ * <li>{@literal shares} (10000), {@literal owners} (100): generated shares and owners</li>
+ * <li>{@literal rate} (1000) requests per second, {@literal duration} (60) and {@literal warmUp} (10) seconds,
+ * {@literal workers} (256) request dispatching threads</li>
+ * <li>traffic mix, as weights: {@literal allowed} (80, valid RPT), {@literal insufficient} (5, RPT of another
+ * resource), {@literal noRpt} (10), {@literal unknownUri} (4), {@literal shareRead} (1, share endpoint reads)</li>
+ * <li>stub AS: {@literal asLatencyMs} (5), {@literal asJitterMs} (5), {@literal asErrorRate} (0.0),
+ * {@literal asThreads} (64)</li>
+ * <li>UMA service: {@literal executor} (caller, virtual or platform), {@literal shareCacheSize} (10000),
+ * {@literal decisionCacheSize} (10000), {@literal shareIndex} (false), {@literal compositeKeys} (false),
+ * {@literal ticketRate} (0, no admission control)</li>
+ * </ul>
+ */
+public final class UmaLoadTest {
+
+    private static final String REALM = "/";
+    private static final String CLIENT_ID = "OpenIG";
+    private static final List<String> SCOPES = Arrays.asList("#read", "#write");
+    private static final String[] OUTCOMES = {"allowed", "insufficient", "noRpt", "unknownUri", "shareRead"};
+
+    private final Properties parameters;
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final LatencyHistogram dispatchLag = new LatencyHistogram();
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile boolean recording;
+
+    private UmaLoadTest(final Properties parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args {@literal key=value} parameters
+     * @throws Exception if the test environment cannot be set up
+     */
+    public static void main(final String[] args) throws Exception {
+        Properties parameters = new Properties();
+        for (String arg : args) {
+            for (String pair : arg.trim().split("\\s+")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    parameters.setProperty(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        new UmaLoadTest(parameters).run();
+    }
+
+    private void run() throws Exception {
+        int shares = integer("shares", 10000);
+        int owners = integer("owners", 100);
+
+        StubAuthorizationServer authorizationServer = new StubAuthorizationServer(SCOPES,
+                                                                                  integer("asLatencyMs", 5),
+                                                                                  integer("asJitterMs", 5),
+                                                                                  decimal("asErrorRate", 0));
+        EmbeddedDirectory directory = new EmbeddedDirectory();
+        ExecutorService workers = Executors.newFixedThreadPool(integer("workers", 256));
+        BlockingCallExecutor blockingCallExecutor = BlockingCallExecutor.create(string("executor", "caller"), 64, 1000);
+        try {
+            URI asUri = authorizationServer.start(integer("asThreads", 64));
+            boolean compositeKeys = bool("compositeKeys");
+            directory.load(shares, owners, REALM, CLIENT_ID, compositeKeys);
+            int ldapPort = directory.start();
+            System.out.printf("Stub AS at %s, directory on port %d with %d shares%n", asUri, ldapPort, shares);
+
+            LDAPManager ldapManager = new LDAPManager("127.0.0.1", ldapPort, EmbeddedDirectory.ADMIN_DN,
+                                                      EmbeddedDirectory.ADMIN_PASSWORD, EmbeddedDirectory.BASE_DN);
+            ldapManager.setCompositeKeys(compositeKeys);
+            Handler handler = new HttpClientHandler();
+            UmaSharingServiceExt service = new UmaSharingServiceExt(handler, REALM,
+                    new AuthorizationServerPool(Collections.singletonList(new AuthorizationServerNode(asUri, REALM))),
+                    CLIENT_ID, "password", ldapManager);
+            service.setShareLookupCache(new ShareLookupCache(TimeUnit.SECONDS.toNanos(10),
+                                                             integer("shareCacheSize", 10000)));
+            service.setBlockingCallExecutor(blockingCallExecutor);
+            if (bool("shareIndex")) {
+                service.reloadShareIndex();
+            }
+            UmaResourceServerFilterExt filter = new UmaResourceServerFilterExt(service, handler, REALM,
+                    ScopeSet.compile(new ArrayList<Object>(SCOPES)),
+                    new DecisionCache(TimeUnit.SECONDS.toNanos(10), integer("decisionCacheSize", 10000)));
+            int ticketRate = integer("ticketRate", 0);
+            if (ticketRate > 0) {
+                filter.setTicketAdmissionControl(new TicketAdmissionControl(TicketAdmissionControl.KeyType.CLIENT, null,
+                        ticketRate, TimeUnit.SECONDS.toNanos(1), ticketRate, 100000));
+            }
+            Handler shareEndpoint = newHttpHandler(newCrestApplication(
+                    newHandler(new ShareCollectionProviderExt(service)), "frapi:openig:uma:shareExt"));
+
+            drive(workers, new Traffic(filter, shareEndpoint, shares, owners));
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+            blockingCallExecutor.shutdown();
+            directory.stop();
+            authorizationServer.stop();
+        }
+        System.out.printf("Stub AS: %d calls, %d injected errors%n",
+                          authorizationServer.getCalls(), authorizationServer.getErrors());
+    }
+
+    private void drive(final ExecutorService workers, final Traffic traffic) {
+        long rate = integer("rate", 1000);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long warmUpNanos = TimeUnit.SECONDS.toNanos(integer("warmUp", 10));
+        long durationNanos = TimeUnit.SECONDS.toNanos(integer("duration", 60));
+        int[] weights = new int[OUTCOMES.length];
+        int totalWeight = 0;
+        int[] defaults = {80, 5, 10, 4, 1};
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            weights[i] = integer(OUTCOMES[i], defaults[i]);
+            totalWeight += weights[i];
+        }
+
+        System.out.printf("Open-loop load: %d req/s, %d s warm-up, %d s measured%n",
+                          rate, TimeUnit.NANOSECONDS.toSeconds(warmUpNanos),
+                          TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        long start = System.nanoTime();
+        long measureStart = start + warmUpNanos;
+        long end = measureStart + durationNanos;
+        for (long n = 0; ; n++) {
+            final long due = start + n * intervalNanos;
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            recording = due >= measureStart;
+            final int kind = pick(weights, totalWeight);
+            inFlight.incrementAndGet();
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (recording) {
+                        dispatchLag.record(System.nanoTime() - due);
+                    }
+                    send(traffic, kind, due);
+                }
+            });
+        }
+        long measuredNanos = System.nanoTime() - measureStart;
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        report(measuredNanos);
+    }
+
+    private void send(final Traffic traffic, final int kind, final long due) {
+        final boolean measured = recording;
+        Promise<Response, NeverThrowsException> promise;
+        try {
+            promise = traffic.send(OUTCOMES[kind]);
+        } catch (RuntimeException e) {
+            promise = newResponsePromise(new Response(Status.INTERNAL_SERVER_ERROR).setCause(e));
+        }
+        promise.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                if (measured) {
+                    histogram(OUTCOMES[kind] + " " + response.getStatus().getCode()).record(System.nanoTime() - due);
+                }
+                response.close();
+                inFlight.decrementAndGet();
+            }
+        }).thenOnRuntimeException(new RuntimeExceptionHandler() {
+            @Override
+            public void handleRuntimeException(final RuntimeException exception) {
+                if (measured) {
+                    histogram(OUTCOMES[kind] + " exception").record(System.nanoTime() - due);
+                }
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    private LatencyHistogram histogram(final String outcome) {
+        LatencyHistogram histogram = histograms.get(outcome);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(outcome, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private void report(final long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        System.out.println();
+        System.out.printf("%-22s %10s %10s %9s %9s %9s %9s %9s %9s%n",
+                          "outcome", "count", "req/s", "mean", "p50", "p90", "p99", "p99.9", "max");
+        long total = 0;
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            print(entry.getKey(), entry.getValue(), seconds);
+            total += entry.getValue().getCount();
+        }
+        print("dispatch lag", dispatchLag, seconds);
+        System.out.printf(Locale.ROOT, "%nThroughput: %.1f req/s (%d responses in %.1f s), latencies in ms,"
+                                  + " %d requests still in flight%n",
+                          total / seconds, total, seconds, inFlight.get());
+    }
+
+    private static void print(final String outcome, final LatencyHistogram histogram, final double seconds) {
+        System.out.printf(Locale.ROOT, "%-22s %10d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                          outcome, histogram.getCount(), histogram.getCount() / seconds,
+                          histogram.getMean() / 1000,
+                          histogram.getValueAtPercentile(50) / 1000.0,
+                          histogram.getValueAtPercentile(90) / 1000.0,
+                          histogram.getValueAtPercentile(99) / 1000.0,
+                          histogram.getValueAtPercentile(99.9) / 1000.0,
+                          histogram.getMax() / 1000.0);
+    }
+
+    private static int pick(final int[] weights, final int totalWeight) {
+        int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (int i = 0; i < weights.length; i++) {
+            ticket -= weights[i];
+            if (ticket < 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private String string(final String name, final String defaultValue) {
+        return parameters.getProperty(name, defaultValue);
+    }
+
+    private int integer(final String name, final int defaultValue) {
+        return Integer.parseInt(string(name, Integer.toString(defaultValue)));
+    }
+
+    private double decimal(final String name, final double defaultValue) {
+        return Double.parseDouble(string(name, Double.toString(defaultValue)));
+    }
+
+    private boolean bool(final String name) {
+        return Boolean.parseBoolean(string(name, "false"));
+    }
+
+    /**
+     * Builds and sends the requests of each kind of traffic.
+     */
+    private static final class Traffic {
+        private final UmaResourceServerFilterExt filter;
+        private final Handler shareEndpoint;
+        private final Handler protectedApplication = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                return newResponsePromise(new Response(Status.OK));
+            }
+        };
+        private final int shares;
+        private final int owners;
+
+        Traffic(final UmaResourceServerFilterExt filter,
+                final Handler shareEndpoint,
+                final int shares,
+                final int owners) {
+            this.filter = filter;
+            this.shareEndpoint = shareEndpoint;
+            this.shares = shares;
+            this.owners = owners;
+        }
+
+        Promise<Response, NeverThrowsException> send(final String kind) {
+            int share = ThreadLocalRandom.current().nextInt(shares);
+            Request request = new Request().setMethod("GET");
+            String owner = EmbeddedDirectory.owner(share, owners);
+            // One client address per share, so that ticket admission control keyed by client has many buckets
+            Context context = ClientContext.buildExternalClientContext(new RootContext())
+                                           .remoteAddress("127.0." + (share >> 8 & 0xFF) + "." + (share & 0xFF))
+                                           .build();
+            switch (kind) {
+            case "shareRead":
+                request.setUri(URI.create("http://localhost/share/share-" + share));
+                request.getHeaders().put("Authorization", "Bearer pat:" + owner);
+                return shareEndpoint.handle(new UriRouterContext(context, "share", "share-" + share,
+                                                                 Collections.<String, String>emptyMap()),
+                                            request);
+            case "unknownUri":
+                request.setUri(URI.create("http://localhost/data/missing-" + share));
+                break;
+            default:
+                request.setUri(URI.create("http://localhost" + EmbeddedDirectory.uri(share)));
+                if ("allowed".equals(kind)) {
+                    request.getHeaders().put("Authorization",
+                                             "Bearer rpt:" + EmbeddedDirectory.resourceSetId(share));
+                } else if ("insufficient".equals(kind)) {
+                    request.getHeaders().put("Authorization",
+                                             "Bearer rpt:" + EmbeddedDirectory.resourceSetId((share + 1) % shares));
+                }
+                break;
+            }
+            request.getHeaders().put("userId", owner);
+            return filter.filter(context, request, protectedApplication);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.audit.AuditService;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+
+/**
+ * Sends the decision events to an OpenIG {@link AuditService}, as events of the given topic ({@literal access} by
+ * default): {@literal eventName} is {@literal OPENIG-UMA-DECISION}, and the decision fields are in {@literal uma}.
+ */
+class AuditServiceSink implements DecisionAuditor.Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuditServiceSink.class);
+    private static final String EVENT_NAME = "OPENIG-UMA-DECISION";
+
+    private final AuditService auditService;
+    private final String topic;
+    private final AtomicLong failures = new AtomicLong();
+    // Only used by the auditor thread
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+
+    /**
+     * Creates a sink.
+     *
+     * @param auditService audit service
+     * @param topic        audit topic of the events
+     */
+    AuditServiceSink(final AuditService auditService, final String topic) {
+        this.auditService = auditService;
+        this.topic = topic;
+        this.timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public void write(final DecisionEvent event) throws ResourceException {
+        if (!auditService.isAuditing(topic)) {
+            return;
+        }
+        String transactionId = event.getTransactionId() != null
+                ? event.getTransactionId()
+                : UUID.randomUUID().toString();
+        Map<String, Object> decision = event.asMap();
+        JsonValue content = json(object(field("eventName", EVENT_NAME),
+                                        field("timestamp", timestampFormat.format(new Date(event.getTimestamp()))),
+                                        field("transactionId", transactionId),
+                                        field("uma", decision)));
+        // The audit handlers are asynchronous: do not wait for the outcome
+        auditService.handleCreate(new RootContext(), newCreateRequest(topic, content))
+                    .thenOnException(new ExceptionHandler<ResourceException>() {
+                        @Override
+                        public void handleException(final ResourceException e) {
+                            if (failures.getAndIncrement() == 0) {
+                                logger.error("Cannot send UMA decision event to the audit service", e);
+                            }
+                        }
+                    });
+    }
+
+    @Override
+    public void flush() {
+        // Nothing buffered here
+    }
+
+    @Override
+    public void close() {
+        // The audit service lifecycle is managed by the heap
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A single UMA Authorization Server node, with the realm-specific endpoints resolved against its base URI and the
+ * latency / failure statistics used by the {@link AuthorizationServerPool} to route calls.
+ */
+class AuthorizationServerNode {
+
+    /** Number of latency samples kept per node. */
+    private static final int SAMPLES = 128;
+
+    /** Number of consecutive failures after which a node is considered unhealthy. */
+    private static final int FAILURE_THRESHOLD = 3;
+
+    /** Time an unhealthy node is skipped before being tried again. */
+    private static final long COOL_DOWN_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final URI baseUri;
+    private final URI introspectionEndpoint;
+    private final URI permissionEndpoint;
+    private final URI resourceRegistrationEndpoint;
+    private final URI tokenEndpoint;
+    private final URI configurationEndpoint;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long lastFailure;
+    private volatile long averageNanos;
+    private volatile long[] sortedSamples = new long[0];
+
+    /**
+     * Creates a node for the given AS base URI and realm.
+     *
+     * @param baseUri AS base URI
+     * @param realm   realm (starting with a {@literal /})
+     */
+    AuthorizationServerNode(final URI baseUri, final String realm) {
+        this.baseUri = baseUri;
+        this.introspectionEndpoint = baseUri.resolve("oauth2" + realm + "/introspect");
+        this.permissionEndpoint = baseUri.resolve("uma" + realm + "/permission_request");
+        this.resourceRegistrationEndpoint = baseUri.resolve("uma" + realm + "/resource_set");
+        this.tokenEndpoint = baseUri.resolve("oauth2" + realm + "/access_token");
+        this.configurationEndpoint = baseUri.resolve("uma" + realm + "/.well-known/uma2-configuration");
+    }
+
+    URI getBaseUri() {
+        return baseUri;
+    }
+
+    URI getIntrospectionEndpoint() {
+        return introspectionEndpoint;
+    }
+
+    URI getPermissionEndpoint() {
+        return permissionEndpoint;
+    }
+
+    URI getResourceRegistrationEndpoint() {
+        return resourceRegistrationEndpoint;
+    }
+
+    URI getTokenEndpoint() {
+        return tokenEndpoint;
+    }
+
+    URI getConfigurationEndpoint() {
+        return configurationEndpoint;
+    }
+
+    /**
+     * Marks the start of a call to this node.
+     *
+     * @return the start time, in nanoseconds
+     */
+    long start() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the outcome of a call started with {@link #start()}.
+     *
+     * @param startNanos value returned by {@link #start()}
+     * @param success    {@code false} if the node failed to answer properly (5xx, connection error)
+     */
+    void record(final long startNanos, final boolean success) {
+        inFlight.decrementAndGet();
+        long elapsed = System.nanoTime() - startNanos;
+        if (success) {
+            consecutiveFailures.set(0);
+        } else {
+            consecutiveFailures.incrementAndGet();
+            lastFailure = System.nanoTime();
+        }
+
+        long count = sampleCount.getAndIncrement();
+        samples.set((int) (count % SAMPLES), elapsed);
+        // Exponentially weighted average, good enough for ranking nodes
+        long average = averageNanos;
+        averageNanos = average == 0 ? elapsed : average + ((elapsed - average) >> 3);
+        if ((count % (SAMPLES / 4)) == 0) {
+            long[] copy = new long[(int) Math.min(count + 1, SAMPLES)];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = samples.get(i);
+            }
+            Arrays.sort(copy);
+            sortedSamples = copy;
+        }
+    }
+
+    /**
+     * Returns {@code true} if this node has not failed repeatedly in the recent past.
+     *
+     * @return {@code true} if this node is considered healthy
+     */
+    boolean isHealthy() {
+        return consecutiveFailures.get() < FAILURE_THRESHOLD
+                || System.nanoTime() - lastFailure > COOL_DOWN_NANOS;
+    }
+
+    /**
+     * Returns a cost estimate for sending a new call to this node: the smoothed latency scaled by the number of
+     * calls already in flight. Lower is better.
+     *
+     * @return the node cost
+     */
+    long cost() {
+        return Math.max(averageNanos, 1L) * (1 + inFlight.get());
+    }
+
+    /**
+     * Returns the latency observed at the given percentile, or {@code -1} if not enough samples were collected.
+     *
+     * @param percentile percentile, between 0 and 100
+     * @return the latency in nanoseconds, or {@code -1}
+     */
+    long percentileNanos(final int percentile) {
+        long[] sorted = sortedSamples;
+        if (sorted.length < SAMPLES / 4) {
+            return -1;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    @Override
+    public String toString() {
+        return baseUri.toString();
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.forgerock.util.Utils.closeSilently;
+
+/**
+ * An {@link AuthorizationServerPool} spreads the UMA protection API calls over a set of equivalent Authorization
+ * Server nodes.
+ * <p>
+ * <p>Each call goes to the healthiest node (the one with the lowest smoothed latency, weighted by the number of calls
+ * already in flight). Nodes that failed repeatedly are skipped for a short cool-down period.
+ * <p>
+ * <p>When hedging is enabled, idempotent calls (introspection, permission tickets) that have not been answered after
+ * the configured latency percentile of the selected node are sent a second time to the next best node: the first
+ * response wins, the other one is discarded. Cancelling a hedged call cancels the pending hedge and both requests.
+ */
+class AuthorizationServerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationServerPool.class);
+
+    /**
+     * Builds the {@link Request} to send to a given node.
+     */
+    interface RequestFactory {
+
+        /**
+         * Creates a new request targeting the given node.
+         *
+         * @param node selected node
+         * @return a new request (never re-used)
+         */
+        Request newRequest(AuthorizationServerNode node);
+    }
+
+    private final List<AuthorizationServerNode> nodes;
+    private final ScheduledExecutorService scheduler;
+    private final int hedgePercentile;
+    private final long hedgeMinDelayNanos;
+    private final long hedgeMaxDelayNanos;
+
+    /**
+     * Creates a pool without hedging.
+     *
+     * @param nodes AS nodes, the first one being the preferred one
+     */
+    AuthorizationServerPool(final List<AuthorizationServerNode> nodes) {
+        this(nodes, null, 0, 0, 0);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param nodes              AS nodes, the first one being the preferred one
+     * @param scheduler          used to fire hedged requests ({@code null} to disable hedging)
+     * @param hedgePercentile    latency percentile of the selected node after which a hedged request is sent
+     * @param hedgeMinDelayNanos lower bound of the hedging delay
+     * @param hedgeMaxDelayNanos upper bound of the hedging delay (also used until enough samples are collected)
+     */
+    AuthorizationServerPool(final List<AuthorizationServerNode> nodes,
+                            final ScheduledExecutorService scheduler,
+                            final int hedgePercentile,
+                            final long hedgeMinDelayNanos,
+                            final long hedgeMaxDelayNanos) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one Authorization Server is required");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.scheduler = scheduler;
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMinDelayNanos = hedgeMinDelayNanos;
+        this.hedgeMaxDelayNanos = hedgeMaxDelayNanos;
+    }
+
+    /**
+     * Returns the preferred node (the first configured one).
+     *
+     * @return the preferred node
+     */
+    AuthorizationServerNode getPrimary() {
+        return nodes.get(0);
+    }
+
+    List<AuthorizationServerNode> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Sends a request to the healthiest node.
+     *
+     * @param context Context chain used to keep a relationship between requests (tracking)
+     * @param handler handler used to send the request
+     * @param factory builds the request for the selected node
+     * @param hedge   {@code true} if the call is idempotent and can be hedged
+     * @return the first response received
+     */
+    Promise<Response, NeverThrowsException> send(final Context context,
+                                                 final Handler handler,
+                                                 final RequestFactory factory,
+                                                 final boolean hedge) {
+        final AuthorizationServerNode primary = select(null);
+        if (!hedge || scheduler == null || nodes.size() < 2) {
+            return call(context, handler, factory, primary);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final List<Promise<Response, NeverThrowsException>> calls = new CopyOnWriteArrayList<>();
+        final AtomicReference<ScheduledFuture<?>> hedged = new AtomicReference<>();
+        final PromiseImpl<Response, NeverThrowsException> result = new PromiseImpl<Response, NeverThrowsException>() {
+            @Override
+            protected NeverThrowsException tryCancel(final boolean mayInterruptIfRunning) {
+                cancelled.set(true);
+                cancelHedge(hedged);
+                for (Promise<Response, NeverThrowsException> call : calls) {
+                    call.cancel(mayInterruptIfRunning);
+                }
+                // Completed by the outcome of the cancelled calls
+                return null;
+            }
+        };
+        final ResultHandler<Response> firstWins = new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                if (done.compareAndSet(false, true)) {
+                    result.handleResult(response);
+                } else {
+                    // Lost the race
+                    closeSilently(response);
+                }
+            }
+        };
+        final RuntimeExceptionHandler firstFails = new RuntimeExceptionHandler() {
+            @Override
+            public void handleRuntimeException(final RuntimeException exception) {
+                if (done.compareAndSet(false, true)) {
+                    result.handleRuntimeException(exception);
+                }
+            }
+        };
+
+        calls.add(call(context, handler, factory, primary).thenOnResult(firstWins)
+                                                        .thenOnRuntimeException(firstFails));
+        hedged.set(scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (done.get() || cancelled.get()) {
+                    return;
+                }
+                AuthorizationServerNode secondary = select(primary);
+                if (secondary != null) {
+                    logger.trace("No answer yet from {}, hedging request to {}", primary, secondary);
+                    Promise<Response, NeverThrowsException> call = call(context, handler, factory, secondary);
+                    calls.add(call.thenOnResult(firstWins).thenOnRuntimeException(firstFails));
+                    if (cancelled.get()) {
+                        // Cancelled while sending
+                        call.cancel(true);
+                    }
+                }
+            }
+        }, hedgeDelayNanos(primary), TimeUnit.NANOSECONDS));
+
+        return result.thenAlways(new Runnable() {
+            @Override
+            public void run() {
+                cancelHedge(hedged);
+            }
+        });
+    }
+
+    private static void cancelHedge(final AtomicReference<ScheduledFuture<?>> hedged) {
+        ScheduledFuture<?> hedge = hedged.get();
+        if (hedge != null) {
+            hedge.cancel(false);
+        }
+    }
+
+    /**
+     * Sends a request to the given node, bypassing the node selection (used to warm up every node).
+     *
+     * @param context Context chain used to keep a relationship between requests (tracking)
+     * @param handler handler used to send the request
+     * @param factory builds the request for the node
+     * @param node    target node
+     * @return the response
+     */
+    Promise<Response, NeverThrowsException> sendTo(final Context context,
+                                                   final Handler handler,
+                                                   final RequestFactory factory,
+                                                   final AuthorizationServerNode node) {
+        return call(context, handler, factory, node);
+    }
+
+    private Promise<Response, NeverThrowsException> call(final Context context,
+                                                         final Handler handler,
+                                                         final RequestFactory factory,
+                                                         final AuthorizationServerNode node) {
+        final Request request = factory.newRequest(node);
+        final long start = node.start();
+        // Recorded exactly once, also when the call is cancelled (request deadline): the in-flight count must drop
+        final AtomicBoolean recorded = new AtomicBoolean();
+        return handler.handle(context, request)
+                      .thenOnResult(new ResultHandler<Response>() {
+                          @Override
+                          public void handleResult(final Response response) {
+                              if (recorded.compareAndSet(false, true)) {
+                                  node.record(start, !response.getStatus().isServerError());
+                              }
+                          }
+                      })
+                      .thenAlways(new Runnable() {
+                          @Override
+                          public void run() {
+                              if (recorded.compareAndSet(false, true)) {
+                                  // Cancelled (or failed without a response): counted as a failure
+                                  node.record(start, false);
+                              }
+                              request.close();
+                          }
+                      });
+    }
+
+    private long hedgeDelayNanos(final AuthorizationServerNode node) {
+        long delay = node.percentileNanos(hedgePercentile);
+        if (delay < 0) {
+            return hedgeMaxDelayNanos;
+        }
+        return Math.max(hedgeMinDelayNanos, Math.min(delay, hedgeMaxDelayNanos));
+    }
+
+    /**
+     * Selects the cheapest healthy node, excluding the given one. When all candidates are unhealthy, the cheapest one
+     * is still returned (unless looking for a hedging target).
+     */
+    private AuthorizationServerNode select(final AuthorizationServerNode excluded) {
+        AuthorizationServerNode best = null;
+        AuthorizationServerNode fallback = null;
+        for (AuthorizationServerNode node : nodes) {
+            if (node == excluded) {
+                continue;
+            }
+            if (fallback == null || node.cost() < fallback.cost()) {
+                fallback = node;
+            }
+            if (node.isHealthy() && (best == null || node.cost() < best.cost())) {
+                best = node;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        return excluded == null ? fallback : null;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Runs the blocking sections of the UMA service (LDAP searches and updates) off the OpenIG container threads, and
+ * exposes their outcome as a {@link Promise}.
+ * <p>
+ * <p>Three modes are available:
+ * <ul>
+ * <li>{@literal virtual}: one virtual thread per call (Java 21+), falls back to {@literal platform} on older
+ * runtimes</li>
+ * <li>{@literal platform}: a bounded pool of daemon threads; when its queue is full, the caller runs the call
+ * itself</li>
+ * <li>{@literal caller}: the calling thread runs the call (the behavior of previous versions)</li>
+ * </ul>
+ */
+class BlockingCallExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockingCallExecutor.class);
+
+    /**
+     * A blocking section.
+     *
+     * @param <V> result type
+     * @param <E> exception type
+     */
+    interface BlockingCall<V, E extends Exception> {
+        V call() throws E;
+    }
+
+    /**
+     * Runs every call on the calling thread.
+     */
+    static final BlockingCallExecutor CALLER = new BlockingCallExecutor(null, "caller");
+
+    private final ExecutorService executor;
+    private final String mode;
+
+    private BlockingCallExecutor(final ExecutorService executor, final String mode) {
+        this.executor = executor;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param mode       {@literal virtual}, {@literal platform} or {@literal caller}
+     * @param maxThreads maximum number of platform threads
+     * @param queueSize  maximum number of calls waiting for a platform thread
+     * @return the executor
+     */
+    static BlockingCallExecutor create(final String mode, final int maxThreads, final int queueSize) {
+        switch (mode.toLowerCase(Locale.ROOT)) {
+        case "caller":
+            return CALLER;
+        case "virtual":
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return new BlockingCallExecutor(virtual, "virtual");
+            }
+            logger.warn("Virtual threads are not available on this Java runtime, using a platform thread pool");
+            return newPlatform(maxThreads, queueSize);
+        case "platform":
+            return newPlatform(maxThreads, queueSize);
+        default:
+            throw new IllegalArgumentException("Unknown executor mode: " + mode);
+        }
+    }
+
+    private static BlockingCallExecutor newPlatform(final int maxThreads, final int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+                                                         60, TimeUnit.SECONDS,
+                                                         new ArrayBlockingQueue<Runnable>(queueSize),
+                                                         new DaemonThreadFactory(),
+                                                         new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return new BlockingCallExecutor(pool, "platform");
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()} reflectively, so this still runs on Java 8.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    String getMode() {
+        return mode;
+    }
+
+    /**
+     * Runs the given blocking call.
+     *
+     * @param call blocking section
+     * @param <V>  result type
+     * @param <E>  exception type
+     * @return a promise completed with the call outcome
+     */
+    <V, E extends Exception> Promise<V, E> execute(final BlockingCall<V, E> call) {
+        if (executor == null) {
+            return run(call);
+        }
+        final PromiseImpl<V, E> promise = PromiseImpl.create();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                complete(promise, call);
+            }
+        });
+        return promise;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V, E extends Exception> Promise<V, E> run(final BlockingCall<V, E> call) {
+        try {
+            return newResultPromise(call.call());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // BlockingCall only throws E
+            return newExceptionPromise((E) e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V, E extends Exception> void complete(final PromiseImpl<V, E> promise,
+                                                          final BlockingCall<V, E> call) {
+        try {
+            promise.handleResult(call.call());
+        } catch (RuntimeException e) {
+            promise.handleRuntimeException(e);
+        } catch (Exception e) {
+            // BlockingCall only throws E
+            promise.handleException((E) e);
+        }
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "uma-blocking-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the {@link DecisionEvent}s of the request path to a bounded ring buffer, drained by a single background
+ * thread into a {@link Sink}: the request path never blocks, on I/O nor on a lock.
+ * <p>
+ * <p>The ring buffer is multi-producer, single-consumer: a producer claims a slot with one compare-and-set on the
+ * head sequence, then stores its event in the slot; the consumer takes the events in sequence order and frees their
+ * slots. When the buffer is full the event is dropped and counted, and the drops are logged (at most once per
+ * {@code dropReportInterval}) by the consumer.
+ */
+class DecisionAuditor {
+
+    private static final Logger logger = LoggerFactory.getLogger(DecisionAuditor.class);
+
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Destination of the decision events, only called from the auditor thread.
+     */
+    interface Sink {
+
+        /**
+         * Writes an event (possibly buffered).
+         *
+         * @param event decision event
+         * @throws Exception if the event cannot be written
+         */
+        void write(DecisionEvent event) throws Exception;
+
+        /**
+         * Flushes the buffered events, called when the ring buffer is empty.
+         *
+         * @throws Exception if the events cannot be flushed
+         */
+        void flush() throws Exception;
+
+        /**
+         * Releases the sink resources.
+         */
+        void close();
+    }
+
+    private final AtomicReferenceArray<DecisionEvent> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Sink sink;
+    private final long dropReportIntervalNanos;
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts an auditor.
+     *
+     * @param capacity                ring buffer capacity (rounded up to a power of two)
+     * @param sink                    events destination
+     * @param dropReportIntervalNanos minimum interval between two drop reports in the logs
+     */
+    DecisionAuditor(final int capacity, final Sink sink, final long dropReportIntervalNanos) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The audit buffer size must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.sink = sink;
+        this.dropReportIntervalNanos = dropReportIntervalNanos;
+        this.consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "uma-decision-audit");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Publishes an event, without blocking.
+     *
+     * @param event decision event
+     * @return {@code false} if the event was dropped (full buffer, or stopped auditor)
+     */
+    boolean publish(final DecisionEvent event) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        while (true) {
+            long sequence = head.get();
+            if (sequence - tail.get() >= slots.length()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (head.compareAndSet(sequence, sequence + 1)) {
+                slots.lazySet((int) sequence & mask, event);
+                return true;
+            }
+        }
+    }
+
+    private void drain() {
+        long idleParkNanos = 1000;
+        long lastDropReport = System.nanoTime();
+        long reportedDrops = 0;
+        while (true) {
+            long sequence = tail.get();
+            int index = (int) sequence & mask;
+            DecisionEvent event = slots.get(index);
+            if (event != null) {
+                slots.lazySet(index, null);
+                tail.lazySet(sequence + 1);
+                write(event);
+                idleParkNanos = 1000;
+                continue;
+            }
+            if (sequence != head.get()) {
+                // Slot claimed, event not stored yet
+                Thread.yield();
+                continue;
+            }
+            // Empty
+            flush();
+            long drops = dropped.get();
+            if (drops != reportedDrops && System.nanoTime() - lastDropReport >= dropReportIntervalNanos) {
+                logger.warn("UMA decision audit buffer full: {} events dropped ({} in total)",
+                            drops - reportedDrops, drops);
+                reportedDrops = drops;
+                lastDropReport = System.nanoTime();
+            }
+            if (!running) {
+                break;
+            }
+            LockSupport.parkNanos(idleParkNanos);
+            idleParkNanos = Math.min(idleParkNanos * 2, MAX_IDLE_PARK_NANOS);
+        }
+        sink.close();
+    }
+
+    private void write(final DecisionEvent event) {
+        try {
+            sink.write(event);
+            written.incrementAndGet();
+        } catch (Exception e) {
+            if (failed.getAndIncrement() == 0) {
+                logger.error("Cannot write UMA decision event, further failures are only counted", e);
+            }
+        }
+    }
+
+    private void flush() {
+        try {
+            sink.flush();
+        } catch (Exception e) {
+            logger.error("Cannot flush UMA decision events", e);
+        }
+    }
+
+    /**
+     * Stops accepting events, writes the pending ones and closes the sink.
+     *
+     * @param timeoutNanos maximum wait for the pending events to be written
+     */
+    void stop(final long timeoutNanos) {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("UMA decision audit stopped: {} events written, {} dropped, {} failed",
+                    written.get(), dropped.get(), failed.get());
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers, for a short time, that an RPT has been introspected and carries the scopes required to access a share,
+ * so that subsequent requests with the same RPT do not call the introspection endpoint again.
+ * <p>
+ * <p>An entry never outlives the RPT expiration time ({@literal exp}) returned by the introspection endpoint, and the
+ * entries of a share are evicted when it is removed or quarantined (see
+ * {@link UmaSharingServiceExt#addDecisionCache(DecisionCache)}).
+ * <p>
+ * <p>Decisions are indexed by share, then by RPT: a lookup allocates nothing, and a share is evicted at once.
+ */
+class DecisionCache {
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> allowed = new ConcurrentHashMap<>();
+    /** Number of decisions (approximate under concurrent updates, only used to bound the cache). */
+    private final AtomicInteger size = new AtomicInteger();
+    private final long timeoutNanos;
+    private final int maxSize;
+
+    /**
+     * Creates a cache.
+     *
+     * @param timeoutNanos maximum time-to-live of the entries, {@code 0} disables the cache
+     * @param maxSize      maximum number of entries
+     */
+    DecisionCache(final long timeoutNanos, final int maxSize) {
+        this.timeoutNanos = Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+        this.maxSize = maxSize;
+    }
+
+    boolean isEnabled() {
+        return timeoutNanos > 0 && maxSize > 0;
+    }
+
+    /**
+     * Returns {@code true} if the given RPT has recently been found to grant access to the given share.
+     *
+     * @param shareId share identifier
+     * @param rpt     requesting party token
+     * @return {@code true} on a live cached allow decision
+     */
+    boolean isAllowed(final String shareId, final String rpt) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Map<String, Long> byRpt = allowed.get(shareId);
+        if (byRpt == null) {
+            return false;
+        }
+        Long expiresAt = byRpt.get(rpt);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (System.nanoTime() - expiresAt > 0) {
+            if (byRpt.remove(rpt, expiresAt)) {
+                size.decrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records an allow decision.
+     *
+     * @param shareId             share identifier
+     * @param rpt                 requesting party token
+     * @param tokenExpiresSeconds RPT expiration time, in seconds since the epoch ({@code 0} if unknown)
+     */
+    void allow(final String shareId, final String rpt, final long tokenExpiresSeconds) {
+        if (!isEnabled()) {
+            return;
+        }
+        long ttl = timeoutNanos;
+        if (tokenExpiresSeconds > 0) {
+            long remainingMillis = tokenExpiresSeconds * 1000L - System.currentTimeMillis();
+            if (remainingMillis <= 0) {
+                return;
+            }
+            ttl = Math.min(ttl, TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+        }
+        if (size.get() >= maxSize) {
+            purge();
+        }
+        ConcurrentHashMap<String, Long> byRpt = allowed.get(shareId);
+        if (byRpt == null) {
+            ConcurrentHashMap<String, Long> created = new ConcurrentHashMap<>();
+            byRpt = allowed.putIfAbsent(shareId, created);
+            if (byRpt == null) {
+                byRpt = created;
+            }
+        }
+        if (byRpt.put(rpt, System.nanoTime() + ttl) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Evicts all the decisions related to the given share.
+     *
+     * @param shareId share identifier
+     */
+    void invalidateShare(final String shareId) {
+        Map<String, Long> removed = allowed.remove(shareId);
+        if (removed != null) {
+            size.addAndGet(-removed.size());
+        }
+    }
+
+    private void purge() {
+        long now = System.nanoTime();
+        int live = 0;
+        for (Iterator<ConcurrentHashMap<String, Long>> shares = allowed.values().iterator(); shares.hasNext(); ) {
+            ConcurrentHashMap<String, Long> byRpt = shares.next();
+            for (Iterator<Long> iterator = byRpt.values().iterator(); iterator.hasNext(); ) {
+                if (now - iterator.next() > 0) {
+                    iterator.remove();
+                } else {
+                    live++;
+                }
+            }
+            if (byRpt.isEmpty()) {
+                // A decision added meanwhile is lost: only a cache miss
+                shares.remove();
+            }
+        }
+        size.set(live);
+        if (live >= maxSize) {
+            allowed.clear();
+            size.set(0);
+        }
+    }
+}
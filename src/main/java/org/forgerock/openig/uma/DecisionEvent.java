@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.services.TransactionId;
+import org.forgerock.services.context.ClientContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.TransactionIdContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An access decision of {@link UmaResourceServerFilterExt}, as published to the {@link DecisionAuditor}.
+ * <p>
+ * <p>Events are immutable and only hold strings captured on the request path, so they can be formatted later on the
+ * auditor thread.
+ */
+final class DecisionEvent {
+
+    /**
+     * Access decisions.
+     */
+    enum Decision {
+        /** The RPT grants the required scopes (introspected). */
+        ALLOWED,
+        /** The RPT grants the required scopes (recent decision). */
+        ALLOWED_CACHED,
+        /** A permission ticket was issued (no RPT, or an inactive one). */
+        TICKET,
+        /** A permission ticket was issued for the permissions missing from the RPT. */
+        INSUFFICIENT_SCOPE,
+        /** No permission ticket could be obtained from the AS. */
+        TICKET_ERROR,
+        /** The ticket requests rate limit was exceeded. */
+        THROTTLED,
+        /** No share protects the request. */
+        NOT_FOUND,
+        /** The request deadline was exceeded (the detail is the exhausted stage). */
+        DEADLINE_EXCEEDED
+    }
+
+    private final long timestamp;
+    private final Decision decision;
+    private final int status;
+    private final String transactionId;
+    private final String method;
+    private final String path;
+    private final String clientAddress;
+    private final String userId;
+    private final List<String> shareIds;
+    private final List<String> resourceIds;
+    private final String detail;
+
+    private DecisionEvent(final Decision decision,
+                          final int status,
+                          final Context context,
+                          final Request request,
+                          final List<ShareExt> shares,
+                          final String detail) {
+        this.timestamp = System.currentTimeMillis();
+        this.decision = decision;
+        this.status = status;
+        this.transactionId = transactionId(context);
+        this.method = request.getMethod();
+        this.path = request.getUri().getPath();
+        this.clientAddress = context.containsContext(ClientContext.class)
+                ? context.asContext(ClientContext.class).getRemoteAddress()
+                : null;
+        this.userId = request.getHeaders().getFirst("userId");
+        if (shares.isEmpty()) {
+            this.shareIds = Collections.emptyList();
+            this.resourceIds = Collections.emptyList();
+        } else {
+            this.shareIds = new ArrayList<>(shares.size());
+            this.resourceIds = new ArrayList<>(shares.size());
+            for (ShareExt share : shares) {
+                shareIds.add(share.getId());
+                resourceIds.add(share.getResourceId());
+            }
+        }
+        this.detail = detail;
+    }
+
+    /**
+     * Creates an event.
+     *
+     * @param decision access decision
+     * @param status   response status code, {@code 0} when the request is allowed (and handled downstream)
+     * @param context  request context
+     * @param request  protected request
+     * @param shares   shares protecting the request (possibly empty)
+     * @param detail   additional information (can be {@code null})
+     * @return the event
+     */
+    static DecisionEvent of(final Decision decision,
+                            final int status,
+                            final Context context,
+                            final Request request,
+                            final List<ShareExt> shares,
+                            final String detail) {
+        return new DecisionEvent(decision, status, context, request, shares, detail);
+    }
+
+    private static String transactionId(final Context context) {
+        if (context.containsContext(TransactionIdContext.class)) {
+            TransactionId transactionId = context.asContext(TransactionIdContext.class).getTransactionId();
+            if (transactionId != null) {
+                return transactionId.getValue();
+            }
+        }
+        return null;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    Decision getDecision() {
+        return decision;
+    }
+
+    String getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * Returns the event fields, in a stable order, {@code null} fields omitted.
+     *
+     * @return the event fields
+     */
+    Map<String, Object> asMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("decision", decision.name());
+        if (status > 0) {
+            map.put("status", status);
+        }
+        put(map, "method", method);
+        put(map, "path", path);
+        put(map, "client", clientAddress);
+        put(map, "userId", userId);
+        if (!shareIds.isEmpty()) {
+            map.put("shareIds", shareIds);
+            map.put("resourceIds", resourceIds);
+        }
+        put(map, "detail", detail);
+        return map;
+    }
+
+    private static void put(final Map<String, Object> map, final String key, final String value) {
+        if (value != null) {
+            map.put(key, value);
+        }
+    }
+}
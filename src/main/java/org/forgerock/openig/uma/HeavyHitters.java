@@ -0,0 +1,297 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Finds the hottest shares, clients and RPTs of the protected traffic in constant memory: for each kind of key and
+ * each metric (requests, {@literal 401} responses, introspection time), a Count-Min sketch estimates the count of
+ * every key, and the {@code k} keys with the largest estimates are kept.
+ * <p>
+ * <p>The counts are halved every decay interval, so they follow the recent traffic: a steady rate {@code r} settles
+ * at a count of {@code r (T + t)} for an interval {@code T}, {@code t} after the last decay, reported as a rate per
+ * second. Estimates may be over (never
+ * under) the actual counts, by the counts of the keys colliding in every row of the sketch.
+ * <p>
+ * <p>RPTs are only kept as hashes.
+ */
+final class HeavyHitters {
+
+    /**
+     * Kinds of keys.
+     */
+    enum Key {
+        /** Share identifier. */
+        SHARES,
+        /** Client address. */
+        CLIENTS,
+        /** RPT hash. */
+        RPTS
+    }
+
+    /**
+     * Counted metrics.
+     */
+    enum Metric {
+        /** Protected requests. */
+        REQUESTS,
+        /** Permission ticket ({@literal 401}) responses. */
+        UNAUTHORIZED,
+        /** Time spent in RPT introspection calls, in nanoseconds. */
+        INTROSPECTION
+    }
+
+    private final TopK[][] sketches = new TopK[Key.values().length][Metric.values().length];
+    private final long decayIntervalNanos;
+    private volatile long lastDecay = System.nanoTime();
+
+    /**
+     * Creates the sketches.
+     *
+     * @param width              number of counters per row of a sketch
+     * @param depth              number of rows of a sketch
+     * @param k                  number of top keys kept per kind of key and metric
+     * @param decayIntervalNanos interval between two decays, {@link #decay()} is expected to be called that often
+     */
+    HeavyHitters(final int width, final int depth, final int k, final long decayIntervalNanos) {
+        if (width < 1 || depth < 1 || k < 1 || decayIntervalNanos <= 0) {
+            throw new IllegalArgumentException("width, depth, k and the decay interval must be positive");
+        }
+        for (TopK[] metrics : sketches) {
+            for (int i = 0; i < metrics.length; i++) {
+                metrics[i] = new TopK(width, depth, k);
+            }
+        }
+        this.decayIntervalNanos = decayIntervalNanos;
+    }
+
+    /**
+     * Counts a protected request.
+     *
+     * @param shares  protecting (or candidate) shares
+     * @param client  client address, may be {@code null}
+     * @param rpt     presented RPT, may be {@code null}
+     */
+    void request(final List<ShareExt> shares, final String client, final String rpt) {
+        add(Metric.REQUESTS, shares, client, rpt, 1L);
+    }
+
+    /**
+     * Counts a permission ticket response.
+     *
+     * @param shares  protecting (or candidate) shares
+     * @param client  client address, may be {@code null}
+     * @param rpt     presented RPT, may be {@code null}
+     */
+    void unauthorized(final List<ShareExt> shares, final String client, final String rpt) {
+        add(Metric.UNAUTHORIZED, shares, client, rpt, 1L);
+    }
+
+    /**
+     * Counts the time spent introspecting an RPT.
+     *
+     * @param shares protecting (or candidate) shares
+     * @param client client address, may be {@code null}
+     * @param rpt    introspected RPT
+     * @param nanos  time spent
+     */
+    void introspected(final List<ShareExt> shares, final String client, final String rpt, final long nanos) {
+        add(Metric.INTROSPECTION, shares, client, rpt, Math.max(0L, nanos));
+    }
+
+    private void add(final Metric metric,
+                     final List<ShareExt> shares,
+                     final String client,
+                     final String rpt,
+                     final long amount) {
+        for (ShareExt share : shares) {
+            sketches[Key.SHARES.ordinal()][metric.ordinal()].add(share.getId(), amount);
+        }
+        if (client != null) {
+            sketches[Key.CLIENTS.ordinal()][metric.ordinal()].add(client, amount);
+        }
+        if (rpt != null) {
+            sketches[Key.RPTS.ordinal()][metric.ordinal()].add(rptHash(rpt), amount);
+        }
+    }
+
+    /**
+     * Halves all the counts.
+     */
+    void decay() {
+        for (TopK[] metrics : sketches) {
+            for (TopK sketch : metrics) {
+                sketch.decay();
+            }
+        }
+        lastDecay = System.nanoTime();
+    }
+
+    /**
+     * Returns the top keys of every kind by request rate, {@literal 401} rate and introspection time, per second.
+     *
+     * @return the top keys
+     */
+    Map<String, Object> snapshot() {
+        // Steady state count of a rate r: r (T + t)
+        long sinceDecay = Math.min(Math.max(0L, System.nanoTime() - lastDecay), decayIntervalNanos);
+        double seconds = (double) (decayIntervalNanos + sinceDecay) / TimeUnit.SECONDS.toNanos(1);
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        for (Key key : Key.values()) {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            TopK[] sketch = sketches[key.ordinal()];
+            metrics.put("requestsPerSecond", sketch[Metric.REQUESTS.ordinal()].top(seconds));
+            metrics.put("unauthorizedPerSecond", sketch[Metric.UNAUTHORIZED.ordinal()].top(seconds));
+            // Nanoseconds to milliseconds
+            metrics.put("introspectionMillisPerSecond",
+                        sketch[Metric.INTROSPECTION.ordinal()].top(seconds * 1000000.0));
+            snapshot.put(key.name().toLowerCase(Locale.ROOT), metrics);
+        }
+        return snapshot;
+    }
+
+    private static String rptHash(final String rpt) {
+        return Long.toHexString(mix(OffHeapShareIndex.hash(rpt)));
+    }
+
+    /**
+     * Spreads the bits of an FNV-1a hash (MurmurHash3 finalizer), whose low bits mix poorly for similar keys.
+     */
+    private static long mix(final long hash) {
+        long h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A Count-Min sketch with the top {@code k} keys by estimated count.
+     */
+    static final class TopK {
+
+        private final int width;
+        private final int depth;
+        private final int k;
+        private final AtomicLongArray counters;
+        private final ConcurrentMap<String, Long> top = new ConcurrentHashMap<>();
+        /** Smallest count of the top keys once there are k of them: smaller estimates are not offered. */
+        private volatile long threshold;
+
+        TopK(final int width, final int depth, final int k) {
+            this.width = width;
+            this.depth = depth;
+            this.k = k;
+            this.counters = new AtomicLongArray(width * depth);
+        }
+
+        void add(final String key, final long amount) {
+            long hash = mix(OffHeapShareIndex.hash(key));
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                // Row indexes derived from two hashes (Kirsch-Mitzenmacher)
+                int column = ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+                estimate = Math.min(estimate, counters.addAndGet(row * width + column, amount));
+            }
+            if (top.replace(key, estimate) == null && estimate > threshold) {
+                offer(key, estimate);
+            }
+        }
+
+        private synchronized void offer(final String key, final long estimate) {
+            if (top.size() >= k && !top.containsKey(key)) {
+                Map.Entry<String, Long> min = min();
+                if (estimate <= min.getValue()) {
+                    threshold = min.getValue();
+                    return;
+                }
+                top.remove(min.getKey());
+            }
+            top.put(key, estimate);
+            threshold = top.size() >= k ? min().getValue() : 0L;
+        }
+
+        private Map.Entry<String, Long> min() {
+            Map.Entry<String, Long> min = null;
+            for (Map.Entry<String, Long> entry : top.entrySet()) {
+                if (min == null || entry.getValue() < min.getValue()) {
+                    min = entry;
+                }
+            }
+            return min;
+        }
+
+        synchronized void decay() {
+            for (int i = 0; i < counters.length(); i++) {
+                long count;
+                do {
+                    count = counters.get(i);
+                } while (count != 0 && !counters.compareAndSet(i, count, count >>> 1));
+            }
+            for (Map.Entry<String, Long> entry : top.entrySet()) {
+                long count = entry.getValue() >>> 1;
+                if (count == 0) {
+                    top.remove(entry.getKey(), entry.getValue());
+                } else {
+                    top.replace(entry.getKey(), entry.getValue(), count);
+                }
+            }
+            threshold = top.size() >= k ? min().getValue() : 0L;
+        }
+
+        /**
+         * Returns the top keys, by decreasing count.
+         *
+         * @param divisor divides the counts
+         * @return the keys with their divided counts
+         */
+        List<Map<String, Object>> top(final double divisor) {
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(top.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(final Map.Entry<String, Long> first, final Map.Entry<String, Long> second) {
+                    return Long.compare(second.getValue(), first.getValue());
+                }
+            });
+            List<Map<String, Object>> keys = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Long> entry : entries) {
+                Map<String, Object> key = new LinkedHashMap<>();
+                key.put("key", entry.getKey());
+                key.put("value", Math.round(entry.getValue() / divisor * 100.0) / 100.0);
+                keys.add(key);
+            }
+            return keys;
+        }
+    }
+}
@@ -21,22 +21,57 @@
 package org.forgerock.openig.uma;
 
 import org.forgerock.opendj.ldap.*;
+import org.forgerock.opendj.ldap.controls.AssertionRequestControl;
+import org.forgerock.opendj.ldap.controls.PostReadRequestControl;
+import org.forgerock.opendj.ldap.controls.PostReadResponseControl;
+import org.forgerock.opendj.ldap.controls.SimplePagedResultsControl;
+import org.forgerock.opendj.ldap.messages.DeleteRequest;
+import org.forgerock.opendj.ldap.messages.ModifyRequest;
+import org.forgerock.opendj.ldap.messages.Result;
+import org.forgerock.opendj.ldap.messages.Requests;
 import org.forgerock.opendj.ldap.messages.SearchResultEntry;
 import org.forgerock.opendj.ldif.ConnectionEntryReader;
-import org.forgerock.openig.ldap.LdapClient;
-import org.forgerock.openig.ldap.LdapConnection;
+import org.forgerock.opendj.ldif.LDIFEntryReader;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class LDAPManager {
 
-    private LdapClient ldapClient;
+    /**
+     * Receives the shares found by {@link #searchShares(ShareExt, ShareVisitor)}.
+     */
+    interface ShareVisitor {
+
+        /**
+         * Called for each share found.
+         *
+         * @param share found share
+         */
+        void visit(ShareExt share);
+    }
+
+    /**
+     * Attributes read for a share: the user attributes, and the operational attributes of its revision.
+     */
+    private static final String[] SHARE_ATTRIBUTES = {"*", "entryUUID", "modifyTimestamp", "createTimestamp"};
+
+    /**
+     * Base of the DS external changelog.
+     */
+    private static final String CHANGELOG_DN = "cn=changelog";
+
+    private final ConnectionFactory connectionFactory;
     private String baseDN;
     private String userName;
     private String password;
     private String hostname;
     private int port;
+    private boolean compositeKeys;
 
     public LDAPManager(String hostname, int port, String userName, String password, String baseDN) {
         this.userName = userName;
@@ -45,7 +80,26 @@ public class LDAPManager {
         this.port = port;
         this.baseDN = baseDN;
 
-        this.ldapClient = LdapClient.getInstance();
+        // Owned by this manager (not shared with the other OpenIG LDAP clients), so that it can be closed
+        this.connectionFactory = new LDAPConnectionFactory(hostname, port);
+    }
+
+    /**
+     * Closes the connection factory: the operations started afterwards fail.
+     */
+    void close() {
+        connectionFactory.close();
+    }
+
+    /**
+     * Enables the {@literal umaResourceKey} / {@literal umaResourceUriKey} composite keys: they are written with new
+     * shares, and exact share lookups are equality matches on them (they must be defined in the schema, and should be
+     * indexed).
+     *
+     * @param compositeKeys {@code true} to use the composite keys
+     */
+    void setCompositeKeys(boolean compositeKeys) {
+        this.compositeKeys = compositeKeys;
     }
 
     /**
@@ -54,25 +108,12 @@ public class LDAPManager {
      * @param share
      */
     void addShare(ShareExt share) throws LdapException {
-        LdapConnection ldapConnection = null;
+        Connection ldapConnection = null;
         try {
-            ldapConnection = ldapClient.connect(hostname, port);
+            ldapConnection = connectionFactory.getConnection();
             ldapConnection.bind(userName, password.toCharArray());
 
-            String entryDN = "umaResourceId=" + share.getId() + "," + baseDN;
-            Entry entry = new LinkedHashMapEntry(entryDN)
-                    .addAttribute("objectclass", "top")
-                    .addAttribute("objectclass", "frUmaRS")
-                    .addAttribute("umaResourceSetId", share.getResourceId())
-                    .addAttribute("umaResourceURI", share.getRequestURI())
-                    .addAttribute("umaResourceName", share.getResourceName())
-                    .addAttribute("umaResoucePAT", share.getPAT())
-                    .addAttribute("umaResourcePolicyURI", share.getPolicyURI())
-                    .addAttribute("umaResourceUserID", share.getUserId())
-                    .addAttribute("umaResourceRealm", share.getRealm())
-                    .addAttribute("umaResourceClientId", share.getClientId());
-
-            ldapConnection.add(entry);
+            add(ldapConnection, share);
         } finally {
             if (null != ldapConnection) {
                 ldapConnection.close();
@@ -80,6 +121,72 @@ public class LDAPManager {
         }
     }
 
+    /**
+     * Adds the given shares with their identifiers, over a single connection: the shares that already exist are left
+     * as is, so that a partially applied batch can be applied again.
+     *
+     * @param shares shares to add
+     * @return the shares actually added
+     * @throws LdapException if a share cannot be added (the shares added before it are kept)
+     */
+    List<ShareExt> addShares(List<ShareExt> shares) throws LdapException {
+        List<ShareExt> added = new ArrayList<>(shares.size());
+        Connection ldapConnection = null;
+        try {
+            ldapConnection = connectionFactory.getConnection();
+            ldapConnection.bind(userName, password.toCharArray());
+
+            for (ShareExt share : shares) {
+                try {
+                    add(ldapConnection, share);
+                    added.add(share);
+                } catch (LdapException e) {
+                    if (e.getResult().getResultCode() != ResultCode.ENTRY_ALREADY_EXISTS) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            if (null != ldapConnection) {
+                ldapConnection.close();
+            }
+        }
+        return added;
+    }
+
+    private void add(Connection ldapConnection, ShareExt share) throws LdapException {
+        Entry entry = new LinkedHashMapEntry(shareDN(share.getId()))
+                .addAttribute("objectclass", "top")
+                .addAttribute("objectclass", "frUmaRS")
+                .addAttribute("umaResourceSetId", share.getResourceId())
+                .addAttribute("umaResourceURI", share.getRequestURI())
+                .addAttribute("umaResourceName", share.getResourceName())
+                .addAttribute("umaResourcePolicyURI", share.getPolicyURI())
+                .addAttribute("umaResourceUserID", share.getUserId())
+                .addAttribute("umaResourceRealm", share.getRealm())
+                .addAttribute("umaResourceClientId", share.getClientId());
+        if (share.getPAT() != null) {
+            // Shares whose owner PAT is vaulted do not hold a copy of it
+            entry.addAttribute("umaResoucePAT", share.getPAT());
+        }
+        if (compositeKeys) {
+            addCompositeKeys(entry, share);
+        }
+
+        // Read back the revision of the new entry with the same operation
+        Result result = ldapConnection.add(Requests.newAddRequest(entry)
+                .addControl(PostReadRequestControl.newControl(false, SHARE_ATTRIBUTES)));
+        try {
+            PostReadResponseControl postRead = result.getControl(PostReadResponseControl.DECODER,
+                                                                 new DecodeOptions());
+            if (postRead != null) {
+                share.setRevision(revision(postRead.getEntry()));
+            }
+        } catch (DecodeException e) {
+            // Revision unknown until the share is read again
+        }
+    }
+
     /**
      * Gets the ShareExt matching the requestURI
      *
@@ -87,32 +194,230 @@ public class LDAPManager {
      * @throws LdapException
      */
     Set<ShareExt> getShare(ShareExt matchingShareExt) throws LdapException {
-        LdapConnection ldapConnection = null;
+        return getShare(matchingShareExt, 0);
+    }
+
+    /**
+     * Gets the ShareExt matching the requestURI, within the given time limit.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param timeLimit        search time limit in seconds, {@code 0} for no limit
+     * @return List of matching shares
+     * @throws LdapException
+     */
+    Set<ShareExt> getShare(ShareExt matchingShareExt, int timeLimit) throws LdapException {
+        final Set<ShareExt> shares = new HashSet<>();
+        searchShares(matchingShareExt, new ShareVisitor() {
+            @Override
+            public void visit(ShareExt share) {
+                shares.add(share);
+            }
+        }, 0, timeLimit);
+        return shares;
+    }
+
+    /**
+     * Streams the shares matching the given probe to the given visitor, without holding them all in memory.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param visitor          receives each matching share
+     * @throws LdapException
+     */
+    void searchShares(ShareExt matchingShareExt, ShareVisitor visitor) throws LdapException {
+        searchShares(matchingShareExt, visitor, 0);
+    }
+
+    /**
+     * Streams at most {@code sizeLimit} shares matching the given probe to the given visitor.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param visitor          receives each matching share
+     * @param sizeLimit        maximum number of shares, {@code 0} for no limit
+     * @throws LdapException
+     */
+    void searchShares(ShareExt matchingShareExt, final ShareVisitor visitor, int sizeLimit) throws LdapException {
+        searchShares(matchingShareExt, visitor, sizeLimit, 0);
+    }
+
+    /**
+     * Streams at most {@code sizeLimit} shares matching the given probe to the given visitor, within the given time
+     * limit (the search fails with {@link ResultCode#TIME_LIMIT_EXCEEDED} past it).
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param visitor          receives each matching share
+     * @param sizeLimit        maximum number of shares, {@code 0} for no limit
+     * @param timeLimit        search time limit in seconds, {@code 0} for no limit
+     * @throws LdapException
+     */
+    void searchShares(ShareExt matchingShareExt, final ShareVisitor visitor, int sizeLimit, int timeLimit)
+            throws LdapException {
+        EntryVisitor entryVisitor = new EntryVisitor() {
+            @Override
+            public void visit(SearchResultEntry entry) {
+                visitor.visit(asShare(entry));
+            }
+        };
+        if (matchingShareExt.getId() != null) {
+            // The id is the RDN: read that entry only, the other criteria are checked by the directory
+            try {
+                search(shareDN(matchingShareExt.getId()), SearchScope.BASE_OBJECT,
+                       constructSearchFilter(matchingShareExt, false), 0, timeLimit, entryVisitor, SHARE_ATTRIBUTES);
+            } catch (LdapException e) {
+                if (e.getResult().getResultCode() != ResultCode.NO_SUCH_OBJECT) {
+                    throw e;
+                }
+            }
+            return;
+        }
+        search(baseDN, SearchScope.SINGLE_LEVEL, constructSearchFilter(matchingShareExt, compositeKeys),
+               sizeLimit, timeLimit, entryVisitor, SHARE_ATTRIBUTES);
+    }
+
+    /**
+     * Streams the shares matching the given probe to the given visitor one page at a time (simple paged results
+     * control), so that all of them are returned whatever the directory size and lookthrough limits.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param pageSize         number of shares per page
+     * @param visitor          receives each matching share
+     * @throws LdapException
+     */
+    void searchSharesPaged(ShareExt matchingShareExt, int pageSize, ShareVisitor visitor) throws LdapException {
+        Filter filter = constructSearchFilter(matchingShareExt, compositeKeys);
+        Connection ldapConnection = null;
         try {
-            ldapConnection = ldapClient.connect(hostname, port);
-            String filter = constructSearchFilter(matchingShareExt);
-            Set<ShareExt> shares = new HashSet<>();
+            ldapConnection = connectionFactory.getConnection();
+            ldapConnection.bind(userName, password.toCharArray());
 
-            ConnectionEntryReader connectionEntryReader = ldapConnection.search(baseDN, SearchScope.WHOLE_SUBTREE, filter);
-            while (connectionEntryReader.hasNext()) {
-                SearchResultEntry resultEntry = connectionEntryReader.readEntry();
-                String id = resultEntry.getAttribute("umaResourceId").firstValueAsString();
-                String rId = resultEntry.getAttribute("umaResourceSetId").firstValueAsString();
-                String requestURI = resultEntry.getAttribute("umaResourceURI").firstValueAsString();
-                String resourceName = resultEntry.getAttribute("umaResourceName").firstValueAsString();
-                String pat = resultEntry.getAttribute("umaResoucePAT").firstValueAsString();
-                String policyURI = resultEntry.getAttribute("umaResourcePolicyURI").firstValueAsString();
-                String userId = resultEntry.getAttribute("umaResourceUserID").firstValueAsString();
-                String realm = resultEntry.getAttribute("umaResourceRealm").firstValueAsString();
-                String clientId = resultEntry.getAttribute("umaResourceClientId").firstValueAsString();
-
-                ShareExt share = new ShareExt(rId, resourceName, pat, requestURI, policyURI, userId, realm, clientId);
-                share.setId(id);
+            ByteString cookie = ByteString.empty();
+            do {
+                ConnectionEntryReader connectionEntryReader = ldapConnection.search(
+                        Requests.newSearchRequest(DN.valueOf(baseDN), SearchScope.SINGLE_LEVEL, filter,
+                                                  SHARE_ATTRIBUTES)
+                                .addControl(SimplePagedResultsControl.newControl(true, pageSize, cookie)));
+                while (connectionEntryReader.hasNext()) {
+                    visitor.visit(asShare(connectionEntryReader.readEntry()));
+                }
+                SimplePagedResultsControl page = connectionEntryReader.readResult()
+                        .getControl(SimplePagedResultsControl.DECODER, new DecodeOptions());
+                cookie = page != null ? page.getCookie() : ByteString.empty();
+            } while (cookie.length() > 0);
+        } catch (DecodeException e) {
+            throw LdapException.newLdapException(ResultCode.CLIENT_SIDE_DECODING_ERROR, e);
+        } catch (SearchResultReferenceIOException e) {
+            throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
+        } finally {
+            if (null != ldapConnection) {
+                ldapConnection.close();
+            }
+        }
+    }
 
-                shares.add(share);
+    /**
+     * Streams the shares matching the given probe and created at or after the given change marker to the given
+     * visitor.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param createdSince     change marker returned by a previous call, {@code null} for all the shares
+     * @param visitor          receives each matching share
+     * @return the change marker to use for the next call: the latest share creation time seen
+     * @throws LdapException
+     */
+    String searchSharesCreatedSince(ShareExt matchingShareExt, String createdSince, final ShareVisitor visitor)
+            throws LdapException {
+        return searchSharesCreatedSince(matchingShareExt, createdSince, 0L, visitor);
+    }
+
+    /**
+     * Streams the shares matching the given probe and created at or after the given change marker, minus a safety
+     * window, to the given visitor. The window catches the shares that reached this replica after the marker moved
+     * past their creation time (replication delay, clock skew between the replicas): they are visited again on
+     * every call until the marker is a window past them.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param createdSince     change marker returned by a previous call, {@code null} for all the shares
+     * @param windowMillis     safety window subtracted from the change marker
+     * @param visitor          receives each matching share
+     * @return the change marker to use for the next call: the latest share creation time seen
+     * @throws LdapException
+     */
+    String searchSharesCreatedSince(ShareExt matchingShareExt,
+                                    String createdSince,
+                                    long windowMillis,
+                                    final ShareVisitor visitor) throws LdapException {
+        Filter filter = constructSearchFilter(matchingShareExt, compositeKeys);
+        if (createdSince != null) {
+            GeneralizedTime since = GeneralizedTime.valueOf(createdSince);
+            if (windowMillis > 0) {
+                since = GeneralizedTime.valueOf(Math.max(0L, since.getTimeInMillis() - windowMillis));
+            }
+            filter = Filter.and(filter, Filter.greaterOrEqual("createTimestamp", since.toString()));
+        }
+        final GeneralizedTime[] latest = {createdSince != null ? GeneralizedTime.valueOf(createdSince) : null};
+        search(baseDN, SearchScope.SINGLE_LEVEL, filter, 0, 0, new EntryVisitor() {
+            @Override
+            public void visit(SearchResultEntry entry) {
+                GeneralizedTime created = entry.parseAttribute("createTimestamp").asGeneralizedTime();
+                if (created != null && (latest[0] == null || created.compareTo(latest[0]) > 0)) {
+                    latest[0] = created;
+                }
+                visitor.visit(asShare(entry));
             }
+        }, SHARE_ATTRIBUTES);
+        return latest[0] != null ? latest[0].toString() : null;
+    }
+
+    /**
+     * Collects the identifiers of the shares matching the given probe, without reading the rest of the entries.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param ids              receives the share identifiers
+     * @throws LdapException
+     */
+    void listShareIds(ShareExt matchingShareExt, final Collection<String> ids) throws LdapException {
+        listShareIds(matchingShareExt, ids, 0);
+    }
+
+    /**
+     * Collects the identifiers of at most {@code sizeLimit} shares matching the given probe.
+     *
+     * @param matchingShareExt probe, its non-null attributes are used as search criteria
+     * @param ids              receives the share identifiers
+     * @param sizeLimit        maximum number of shares, {@code 0} for no limit
+     * @throws LdapException
+     */
+    void listShareIds(ShareExt matchingShareExt, final Collection<String> ids, int sizeLimit) throws LdapException {
+        search(baseDN, SearchScope.SINGLE_LEVEL, constructSearchFilter(matchingShareExt, compositeKeys), sizeLimit, 0,
+               new EntryVisitor() {
+            @Override
+            public void visit(SearchResultEntry entry) {
+                ids.add(entry.getAttribute("umaResourceId").firstValueAsString());
+            }
+        }, "umaResourceId");
+    }
+
+    private interface EntryVisitor {
+        void visit(SearchResultEntry entry);
+    }
+
+    private void search(String base, SearchScope scope, Filter filter, int sizeLimit, int timeLimit,
+                        EntryVisitor visitor, String... attributes) throws LdapException {
+        Connection ldapConnection = null;
+        try {
+            ldapConnection = connectionFactory.getConnection();
 
-            return shares;
+            ConnectionEntryReader connectionEntryReader = ldapConnection.search(
+                    Requests.newSearchRequest(DN.valueOf(base), scope, filter, attributes)
+                            .setSizeLimit(sizeLimit)
+                            .setTimeLimit(timeLimit));
+            while (connectionEntryReader.hasNext()) {
+                visitor.visit(connectionEntryReader.readEntry());
+            }
+        } catch (LdapException e) {
+            if (sizeLimit == 0 || e.getResult().getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED) {
+                throw e;
+            }
+            // Got the requested number of shares
         } catch (SearchResultReferenceIOException e) {
             throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
         } finally {
@@ -122,6 +427,252 @@ public class LDAPManager {
         }
     }
 
+    /**
+     * Returns the share changes recorded in the DS external changelog (which requires replication to be enabled, and
+     * the bind user to have the {@literal changelog-read} privilege). The owner of the removed shares is only known
+     * when {@literal umaResourceUserID} is an {@literal ecl-include} attribute of the replication domain.
+     *
+     * @return the share changes of the changelog
+     */
+    ShareChangeFeed.Changelog changelog() {
+        return new ShareChangeFeed.Changelog() {
+            @Override
+            public long firstChangeNumber(long sinceMillis) throws LdapException {
+                Connection ldapConnection = null;
+                try {
+                    ldapConnection = connectionFactory.getConnection();
+                    ldapConnection.bind(userName, password.toCharArray());
+
+                    long[] range = changeNumbers(ldapConnection);
+                    if (range[1] == 0L) {
+                        return 1L;
+                    }
+                    GeneralizedTime since = GeneralizedTime.valueOf(sinceMillis);
+                    if (range[0] > 1L) {
+                        // The changes of that time may have been purged
+                        GeneralizedTime oldest = changeTime(ldapConnection, range[0]);
+                        if (oldest != null && oldest.compareTo(since) > 0) {
+                            return -1L;
+                        }
+                    }
+                    ConnectionEntryReader reader = ldapConnection.search(
+                            Requests.newSearchRequest(DN.valueOf(CHANGELOG_DN), SearchScope.SINGLE_LEVEL,
+                                                      Filter.greaterOrEqual("changeTime", since.toString()),
+                                                      "changeNumber")
+                                    .setSizeLimit(1));
+                    try {
+                        if (reader.hasNext()) {
+                            return reader.readEntry().parseAttribute("changeNumber").asLong();
+                        }
+                    } catch (LdapException e) {
+                        if (e.getResult().getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED) {
+                            throw e;
+                        }
+                    }
+                    return range[1] + 1;
+                } catch (SearchResultReferenceIOException e) {
+                    throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
+                } finally {
+                    if (null != ldapConnection) {
+                        ldapConnection.close();
+                    }
+                }
+            }
+
+            @Override
+            public long read(long from, long to, List<ShareChangeFeed.Change> changes) throws LdapException {
+                Connection ldapConnection = null;
+                try {
+                    ldapConnection = connectionFactory.getConnection();
+                    ldapConnection.bind(userName, password.toCharArray());
+
+                    if (from < changeNumbers(ldapConnection)[0]) {
+                        return -1L;
+                    }
+                    long last = from - 1;
+                    Filter range = Filter.and(Filter.greaterOrEqual("changeNumber", String.valueOf(from)),
+                                              Filter.lessOrEqual("changeNumber", String.valueOf(to)));
+                    ConnectionEntryReader reader = ldapConnection.search(
+                            Requests.newSearchRequest(DN.valueOf(CHANGELOG_DN), SearchScope.SINGLE_LEVEL, range,
+                                                      "changeNumber", "changeType", "changeTime", "targetDN",
+                                                      "changes", "includedAttributes"));
+                    while (reader.hasNext()) {
+                        SearchResultEntry entry = reader.readEntry();
+                        long changeNumber = entry.parseAttribute("changeNumber").asLong();
+                        last = Math.max(last, changeNumber);
+                        ShareChangeFeed.Change change = asShareChange(changeNumber, entry);
+                        if (change != null) {
+                            changes.add(change);
+                        }
+                    }
+                    return last;
+                } catch (SearchResultReferenceIOException e) {
+                    throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
+                } finally {
+                    if (null != ldapConnection) {
+                        ldapConnection.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the first and last change numbers of the changelog, from the root DSE ({@code 0} if empty).
+     */
+    private static long[] changeNumbers(Connection ldapConnection) throws LdapException {
+        SearchResultEntry rootDSE = ldapConnection.searchSingleEntry(
+                Requests.newSearchRequest(DN.rootDN(), SearchScope.BASE_OBJECT, Filter.objectClassPresent(),
+                                          "firstChangeNumber", "lastChangeNumber"));
+        return new long[] {rootDSE.parseAttribute("firstChangeNumber").asLong(0L),
+                           rootDSE.parseAttribute("lastChangeNumber").asLong(0L)};
+    }
+
+    private static GeneralizedTime changeTime(Connection ldapConnection, long changeNumber)
+            throws LdapException {
+        DN changeDN = DN.valueOf(CHANGELOG_DN).child("changeNumber", String.valueOf(changeNumber));
+        try {
+            return ldapConnection.searchSingleEntry(
+                    Requests.newSearchRequest(changeDN, SearchScope.BASE_OBJECT, Filter.objectClassPresent(),
+                                              "changeTime"))
+                                 .parseAttribute("changeTime").asGeneralizedTime();
+        } catch (LdapException e) {
+            if (e.getResult().getResultCode() == ResultCode.NO_SUCH_OBJECT || e instanceof EntryNotFoundException) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the share creation or removal of a changelog entry, {@code null} if it is not one (other entries, share
+     * modifications).
+     */
+    private ShareChangeFeed.Change asShareChange(long changeNumber, SearchResultEntry changelogEntry) {
+        DN targetDN = DN.valueOf(changelogEntry.parseAttribute("targetDN").asString());
+        if (!DN.valueOf(baseDN).equals(targetDN.parent())
+                || !"umaResourceId".equalsIgnoreCase(targetDN.rdn().getFirstAVA().getAttributeType().getNameOrOID())) {
+            return null;
+        }
+        String shareId = targetDN.rdn().getFirstAVA().getAttributeValue().toString();
+        GeneralizedTime changeTime = changelogEntry.parseAttribute("changeTime").asGeneralizedTime();
+        long timestamp = changeTime != null ? changeTime.getTimeInMillis() : System.currentTimeMillis();
+        String changeType = changelogEntry.parseAttribute("changeType").asString();
+        try {
+            if ("add".equalsIgnoreCase(changeType)) {
+                Entry added = readLdif(targetDN, changelogEntry.parseAttribute("changes").asString());
+                if (added == null || !added.containsAttribute("objectClass", "frUmaRS")) {
+                    return null;
+                }
+                ShareExt share = asShare(added);
+                return new ShareChangeFeed.Change(changeNumber, ShareChangeFeed.Change.Type.CREATE, shareId,
+                                                  share.getUserId(), share, timestamp);
+            }
+            if ("delete".equalsIgnoreCase(changeType)) {
+                Entry included = readLdif(targetDN, changelogEntry.parseAttribute("includedAttributes").asString());
+                String userId = included != null ? included.parseAttribute("umaResourceUserID").asString() : null;
+                return new ShareChangeFeed.Change(changeNumber, ShareChangeFeed.Change.Type.DELETE, shareId,
+                                                  userId, null, timestamp);
+            }
+        } catch (IOException e) {
+            // Unreadable change, the share index catch-up still picks it up
+        }
+        return null;
+    }
+
+    /**
+     * Reads the attributes of a changelog entry ({@literal changes} of an add, {@literal includedAttributes}) as the
+     * target entry.
+     */
+    private static Entry readLdif(DN targetDN, String attributes) throws IOException {
+        if (attributes == null) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("dn: " + targetDN);
+        for (String line : attributes.split("\r?\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        LDIFEntryReader reader = new LDIFEntryReader(lines);
+        try {
+            return reader.hasNext() ? reader.readEntry() : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static ShareExt asShare(Entry resultEntry) {
+        String id = resultEntry.getAttribute("umaResourceId").firstValueAsString();
+        String rId = resultEntry.getAttribute("umaResourceSetId").firstValueAsString();
+        String requestURI = resultEntry.getAttribute("umaResourceURI").firstValueAsString();
+        String resourceName = resultEntry.getAttribute("umaResourceName").firstValueAsString();
+        String pat = resultEntry.parseAttribute("umaResoucePAT").asString();
+        String policyURI = resultEntry.getAttribute("umaResourcePolicyURI").firstValueAsString();
+        String userId = resultEntry.getAttribute("umaResourceUserID").firstValueAsString();
+        String realm = resultEntry.getAttribute("umaResourceRealm").firstValueAsString();
+        String clientId = resultEntry.getAttribute("umaResourceClientId").firstValueAsString();
+
+        ShareExt share = new ShareExt(rId, resourceName, pat, requestURI, policyURI, userId, realm, clientId);
+        share.setId(id);
+        share.setRevision(revision(resultEntry));
+        return share;
+    }
+
+    /**
+     * Returns the revision of a share entry: {@literal <entryUUID>.<modifyTimestamp>} (the creation time if it was
+     * never modified).
+     *
+     * @param entry share entry, with its operational attributes
+     * @return the revision, or {@code null} if the directory does not provide the operational attributes
+     */
+    static String revision(Entry entry) {
+        String entryUUID = entry.parseAttribute("entryUUID").asString();
+        String timestamp = entry.parseAttribute("modifyTimestamp").asString();
+        if (timestamp == null) {
+            timestamp = entry.parseAttribute("createTimestamp").asString();
+        }
+        if (entryUUID == null || timestamp == null) {
+            return null;
+        }
+        return entryUUID + "." + timestamp;
+    }
+
+    /**
+     * Returns an assertion that the entry is still at the given revision.
+     */
+    private static Filter revisionAssertion(String revision) {
+        int dot = revision.indexOf('.');
+        String entryUUID = revision.substring(0, dot);
+        String timestamp = revision.substring(dot + 1);
+        return Filter.and(Filter.equality("entryUUID", entryUUID),
+                          Filter.or(Filter.equality("modifyTimestamp", timestamp),
+                                    Filter.and(Filter.not(Filter.present("modifyTimestamp")),
+                                               Filter.equality("createTimestamp", timestamp))));
+    }
+
+    /**
+     * Opens and authenticates a connection, and reads the base entry: checks the directory is reachable and primes
+     * the connection path (name resolution, TLS, class loading).
+     *
+     * @throws LdapException if the directory cannot be reached
+     */
+    void ping() throws LdapException {
+        Connection ldapConnection = null;
+        try {
+            ldapConnection = connectionFactory.getConnection();
+            ldapConnection.bind(userName, password.toCharArray());
+
+            ldapConnection.searchSingleEntry(
+                    Requests.newSearchRequest(baseDN, SearchScope.BASE_OBJECT, "(objectClass=*)"));
+        } finally {
+            if (null != ldapConnection) {
+                ldapConnection.close();
+            }
+        }
+    }
+
     /**
      * Removes the share from LDAP
      *
@@ -129,12 +680,28 @@ public class LDAPManager {
      * @throws LdapException
      */
     void removeShare(String id) throws LdapException {
-        LdapConnection ldapConnection = null;
+        removeShare(id, null);
+    }
+
+    /**
+     * Removes the share with the given id, if it is still at the given revision (checked by the directory with the
+     * delete operation, see {@link ResultCode#ASSERTION_FAILED}).
+     *
+     * @param id       share id
+     * @param revision expected revision, {@code null} to remove whatever the revision
+     * @throws LdapException
+     */
+    void removeShare(String id, String revision) throws LdapException {
+        Connection ldapConnection = null;
         try {
-            ldapConnection = ldapClient.connect(hostname, port);
+            ldapConnection = connectionFactory.getConnection();
             ldapConnection.bind(userName, password.toCharArray());
 
-            ldapConnection.delete("umaResourceId=" + id + "," + baseDN);
+            DeleteRequest delete = Requests.newDeleteRequest(shareDN(id));
+            if (revision != null && revision.indexOf('.') > 0) {
+                delete.addControl(AssertionRequestControl.newControl(true, revisionAssertion(revision)));
+            }
+            ldapConnection.delete(delete);
         } finally {
             if (null != ldapConnection) {
                 ldapConnection.close();
@@ -143,37 +710,223 @@ public class LDAPManager {
     }
 
     /**
-     * Constructs LDAP filter for search
+     * Reads the vaulted PAT with the given key.
+     *
+     * @param key    PAT key
+     * @param userId PAT owner
+     * @return the vaulted PAT, or {@code null} if none
+     * @throws LdapException
+     */
+    PatVault.Entry getPat(String key, String userId) throws LdapException {
+        Connection ldapConnection = null;
+        try {
+            ldapConnection = connectionFactory.getConnection();
+            ldapConnection.bind(userName, password.toCharArray());
+
+            SearchResultEntry resultEntry = ldapConnection.searchSingleEntry(
+                    Requests.newSearchRequest(patDN(key), SearchScope.BASE_OBJECT, "(objectClass=frUmaPat)"));
+            return asPat(resultEntry, key, userId);
+        } catch (LdapException e) {
+            if (e.getResult().getResultCode() == ResultCode.NO_SUCH_OBJECT || e instanceof EntryNotFoundException) {
+                return null;
+            }
+            throw e;
+        } finally {
+            if (null != ldapConnection) {
+                ldapConnection.close();
+            }
+        }
+    }
+
+    /**
+     * Lists the vaulted PATs of a realm and OAuth 2.0 client.
+     *
+     * @param realm    realm
+     * @param clientId OAuth 2.0 client identifier
+     * @return the vaulted PATs
+     * @throws LdapException
+     */
+    List<PatVault.Entry> listPats(String realm, String clientId) throws LdapException {
+        Connection ldapConnection = null;
+        try {
+            ldapConnection = connectionFactory.getConnection();
+            ldapConnection.bind(userName, password.toCharArray());
+
+            List<PatVault.Entry> pats = new ArrayList<>();
+            ConnectionEntryReader connectionEntryReader = ldapConnection.search(baseDN, SearchScope.SINGLE_LEVEL,
+                    Filter.and(Filter.equality("objectClass", "frUmaPat"),
+                               Filter.equality("umaResourceRealm", realm),
+                               Filter.equality("umaResourceClientId", clientId)).toString());
+            while (connectionEntryReader.hasNext()) {
+                SearchResultEntry resultEntry = connectionEntryReader.readEntry();
+                pats.add(asPat(resultEntry,
+                               resultEntry.getAttribute("umaPatKey").firstValueAsString(),
+                               resultEntry.getAttribute("umaResourceUserID").firstValueAsString()));
+            }
+            return pats;
+        } catch (SearchResultReferenceIOException e) {
+            throw LdapException.newLdapException(ResultCode.UNAVAILABLE, e);
+        } finally {
+            if (null != ldapConnection) {
+                ldapConnection.close();
+            }
+        }
+    }
+
+    /**
+     * Creates or replaces a vaulted PAT.
+     *
+     * @param pat      vaulted PAT
+     * @param realm    realm
+     * @param clientId OAuth 2.0 client identifier
+     * @throws LdapException
+     */
+    void putPat(PatVault.Entry pat, String realm, String clientId) throws LdapException {
+        Connection ldapConnection = null;
+        try {
+            ldapConnection = connectionFactory.getConnection();
+            ldapConnection.bind(userName, password.toCharArray());
+
+            ModifyRequest modify = Requests.newModifyRequest(patDN(pat.getKey()))
+                    .addModification(ModificationType.REPLACE, "umaResoucePAT", pat.getAccessToken())
+                    .addModification(ModificationType.REPLACE, "umaPatExpiry", String.valueOf(pat.getExpiresAt()));
+            if (pat.getRefreshToken() != null) {
+                modify.addModification(ModificationType.REPLACE, "umaResourceRT", pat.getRefreshToken());
+            }
+            try {
+                ldapConnection.modify(modify);
+            } catch (LdapException e) {
+                if (e.getResult().getResultCode() != ResultCode.NO_SUCH_OBJECT) {
+                    throw e;
+                }
+                Entry entry = new LinkedHashMapEntry(patDN(pat.getKey()))
+                        .addAttribute("objectclass", "top")
+                        .addAttribute("objectclass", "frUmaPat")
+                        .addAttribute("umaPatKey", pat.getKey())
+                        .addAttribute("umaResoucePAT", pat.getAccessToken())
+                        .addAttribute("umaPatExpiry", String.valueOf(pat.getExpiresAt()))
+                        .addAttribute("umaResourceUserID", pat.getUserId())
+                        .addAttribute("umaResourceRealm", realm)
+                        .addAttribute("umaResourceClientId", clientId);
+                if (pat.getRefreshToken() != null) {
+                    entry.addAttribute("umaResourceRT", pat.getRefreshToken());
+                }
+                ldapConnection.add(entry);
+            }
+        } finally {
+            if (null != ldapConnection) {
+                ldapConnection.close();
+            }
+        }
+    }
+
+    private String patDN(String key) {
+        return DN.valueOf(baseDN).child("umaPatKey", key).toString();
+    }
+
+    private String shareDN(String id) {
+        return DN.valueOf(baseDN).child("umaResourceId", id).toString();
+    }
+
+    private static void addCompositeKeys(Entry entry, ShareExt share) {
+        entry.addAttribute("umaResourceKey", ShareKeys.shareKey(share.getRealm(), share.getClientId(),
+                                                                share.getRequestURI(), share.getUserId()));
+        entry.addAttribute("umaResourceUriKey", ShareKeys.uriKey(share.getRealm(), share.getClientId(),
+                                                                 share.getRequestURI()));
+    }
+
+    /**
+     * Adds the composite keys to the shares created before they were enabled.
+     *
+     * @return the number of updated shares
+     * @throws LdapException
+     */
+    int addMissingCompositeKeys() throws LdapException {
+        final List<ShareExt> missing = new ArrayList<>();
+        search(baseDN, SearchScope.SINGLE_LEVEL,
+               Filter.and(Filter.equality("objectClass", "frUmaRS"), Filter.not(Filter.present("umaResourceKey"))),
+               0, 0, new EntryVisitor() {
+            @Override
+            public void visit(SearchResultEntry entry) {
+                missing.add(asShare(entry));
+            }
+        });
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        Connection ldapConnection = null;
+        try {
+            ldapConnection = connectionFactory.getConnection();
+            ldapConnection.bind(userName, password.toCharArray());
+
+            for (ShareExt share : missing) {
+                ldapConnection.modify(Requests.newModifyRequest(shareDN(share.getId()))
+                        .addModification(ModificationType.REPLACE, "umaResourceKey",
+                                         ShareKeys.shareKey(share.getRealm(), share.getClientId(),
+                                                            share.getRequestURI(), share.getUserId()))
+                        .addModification(ModificationType.REPLACE, "umaResourceUriKey",
+                                         ShareKeys.uriKey(share.getRealm(), share.getClientId(),
+                                                          share.getRequestURI())));
+            }
+            return missing.size();
+        } finally {
+            if (null != ldapConnection) {
+                ldapConnection.close();
+            }
+        }
+    }
+
+    private static PatVault.Entry asPat(SearchResultEntry resultEntry, String key, String userId) {
+        PatVault.Entry pat = new PatVault.Entry(key, userId);
+        pat.update(resultEntry.getAttribute("umaResoucePAT").firstValueAsString(),
+                   resultEntry.parseAttribute("umaResourceRT").asString(),
+                   resultEntry.parseAttribute("umaPatExpiry").asLong(0L));
+        return pat;
+    }
+
+    /**
+     * Constructs LDAP filter for search, the assertion values are escaped.
      *
      * @param matchingShareExt
+     * @param useKeys {@code true} to match the URI, realm, client (and owner) with a composite key
      * @return LDAP filter
      */
-    private String constructSearchFilter(ShareExt matchingShareExt) {
-        StringBuilder filter = new StringBuilder();
+    private Filter constructSearchFilter(ShareExt matchingShareExt, boolean useKeys) {
+        List<Filter> filters = new ArrayList<>();
 
-        filter.append("(&");
+        filters.add(Filter.equality("objectClass", "frUmaRS"));
 
+        String uri = matchingShareExt.getRequestURI();
+        String realm = matchingShareExt.getRealm();
+        String clientId = matchingShareExt.getClientId();
+        boolean keyed = useKeys && uri != null && realm != null && clientId != null;
+        if (keyed) {
+            if (matchingShareExt.getUserId() != null) {
+                filters.add(Filter.equality("umaResourceKey",
+                                            ShareKeys.shareKey(realm, clientId, uri, matchingShareExt.getUserId())));
+            } else {
+                filters.add(Filter.equality("umaResourceUriKey", ShareKeys.uriKey(realm, clientId, uri)));
+            }
+        }
         if (matchingShareExt.getId() != null) {
-            filter.append("(umaResourceId=" + matchingShareExt.getId() + ")");
+            filters.add(Filter.equality("umaResourceId", matchingShareExt.getId()));
         }
-        if (matchingShareExt.getRequestURI() != null) {
-            filter.append("(umaResourceURI=" + matchingShareExt.getRequestURI() + ")");
+        if (!keyed && uri != null) {
+            filters.add(Filter.equality("umaResourceURI", uri));
         }
         if (matchingShareExt.getResourceName() != null) {
-            filter.append("(umaResourceName=" + matchingShareExt.getResourceName() + ")");
+            filters.add(Filter.equality("umaResourceName", matchingShareExt.getResourceName()));
         }
-        if (matchingShareExt.getUserId() != null) {
-            filter.append("(umaResourceUserID=" + matchingShareExt.getUserId() + ")");
+        if (!keyed && matchingShareExt.getUserId() != null) {
+            filters.add(Filter.equality("umaResourceUserID", matchingShareExt.getUserId()));
         }
-        if (matchingShareExt.getRealm() != null) {
-            filter.append("(umaResourceRealm=" + matchingShareExt.getRealm() + ")");
+        if (!keyed && realm != null) {
+            filters.add(Filter.equality("umaResourceRealm", realm));
         }
-        if (matchingShareExt.getClientId() != null) {
-            filter.append("(umaResourceClientId=" + matchingShareExt.getClientId() + ")");
+        if (!keyed && clientId != null) {
+            filters.add(Filter.equality("umaResourceClientId", clientId));
         }
 
-        filter.append(")");
-
-        return filter.toString();
+        return Filter.and(filters);
     }
 }
@@ -0,0 +1,570 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link ShareIndex} for very large share populations, that keeps the shares out of the Java heap: the shares are
+ * encoded as compact records in direct buffers, and the id, owner and URI lookups go through open-addressing hash
+ * tables of primitive arrays. The heap holds no object per share, so its size and the GC work no longer grow with
+ * the number of shares; the shares are decoded on each read.
+ * <p>
+ * <p>Record layout (lengths are varints of the length plus one, {@code 0} for {@code null}):
+ * <pre>
+ *     record length (int), id, resource set id, name, PAT, URI, policy URI prefix number, policy URI suffix, owner,
+ *     revision
+ * </pre>
+ * The realm and client are those of the index, and the policy URIs are split after their last {@literal /}: their
+ * prefixes (the AS policy page of the realm) are stored once in a dictionary.
+ * <p>
+ * <p>Reads are lock-free, updates are serialized. A record is written before it is published to the readers by a
+ * volatile write of its address; removed records are unlinked in place and their space is reclaimed when the store is
+ * rebuilt (on growth, or when more than half of it is garbage). Readers of a replaced store finish on it.
+ */
+final class OffHeapShareIndex extends ShareIndex {
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Table value of a removed id, or of an owner or URI without shares left. */
+    private static final int TOMBSTONE = -1;
+
+    private final String realm;
+    private final String clientId;
+    // Written under the index lock, the array is replaced when a prefix is added
+    private final Map<String, Integer> prefixNumbers = new HashMap<>();
+    private volatile String[] prefixes = new String[0];
+    private volatile Store store = new Store(INITIAL_CAPACITY);
+
+    /**
+     * Creates an empty index.
+     *
+     * @param realm    realm of the indexed shares
+     * @param clientId OAuth 2.0 client of the indexed shares
+     */
+    OffHeapShareIndex(final String realm, final String clientId) {
+        this.realm = realm;
+        this.clientId = clientId;
+    }
+
+    @Override
+    synchronized void add(final ShareExt share) {
+        Store current = store;
+        int existing = current.find(share.getId());
+        if (existing >= 0) {
+            unlink(current, existing);
+        }
+        if (current.isFull() || current.garbageBytes > current.liveBytes) {
+            current = rebuild(current);
+            store = current;
+        }
+        current.append(encode(share), hash(share.getId()), hash(share.getUserId()), hash(share.getRequestURI()));
+    }
+
+    @Override
+    synchronized ShareExt remove(final String shareId) {
+        Store current = store;
+        int ordinal = current.find(shareId);
+        if (ordinal < 0) {
+            return null;
+        }
+        ShareExt removed = decode(current, ordinal);
+        unlink(current, ordinal);
+        return removed;
+    }
+
+    @Override
+    ShareExt get(final String shareId) {
+        Store current = store;
+        int ordinal = current.find(shareId);
+        return ordinal >= 0 ? decode(current, ordinal) : null;
+    }
+
+    @Override
+    Set<ShareExt> listByOwner(final String userId) {
+        return list(store, userId, true);
+    }
+
+    @Override
+    Set<ShareExt> listByUri(final String uri) {
+        return list(store, uri, false);
+    }
+
+    @Override
+    Collection<ShareExt> values() {
+        final Store current = store;
+        return new AbstractCollection<ShareExt>() {
+            @Override
+            public Iterator<ShareExt> iterator() {
+                return new Iterator<ShareExt>() {
+                    private final int end = current.ordinals;
+                    private int next = advance(0);
+
+                    private int advance(final int from) {
+                        int ordinal = from;
+                        while (ordinal < end && current.addresses.get(ordinal) == 0L) {
+                            ordinal++;
+                        }
+                        return ordinal;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < end;
+                    }
+
+                    @Override
+                    public ShareExt next() {
+                        if (next >= end) {
+                            throw new NoSuchElementException();
+                        }
+                        // Possibly removed since advance(): decoded anyway, like a weakly consistent iterator
+                        ShareExt share = decode(current, next);
+                        next = advance(next + 1);
+                        return share;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return current.size;
+            }
+        };
+    }
+
+    @Override
+    int size() {
+        return store.size;
+    }
+
+    /**
+     * Returns the size of the direct buffers holding the share records.
+     *
+     * @return the off-heap footprint in bytes
+     */
+    long getOffHeapBytes() {
+        long bytes = 0;
+        for (ByteBuffer chunk : store.chunks) {
+            bytes += chunk.capacity();
+        }
+        return bytes;
+    }
+
+    private Set<ShareExt> list(final Store current, final String key, final boolean byOwner) {
+        if (key == null) {
+            return Collections.emptySet();
+        }
+        Table table = byOwner ? current.byOwner : current.byUri;
+        AtomicIntegerArray next = byOwner ? current.nextByOwner : current.nextByUri;
+        int slot = table.slot(hash(key));
+        if (slot < 0) {
+            return Collections.emptySet();
+        }
+        List<ShareExt> shares = new ArrayList<>();
+        for (int ordinal = table.values.get(slot) - 1; ordinal >= 0; ordinal = next.get(ordinal) - 1) {
+            if (current.addresses.get(ordinal) == 0L) {
+                continue;
+            }
+            ShareExt share = decode(current, ordinal);
+            // Different keys of the same hash share a chain
+            if (key.equals(byOwner ? share.getUserId() : share.getRequestURI())) {
+                shares.add(share);
+            }
+        }
+        Collections.sort(shares, new Comparator<ShareExt>() {
+            @Override
+            public int compare(final ShareExt share1, final ShareExt share2) {
+                return share1.getId().compareTo(share2.getId());
+            }
+        });
+        return new LinkedHashSet<>(shares);
+    }
+
+    private void unlink(final Store current, final int ordinal) {
+        ShareExt share = decode(current, ordinal);
+        current.byId.values.set(current.byId.slotOf(hash(share.getId()), ordinal), TOMBSTONE);
+        unlinkChain(current.byOwner, current.nextByOwner, hash(share.getUserId()), ordinal);
+        unlinkChain(current.byUri, current.nextByUri, hash(share.getRequestURI()), ordinal);
+        long address = current.addresses.get(ordinal) - 1;
+        int length = current.chunk(address).getInt((int) address);
+        current.addresses.set(ordinal, 0L);
+        current.size--;
+        current.liveBytes -= length;
+        current.garbageBytes += length;
+    }
+
+    private static void unlinkChain(final Table table,
+                                    final AtomicIntegerArray next,
+                                    final long hash,
+                                    final int ordinal) {
+        int slot = table.slot(hash);
+        int previous = -1;
+        int current = table.values.get(slot) - 1;
+        while (current != ordinal) {
+            previous = current;
+            current = next.get(current) - 1;
+        }
+        // Readers walking past the removed record still find its successor
+        int successor = next.get(ordinal);
+        if (previous < 0) {
+            table.values.set(slot, successor != 0 ? successor : TOMBSTONE);
+        } else {
+            next.set(previous, successor);
+        }
+    }
+
+    private Store rebuild(final Store current) {
+        Store rebuilt = new Store(Math.max(INITIAL_CAPACITY, current.size * 2));
+        for (int ordinal = 0; ordinal < current.ordinals; ordinal++) {
+            long address = current.addresses.get(ordinal) - 1;
+            if (address < 0) {
+                continue;
+            }
+            ByteBuffer chunk = current.chunk(address);
+            byte[] record = new byte[chunk.getInt((int) address)];
+            ByteBuffer source = chunk.duplicate();
+            source.position((int) address);
+            source.get(record);
+            ShareExt share = decode(current, ordinal);
+            rebuilt.append(record, hash(share.getId()), hash(share.getUserId()), hash(share.getRequestURI()));
+        }
+        return rebuilt;
+    }
+
+    private byte[] encode(final ShareExt share) {
+        String policyURI = share.getPolicyURI();
+        String prefix = null;
+        String suffix = policyURI;
+        if (policyURI != null) {
+            int slash = policyURI.lastIndexOf('/');
+            prefix = policyURI.substring(0, slash + 1);
+            suffix = policyURI.substring(slash + 1);
+        }
+        RecordWriter writer = new RecordWriter();
+        writer.writeString(share.getId());
+        writer.writeString(share.getResourceId());
+        writer.writeString(share.getResourceName());
+        writer.writeString(share.getPAT());
+        writer.writeString(share.getRequestURI());
+        writer.writeVarint(prefix != null ? prefixNumber(prefix) + 1 : 0);
+        writer.writeString(suffix);
+        writer.writeString(share.getUserId());
+        writer.writeString(share.getRevision());
+        return writer.toRecord();
+    }
+
+    private int prefixNumber(final String prefix) {
+        Integer number = prefixNumbers.get(prefix);
+        if (number == null) {
+            String[] current = prefixes;
+            String[] extended = Arrays.copyOf(current, current.length + 1);
+            extended[current.length] = prefix;
+            number = current.length;
+            prefixNumbers.put(prefix, number);
+            prefixes = extended;
+        }
+        return number;
+    }
+
+    private ShareExt decode(final Store current, final int ordinal) {
+        long address = current.addresses.get(ordinal) - 1;
+        if (address < 0) {
+            return null;
+        }
+        ByteBuffer record = current.chunk(address).duplicate();
+        record.position((int) address + 4);
+        String id = readString(record);
+        String resourceId = readString(record);
+        String name = readString(record);
+        String pat = readString(record);
+        String uri = readString(record);
+        int prefix = readVarint(record) - 1;
+        String suffix = readString(record);
+        String policyURI = prefix >= 0 ? prefixes[prefix] + suffix : suffix;
+        String userId = readString(record);
+        String revision = readString(record);
+        ShareExt share = new ShareExt(resourceId, name, pat, uri, policyURI, userId, realm, clientId);
+        share.setId(id);
+        share.setRevision(revision);
+        return share;
+    }
+
+    private static String readString(final ByteBuffer record) {
+        int length = readVarint(record) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarint(final ByteBuffer record) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = record.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of a key (a null key hashes to {@code 0}).
+     */
+    static long hash(final String key) {
+        if (key == null) {
+            return 0L;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Records, lookup tables and share chains of the index, replaced as a whole when rebuilt.
+     */
+    private static final class Store {
+
+        private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+        /** Record address plus one by ordinal, {@code 0} once removed. */
+        private final AtomicLongArray addresses;
+        /** Next share of the same owner (ordinal plus one, {@code 0} at the end of the chain). */
+        private final AtomicIntegerArray nextByOwner;
+        /** Next share of the same URI (ordinal plus one, {@code 0} at the end of the chain). */
+        private final AtomicIntegerArray nextByUri;
+        private final Table byId;
+        private final Table byOwner;
+        private final Table byUri;
+        private volatile int ordinals;
+        private volatile int size;
+        // Written under the index lock only
+        private int offset = CHUNK_SIZE;
+        private long liveBytes;
+        private long garbageBytes;
+
+        private Store(final int capacity) {
+            this.addresses = new AtomicLongArray(capacity);
+            this.nextByOwner = new AtomicIntegerArray(capacity);
+            this.nextByUri = new AtomicIntegerArray(capacity);
+            // At most one entry per ordinal: load factor at most 0.5
+            this.byId = new Table(capacity * 2);
+            this.byOwner = new Table(capacity * 2);
+            this.byUri = new Table(capacity * 2);
+        }
+
+        private boolean isFull() {
+            return ordinals == addresses.length();
+        }
+
+        private ByteBuffer chunk(final long address) {
+            return chunks[(int) (address >>> 32)];
+        }
+
+        private int find(final String shareId) {
+            long hash = hash(shareId);
+            int mask = byId.mask;
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                int value = byId.values.get(slot);
+                if (value == 0) {
+                    return -1;
+                }
+                if (value > 0 && byId.hashes.get(slot) == hash && shareId.equals(readId(value - 1))) {
+                    return value - 1;
+                }
+            }
+        }
+
+        private String readId(final int ordinal) {
+            long address = addresses.get(ordinal) - 1;
+            if (address < 0) {
+                return null;
+            }
+            ByteBuffer record = chunk(address).duplicate();
+            record.position((int) address + 4);
+            return readString(record);
+        }
+
+        private void append(final byte[] record, final long idHash, final long ownerHash, final long uriHash) {
+            ByteBuffer[] current = chunks;
+            if (current.length == 0 || offset + record.length > current[current.length - 1].capacity()) {
+                current = Arrays.copyOf(current, current.length + 1);
+                current[current.length - 1] = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, record.length));
+                chunks = current;
+                offset = 0;
+            }
+            ByteBuffer target = current[current.length - 1].duplicate();
+            target.position(offset);
+            target.put(record);
+            long address = ((long) (current.length - 1) << 32) | offset;
+            offset += record.length;
+
+            int ordinal = ordinals;
+            nextByOwner.set(ordinal, byOwner.head(ownerHash));
+            nextByUri.set(ordinal, byUri.head(uriHash));
+            // Publishes the record
+            addresses.set(ordinal, address + 1);
+            ordinals = ordinal + 1;
+            byId.put(idHash, ordinal + 1, false);
+            byOwner.put(ownerHash, ordinal + 1, true);
+            byUri.put(uriHash, ordinal + 1, true);
+            size++;
+            liveBytes += record.length;
+        }
+    }
+
+    /**
+     * Open-addressing hash table from a 64-bit key hash to an ordinal plus one ({@code 0} for a free slot).
+     */
+    private static final class Table {
+
+        private final AtomicLongArray hashes;
+        private final AtomicIntegerArray values;
+        private final int mask;
+
+        private Table(final int minSize) {
+            int size = Integer.highestOneBit(Math.max(2, minSize - 1)) << 1;
+            this.hashes = new AtomicLongArray(size);
+            this.values = new AtomicIntegerArray(size);
+            this.mask = size - 1;
+        }
+
+        /**
+         * Returns the slot of the given chain key, {@code -1} if none.
+         */
+        private int slot(final long hash) {
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                int value = values.get(slot);
+                if (value == 0) {
+                    return -1;
+                }
+                if (hashes.get(slot) == hash) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Returns the slot holding the given ordinal plus one under the given hash.
+         */
+        private int slotOf(final long hash, final int ordinal) {
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                if (values.get(slot) == ordinal + 1 && hashes.get(slot) == hash) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Returns the head of the chain of the given key (ordinal plus one), {@code 0} if none.
+         */
+        private int head(final long hash) {
+            int slot = slot(hash);
+            int value = slot >= 0 ? values.get(slot) : 0;
+            return value > 0 ? value : 0;
+        }
+
+        /**
+         * Sets the value of a key: chain keys reuse their slot, ids always take a free slot.
+         */
+        private void put(final long hash, final int value, final boolean chain) {
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                int current = values.get(slot);
+                if (current == 0) {
+                    hashes.set(slot, hash);
+                    values.set(slot, value);
+                    return;
+                }
+                if (chain && hashes.get(slot) == hash) {
+                    values.set(slot, value);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes a record.
+     */
+    private static final class RecordWriter {
+
+        private byte[] bytes = new byte[256];
+        private int length = 4;
+
+        private void writeString(final String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(encoded.length + 1);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+        }
+
+        private void writeVarint(final int value) {
+            ensure(5);
+            int remaining = value;
+            while ((remaining & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((remaining & 0x7F) | 0x80);
+                remaining >>>= 7;
+            }
+            bytes[length++] = (byte) remaining;
+        }
+
+        private void ensure(final int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        private byte[] toRecord() {
+            ByteBuffer.wrap(bytes).putInt(0, length);
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
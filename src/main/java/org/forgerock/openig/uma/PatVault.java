@@ -0,0 +1,410 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Form;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.util.Utils.closeSilently;
+
+/**
+ * A {@link PatVault} keeps a single Protection API Token per (user, realm, OAuth 2.0 client), shared by all the
+ * shares of that user, instead of a copy of the PAT in every share entry.
+ * <p>
+ * <p>PATs are persisted in the share LDAP store ({@literal frUmaPat} entries) along with their refresh token and
+ * expiration time. A background task refreshes, using the stored refresh token, the PATs that are about to expire, so
+ * the permission ticket calls made on behalf of the share owners do not start failing when a PAT expires.
+ * <p>
+ * <p>Several gateways share the store: before refreshing a PAT (and when the AS rejects the refresh token), the entry
+ * is read again from LDAP, and a PAT already refreshed by another gateway is adopted instead of spending its rotated
+ * refresh token. Users without a vaulted PAT are looked up again after a while, to see PATs vaulted elsewhere.
+ * <p>
+ * <p>The LDAP calls following a refresh run on the blocking sections executor, not on the thread completing the AS
+ * call.
+ */
+class PatVault {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatVault.class);
+
+    /** How long the absence of a vaulted PAT is remembered before looking it up again. */
+    private static final long ABSENT_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    /** A refresh still pending after this delay is considered lost, and can be attempted again. */
+    private static final long REFRESH_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * A vaulted PAT. Instances are updated in place when the PAT is refreshed, so the shares holding a reference see
+     * the new token.
+     */
+    static final class Entry {
+        private final String key;
+        private final String userId;
+        private volatile String accessToken;
+        private volatile String refreshToken;
+        private volatile String authorizationHeader;
+        private volatile long expiresAt;
+        /** Start time (nanos) of the pending refresh, {@code 0} when none. */
+        private volatile long refreshingSince;
+        /** When the absence of a PAT was last checked in LDAP (nanos). */
+        private volatile long checkedAt = System.nanoTime();
+
+        Entry(final String key, final String userId) {
+            this.key = key;
+            this.userId = userId;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        String getUserId() {
+            return userId;
+        }
+
+        String getAccessToken() {
+            return accessToken;
+        }
+
+        String getRefreshToken() {
+            return refreshToken;
+        }
+
+        /**
+         * Returns the {@literal Authorization} header value to use with this PAT.
+         *
+         * @return {@literal Bearer <PAT>}
+         */
+        String getAuthorizationHeader() {
+            return authorizationHeader;
+        }
+
+        /**
+         * Returns the PAT expiration time in milliseconds since the epoch, or {@code 0} if unknown.
+         *
+         * @return the PAT expiration time
+         */
+        long getExpiresAt() {
+            return expiresAt;
+        }
+
+        void update(final String accessToken, final String refreshToken, final long expiresAt) {
+            this.accessToken = accessToken;
+            this.authorizationHeader = "Bearer " + accessToken;
+            if (refreshToken != null) {
+                this.refreshToken = refreshToken;
+            }
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LDAPManager ldapManager;
+    private final String realm;
+    private final String clientId;
+    private final String clientSecret;
+    private final Handler protectionApiHandler;
+    private final AuthorizationServerPool authorizationServerPool;
+    private final BlockingCallExecutor blockingCallExecutor;
+    private ScheduledFuture<?> refresher;
+
+    PatVault(final LDAPManager ldapManager,
+             final String realm,
+             final String clientId,
+             final String clientSecret,
+             final Handler protectionApiHandler,
+             final AuthorizationServerPool authorizationServerPool,
+             final BlockingCallExecutor blockingCallExecutor) {
+        this.ldapManager = ldapManager;
+        this.realm = realm;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.protectionApiHandler = protectionApiHandler;
+        this.authorizationServerPool = authorizationServerPool;
+        this.blockingCallExecutor = blockingCallExecutor;
+    }
+
+    /**
+     * Returns the vault entry of the given user when it is known without reading LDAP.
+     *
+     * @param userId share owner
+     * @return the vault entry, or {@code null} if {@link #get(String)} has to read it from LDAP
+     */
+    Entry peek(final String userId) {
+        Entry entry = entries.get(key(userId));
+        if (entry == null || (entry.accessToken == null && System.nanoTime() - entry.checkedAt >= ABSENT_TTL_NANOS)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the vault entry of the given user. The entry has no {@linkplain Entry#getAccessToken() access token}
+     * when no PAT has been vaulted for that user (shares created before the vault was enabled still hold their own
+     * PAT). Reads LDAP when the entry is not in memory: see {@link #peek(String)} for the request threads.
+     *
+     * @param userId share owner
+     * @return the vault entry, or {@code null} if it cannot be read
+     */
+    Entry get(final String userId) {
+        String key = key(userId);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.accessToken == null && claimAbsenceCheck(entry)) {
+            // Maybe vaulted since by another gateway
+            adoptStored(entry);
+        }
+        if (entry == null) {
+            try {
+                entry = ldapManager.getPat(key, userId);
+            } catch (LdapException e) {
+                logger.error("Cannot read the PAT of {} from OpenIG LDAP", userId, e);
+                return null;
+            }
+            if (entry == null) {
+                // Remember the absence too, it is filled in place if a PAT is stored later
+                entry = new Entry(key, userId);
+            }
+            Entry existing = entries.putIfAbsent(key, entry);
+            entry = existing != null ? existing : entry;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns {@code true} to the single caller that should look up again an absent PAT, once its TTL has expired.
+     */
+    private static boolean claimAbsenceCheck(final Entry entry) {
+        long now = System.nanoTime();
+        if (now - entry.checkedAt < ABSENT_TTL_NANOS) {
+            return false;
+        }
+        synchronized (entry) {
+            if (now - entry.checkedAt < ABSENT_TTL_NANOS) {
+                return false;
+            }
+            entry.checkedAt = now;
+            return true;
+        }
+    }
+
+    /**
+     * Adopts the PAT stored in LDAP when it is newer than the one in memory (vaulted or refreshed by another
+     * gateway).
+     *
+     * @return {@code true} if the entry was updated
+     */
+    private boolean adoptStored(final Entry entry) {
+        Entry stored;
+        try {
+            stored = ldapManager.getPat(entry.getKey(), entry.getUserId());
+        } catch (LdapException e) {
+            logger.warn("Cannot read the PAT of {} from OpenIG LDAP", entry.getUserId(), e);
+            return false;
+        }
+        if (stored == null || stored.getAccessToken() == null) {
+            return false;
+        }
+        boolean newer = entry.getAccessToken() == null
+                || stored.getExpiresAt() > entry.getExpiresAt()
+                || (stored.getRefreshToken() != null && !stored.getRefreshToken().equals(entry.getRefreshToken()));
+        if (newer) {
+            entry.update(stored.getAccessToken(), stored.getRefreshToken(), stored.getExpiresAt());
+            logger.debug("Adopted the PAT of {} stored by another gateway", entry.getUserId());
+        }
+        return newer;
+    }
+
+    /**
+     * Stores (or replaces) the PAT of the given user.
+     *
+     * @param userId       share owner
+     * @param accessToken  PAT
+     * @param refreshToken refresh token (can be {@code null}, in which case a previously stored one is kept)
+     * @param expiresAt    PAT expiration time in milliseconds since the epoch, {@code 0} if unknown
+     * @throws LdapException if the PAT cannot be persisted
+     */
+    void store(final String userId,
+               final String accessToken,
+               final String refreshToken,
+               final long expiresAt) throws LdapException {
+        Entry entry = get(userId);
+        if (entry == null) {
+            throw LdapException.newLdapException(ResultCode.UNAVAILABLE, "Cannot read the PAT of " + userId);
+        }
+        entry.update(accessToken, refreshToken, expiresAt);
+        ldapManager.putPat(entry, realm, clientId);
+    }
+
+    /**
+     * Loads all the PATs of this realm and client, and schedules their refresh.
+     *
+     * @param scheduler   executor running the refresh task
+     * @param periodNanos how often the PATs expiration is checked
+     * @param windowNanos PATs expiring within this delay are refreshed
+     */
+    synchronized void start(final ScheduledExecutorService scheduler, final long periodNanos, final long windowNanos) {
+        try {
+            for (Entry entry : ldapManager.listPats(realm, clientId)) {
+                entries.putIfAbsent(entry.getKey(), entry);
+            }
+        } catch (LdapException e) {
+            logger.error("Cannot load PATs from OpenIG LDAP, they will be loaded on demand", e);
+        }
+        refresher = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshExpiring(TimeUnit.NANOSECONDS.toMillis(windowNanos));
+            }
+        }, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    synchronized void stop() {
+        if (refresher != null) {
+            refresher.cancel(false);
+            refresher = null;
+        }
+    }
+
+    /**
+     * Refreshes the PATs expiring within the given window, when a refresh token is available.
+     *
+     * @param windowMillis refresh window
+     */
+    void refreshExpiring(final long windowMillis) {
+        long limit = System.currentTimeMillis() + windowMillis;
+        for (Entry entry : entries.values()) {
+            if (entry.refreshToken != null && entry.expiresAt > 0 && entry.expiresAt < limit && !isRefreshing(entry)) {
+                // Another gateway may have refreshed it already (and rotated the refresh token)
+                if (adoptStored(entry) && entry.expiresAt >= limit) {
+                    continue;
+                }
+                refresh(new RootContext(), entry);
+            }
+        }
+    }
+
+    private static boolean isRefreshing(final Entry entry) {
+        long since = entry.refreshingSince;
+        // A refresh whose promise never completed does not block the next ones forever
+        return since != 0 && System.nanoTime() - since < REFRESH_TIMEOUT_NANOS;
+    }
+
+    private void refresh(final Context context, final Entry entry) {
+        final long since = System.nanoTime();
+        entry.refreshingSince = since;
+        final String refreshToken = entry.getRefreshToken();
+        authorizationServerPool.send(context, protectionApiHandler, new AuthorizationServerPool.RequestFactory() {
+            @Override
+            public Request newRequest(final AuthorizationServerNode node) {
+                Request request = new Request();
+                request.setUri(node.getTokenEndpoint());
+                request.getHeaders().put("Accept", "application/json");
+
+                Form form = new Form();
+                form.putSingle("grant_type", "refresh_token");
+                form.putSingle("refresh_token", refreshToken);
+                form.putSingle("client_id", clientId);
+                form.putSingle("client_secret", clientSecret);
+                form.toRequestEntity(request);
+                return request;
+            }
+        }, false).thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                try {
+                    if (Status.BAD_REQUEST == response.getStatus()) {
+                        // invalid_grant: the refresh token was rotated, most likely by another gateway
+                        blockingCallExecutor.execute(new BlockingCallExecutor.BlockingCall<Void, RuntimeException>() {
+                            @Override
+                            public Void call() {
+                                if (!adoptStored(entry)) {
+                                    logger.warn("Cannot refresh the PAT of {}: refresh token rejected",
+                                                entry.getUserId());
+                                }
+                                return null;
+                            }
+                        });
+                        return;
+                    }
+                    if (Status.OK != response.getStatus()) {
+                        logger.warn("Cannot refresh the PAT of {}: {} {}",
+                                    entry.getUserId(), response.getStatus(), response.getEntity());
+                        return;
+                    }
+                    JsonValue token = json(response.getEntity().getJson());
+                    JsonValue expiresIn = token.get("expires_in");
+                    entry.update(token.get("access_token").asString(),
+                                 token.get("refresh_token").asString(),
+                                 expiresIn.isNumber()
+                                         ? System.currentTimeMillis() + expiresIn.asLong() * 1000L
+                                         : 0L);
+                    logger.debug("Refreshed the PAT of {}", entry.getUserId());
+                    blockingCallExecutor.execute(new BlockingCallExecutor.BlockingCall<Void, RuntimeException>() {
+                        @Override
+                        public Void call() {
+                            try {
+                                ldapManager.putPat(entry, realm, clientId);
+                            } catch (LdapException e) {
+                                logger.error("Cannot store the refreshed PAT of {} in OpenIG LDAP",
+                                             entry.getUserId(), e);
+                            }
+                            return null;
+                        }
+                    });
+                } catch (IOException e) {
+                    logger.error("Cannot refresh the PAT of {}", entry.getUserId(), e);
+                } finally {
+                    closeSilently(response);
+                }
+            }
+        }).thenAlways(new Runnable() {
+            @Override
+            public void run() {
+                // Any outcome, including a cancelled call; a newer refresh may have started after a timeout
+                if (entry.refreshingSince == since) {
+                    entry.refreshingSince = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the key of a user's PAT: a digest of user, realm and client, safe to use in a DN.
+     */
+    private String key(final String userId) {
+        return ShareKeys.sha256Hex(userId + '|' + realm + '|' + clientId);
+    }
+}
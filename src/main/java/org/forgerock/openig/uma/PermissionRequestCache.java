@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the serialized permission request bodies of a filter, keyed by resource set identifier.
+ * <p>
+ * <p>Like the {@link ShareLookupCache}, entries expire after a time-to-live (so the bodies of removed shares do not
+ * stay in memory), and a full cache first drops its expired entries, only starting over when it is still full of
+ * live ones.
+ */
+class PermissionRequestCache {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long timeoutNanos;
+    private final int maxSize;
+
+    /**
+     * Creates a cache.
+     *
+     * @param timeoutNanos time-to-live of the entries
+     * @param maxSize      maximum number of entries
+     */
+    PermissionRequestCache(final long timeoutNanos, final int maxSize) {
+        // Keep expiration arithmetic safe from overflows for "unlimited" durations
+        this.timeoutNanos = Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached body of the given resource set.
+     *
+     * @param resourceId resource set identifier
+     * @return the body, or {@code null} if absent or expired
+     */
+    byte[] get(final String resourceId) {
+        Entry entry = entries.get(resourceId);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt > 0) {
+            entries.remove(resourceId, entry);
+            return null;
+        }
+        return entry.body;
+    }
+
+    /**
+     * Caches the body of the given resource set.
+     *
+     * @param resourceId resource set identifier
+     * @param body       serialized permission request
+     */
+    void put(final String resourceId, final byte[] body) {
+        if (entries.size() >= maxSize) {
+            purge();
+        }
+        entries.put(resourceId, new Entry(body, System.nanoTime() + timeoutNanos));
+    }
+
+    private void purge() {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next().getValue().expiresAt > 0) {
+                iterator.remove();
+            }
+        }
+        if (entries.size() >= maxSize) {
+            // Still full of live entries: start over rather than tracking usage on the read path
+            entries.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] body;
+        private final long expiresAt;
+
+        private Entry(final byte[] body, final long expiresAt) {
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.header.Warning;
+import org.forgerock.http.header.WarningHeader;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.forgerock.http.header.WarningHeader.MISCELLANEOUS_WARNING;
+import static org.forgerock.util.Utils.closeSilently;
+
+/**
+ * Total time budget of a protected request across its UMA stages (share lookup, RPT introspection, permission
+ * ticket), so that the time spent in the gateway is bounded whatever the latency of the LDAP store and of the AS.
+ * <p>
+ * <p>The remaining budget is checked before each stage, passed to the LDAP searches as their time limit, and each
+ * asynchronous stage is raced against it: once the budget is gone, the pending call is cancelled and the request
+ * fails with a {@literal 503 Service Unavailable}. The first stage that ran out of budget is recorded.
+ */
+final class RequestDeadline {
+
+    /**
+     * UMA stages of a protected request.
+     */
+    enum Stage {
+        /** LDAP search of the shares protecting the request. */
+        SHARE_LOOKUP,
+        /** RPT introspection call to the AS. */
+        INTROSPECTION,
+        /** Permission ticket call to the AS. */
+        TICKET;
+
+        /**
+         * Returns the stage name, as audited.
+         *
+         * @return the lower case stage name
+         */
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * A deadline that is never reached.
+     */
+    static final RequestDeadline NONE = new RequestDeadline(Long.MAX_VALUE, null);
+
+    private final long deadline;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicReference<Stage> exhaustedStage = new AtomicReference<>();
+
+    private RequestDeadline(final long deadline, final ScheduledExecutorService scheduler) {
+        this.deadline = deadline;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts the budget of a request.
+     *
+     * @param budgetNanos total budget
+     * @param scheduler   used to cancel the stages still pending when the budget is gone
+     * @return the deadline of the request
+     */
+    static RequestDeadline start(final long budgetNanos, final ScheduledExecutorService scheduler) {
+        return new RequestDeadline(System.nanoTime() + budgetNanos, scheduler);
+    }
+
+    /**
+     * Returns the remaining budget.
+     *
+     * @return the remaining budget in nanoseconds, {@code 0} or less once gone
+     */
+    long remainingNanos() {
+        return this == NONE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
+    /**
+     * Returns the LDAP search time limit matching the remaining budget (LDAP time limits are whole seconds: the
+     * searches are also raced against the exact budget).
+     *
+     * @return the time limit in seconds, {@code 0} for no limit
+     */
+    int ldapTimeLimit() {
+        if (this == NONE) {
+            return 0;
+        }
+        long seconds = (Math.max(0, remainingNanos()) + 999999999L) / 1000000000L;
+        return (int) Math.max(1, Math.min(seconds, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Checks the budget at the given stage: when none is left, records the stage as the exhausted one (unless an
+     * earlier stage already ran out of budget).
+     *
+     * @param stage current stage
+     * @return {@code true} if the budget is gone
+     */
+    boolean exhausted(final Stage stage) {
+        if (remainingNanos() > 0) {
+            return false;
+        }
+        exhaustedStage.compareAndSet(null, stage);
+        return true;
+    }
+
+    /**
+     * Returns the first stage that ran out of budget.
+     *
+     * @return the exhausted stage, {@code null} if the request is within its budget
+     */
+    Stage getExhaustedStage() {
+        return exhaustedStage.get();
+    }
+
+    /**
+     * Bounds an AS call by the remaining budget: once the budget is gone, the call is cancelled and a
+     * {@linkplain #serviceUnavailable(Stage) 503} response is returned instead.
+     *
+     * @param call  pending AS call
+     * @param stage stage of the call
+     * @return the call response, or the 503 response
+     */
+    Promise<Response, NeverThrowsException> bound(final Promise<Response, NeverThrowsException> call,
+                                                  final Stage stage) {
+        return race(call, stage, new Expiry<Response, NeverThrowsException>() {
+            @Override
+            public void expire(final PromiseImpl<Response, NeverThrowsException> result) {
+                result.handleResult(serviceUnavailable(stage));
+            }
+        });
+    }
+
+    /**
+     * Bounds a share lookup by the remaining budget: once the budget is gone, the lookup is cancelled and fails with
+     * an {@link UmaException}.
+     *
+     * @param lookup pending share lookup
+     * @param <V>    lookup result type
+     * @return the lookup outcome, or the failure
+     */
+    <V> Promise<V, UmaException> boundLookup(final Promise<V, UmaException> lookup) {
+        return race(lookup, Stage.SHARE_LOOKUP, new Expiry<V, UmaException>() {
+            @Override
+            public void expire(final PromiseImpl<V, UmaException> result) {
+                result.handleException(new UmaException("Request deadline exceeded while looking for a UMA share"));
+            }
+        });
+    }
+
+    /**
+     * Returns the response of a request that ran out of budget.
+     *
+     * @param stage exhausted stage
+     * @return a new {@literal 503 Service Unavailable} response
+     */
+    static Response serviceUnavailable(final Stage stage) {
+        Response response = new Response(Status.SERVICE_UNAVAILABLE);
+        response.getHeaders().put(new WarningHeader(new Warning(MISCELLANEOUS_WARNING,
+                                                                "-",
+                                                                "UMA request deadline exceeded: " + stage)));
+        return response;
+    }
+
+    /**
+     * Completes the promise of a stage that ran out of budget.
+     */
+    private interface Expiry<V, E extends Exception> {
+        void expire(PromiseImpl<V, E> result);
+    }
+
+    private <V, E extends Exception> Promise<V, E> race(final Promise<V, E> call,
+                                                        final Stage stage,
+                                                        final Expiry<V, E> expiry) {
+        if (scheduler == null || call.isDone()) {
+            return call;
+        }
+        final PromiseImpl<V, E> result = PromiseImpl.create();
+        final AtomicBoolean done = new AtomicBoolean();
+        final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (done.compareAndSet(false, true)) {
+                    exhaustedStage.compareAndSet(null, stage);
+                    expiry.expire(result);
+                    call.cancel(true);
+                }
+            }
+        }, Math.max(0, remainingNanos()), TimeUnit.NANOSECONDS);
+        call.thenOnResult(new ResultHandler<V>() {
+            @Override
+            public void handleResult(final V value) {
+                if (done.compareAndSet(false, true)) {
+                    timeout.cancel(false);
+                    result.handleResult(value);
+                } else if (value instanceof Closeable) {
+                    // Too late: nobody reads it
+                    closeSilently((Closeable) value);
+                }
+            }
+        }).thenOnException(new ExceptionHandler<E>() {
+            @Override
+            public void handleException(final E exception) {
+                if (done.compareAndSet(false, true)) {
+                    timeout.cancel(false);
+                    result.handleException(exception);
+                }
+            }
+        });
+        return result;
+    }
+}
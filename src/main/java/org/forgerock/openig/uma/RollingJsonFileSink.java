@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.forgerock.util.Utils.closeSilently;
+
+/**
+ * Writes the decision events to a file, one JSON object per line. When the file grows past {@code maxFileSize}, it is
+ * renamed {@literal <file>.1} (the previous {@literal <file>.1} becoming {@literal <file>.2}, and so on, up to
+ * {@code maxFiles} files) and a new file is started.
+ */
+class RollingJsonFileSink implements DecisionAuditor.Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollingJsonFileSink.class);
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final byte[] NEW_LINE = {'\n'};
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private OutputStream out;
+    private long size;
+
+    /**
+     * Creates a sink.
+     *
+     * @param file        current events file
+     * @param maxFileSize size after which the file is rolled
+     * @param maxFiles    number of rolled files to keep
+     */
+    RollingJsonFileSink(final Path file, final long maxFileSize, final int maxFiles) {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public void write(final DecisionEvent event) throws IOException {
+        if (out == null) {
+            open();
+        } else if (size >= maxFileSize) {
+            roll();
+        }
+        Map<String, Object> line = event.asMap();
+        line.put("timestamp", event.getTimestamp());
+        byte[] bytes = JSON_MAPPER.writeValueAsBytes(line);
+        out.write(bytes);
+        out.write(NEW_LINE);
+        size += bytes.length + 1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        closeSilently(out);
+        out = null;
+    }
+
+    private void open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                                                             StandardOpenOption.APPEND), 64 * 1024);
+        size = Files.size(file);
+    }
+
+    private void roll() throws IOException {
+        close();
+        Files.deleteIfExists(rolled(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = rolled(i);
+            if (Files.exists(source)) {
+                Files.move(source, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file);
+        }
+        logger.debug("Rolled UMA decision audit file {}", file);
+        open();
+    }
+
+    private Path rolled(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
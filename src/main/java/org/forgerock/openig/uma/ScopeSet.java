@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable set of UMA scopes compiled into a bitset.
+ * <p>
+ * <p>Scope names are interned into a process-wide registry that assigns each distinct scope a bit position, so that
+ * checking the scopes granted by an RPT against the scopes required by a route is a subset test over a few
+ * {@code long} words, instead of {@code List.containsAll()}.
+ * <p>
+ * <pre>
+ *     {@code long[] granted = required.newMask();
+ *       for (String scope : rptScopes) {
+ *           required.mark(granted, scope);
+ *       }
+ *       boolean allowed = required.isSatisfiedBy(granted);
+ *     }
+ * </pre>
+ */
+final class ScopeSet {
+
+    private static final ConcurrentMap<String, Integer> REGISTRY = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_INDEX = new AtomicInteger();
+
+    private final long[] words;
+    private final List<String> scopes;
+
+    private ScopeSet(final long[] words, final List<String> scopes) {
+        this.words = words;
+        this.scopes = scopes;
+    }
+
+    /**
+     * Compiles the given scopes.
+     *
+     * @param scopes scope names ({@code null} for none)
+     * @return the compiled scope set
+     */
+    static ScopeSet compile(final List<?> scopes) {
+        List<String> names = new ArrayList<>();
+        if (scopes != null) {
+            for (Object scope : scopes) {
+                String name = String.valueOf(scope);
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        int[] indexes = new int[names.size()];
+        int max = -1;
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = intern(names.get(i));
+            max = Math.max(max, indexes[i]);
+        }
+        long[] words = new long[(max >> 6) + 1];
+        for (int index : indexes) {
+            words[index >> 6] |= 1L << index;
+        }
+        return new ScopeSet(words, Collections.unmodifiableList(names));
+    }
+
+    private static int intern(final String scope) {
+        Integer index = REGISTRY.get(scope);
+        if (index == null) {
+            Integer candidate = NEXT_INDEX.getAndIncrement();
+            index = REGISTRY.putIfAbsent(scope, candidate);
+            if (index == null) {
+                index = candidate;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the scope names, in configuration order.
+     *
+     * @return the scope names
+     */
+    List<String> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * Returns an empty mask, to be filled with {@link #mark(long[], String)}.
+     *
+     * @return an empty mask
+     */
+    long[] newMask() {
+        return new long[words.length];
+    }
+
+    /**
+     * Marks a granted scope in the given mask. Scopes that are not part of this set are ignored.
+     *
+     * @param mask  mask created with {@link #newMask()}
+     * @param scope granted scope
+     */
+    void mark(final long[] mask, final String scope) {
+        Integer index = REGISTRY.get(scope);
+        if (index != null) {
+            int word = index >> 6;
+            if (word < words.length) {
+                mask[word] |= words[word] & (1L << index);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given mask contains all the scopes of this set.
+     *
+     * @param mask mask filled with {@link #mark(long[], String)}
+     * @return {@code true} if this set is a subset of the marked scopes
+     */
+    boolean isSatisfiedBy(final long[] mask) {
+        for (int i = 0; i < words.length; i++) {
+            if ((mask[i] & words[i]) != words[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return scopes.toString();
+    }
+}
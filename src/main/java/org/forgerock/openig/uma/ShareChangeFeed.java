@@ -0,0 +1,473 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+/**
+ * Incremental feed of the share creations and removals, read with opaque cursors.
+ * <p>
+ * <p>Recent changes are served from a bounded in-memory journal: the changes made through this gateway, plus the
+ * ones made through other gateways as the share index catches up with the LDAP store. A cursor that fell out of the
+ * journal (too old, or issued before a restart) is served from the DS external changelog ({@literal cn=changelog})
+ * when enabled, from the time of its last change: the feed then continues with changelog cursors until it has caught
+ * up, and goes back to the journal.
+ * <p>
+ * <p>Delivery is at-least-once: a change may be returned again when the feed switches between the changelog and the
+ * journal, consumers apply the changes idempotently (a creation is an upsert).
+ */
+class ShareChangeFeed {
+
+    /**
+     * Reads the share changes recorded in the DS external changelog.
+     */
+    interface Changelog {
+
+        /**
+         * Returns the change number of the first change made at or after the given time.
+         *
+         * @param sinceMillis change time
+         * @return the first change number since that time (the next change number if none), or {@code -1} if the
+         * changes of that time were purged from the changelog
+         * @throws LdapException if the changelog cannot be read
+         */
+        long firstChangeNumber(long sinceMillis) throws LdapException;
+
+        /**
+         * Reads the share changes of a range of change numbers, in change number order.
+         *
+         * @param from    first change number to read
+         * @param to      last change number to read
+         * @param changes receives the share changes, with their change number as sequence
+         * @return the last change number read ({@code from - 1} if none), or {@code -1} if change {@code from} was
+         * purged from the changelog
+         * @throws LdapException if the changelog cannot be read
+         */
+        long read(long from, long to, List<Change> changes) throws LdapException;
+    }
+
+    /**
+     * A share creation or removal.
+     */
+    static final class Change {
+
+        /**
+         * Change types.
+         */
+        enum Type {
+            CREATE, DELETE
+        }
+
+        private final long sequence;
+        private final Type type;
+        private final String shareId;
+        private final String userId;
+        private final ShareExt share;
+        private final long timestamp;
+
+        Change(final long sequence,
+               final Type type,
+               final String shareId,
+               final String userId,
+               final ShareExt share,
+               final long timestamp) {
+            this.sequence = sequence;
+            this.type = type;
+            this.shareId = shareId;
+            this.userId = userId;
+            this.share = share;
+            this.timestamp = timestamp;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        Type getType() {
+            return type;
+        }
+
+        String getShareId() {
+            return shareId;
+        }
+
+        /**
+         * Returns the share owner, can be {@code null} for removals read from the changelog.
+         *
+         * @return the share owner
+         */
+        String getUserId() {
+            return userId;
+        }
+
+        /**
+         * Returns the created share, {@code null} for removals.
+         *
+         * @return the created share
+         */
+        ShareExt getShare() {
+            return share;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Changes returned by a {@link #read(String, String, int)}.
+     */
+    static final class Page {
+
+        private final List<Change> changes;
+        private final String cursor;
+        private final boolean more;
+        private final boolean journal;
+
+        private Page(final List<Change> changes, final String cursor, final boolean more, final boolean journal) {
+            this.changes = changes;
+            this.cursor = cursor;
+            this.more = more;
+            this.journal = journal;
+        }
+
+        List<Change> getChanges() {
+            return changes;
+        }
+
+        /**
+         * Returns the cursor to read the next changes.
+         *
+         * @return the next cursor
+         */
+        String getCursor() {
+            return cursor;
+        }
+
+        /**
+         * Returns {@code true} if more changes can be read right away.
+         *
+         * @return {@code true} if more changes are available
+         */
+        boolean hasMore() {
+            return more;
+        }
+    }
+
+    private static final String JOURNAL = "j";
+    private static final String CHANGELOG = "c";
+    /** Change times have a one second precision in the changelog. */
+    private static final long CHANGELOG_TIME_SLACK_MILLIS = 1000L;
+
+    private final Change[] journal;
+    private final String epoch;
+    private final Changelog changelog;
+    private final String realm;
+    private final String clientId;
+    private final ScheduledExecutorService scheduler;
+    private final int maxWaiters;
+    private final long maxWaitNanos;
+    private final List<Waiter> waiters = new ArrayList<>();
+    // Guarded by this
+    private long nextSequence = 1L;
+
+    /**
+     * Creates a feed.
+     *
+     * @param journalSize  number of changes kept in memory
+     * @param changelog    changelog fallback, {@code null} if disabled
+     * @param realm        realm of the shares
+     * @param clientId     OAuth 2.0 client of the shares
+     * @param scheduler    long-polling timer
+     * @param maxWaiters   maximum number of pending long-polls
+     * @param maxWaitNanos maximum long-poll duration
+     */
+    ShareChangeFeed(final int journalSize,
+                    final Changelog changelog,
+                    final String realm,
+                    final String clientId,
+                    final ScheduledExecutorService scheduler,
+                    final int maxWaiters,
+                    final long maxWaitNanos) {
+        if (journalSize <= 0) {
+            throw new IllegalArgumentException("The change journal size must be positive");
+        }
+        this.journal = new Change[journalSize];
+        // Cursors of a previous run are not journal cursors of this one
+        this.epoch = Long.toHexString(new SecureRandom().nextLong());
+        this.changelog = changelog;
+        this.realm = realm;
+        this.clientId = clientId;
+        this.scheduler = scheduler;
+        this.maxWaiters = maxWaiters;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * Records a share creation.
+     *
+     * @param share created share
+     */
+    void created(final ShareExt share) {
+        append(Change.Type.CREATE, share.getId(), share.getUserId(), share);
+    }
+
+    /**
+     * Records a share removal.
+     *
+     * @param share removed share
+     */
+    void removed(final ShareExt share) {
+        append(Change.Type.DELETE, share.getId(), share.getUserId(), null);
+    }
+
+    private void append(final Change.Type type, final String shareId, final String userId, final ShareExt share) {
+        List<Waiter> woken = new ArrayList<>();
+        synchronized (this) {
+            long sequence = nextSequence++;
+            journal[(int) (sequence % journal.length)] =
+                    new Change(sequence, type, shareId, userId, share, System.currentTimeMillis());
+            for (Iterator<Waiter> i = waiters.iterator(); i.hasNext();) {
+                Waiter waiter = i.next();
+                if (waiter.userId == null || waiter.userId.equals(userId)) {
+                    i.remove();
+                    woken.add(waiter);
+                }
+            }
+        }
+        // Outside of the lock: the waiters re-read the journal
+        for (Waiter waiter : woken) {
+            waiter.wake();
+        }
+    }
+
+    /**
+     * Returns the cursor of the current end of the feed: reading from it returns the changes made from now on.
+     *
+     * @return the current cursor
+     */
+    synchronized String head() {
+        return journalCursor(nextSequence - 1, System.currentTimeMillis());
+    }
+
+    /**
+     * Reads the changes after the given cursor, of the given owner.
+     *
+     * @param cursor cursor returned by a previous read, or by {@link #head()}
+     * @param userId share owner, {@code null} for the changes of all owners
+     * @param limit  maximum number of changes to return
+     * @return the changes, or {@code null} if the cursor expired (the consumer must resynchronize with a full query)
+     * @throws IllegalArgumentException if the cursor is invalid
+     * @throws LdapException            if the changelog cannot be read
+     */
+    Page read(final String cursor, final String userId, final int limit) throws LdapException {
+        String[] fields = decode(cursor);
+        if (JOURNAL.equals(fields[0])) {
+            long after = parseLong(fields[2]);
+            long since = parseLong(fields[3]);
+            if (epoch.equals(fields[1])) {
+                Page page = readJournal(after, userId, limit);
+                if (page != null) {
+                    return page;
+                }
+            }
+            // Fell out of the journal
+            if (changelog == null) {
+                return null;
+            }
+            long first = changelog.firstChangeNumber(Math.max(0L, since - CHANGELOG_TIME_SLACK_MILLIS));
+            return first > 0L ? readChangelog(first, userId, limit) : null;
+        }
+        if (CHANGELOG.equals(fields[0]) && changelog != null) {
+            return readChangelog(parseLong(fields[1]) + 1, userId, limit);
+        }
+        return null;
+    }
+
+    private synchronized Page readJournal(final long after, final String userId, final int limit) {
+        long oldest = Math.max(1L, nextSequence - journal.length);
+        if (after < oldest - 1 || after >= nextSequence) {
+            return null;
+        }
+        List<Change> changes = new ArrayList<>();
+        long last = after;
+        long lastTime = 0L;
+        for (long sequence = after + 1; sequence < nextSequence && changes.size() < limit; sequence++) {
+            Change change = journal[(int) (sequence % journal.length)];
+            if (userId == null || userId.equals(change.getUserId())) {
+                changes.add(change);
+            }
+            last = sequence;
+            lastTime = change.getTimestamp();
+        }
+        if (last == after) {
+            // Nothing new, keep the time of the cursor for a later changelog fallback
+            lastTime = System.currentTimeMillis();
+        }
+        return new Page(changes, journalCursor(last, lastTime), last < nextSequence - 1, true);
+    }
+
+    private Page readChangelog(final long from, final String userId, final int limit) throws LdapException {
+        long head;
+        synchronized (this) {
+            head = nextSequence - 1;
+        }
+        long to = from + limit - 1;
+        List<Change> read = new ArrayList<>();
+        long last = changelog.read(from, to, read);
+        if (last < 0L) {
+            return null;
+        }
+        List<Change> changes = new ArrayList<>(read.size());
+        for (Change change : read) {
+            if (isVisible(change, userId)) {
+                changes.add(change);
+            }
+        }
+        if (last < to) {
+            // Caught up: back to the journal, from where it was before reading the changelog
+            return new Page(changes, journalCursor(head, System.currentTimeMillis()), false, false);
+        }
+        return new Page(changes, encode(CHANGELOG + "." + last), true, false);
+    }
+
+    private boolean isVisible(final Change change, final String userId) {
+        ShareExt share = change.getShare();
+        if (share != null && (!realm.equals(share.getRealm()) || !clientId.equals(share.getClientId()))) {
+            return false;
+        }
+        // Removals whose owner is not recorded in the changelog only expose the (random) share id
+        return userId == null || change.getUserId() == null || userId.equals(change.getUserId());
+    }
+
+    /**
+     * Waits for a change of the given owner after the given cursor, at most {@code timeoutNanos}.
+     *
+     * @param page         last page read, empty
+     * @param userId       share owner, {@code null} for the changes of all owners
+     * @param timeoutNanos maximum wait (capped to the configured maximum)
+     * @return a promise completed with {@code true} on a change, {@code false} on timeout (or if the wait is not
+     * possible: too many pending waits, or a changelog cursor)
+     */
+    Promise<Boolean, NeverThrowsException> await(final Page page, final String userId, final long timeoutNanos) {
+        if (!page.journal || timeoutNanos <= 0L || scheduler == null) {
+            return newResultPromise(false);
+        }
+        long after = parseLong(decode(page.getCursor())[2]);
+        final Waiter waiter = new Waiter(userId);
+        synchronized (this) {
+            if (nextSequence - 1 > after) {
+                // Appended since the read
+                return newResultPromise(true);
+            }
+            if (waiters.size() >= maxWaiters) {
+                return newResultPromise(false);
+            }
+            waiters.add(waiter);
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ShareChangeFeed.this) {
+                    waiters.remove(waiter);
+                }
+                waiter.timeout();
+            }
+        }, Math.min(timeoutNanos, maxWaitNanos), TimeUnit.NANOSECONDS);
+        return waiter.promise;
+    }
+
+    /**
+     * Returns the number of pending long-polls.
+     *
+     * @return the number of pending long-polls
+     */
+    synchronized int getWaiters() {
+        return waiters.size();
+    }
+
+    private String journalCursor(final long sequence, final long timestamp) {
+        return encode(JOURNAL + "." + epoch + "." + sequence + "." + timestamp);
+    }
+
+    private static String encode(final String cursor) {
+        return Base64url.encode(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] decode(final String cursor) {
+        byte[] bytes = cursor != null ? Base64url.decode(cursor) : null;
+        if (bytes == null) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        String[] fields = new String(bytes, StandardCharsets.UTF_8).split("\\.");
+        if (!(JOURNAL.equals(fields[0]) && fields.length == 4 || CHANGELOG.equals(fields[0]) && fields.length == 2)) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return fields;
+    }
+
+    private static long parseLong(final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    /**
+     * A pending long-poll.
+     */
+    private static final class Waiter {
+
+        private final String userId;
+        private final PromiseImpl<Boolean, NeverThrowsException> promise = PromiseImpl.create();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Waiter(final String userId) {
+            this.userId = userId;
+        }
+
+        private void wake() {
+            if (done.compareAndSet(false, true)) {
+                promise.handleResult(true);
+            }
+        }
+
+        private void timeout() {
+            if (done.compareAndSet(false, true)) {
+                promise.handleResult(false);
+            }
+        }
+    }
+}
@@ -31,18 +31,24 @@ import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.*;
 import org.forgerock.json.resource.http.HttpContext;
+import org.forgerock.opendj.ldap.LdapException;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
-import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.format;
 import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.json.resource.Responses.newActionResponse;
 import static org.forgerock.json.resource.Responses.newQueryResponse;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.forgerock.util.Utils.closeSilently;
 import static org.forgerock.util.promise.Promises.newResultPromise;
 import static org.forgerock.util.query.QueryFilter.alwaysTrue;
 
@@ -52,14 +58,25 @@ import static org.forgerock.util.query.QueryFilter.alwaysTrue;
  * <p>
  * <p>Supported operations: {@literal CREATE}, {@literal READ}, {@literal DELETE}
  * and {@literal QUERY} (simple shares list, no filtering).
+ * <p>
+ * <p>Shares have a revision (see {@link ShareExt#getRevision()}): reads honor {@literal If-None-Match}
+ * ({@literal 304 Not Modified} when the share did not change) and deletes honor {@literal If-Match}.
+ * <p>
+ * <p>When the {@link ShareChangeFeed} is enabled, the {@literal changes} collection action returns the creations and
+ * removals of the caller's shares after a cursor ({@literal _action=changes&cursor=...&limit=100&wait=30}): without a
+ * cursor it only returns the current one, to follow the changes made after a full query. With {@literal wait}
+ * (in seconds), the action waits for a change when there is none yet.
  */
 @CollectionProvider(details = @Handler(id = "share",
         resourceSchema = @Schema(schemaResource = "share.json", id = "share"),
         title = "i18n:#service.title",
         description = "i18n:#service.desc",
-        mvccSupported = false))
+        mvccSupported = true))
 class ShareCollectionProviderExt implements CollectionResourceProvider {
 
+    private static final int DEFAULT_CHANGES_LIMIT = 100;
+    private static final int MAX_CHANGES_LIMIT = 1000;
+
     private final UmaSharingServiceExt service;
 
     /**
@@ -100,23 +117,30 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
             return new NotSupportedException("Only POST-style of instance creation are supported").asPromise();
         }
 
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
-        }
-
-        return service.createShare(context, request, userId)
-                .then(new Function<ShareExt, ResourceResponse, ResourceException>() {
-                    @Override
-                    public ResourceResponse apply(final ShareExt share) throws ResourceException {
-                        return newResourceResponse(share.getId(), null, asJson(share));
-                    }
-                }, new Function<UmaException, ResourceResponse, ResourceException>() {
-                    @Override
-                    public ResourceResponse apply(final UmaException exception) throws ResourceException {
-                        throw new BadRequestException("Failed to create a share, Reason: " + exception.getMessage(), exception);
-                    }
-                });
+        return introspectPat(context).thenAsync(new AsyncFunction<JsonValue, ResourceResponse, ResourceException>() {
+            @Override
+            public Promise<ResourceResponse, ResourceException> apply(final JsonValue pat) {
+                final String userId = pat != null ? pat.get("sub").asString() : null;
+                if (null == userId) {
+                    return new BadRequestException("Missing or expired PAT in request").asPromise();
+                }
+                // Introspection "exp" is in seconds
+                final long patExpiresAt = pat.get("exp").isNumber() ? pat.get("exp").asLong() * 1000L : 0L;
+
+                return service.createShare(context, request, userId, patExpiresAt)
+                        .then(new Function<ShareExt, ResourceResponse, ResourceException>() {
+                            @Override
+                            public ResourceResponse apply(final ShareExt share) throws ResourceException {
+                                return newResourceResponse(share.getId(), share.getRevision(), asJson(share));
+                            }
+                        }, new Function<UmaException, ResourceResponse, ResourceException>() {
+                            @Override
+                            public ResourceResponse apply(final UmaException exception) throws ResourceException {
+                                throw new BadRequestException("Failed to create a share, Reason: " + exception.getMessage(), exception);
+                            }
+                        });
+            }
+        });
     }
 
     @Override
@@ -128,11 +152,21 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
     public Promise<ResourceResponse, ResourceException> deleteInstance(final Context context,
                                                                        final String resourceId,
                                                                        final DeleteRequest request) {
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
-        }
+        return introspectToken(context).thenAsync(new AsyncFunction<String, ResourceResponse, ResourceException>() {
+            @Override
+            public Promise<ResourceResponse, ResourceException> apply(final String userId) {
+                if (null == userId) {
+                    return new BadRequestException("Missing or expired PAT in request").asPromise();
+                }
+                return deleteInstance(context, resourceId, request, userId);
+            }
+        });
+    }
 
+    private Promise<ResourceResponse, ResourceException> deleteInstance(final Context context,
+                                                                        final String resourceId,
+                                                                        final DeleteRequest request,
+                                                                        final String userId) {
 //        ShareExt share = service.removeShare(context, request, resourceId, userId);
 //        if (share == null) {
 //            return new NotFoundException(format("Share %s is unknown", resourceId)).asPromise();
@@ -145,11 +179,14 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
                 .then(new Function<ShareExt, ResourceResponse, ResourceException>() {
                     @Override
                     public ResourceResponse apply(final ShareExt share) throws ResourceException {
-                        return newResourceResponse(share.getId(), null, asJson(share));
+                        return newResourceResponse(share.getId(), share.getRevision(), asJson(share));
                     }
                 }, new Function<UmaException, ResourceResponse, ResourceException>() {
                     @Override
                     public ResourceResponse apply(final UmaException exception) throws ResourceException {
+                        if (exception.getCause() instanceof PreconditionFailedException) {
+                            throw (PreconditionFailedException) exception.getCause();
+                        }
                         throw new BadRequestException("Failed to remove a share, Reason: " + exception.getMessage(), exception);
                     }
                 });
@@ -180,16 +217,24 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
             return new NotSupportedException("Only accept queries with filter=true").asPromise();
         }
 
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
-        }
-
-        for (ShareExt share : service.listShares(userId)) {
-            handler.handleResource(newResourceResponse(share.getId(), null, asJson(share)));
-        }
-
-        return newResultPromise(newQueryResponse());
+        return introspectToken(context).thenAsync(new AsyncFunction<String, QueryResponse, ResourceException>() {
+            @Override
+            public Promise<QueryResponse, ResourceException> apply(final String userId) {
+                if (null == userId) {
+                    return new BadRequestException("Missing or expired PAT in request").asPromise();
+                }
+                return service.offload(new BlockingCallExecutor.BlockingCall<QueryResponse, ResourceException>() {
+                    @Override
+                    public QueryResponse call() {
+                        for (ShareExt share : service.listShares(userId)) {
+                            handler.handleResource(newResourceResponse(share.getId(), share.getRevision(),
+                                                                       asJson(share)));
+                        }
+                        return newQueryResponse();
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -198,17 +243,29 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
     public Promise<ResourceResponse, ResourceException> readInstance(final Context context,
                                                                      final String resourceId,
                                                                      final ReadRequest request) {
-        final String userId = introspectToken(context);
-        if (null == userId) {
-            return new BadRequestException("Missing or expired PAT in request").asPromise();
-        }
-
-        ShareExt share = service.getShare(resourceId, userId);
-
-        if (null == share) {
-            return new NotFoundException(format("Share %s is unknown", resourceId)).asPromise();
-        }
-        return newResultPromise(newResourceResponse(resourceId, null, asJson(share)));
+        return introspectToken(context).thenAsync(new AsyncFunction<String, ResourceResponse, ResourceException>() {
+            @Override
+            public Promise<ResourceResponse, ResourceException> apply(final String userId) {
+                if (null == userId) {
+                    return new BadRequestException("Missing or expired PAT in request").asPromise();
+                }
+                return service.offload(new BlockingCallExecutor.BlockingCall<ResourceResponse, ResourceException>() {
+                    @Override
+                    public ResourceResponse call() throws ResourceException {
+                        ShareExt share = service.getShare(resourceId, userId);
+
+                        if (null == share) {
+                            throw new NotFoundException(format("Share %s is unknown", resourceId));
+                        }
+                        if (isNotModified(context, share.getRevision())) {
+                            // Cheap revision check: no body
+                            throw ResourceException.newResourceException(304, "Not Modified");
+                        }
+                        return newResourceResponse(resourceId, share.getRevision(), asJson(share));
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -221,7 +278,106 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
     @Override
     public Promise<ActionResponse, ResourceException> actionCollection(final Context context,
                                                                        final ActionRequest request) {
-        return new NotSupportedException().asPromise();
+        if (!"changes".equals(request.getAction())) {
+            return new NotSupportedException().asPromise();
+        }
+        final ShareChangeFeed feed = service.getChangeFeed();
+        if (feed == null) {
+            return new NotSupportedException("The share change feed is not enabled").asPromise();
+        }
+        final String cursor = request.getAdditionalParameter("cursor");
+        final int limit;
+        final long waitNanos;
+        try {
+            String limitParameter = request.getAdditionalParameter("limit");
+            String waitParameter = request.getAdditionalParameter("wait");
+            limit = limitParameter != null ? Integer.parseInt(limitParameter) : DEFAULT_CHANGES_LIMIT;
+            waitNanos = waitParameter != null ? TimeUnit.SECONDS.toNanos(Long.parseLong(waitParameter)) : 0L;
+        } catch (NumberFormatException e) {
+            return new BadRequestException("Invalid limit or wait parameter").asPromise();
+        }
+        if (limit <= 0 || limit > MAX_CHANGES_LIMIT) {
+            return new BadRequestException(format("The limit must be between 1 and %d", MAX_CHANGES_LIMIT))
+                    .asPromise();
+        }
+
+        return introspectToken(context).thenAsync(new AsyncFunction<String, ActionResponse, ResourceException>() {
+            @Override
+            public Promise<ActionResponse, ResourceException> apply(final String userId) {
+                if (null == userId) {
+                    return new BadRequestException("Missing or expired PAT in request").asPromise();
+                }
+                if (cursor == null) {
+                    return newResultPromise(newActionResponse(changes(new ArrayList<ShareChangeFeed.Change>(),
+                                                                      feed.head(),
+                                                                      false)));
+                }
+                return readChanges(feed, cursor, userId, limit, waitNanos);
+            }
+        });
+    }
+
+    private Promise<ActionResponse, ResourceException> readChanges(final ShareChangeFeed feed,
+                                                                   final String cursor,
+                                                                   final String userId,
+                                                                   final int limit,
+                                                                   final long waitNanos) {
+        return service.offload(new BlockingCallExecutor.BlockingCall<ShareChangeFeed.Page, ResourceException>() {
+            @Override
+            public ShareChangeFeed.Page call() throws ResourceException {
+                try {
+                    ShareChangeFeed.Page page = feed.read(cursor, userId, limit);
+                    if (page == null) {
+                        throw ResourceException.newResourceException(410, "The cursor expired, resynchronize with a "
+                                + "full query");
+                    }
+                    return page;
+                } catch (IllegalArgumentException e) {
+                    throw new BadRequestException(e.getMessage(), e);
+                } catch (LdapException e) {
+                    throw new ServiceUnavailableException("Cannot read the share changes", e);
+                }
+            }
+        }).thenAsync(new AsyncFunction<ShareChangeFeed.Page, ActionResponse, ResourceException>() {
+            @Override
+            public Promise<ActionResponse, ResourceException> apply(final ShareChangeFeed.Page page) {
+                if (!page.getChanges().isEmpty() || page.hasMore() || waitNanos <= 0L) {
+                    return newResultPromise(newActionResponse(changes(page.getChanges(), page.getCursor(),
+                                                                      page.hasMore())));
+                }
+                // Long-poll: read again on the first change of that owner
+                return feed.await(page, userId, waitNanos).thenAsync(
+                        new AsyncFunction<Boolean, ActionResponse, ResourceException>() {
+                            @Override
+                            public Promise<ActionResponse, ResourceException> apply(final Boolean changed) {
+                                if (!changed) {
+                                    return newResultPromise(newActionResponse(changes(page.getChanges(),
+                                                                                      page.getCursor(),
+                                                                                      false)));
+                                }
+                                return readChanges(feed, page.getCursor(), userId, limit, 0L);
+                            }
+                        },
+                        org.forgerock.http.protocol.Responses.<ActionResponse, ResourceException>noopExceptionAsyncFunction());
+            }
+        });
+    }
+
+    private static JsonValue changes(final List<ShareChangeFeed.Change> changes,
+                                     final String cursor,
+                                     final boolean more) {
+        List<Object> list = new ArrayList<>(changes.size());
+        for (ShareChangeFeed.Change change : changes) {
+            JsonValue json = json(object(field("type", change.getType().name().toLowerCase(Locale.ROOT)),
+                                         field("_id", change.getShareId()),
+                                         field("timestamp", change.getTimestamp())));
+            if (change.getShare() != null) {
+                json.put("_rev", change.getShare().getRevision());
+                json.put("share", asJson(change.getShare()).getObject());
+            }
+            list.add(json.getObject());
+        }
+        return json(object(field("changes", list), field("cursor", cursor), field("hasMore", more)));
     }
 
     @Override
@@ -237,37 +393,87 @@ class ShareCollectionProviderExt implements CollectionResourceProvider {
      * @param context
      * @return UserID from response, Null in case response is invalid
      */
-    private String introspectToken(final Context context) {
-        Request request = new Request();
+    private Promise<String, ResourceException> introspectToken(final Context context) {
+        return introspectPat(context).then(new Function<JsonValue, String, ResourceException>() {
+            @Override
+            public String apply(final JsonValue value) {
+                return value != null ? value.get("sub").asString() : null;
+            }
+        });
+    }
+
+    /**
+     * Returns {@code true} if the {@literal If-None-Match} header of the request matches the given revision (or is
+     * {@literal *}).
+     */
+    private static boolean isNotModified(final Context context, final String revision) {
+        if (revision == null || !(context.getParent() instanceof HttpContext)) {
+            return false;
+        }
+        String ifNoneMatch = ((HttpContext) context.getParent()).getHeaderAsString("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                tag = tag.substring(1, tag.length() - 1);
+            }
+            if ("*".equals(tag) || revision.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Introspects the PAT of the request, without blocking the calling thread
+     *
+     * @param context
+     * @return the introspection response, Null in case response is invalid
+     */
+    private Promise<JsonValue, ResourceException> introspectPat(final Context context) {
         final String pat = OAuth2.getBearerAccessToken(((HttpContext) context.getParent()).getHeaderAsString("Authorization"));
         if (null == pat) {
-            return null;
+            return newResultPromise(null);
         }
 
-        request.setUri(service.getIntrospectionEndpoint());
-        // Should accept a PAT as per the spec (See OPENAM-6320 / OPENAM-5928)
-        //request.getHeaders().put("Authorization", format("Bearer %s", pat));
-        request.getHeaders().put("Accept", "application/json");
-
-        Form query = new Form();
-        query.putSingle("token", pat);
-        query.putSingle("client_id", service.getClientId());
-        query.putSingle("client_secret", service.getClientSecret());
-        query.toRequestEntity(request);
-
-        Promise<org.forgerock.http.protocol.Response, NeverThrowsException> responsePromise = service.getProtectionApiHandler().handle(context, request);
-        try {
-            org.forgerock.http.protocol.Response response = responsePromise.get();
-            if ((Status.OK == response.getStatus()) && null != response.getEntity()) {
-                JsonValue value = json(response.getEntity().getJson());
-
-                // Gets the "sub" field from JSON response
-                return value.get("sub").asString();
-            }
-        } catch (IOException | ExecutionException | InterruptedException e) {
-            return null;
-        }
-        return null;
+        return service.getAuthorizationServerPool().send(context,
+                                                          service.getProtectionApiHandler(),
+                                                          new AuthorizationServerPool.RequestFactory() {
+                    @Override
+                    public Request newRequest(final AuthorizationServerNode node) {
+                        Request request = new Request();
+                        request.setUri(node.getIntrospectionEndpoint());
+                        // Should accept a PAT as per the spec (See OPENAM-6320 / OPENAM-5928)
+                        //request.getHeaders().put("Authorization", format("Bearer %s", pat));
+                        request.getHeaders().put("Accept", "application/json");
+
+                        Form query = new Form();
+                        query.putSingle("token", pat);
+                        query.putSingle("client_id", service.getClientId());
+                        query.putSingle("client_secret", service.getClientSecret());
+                        query.toRequestEntity(request);
+                        return request;
+                    }
+                }, true)
+                .then(new Function<org.forgerock.http.protocol.Response, JsonValue, ResourceException>() {
+                    @Override
+                    public JsonValue apply(final org.forgerock.http.protocol.Response response) {
+                        try {
+                            if ((Status.OK == response.getStatus()) && null != response.getEntity()) {
+                                return json(response.getEntity().getJson());
+                            }
+                        } catch (IOException e) {
+                            return null;
+                        } finally {
+                            closeSilently(response);
+                        }
+                        return null;
+                    }
+                }, org.forgerock.http.protocol.Responses.<JsonValue, ResourceException>noopExceptionFunction());
     }
 }
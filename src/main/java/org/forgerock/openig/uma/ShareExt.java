@@ -34,6 +34,9 @@ public class ShareExt {
     private String realm;
     private String userId;
     private String clientId;
+    private volatile String authorizationHeader;
+    private volatile PatVault.Entry patEntry;
+    private volatile String revision;
 
     public ShareExt(String id) {
         if (null == id) {
@@ -105,6 +108,22 @@ public class ShareExt {
 
     public void setPAT(String PAT) {
         this.PAT = PAT;
+        this.authorizationHeader = null;
+    }
+
+    /**
+     * Returns the {@literal Authorization} header value used to call the protection API on behalf of the share
+     * owner, computed once per share.
+     *
+     * @return {@literal Bearer <PAT>}
+     */
+    public String getAuthorizationHeader() {
+        String header = authorizationHeader;
+        if (header == null) {
+            header = "Bearer " + PAT;
+            authorizationHeader = header;
+        }
+        return header;
     }
 
     public String getRequestURI() {
@@ -123,6 +142,32 @@ public class ShareExt {
         this.policyURI = policyURI;
     }
 
+    /**
+     * Returns the owner's vaulted PAT, once resolved.
+     *
+     * @return the owner's vaulted PAT, or {@code null} if not resolved yet
+     */
+    PatVault.Entry getPatEntry() {
+        return patEntry;
+    }
+
+    void setPatEntry(PatVault.Entry patEntry) {
+        this.patEntry = patEntry;
+    }
+
+    /**
+     * Returns the revision of the share LDAP entry: its {@literal entryUUID} and last modification time.
+     *
+     * @return the share revision, or {@code null} if unknown
+     */
+    String getRevision() {
+        return revision;
+    }
+
+    void setRevision(String revision) {
+        this.revision = revision;
+    }
+
     public String getRefreshToken() {
         return refreshToken;
     }
@@ -163,4 +208,16 @@ public class ShareExt {
         this.resourceName = resourceName;
     }
 
+    /**
+     * Builds the constant part of the share lookup keys of a realm and OAuth 2.0 client (see
+     * {@link ShareLookupCache}).
+     *
+     * @param realm    realm
+     * @param clientId OAuth 2.0 client identifier
+     * @return share lookup key prefix
+     */
+    static String lookupKeyPrefix(String realm, String clientId) {
+        return realm + '\u0000' + clientId + '\u0000';
+    }
+
 }
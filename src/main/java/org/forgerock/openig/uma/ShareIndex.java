@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory index of the shares of a realm and OAuth 2.0 client: share id to share, and share owner and shared URI
+ * to the ordered set of their share ids.
+ * <p>
+ * <p>It serves the share endpoint reads and queries in time proportional to the result size, without any LDAP
+ * search. It is populated from the LDAP store and maintained when shares are created or removed.
+ * <p>
+ * <p>Reads are lock-free, updates are serialized.
+ */
+class ShareIndex {
+
+    private final ConcurrentMap<String, ShareExt> byId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> byOwner = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> byUri = new ConcurrentHashMap<>();
+    private volatile String changeMarker;
+
+    /**
+     * Returns the LDAP change marker (latest share creation time) up to which this index is known to be complete.
+     *
+     * @return the change marker, or {@code null} if unknown
+     */
+    String getChangeMarker() {
+        return changeMarker;
+    }
+
+    void setChangeMarker(final String changeMarker) {
+        this.changeMarker = changeMarker;
+    }
+
+    /**
+     * Indexes a share (replacing any share with the same id).
+     *
+     * @param share share to index
+     */
+    synchronized void add(final ShareExt share) {
+        ShareExt previous = byId.put(share.getId(), share);
+        if (previous != null) {
+            unlink(byOwner, previous.getUserId(), previous.getId());
+            unlink(byUri, previous.getRequestURI(), previous.getId());
+        }
+        link(byOwner, share.getUserId(), share.getId());
+        link(byUri, share.getRequestURI(), share.getId());
+    }
+
+    /**
+     * Removes a share from the index.
+     *
+     * @param shareId share identifier
+     * @return the removed share, or {@code null} if it was not indexed
+     */
+    synchronized ShareExt remove(final String shareId) {
+        ShareExt removed = byId.remove(shareId);
+        if (removed != null) {
+            unlink(byOwner, removed.getUserId(), removed.getId());
+            unlink(byUri, removed.getRequestURI(), removed.getId());
+        }
+        return removed;
+    }
+
+    private static void link(final ConcurrentMap<String, Set<String>> map, final String key, final String shareId) {
+        if (key == null) {
+            return;
+        }
+        Set<String> shareIds = map.get(key);
+        if (shareIds == null) {
+            shareIds = new ConcurrentSkipListSet<>();
+            map.put(key, shareIds);
+        }
+        shareIds.add(shareId);
+    }
+
+    private static void unlink(final ConcurrentMap<String, Set<String>> map, final String key, final String shareId) {
+        if (key == null) {
+            return;
+        }
+        Set<String> shareIds = map.get(key);
+        if (shareIds != null) {
+            shareIds.remove(shareId);
+            if (shareIds.isEmpty()) {
+                map.remove(key, shareIds);
+            }
+        }
+    }
+
+    /**
+     * Returns the share with the given id.
+     *
+     * @param shareId share identifier
+     * @return the share, or {@code null} if not indexed
+     */
+    ShareExt get(final String shareId) {
+        return byId.get(shareId);
+    }
+
+    /**
+     * Returns the shares of the given owner, ordered by share id.
+     *
+     * @param userId share owner
+     * @return the shares of the given owner (possibly empty, never {@code null})
+     */
+    Set<ShareExt> listByOwner(final String userId) {
+        return resolve(byOwner.get(userId));
+    }
+
+    /**
+     * Returns the shares of the given URI (one per owner), ordered by share id.
+     *
+     * @param uri shared URI
+     * @return the shares of the given URI (possibly empty, never {@code null})
+     */
+    Set<ShareExt> listByUri(final String uri) {
+        return resolve(byUri.get(uri));
+    }
+
+    private Set<ShareExt> resolve(final Set<String> shareIds) {
+        Set<ShareExt> shares = new LinkedHashSet<>();
+        if (shareIds != null) {
+            for (String shareId : shareIds) {
+                ShareExt share = byId.get(shareId);
+                if (share != null) {
+                    shares.add(share);
+                }
+            }
+        }
+        return shares;
+    }
+
+    /**
+     * Returns a live view of all the indexed shares.
+     *
+     * @return all the indexed shares
+     */
+    Collection<ShareExt> values() {
+        return byId.values();
+    }
+
+    int size() {
+        return byId.size();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary snapshot of a {@link ShareIndex}, so that a restarting gateway can serve shares immediately and only catch up
+ * with the changes made since the snapshot, instead of reading all the shares from LDAP.
+ * <p>
+ * <p>Layout (big-endian, strings are a length followed by UTF-8 bytes, {@code -1} for {@code null}):
+ * <pre>
+ *     magic "UMAS", version, realm, client id, change marker, share count,
+ *     then per share: id, resource set id, name, PAT, URI, policy URI, owner, revision
+ * </pre>
+ * <p>
+ * The snapshot is written to a temporary file then atomically renamed, so a crash never leaves a truncated snapshot
+ * behind. It is read through a read-only memory mapping, without copying the file content into a buffer first.
+ */
+final class ShareIndexSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShareIndexSnapshot.class);
+
+    private static final int MAGIC = 0x554D4153;
+    private static final int VERSION = 2;
+
+    private ShareIndexSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the given index.
+     *
+     * @param index    index to save
+     * @param file     snapshot file
+     * @param realm    UMA realm of the index
+     * @param clientId OAuth 2.0 client of the index
+     * @throws IOException if the snapshot cannot be written (the previous snapshot, if any, is kept)
+     */
+    static void write(final ShareIndex index,
+                      final Path file,
+                      final String realm,
+                      final String clientId) throws IOException {
+        // The marker is read first: shares added meanwhile are newer, and re-fetched by the next catch-up anyway
+        String changeMarker = index.getChangeMarker();
+        List<ShareExt> shares = new ArrayList<>(index.values());
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        if (Files.getFileStore(file.toAbsolutePath().getParent()).supportsFileAttributeView("posix")) {
+            // Shares may hold PATs: owner only
+            Files.createFile(temporary,
+                             PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary),
+                                                                                  64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, realm);
+            writeString(out, clientId);
+            writeString(out, changeMarker);
+            out.writeInt(shares.size());
+            for (ShareExt share : shares) {
+                writeString(out, share.getId());
+                writeString(out, share.getResourceId());
+                writeString(out, share.getResourceName());
+                writeString(out, share.getPAT());
+                writeString(out, share.getRequestURI());
+                writeString(out, share.getPolicyURI());
+                writeString(out, share.getUserId());
+                writeString(out, share.getRevision());
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param file     snapshot file
+     * @param realm    expected UMA realm
+     * @param clientId expected OAuth 2.0 client
+     * @param index    empty index to populate
+     * @return the populated index, or {@code null} if there is no usable snapshot
+     */
+    static ShareIndex read(final Path file, final String realm, final String clientId, final ShareIndex index) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                logger.warn("Ignoring {}: not a share index snapshot (or an unsupported version)", file);
+                return null;
+            }
+            String snapshotRealm = readString(buffer);
+            String snapshotClientId = readString(buffer);
+            if (!realm.equals(snapshotRealm) || !clientId.equals(snapshotClientId)) {
+                logger.warn("Ignoring {}: snapshot of another realm or client ({}, {})",
+                            file, snapshotRealm, snapshotClientId);
+                return null;
+            }
+            index.setChangeMarker(readString(buffer));
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String id = readString(buffer);
+                String resourceId = readString(buffer);
+                String name = readString(buffer);
+                String pat = readString(buffer);
+                String uri = readString(buffer);
+                String policyUri = readString(buffer);
+                String userId = readString(buffer);
+                String revision = readString(buffer);
+                ShareExt share = new ShareExt(resourceId, name, pat, uri, policyUri, userId, realm, clientId);
+                share.setId(id);
+                share.setRevision(revision);
+                index.add(share);
+            }
+            return index;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("Ignoring unreadable share index snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
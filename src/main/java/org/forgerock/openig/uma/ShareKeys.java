@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Normalized keys of the LDAP store entries: fixed-length SHA-256 hex digests of the fields identifying an entry, so
+ * exact lookups are single equality matches on one indexed attribute, whatever the characters of the fields.
+ */
+final class ShareKeys {
+
+    private ShareKeys() {
+    }
+
+    /**
+     * Returns the key of a share ({@literal umaResourceKey}): its realm, client, URI and owner.
+     *
+     * @param realm    UMA realm
+     * @param clientId OAuth 2.0 client identifier
+     * @param uri      shared URI
+     * @param userId   share owner
+     * @return the share key
+     */
+    static String shareKey(final String realm, final String clientId, final String uri, final String userId) {
+        return sha256Hex(realm + '\u0000' + clientId + '\u0000' + uri + '\u0000' + userId);
+    }
+
+    /**
+     * Returns the key of a shared URI ({@literal umaResourceUriKey}), shared by the shares of all the owners of that
+     * URI: its realm, client and URI.
+     *
+     * @param realm    UMA realm
+     * @param clientId OAuth 2.0 client identifier
+     * @param uri      shared URI
+     * @return the shared URI key
+     */
+    static String uriKey(final String realm, final String clientId, final String uri) {
+        return sha256Hex(realm + '\u0000' + clientId + '\u0000' + uri);
+    }
+
+    /**
+     * Returns the lowercase hex SHA-256 digest of the UTF-8 encoding of the given value.
+     *
+     * @param value value to digest
+     * @return 64 hex digits
+     */
+    static String sha256Hex(final String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
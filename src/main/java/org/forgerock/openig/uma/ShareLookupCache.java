@@ -0,0 +1,244 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived cache of the {@link ShareExt} resolved for a request, keyed by the service key prefix (see
+ * {@link ShareExt#lookupKeyPrefix(String, String)}), the request URI and the optional owner.
+ * <p>
+ * <p>Entries are evicted on expiration, and explicitly when a share is created or removed through this gateway.
+ * <p>
+ * <p>Lookups reuse a per-thread probe key: a cache hit allocates nothing. Each entry counts its hits (approximately),
+ * to tell the {@linkplain #hottest(String, int) hottest} lookups.
+ */
+class ShareLookupCache {
+
+    private static final ThreadLocal<Key> PROBES = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final long timeoutNanos;
+    private final int maxSize;
+
+    /**
+     * Creates a cache.
+     *
+     * @param timeoutNanos time-to-live of the entries, {@code 0} disables the cache
+     * @param maxSize      maximum number of entries
+     */
+    ShareLookupCache(final long timeoutNanos, final int maxSize) {
+        // Keep expiration arithmetic safe from overflows for "unlimited" durations
+        this.timeoutNanos = Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+        this.maxSize = maxSize;
+    }
+
+    boolean isEnabled() {
+        return timeoutNanos > 0 && maxSize > 0;
+    }
+
+    /**
+     * Returns the cached share for the given request.
+     *
+     * @param prefix     key prefix of the service
+     * @param requestURI request URI
+     * @param userId     share owner (can be {@code null})
+     * @return the cached share, or {@code null} if absent or expired
+     */
+    ShareExt get(final String prefix, final String requestURI, final String userId) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        Key probe = PROBES.get().set(prefix, requestURI, userId);
+        try {
+            Entry entry = entries.get(probe);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expiresAt > 0) {
+                entries.remove(probe, entry);
+                return null;
+            }
+            // Racy: concurrent hits may be lost, which only makes the count approximate
+            entry.hits++;
+            return entry.share;
+        } finally {
+            probe.clear();
+        }
+    }
+
+    void put(final String prefix, final String requestURI, final String userId, final ShareExt share) {
+        put(prefix, requestURI, userId, share, timeoutNanos);
+    }
+
+    /**
+     * Caches a share for the given time instead of the cache time-to-live (used by the warm-up, so that the preloaded
+     * shares are still cached when the traffic arrives).
+     *
+     * @param prefix       key prefix of the service
+     * @param requestURI   request URI
+     * @param userId       share owner (can be {@code null})
+     * @param share        resolved share
+     * @param timeoutNanos time-to-live of the entry
+     */
+    void put(final String prefix,
+             final String requestURI,
+             final String userId,
+             final ShareExt share,
+             final long timeoutNanos) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            purge();
+        }
+        long timeout = Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+        entries.put(new Key().set(prefix, requestURI, userId), new Entry(share, System.nanoTime() + timeout));
+    }
+
+    /**
+     * Returns the live lookups of a service with the most hits since they were cached.
+     *
+     * @param prefix key prefix of the service
+     * @param max    maximum number of lookups
+     * @return the request URI and optional owner of the lookups, by decreasing hits
+     */
+    List<String[]> hottest(final String prefix, final int max) {
+        long now = System.nanoTime();
+        List<Map.Entry<Key, Entry>> live = new ArrayList<>();
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().prefix.equals(prefix) && now - entry.getValue().expiresAt <= 0) {
+                live.add(entry);
+            }
+        }
+        Collections.sort(live, new Comparator<Map.Entry<Key, Entry>>() {
+            @Override
+            public int compare(final Map.Entry<Key, Entry> first, final Map.Entry<Key, Entry> second) {
+                return Integer.compare(second.getValue().hits, first.getValue().hits);
+            }
+        });
+        List<String[]> hottest = new ArrayList<>(Math.min(live.size(), Math.max(max, 0)));
+        for (Map.Entry<Key, Entry> entry : live.subList(0, Math.min(live.size(), Math.max(max, 0)))) {
+            hottest.add(new String[] {entry.getKey().requestURI, entry.getKey().userId});
+        }
+        return hottest;
+    }
+
+    void invalidate(final String prefix, final String requestURI, final String userId) {
+        Key probe = PROBES.get().set(prefix, requestURI, userId);
+        try {
+            entries.remove(probe);
+        } finally {
+            probe.clear();
+        }
+    }
+
+    /**
+     * Evicts all the entries pointing to the given share.
+     *
+     * @param shareId share identifier
+     */
+    void invalidateShare(final String shareId) {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (shareId.equals(iterator.next().share.getId())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void purge() {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next().getValue().expiresAt > 0) {
+                iterator.remove();
+            }
+        }
+        if (entries.size() >= maxSize) {
+            // Still full of live entries: start over rather than tracking usage on the read path
+            entries.clear();
+        }
+    }
+
+    /**
+     * Lookup key. Stored keys are never modified; the per-thread probes are set for one lookup, then cleared.
+     */
+    private static final class Key {
+        private String prefix;
+        private String requestURI;
+        private String userId;
+        private int hash;
+
+        private Key set(final String prefix, final String requestURI, final String userId) {
+            this.prefix = prefix;
+            this.requestURI = requestURI;
+            this.userId = userId;
+            int hash = 31 * prefix.hashCode() + requestURI.hashCode();
+            this.hash = 31 * hash + (userId == null ? 0 : userId.hashCode());
+            return this;
+        }
+
+        private void clear() {
+            // Do not retain the strings of the last request
+            set("", "", null);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash
+                    && requestURI.equals(other.requestURI)
+                    && prefix.equals(other.prefix)
+                    && (userId == null ? other.userId == null : userId.equals(other.userId));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final ShareExt share;
+        private final long expiresAt;
+        /** Not volatile: a cache hit stays a plain read and increment. */
+        private int hits;
+
+        private Entry(final ShareExt share, final long expiresAt) {
+            this.share = share;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,601 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.forgerock.opendj.ldap.LdapException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.util.Utils.closeSilently;
+
+/**
+ * Bulk export and import of the shares, for migrations between environments.
+ * <p>
+ * <p>The export streams all the {@literal frUmaRS} entries (every realm and client) to a JSON Lines file, one share
+ * per line, with a paged search. The file holds the PATs copied into the shares: protect it like the LDAP store (it
+ * is created readable by its owner only where the file system supports POSIX permissions). The files are kept in the
+ * migration directory: a file name escaping it is rejected.
+ * <p>
+ * <p>The import reads such a file in batches, added to the LDAP store by {@code parallelism} workers (one connection
+ * per batch), keeping the share identifiers: shares that already exist are skipped, so an import can be run again.
+ * The number of lines whose batch completed is recorded in a {@literal <file>.checkpoint} file, and an interrupted
+ * import resumes from there. Imported shares are applied to the share index, URI filter, change feed and peers of
+ * the service hosting their realm and client.
+ * <p>
+ * <p>With {@code reRegister}, the resource set of every share is registered again at the AS of its service (for a
+ * migration to another AS), with the {@code scopes} and {@code type} of its line or of the import. The lines that
+ * cannot be imported are written, with the error, to {@literal <file>.rejected}.
+ * <p>
+ * <p>One migration runs at a time, in the background: {@link #status()} reports its progress.
+ */
+final class ShareMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShareMigration.class);
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    /**
+     * Progress of a migration.
+     */
+    private static final class Job {
+        private final String action;
+        private final Path file;
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong exported = new AtomicLong();
+        private final AtomicLong imported = new AtomicLong();
+        private final AtomicLong existing = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private volatile long resumedFrom;
+        private volatile long checkpoint;
+        private volatile String state = "running";
+        private volatile String error;
+        private volatile long endedAt;
+
+        Job(final String action, final Path file) {
+            this.action = action;
+            this.file = file;
+        }
+
+        void end(final String state, final String error) {
+            this.error = error;
+            this.endedAt = System.currentTimeMillis();
+            this.state = state;
+        }
+
+        Map<String, Object> asMap() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("action", action);
+            status.put("file", file.toString());
+            status.put("state", state);
+            if ("export".equals(action)) {
+                status.put("exported", exported.get());
+            } else {
+                status.put("resumedFrom", resumedFrom);
+                status.put("read", read.get());
+                status.put("imported", imported.get());
+                status.put("existing", existing.get());
+                status.put("rejected", rejected.get());
+                status.put("checkpoint", checkpoint);
+            }
+            status.put("elapsedMillis", (endedAt != 0 ? endedAt : System.currentTimeMillis()) - startedAt);
+            if (error != null) {
+                status.put("error", error);
+            }
+            return status;
+        }
+    }
+
+    private final LDAPManager ldapManager;
+    private final UmaSharingServiceExt service;
+    private final Path directory;
+    private final int parallelism;
+    private final int batchSize;
+    private final int pageSize;
+    private volatile Job job;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a migration tool.
+     *
+     * @param ldapManager LDAP store of the shares
+     * @param service     service (and tenants) applying the imported shares
+     * @param directory   directory of the export and import files
+     * @param parallelism number of import workers
+     * @param batchSize   number of shares per import batch
+     * @param pageSize    number of shares per export page
+     */
+    ShareMigration(final LDAPManager ldapManager,
+                   final UmaSharingServiceExt service,
+                   final Path directory,
+                   final int parallelism,
+                   final int batchSize,
+                   final int pageSize) {
+        if (parallelism < 1 || batchSize < 1 || pageSize < 1) {
+            throw new IllegalArgumentException("parallelism, batchSize and pageSize must be positive");
+        }
+        this.ldapManager = ldapManager;
+        this.service = service;
+        this.directory = directory.toAbsolutePath().normalize();
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Resolves the name of a migration file against the migration directory.
+     *
+     * @param name file name, relative to the migration directory
+     * @return the file
+     * @throws IllegalArgumentException if the file is not in the migration directory
+     */
+    Path resolve(final String name) {
+        Path file = directory.resolve(name).normalize();
+        if (!file.startsWith(directory) || file.equals(directory)) {
+            throw new IllegalArgumentException("File " + name + " is not in the migration directory");
+        }
+        return file;
+    }
+
+    /**
+     * Starts exporting all the shares to the given file (replaced once the export completes).
+     *
+     * @param file export file
+     * @return {@code false} if a migration is already running
+     */
+    synchronized boolean startExport(final Path file) {
+        if (isRunning()) {
+            return false;
+        }
+        final Job export = new Job("export", file);
+        job = export;
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    export(export);
+                    export.end("done", null);
+                    logger.info("Exported {} UMA shares to {}", export.exported.get(), file);
+                } catch (IOException | RuntimeException e) {
+                    export.end("failed", e.toString());
+                    logger.error("Cannot export the UMA shares to {}", file, e);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Starts importing the shares of the given file, from its checkpoint if any.
+     *
+     * @param file       export file
+     * @param reRegister {@code true} to register the resource sets again at the AS
+     * @param scopes     scopes of the re-registered resource sets whose line has none
+     * @param type       type of the re-registered resource sets whose line has none
+     * @return {@code false} if a migration is already running
+     */
+    synchronized boolean startImport(final Path file,
+                                     final boolean reRegister,
+                                     final List<Object> scopes,
+                                     final String type) {
+        if (isRunning()) {
+            return false;
+        }
+        final Job imports = new Job("import", file);
+        job = imports;
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    importShares(imports, reRegister, scopes, type);
+                    if (imports.error != null) {
+                        imports.end("failed", imports.error);
+                    } else if (stopped) {
+                        imports.end("stopped", null);
+                    } else {
+                        Files.deleteIfExists(checkpointFile(file));
+                        imports.end("done", null);
+                    }
+                    logger.info("UMA share import from {} {}: {} imported, {} existing, {} rejected", file,
+                                imports.state, imports.imported.get(), imports.existing.get(),
+                                imports.rejected.get());
+                } catch (IOException | RuntimeException e) {
+                    imports.end("failed", e.toString());
+                    logger.error("Cannot import the UMA shares from {}", file, e);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the progress of the current (or last) migration.
+     *
+     * @return the migration status
+     */
+    Map<String, Object> status() {
+        Job current = job;
+        if (current == null) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("state", "idle");
+            return status;
+        }
+        return current.asMap();
+    }
+
+    /**
+     * Stops the running migration: an import can be resumed from its checkpoint.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    private boolean isRunning() {
+        return job != null && "running".equals(job.state);
+    }
+
+    private void start(final Runnable migration) {
+        stopped = false;
+        Thread thread = new Thread(migration, "uma-share-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void export(final Job export) throws IOException {
+        final Path partial = export.file.resolveSibling(export.file.getFileName() + ".partial");
+        Path parent = export.file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.deleteIfExists(partial);
+        createOwnerOnly(partial);
+        try (final BufferedWriter writer = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            ldapManager.searchSharesPaged(new ShareExt(null, null, null, null, null),
+                                          pageSize,
+                                          new LDAPManager.ShareVisitor() {
+                @Override
+                public void visit(final ShareExt share) {
+                    if (stopped) {
+                        throw new IllegalStateException("Export stopped");
+                    }
+                    try {
+                        writeLine(writer, asMap(share));
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Cannot write " + partial, e);
+                    }
+                    export.exported.incrementAndGet();
+                }
+            });
+        } catch (RuntimeException | IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, export.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void importShares(final Job imports,
+                              final boolean reRegister,
+                              final List<Object> scopes,
+                              final String type) throws IOException {
+        final Path checkpointFile = checkpointFile(imports.file);
+        final long resumeFrom = readCheckpoint(checkpointFile);
+        imports.resumedFrom = resumeFrom;
+        imports.checkpoint = resumeFrom;
+        final Map<String, UmaSharingServiceExt> services = servicesByTenant();
+        final Semaphore inFlight = new Semaphore(parallelism * 2);
+        final Checkpoint checkpoint = new Checkpoint(imports, checkpointFile, resumeFrom);
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "uma-share-import-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Path rejectedFile = imports.file.resolveSibling(imports.file.getFileName() + ".rejected");
+        if (!Files.exists(rejectedFile)) {
+            // The rejected lines hold PATs too
+            createOwnerOnly(rejectedFile);
+        }
+        final Writer rejected = Files.newBufferedWriter(rejectedFile,
+                                                        StandardCharsets.UTF_8,
+                                                        StandardOpenOption.CREATE,
+                                                        StandardOpenOption.APPEND);
+        try (BufferedReader reader = Files.newBufferedReader(imports.file, StandardCharsets.UTF_8)) {
+            long lineNumber = 0;
+            List<String> batch = new ArrayList<>(batchSize);
+            long batchStart = resumeFrom;
+            String line;
+            while ((line = reader.readLine()) != null && !stopped && imports.error == null) {
+                if (lineNumber++ < resumeFrom) {
+                    continue;
+                }
+                batch.add(line);
+                if (batch.size() == batchSize) {
+                    submit(workers, inFlight, imports, checkpoint, services, rejected, batch, batchStart,
+                           reRegister, scopes, type);
+                    batch = new ArrayList<>(batchSize);
+                    batchStart = lineNumber;
+                }
+            }
+            if (!batch.isEmpty() && !stopped && imports.error == null) {
+                submit(workers, inFlight, imports, checkpoint, services, rejected, batch, batchStart,
+                       reRegister, scopes, type);
+            }
+            // Wait for the batches in flight
+            inFlight.acquireUninterruptibly(parallelism * 2);
+        } finally {
+            workers.shutdown();
+            closeSilently(rejected);
+        }
+    }
+
+    private void submit(final ExecutorService workers,
+                        final Semaphore inFlight,
+                        final Job imports,
+                        final Checkpoint checkpoint,
+                        final Map<String, UmaSharingServiceExt> services,
+                        final Writer rejected,
+                        final List<String> lines,
+                        final long firstLine,
+                        final boolean reRegister,
+                        final List<Object> scopes,
+                        final String type) {
+        inFlight.acquireUninterruptibly();
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    importBatch(imports, services, rejected, lines, reRegister, scopes, type);
+                    checkpoint.completed(firstLine, firstLine + lines.size());
+                } catch (LdapException | RuntimeException e) {
+                    // Stops the import: the batch is applied again on resume
+                    logger.error("Cannot import UMA shares from line {}", firstLine + 1, e);
+                    imports.error = "Line " + (firstLine + 1) + ": " + e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    imports.error = "Interrupted at line " + (firstLine + 1);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void importBatch(final Job imports,
+                             final Map<String, UmaSharingServiceExt> services,
+                             final Writer rejected,
+                             final List<String> lines,
+                             final boolean reRegister,
+                             final List<Object> defaultScopes,
+                             final String defaultType) throws LdapException, InterruptedException {
+        List<ShareExt> shares = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            imports.read.incrementAndGet();
+            Map<String, Object> fields;
+            ShareExt share;
+            try {
+                fields = JSON_MAPPER.readValue(line, Map.class);
+                share = asShare(fields);
+            } catch (IOException | RuntimeException e) {
+                reject(imports, rejected, line, "Malformed share: " + e.getMessage());
+                continue;
+            }
+            if (!reRegister) {
+                shares.add(share);
+                continue;
+            }
+            UmaSharingServiceExt tenantService = services.get(tenantKey(share.getRealm(), share.getClientId()));
+            if (tenantService == null) {
+                reject(imports, rejected, line, "No tenant for realm " + share.getRealm()
+                        + " and client " + share.getClientId());
+                continue;
+            }
+            Object scopes = fields.get("scopes");
+            Object type = fields.get("type");
+            try {
+                ShareExt imported = tenantService.importShare(share,
+                                                              scopes instanceof List
+                                                                      ? (List<Object>) scopes
+                                                                      : defaultScopes,
+                                                              type instanceof String ? (String) type : defaultType);
+                (imported != null ? imports.imported : imports.existing).incrementAndGet();
+            } catch (UmaException e) {
+                reject(imports, rejected, line, e.getMessage());
+            }
+        }
+        if (shares.isEmpty()) {
+            return;
+        }
+        List<ShareExt> added = ldapManager.addShares(shares);
+        imports.imported.addAndGet(added.size());
+        imports.existing.addAndGet(shares.size() - added.size());
+        for (ShareExt share : added) {
+            UmaSharingServiceExt tenantService = services.get(tenantKey(share.getRealm(), share.getClientId()));
+            if (tenantService != null) {
+                tenantService.imported(share);
+            }
+        }
+    }
+
+    private static void reject(final Job imports, final Writer rejected, final String line, final String error) {
+        imports.rejected.incrementAndGet();
+        Map<String, Object> rejection = new LinkedHashMap<>();
+        rejection.put("error", error);
+        rejection.put("line", line);
+        try {
+            synchronized (rejected) {
+                writeLine(rejected, rejection);
+                rejected.flush();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot record rejected UMA share: {}", line, e);
+        }
+    }
+
+    /**
+     * Advances the checkpoint over the batches completed without gaps, and records it.
+     */
+    private static final class Checkpoint {
+        private final Job imports;
+        private final Path file;
+        private final TreeMap<Long, Long> completed = new TreeMap<>();
+        private long lines;
+
+        Checkpoint(final Job imports, final Path file, final long lines) {
+            this.imports = imports;
+            this.file = file;
+            this.lines = lines;
+        }
+
+        synchronized void completed(final long firstLine, final long endLine) {
+            completed.put(firstLine, endLine);
+            long advanced = lines;
+            while (!completed.isEmpty() && completed.firstKey() == advanced) {
+                advanced = completed.pollFirstEntry().getValue();
+            }
+            if (advanced == lines) {
+                return;
+            }
+            lines = advanced;
+            imports.checkpoint = advanced;
+            try {
+                Path partial = file.resolveSibling(file.getFileName() + ".partial");
+                Files.write(partial, Long.toString(advanced).getBytes(StandardCharsets.UTF_8));
+                Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // A resumed import applies more batches again
+                logger.warn("Cannot record UMA share import checkpoint {}", file, e);
+            }
+        }
+    }
+
+    private Map<String, UmaSharingServiceExt> servicesByTenant() {
+        Map<String, UmaSharingServiceExt> services = new HashMap<>();
+        services.put(tenantKey(service.getRealm(), service.getClientId()), service);
+        for (UmaSharingServiceExt tenantService : service.getTenants().values()) {
+            services.put(tenantKey(tenantService.getRealm(), tenantService.getClientId()), tenantService);
+        }
+        return services;
+    }
+
+    private static String tenantKey(final String realm, final String clientId) {
+        return realm + " " + clientId;
+    }
+
+    /**
+     * Creates an empty file readable and writable by its owner only, where POSIX permissions are supported.
+     */
+    private static void createOwnerOnly(final Path file) throws IOException {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file);
+            return;
+        }
+        FileAttribute<Set<PosixFilePermission>> ownerOnly =
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+        Files.createFile(file, ownerOnly);
+    }
+
+    private static Path checkpointFile(final Path file) {
+        return file.resolveSibling(file.getFileName() + ".checkpoint");
+    }
+
+    private static long readCheckpoint(final Path checkpointFile) throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0L;
+        }
+        String lines = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim();
+        try {
+            return Long.parseLong(lines);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid UMA share import checkpoint " + checkpointFile + ": " + lines, e);
+        }
+    }
+
+    private static void writeLine(final Writer writer, final Map<String, Object> fields) throws IOException {
+        writer.write(JSON_MAPPER.writeValueAsString(fields));
+        writer.write('\n');
+    }
+
+    private static Map<String, Object> asMap(final ShareExt share) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("id", share.getId());
+        fields.put("resourceId", share.getResourceId());
+        fields.put("name", share.getResourceName());
+        fields.put("uri", share.getRequestURI());
+        fields.put("policyUri", share.getPolicyURI());
+        fields.put("userId", share.getUserId());
+        fields.put("realm", share.getRealm());
+        fields.put("clientId", share.getClientId());
+        if (share.getPAT() != null) {
+            fields.put("pat", share.getPAT());
+        }
+        return fields;
+    }
+
+    private static ShareExt asShare(final Map<String, Object> fields) {
+        ShareExt share = new ShareExt(required(fields, "resourceId"),
+                                      required(fields, "name"),
+                                      (String) fields.get("pat"),
+                                      required(fields, "uri"),
+                                      required(fields, "policyUri"),
+                                      required(fields, "userId"),
+                                      required(fields, "realm"),
+                                      required(fields, "clientId"));
+        share.setId(required(fields, "id"));
+        return share;
+    }
+
+    private static String required(final Map<String, Object> fields, final String name) {
+        Object value = fields.get(name);
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return (String) value;
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broadcasts the share creations and removals made through this gateway to its peers over UDP, and applies theirs
+ * to the local share state (lookup cache, URI filter, share index, change feed, decision caches) as soon as they are
+ * received (removals once confirmed in LDAP), so the
+ * gateways do not need the directory changelog to see each other's changes.
+ * <p>
+ * <p>The peers are either listed (unicast, which also works on loopback) or reached through a multicast group. A
+ * message only carries the share identifier, URI and owner, never its PAT: the receivers read the share from LDAP
+ * when they index it. With a shared {@code secret} (required by the heaplet), messages are authenticated with
+ * HMAC-SHA256 and rejected when their timestamp is more than {@link #MAX_CLOCK_SKEW_MILLIS} away, or when their
+ * sequence number was already received from the same peer (within a window of the last {@link #REPLAY_WINDOW}).
+ * <p>
+ * <p>Delivery is best effort (a lost datagram is not resent): the periodic share index reload or catch-up and the
+ * lookup cache expiration remain the backstop.
+ */
+final class SharePeerChannel implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharePeerChannel.class);
+
+    private static final int MAGIC = 0x554d4150;
+    private static final byte VERSION = 1;
+    private static final byte CREATED = 1;
+    private static final byte REMOVED = 2;
+    private static final int MAX_DATAGRAM_SIZE = 8192;
+    private static final int MAC_LENGTH = 32;
+    private static final long MAX_CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int REPLAY_WINDOW = 64;
+    /** Number of tracked senders above which those not heard from within the clock skew are forgotten. */
+    private static final int MAX_SENDERS = 1024;
+
+    /**
+     * Applies the changes of the peers to the local share state of a (realm, client).
+     */
+    interface Listener {
+
+        /**
+         * Called when a peer created a share.
+         *
+         * @param shareId share identifier
+         * @param uri     shared URI
+         * @param userId  share owner
+         */
+        void created(String shareId, String uri, String userId);
+
+        /**
+         * Called when a peer removed a share.
+         *
+         * @param shareId share identifier
+         * @param uri     shared URI
+         * @param userId  share owner
+         */
+        void removed(String shareId, String uri, String userId);
+    }
+
+    private final UUID nodeId = UUID.randomUUID();
+    private final DatagramChannel channel;
+    private final List<SocketAddress> peers;
+    private final SecretKeySpec secret;
+    private final ConcurrentMap<String, Listener> listeners = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong unknownTenant = new AtomicLong();
+    // Only used by the receiver thread
+    private final Map<UUID, ReplayWindow> replayWindows = new HashMap<>();
+    private final Thread receiver;
+    private volatile boolean running = true;
+
+    /**
+     * Opens a channel.
+     *
+     * @param bindAddress      local address to receive the peers messages on
+     * @param peers            peer addresses (the multicast group address and port, with multicast)
+     * @param multicastGroup   multicast group to join, {@code null} for unicast
+     * @param networkInterface multicast network interface, {@code null} for unicast
+     * @param secret           shared HMAC secret, {@code null} to accept unauthenticated messages
+     * @throws IOException if the channel cannot be opened
+     */
+    SharePeerChannel(final InetSocketAddress bindAddress,
+                     final List<? extends SocketAddress> peers,
+                     final InetAddress multicastGroup,
+                     final NetworkInterface networkInterface,
+                     final String secret) throws IOException {
+        this.peers = new ArrayList<SocketAddress>(peers);
+        this.secret = secret != null ? new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256") : null;
+        if (multicastGroup != null) {
+            this.channel = DatagramChannel.open(multicastGroup.getAddress().length == 4
+                                                        ? StandardProtocolFamily.INET
+                                                        : StandardProtocolFamily.INET6);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(bindAddress);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            channel.join(multicastGroup, networkInterface);
+        } else {
+            this.channel = DatagramChannel.open();
+            channel.bind(bindAddress);
+        }
+        this.receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "uma-share-peers");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /**
+     * Applies the changes of the peers on the shares of the given realm and client with the given listener.
+     *
+     * @param realm    UMA realm
+     * @param clientId OAuth 2.0 client
+     * @param listener applies the changes
+     */
+    void register(final String realm, final String clientId, final Listener listener) {
+        listeners.put(tenantKey(realm, clientId), listener);
+    }
+
+    /**
+     * Tells the peers that a share was created through this gateway.
+     *
+     * @param share created share
+     */
+    void created(final ShareExt share) {
+        send(CREATED, share);
+    }
+
+    /**
+     * Tells the peers that a share was removed through this gateway.
+     *
+     * @param share removed share
+     */
+    void removed(final ShareExt share) {
+        send(REMOVED, share);
+    }
+
+    /**
+     * Returns the channel metrics.
+     *
+     * @return the channel metrics
+     */
+    Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("peers", peers.size());
+        metrics.put("sent", sent.get());
+        metrics.put("sendFailures", sendFailures.get());
+        metrics.put("received", received.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("unknownTenant", unknownTenant.get());
+        return metrics;
+    }
+
+    /**
+     * Returns the address the peers messages are received on.
+     *
+     * @return the local address
+     * @throws IOException if the channel is closed
+     */
+    SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            // Also unblocks the receiver
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close the UMA share peers channel", e);
+        }
+    }
+
+    private void send(final byte type, final ShareExt share) {
+        ByteBuffer datagram;
+        try {
+            datagram = encode(type, share);
+        } catch (IOException | GeneralSecurityException e) {
+            sendFailures.incrementAndGet();
+            logger.error("Cannot encode the UMA share {} peer message", share.getId(), e);
+            return;
+        }
+        for (SocketAddress peer : peers) {
+            try {
+                channel.send(datagram.duplicate(), peer);
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                // The peer state converges at its next reload
+                if (sendFailures.getAndIncrement() == 0) {
+                    logger.warn("Cannot send UMA share change to peer {}", peer, e);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer encode(final byte type, final ShareExt share) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeLong(nodeId.getMostSignificantBits());
+        out.writeLong(nodeId.getLeastSignificantBits());
+        out.writeLong(sequence.incrementAndGet());
+        out.writeLong(System.currentTimeMillis());
+        writeString(out, tenantKey(share.getRealm(), share.getClientId()));
+        writeString(out, share.getId());
+        writeString(out, share.getRequestURI());
+        writeString(out, share.getUserId());
+        if (secret != null) {
+            out.write(mac(bytes.toByteArray(), bytes.size()));
+        }
+        out.flush();
+        if (bytes.size() > MAX_DATAGRAM_SIZE) {
+            throw new IOException("UMA share peer message too large: " + bytes.size() + " bytes");
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private void receive() {
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        while (running) {
+            datagram.clear();
+            try {
+                channel.receive(datagram);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("Cannot receive UMA share peer messages", e);
+                continue;
+            }
+            datagram.flip();
+            try {
+                apply(datagram);
+            } catch (BufferUnderflowException | IllegalArgumentException | GeneralSecurityException e) {
+                rejected.incrementAndGet();
+                logger.debug("Ignoring malformed UMA share peer message", e);
+            } catch (RuntimeException e) {
+                logger.error("Cannot apply UMA share peer message", e);
+            }
+        }
+    }
+
+    private void apply(final ByteBuffer datagram) throws GeneralSecurityException {
+        if (datagram.getInt() != MAGIC || datagram.get() != VERSION) {
+            throw new IllegalArgumentException("Not a UMA share peer message");
+        }
+        byte type = datagram.get();
+        UUID sender = new UUID(datagram.getLong(), datagram.getLong());
+        if (nodeId.equals(sender)) {
+            // Our own multicast message
+            return;
+        }
+        long sequence = datagram.getLong();
+        long timestamp = datagram.getLong();
+        String tenant = readString(datagram);
+        String shareId = readString(datagram);
+        String uri = readString(datagram);
+        String userId = readString(datagram);
+        if (secret != null) {
+            int length = datagram.position();
+            byte[] mac = new byte[MAC_LENGTH];
+            datagram.get(mac);
+            byte[] signed = new byte[length];
+            datagram.position(0);
+            datagram.get(signed);
+            if (!MessageDigest.isEqual(mac, mac(signed, length))
+                    || Math.abs(System.currentTimeMillis() - timestamp) > MAX_CLOCK_SKEW_MILLIS) {
+                throw new IllegalArgumentException("Unauthenticated or stale UMA share peer message");
+            }
+        }
+        if (shareId == null) {
+            throw new IllegalArgumentException("UMA share peer message without share identifier");
+        }
+        if (!replayWindow(sender).accept(sequence)) {
+            throw new IllegalArgumentException("Replayed UMA share peer message");
+        }
+        received.incrementAndGet();
+        Listener listener = listeners.get(tenant);
+        if (listener == null) {
+            unknownTenant.incrementAndGet();
+            return;
+        }
+        if (type == CREATED) {
+            listener.created(shareId, uri, userId);
+        } else if (type == REMOVED) {
+            listener.removed(shareId, uri, userId);
+        } else {
+            throw new IllegalArgumentException("Unknown UMA share peer message type: " + type);
+        }
+    }
+
+    private ReplayWindow replayWindow(final UUID sender) {
+        long now = System.currentTimeMillis();
+        ReplayWindow window = replayWindows.get(sender);
+        if (window == null) {
+            if (replayWindows.size() >= MAX_SENDERS) {
+                // Their older messages are stale anyway (restarted peers get a new node identifier)
+                for (Iterator<ReplayWindow> iterator = replayWindows.values().iterator(); iterator.hasNext(); ) {
+                    if (now - iterator.next().lastReceived > MAX_CLOCK_SKEW_MILLIS) {
+                        iterator.remove();
+                    }
+                }
+            }
+            window = new ReplayWindow();
+            replayWindows.put(sender, window);
+        }
+        window.lastReceived = now;
+        return window;
+    }
+
+    private byte[] mac(final byte[] message, final int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(secret);
+        mac.update(message, 0, length);
+        return mac.doFinal();
+    }
+
+    private static String tenantKey(final String realm, final String clientId) {
+        return realm + " " + clientId;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sequence numbers received from a peer: the highest one, and which of the previous ones were received (datagrams
+     * may be reordered).
+     */
+    private static final class ReplayWindow {
+        private long highest;
+        /** Bit {@code i} is set when {@code highest - i} was received. */
+        private long received;
+        private long lastReceived;
+
+        private boolean accept(final long sequence) {
+            if (sequence > highest) {
+                long shift = sequence - highest;
+                received = shift >= REPLAY_WINDOW ? 1L : (received << shift) | 1L;
+                highest = sequence;
+                return true;
+            }
+            long offset = highest - sequence;
+            if (offset >= REPLAY_WINDOW || (received & (1L << offset)) != 0) {
+                return false;
+            }
+            received |= 1L << offset;
+            return true;
+        }
+    }
+
+    /**
+     * Parses a {@literal host:port} peer address.
+     *
+     * @param address peer address
+     * @return the socket address
+     */
+    static InetSocketAddress parseAddress(final String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port, got " + address);
+        }
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1)));
+    }
+}
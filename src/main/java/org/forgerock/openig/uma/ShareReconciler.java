@@ -0,0 +1,441 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reconciles the shares of a service (LDAP) with their resource sets (AS), which {@code createShare} and
+ * {@code removeShare} may leave inconsistent when one of their two steps fails.
+ * <p>
+ * <p>A run pages through the shares, {@code batchSize} at a time. The shares of a batch are grouped by owner, and
+ * the resource sets of each owner are listed at the AS with one call (at most {@code maxConcurrency} calls at a
+ * time, and a {@code pause} between batches, to leave the AS and the directory to the foreground traffic). Then:
+ * <ul>
+ * <li>a share whose resource set is not listed, and confirmed missing by a direct read, is an <em>LDAP orphan</em>
+ * (its permission tickets fail): it is reported, quarantined (see
+ * {@link UmaSharingServiceExt#quarantineShare(String)}) or removed, depending on the {@link Action}</li>
+ * <li>a listed resource set that no share of the owner references is an <em>AS orphan</em> once it is found again
+ * by the next run (a share being created is registered at the AS before it is added to LDAP): it is reported, or
+ * removed from the AS with {@link Action#REPAIR}</li>
+ * </ul>
+ * The owners whose resource sets cannot be listed (like an expired PAT) are counted as unverifiable.
+ */
+final class ShareReconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShareReconciler.class);
+
+    /**
+     * Bounds the AS orphan candidates kept between two runs.
+     */
+    private static final int MAX_CANDIDATES = 100000;
+
+    /**
+     * What to do with the orphans.
+     */
+    enum Action {
+        /** Only count and log them. */
+        REPORT,
+        /** Stop serving the LDAP orphans, report the AS orphans. */
+        QUARANTINE,
+        /** Remove the LDAP orphans from LDAP, and the AS orphans from the AS. */
+        REPAIR;
+
+        static Action parse(final String action) {
+            return valueOf(action.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Counters of a run.
+     */
+    private static final class Run {
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicLong checked = new AtomicLong();
+        private final AtomicLong owners = new AtomicLong();
+        private final AtomicLong unverifiable = new AtomicLong();
+        private long ldapOrphans;
+        private long asOrphans;
+        private long quarantined;
+        private long released;
+        private long repaired;
+        private long errors;
+        private volatile long endedAt;
+        private volatile String error;
+
+        Map<String, Object> asMap() {
+            Map<String, Object> run = new LinkedHashMap<>();
+            run.put("startedAt", startedAt);
+            run.put("elapsedMillis", (endedAt != 0 ? endedAt : System.currentTimeMillis()) - startedAt);
+            run.put("complete", endedAt != 0 && error == null);
+            run.put("checked", checked.get());
+            run.put("owners", owners.get());
+            run.put("unverifiable", unverifiable.get());
+            synchronized (this) {
+                run.put("ldapOrphans", ldapOrphans);
+                run.put("asOrphans", asOrphans);
+                run.put("quarantined", quarantined);
+                run.put("released", released);
+                run.put("repaired", repaired);
+                run.put("errors", errors);
+            }
+            if (error != null) {
+                run.put("error", error);
+            }
+            return run;
+        }
+    }
+
+    private final UmaSharingServiceExt service;
+    private final LDAPManager ldapManager;
+    private final Action action;
+    private final int batchSize;
+    private final int maxConcurrency;
+    private final long pauseMillis;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean stopped;
+    private final AtomicLong runs = new AtomicLong();
+    private final Set<String> quarantined = new HashSet<>();
+    private Set<String> asOrphanCandidates = new HashSet<>();
+    private Set<String> nextAsOrphanCandidates = new HashSet<>();
+    private volatile Run current;
+    private volatile Run last;
+
+    /**
+     * Creates a reconciler.
+     *
+     * @param service        service of the shares
+     * @param ldapManager    LDAP store of the shares
+     * @param action         what to do with the orphans
+     * @param batchSize      number of shares per batch
+     * @param maxConcurrency maximum number of AS calls at a time
+     * @param pauseMillis    pause between two batches, in milliseconds
+     */
+    ShareReconciler(final UmaSharingServiceExt service,
+                    final LDAPManager ldapManager,
+                    final Action action,
+                    final int batchSize,
+                    final int maxConcurrency,
+                    final long pauseMillis) {
+        if (batchSize < 1 || maxConcurrency < 1) {
+            throw new IllegalArgumentException("batchSize and maxConcurrency must be positive");
+        }
+        this.service = service;
+        this.ldapManager = ldapManager;
+        this.action = action;
+        this.batchSize = batchSize;
+        this.maxConcurrency = maxConcurrency;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Starts a run in the background, unless one is already running or the service is not ready yet.
+     *
+     * @return {@code true} if a run was started
+     */
+    boolean start() {
+        if (stopped || !service.isReady() || !running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                } finally {
+                    running.set(false);
+                }
+            }
+        }, "uma-share-reconciliation");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops the current run after its current batch, and prevents the next ones.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns the drift metrics: the counters of the current and of the last complete run.
+     *
+     * @return the drift metrics
+     */
+    Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("action", action.name().toLowerCase(Locale.ROOT));
+        metrics.put("running", running.get());
+        metrics.put("runs", runs.get());
+        metrics.put("quarantinedShares", service.getQuarantinedShareCount());
+        Run run = current;
+        if (run != null) {
+            metrics.put("current", run.asMap());
+        }
+        run = last;
+        if (run != null) {
+            metrics.put("last", run.asMap());
+        }
+        return metrics;
+    }
+
+    private void reconcile() {
+        final Run run = new Run();
+        current = run;
+        final List<ShareExt> batch = new ArrayList<>(batchSize);
+        try {
+            ldapManager.searchSharesPaged(new ShareExt(null, null, null, service.getRealm(), service.getClientId()),
+                                          batchSize,
+                                          new LDAPManager.ShareVisitor() {
+                @Override
+                public void visit(final ShareExt share) {
+                    batch.add(share);
+                    if (batch.size() == batchSize) {
+                        reconcile(run, batch);
+                        batch.clear();
+                    }
+                }
+            });
+            if (!batch.isEmpty()) {
+                reconcile(run, batch);
+            }
+            // Candidates not found again were registered by shares being created
+            asOrphanCandidates = nextAsOrphanCandidates;
+            nextAsOrphanCandidates = new HashSet<>();
+        } catch (LdapException | RuntimeException e) {
+            run.error = e.toString();
+            // Cannot tell which candidates are gone: start over
+            nextAsOrphanCandidates = new HashSet<>();
+            logger.error("UMA share reconciliation of realm {} and client {} failed", service.getRealm(),
+                         service.getClientId(), e);
+        } finally {
+            run.endedAt = System.currentTimeMillis();
+            current = null;
+            last = run;
+            runs.incrementAndGet();
+        }
+        synchronized (run) {
+            if (run.ldapOrphans > 0 || run.asOrphans > 0) {
+                logger.warn("UMA share reconciliation of realm {} and client {}: {} shares checked, {} LDAP orphans, "
+                                    + "{} AS orphans, {} repaired, {} quarantined",
+                            service.getRealm(), service.getClientId(), run.checked.get(), run.ldapOrphans,
+                            run.asOrphans, run.repaired, run.quarantined);
+            }
+        }
+    }
+
+    private void reconcile(final Run run, final List<ShareExt> batch) {
+        if (stopped) {
+            throw new IllegalStateException("UMA share reconciliation stopped");
+        }
+        Map<String, List<ShareExt>> byOwner = new LinkedHashMap<>();
+        for (ShareExt share : batch) {
+            List<ShareExt> shares = byOwner.get(share.getUserId());
+            if (shares == null) {
+                shares = new ArrayList<>();
+                byOwner.put(share.getUserId(), shares);
+            }
+            shares.add(share);
+        }
+        run.checked.addAndGet(batch.size());
+        run.owners.addAndGet(byOwner.size());
+
+        // List the resource sets of the owners, at most maxConcurrency calls at a time
+        final Map<String, Set<String>> resourceSets = new ConcurrentHashMap<>();
+        final Semaphore calls = new Semaphore(maxConcurrency);
+        final CountDownLatch listed = new CountDownLatch(byOwner.size());
+        for (final Map.Entry<String, List<ShareExt>> owner : byOwner.entrySet()) {
+            calls.acquireUninterruptibly();
+            service.listResourceSetIds(owner.getValue().get(0))
+                   .thenOnResult(new ResultHandler<Set<String>>() {
+                       @Override
+                       public void handleResult(final Set<String> ids) {
+                           resourceSets.put(owner.getKey(), ids);
+                       }
+                   })
+                   .thenOnException(new ExceptionHandler<UmaException>() {
+                       @Override
+                       public void handleException(final UmaException e) {
+                           run.unverifiable.addAndGet(owner.getValue().size());
+                           logger.debug("Cannot list the resource sets of {}", owner.getKey(), e);
+                       }
+                   })
+                   .thenAlways(new Runnable() {
+                       @Override
+                       public void run() {
+                           calls.release();
+                           listed.countDown();
+                       }
+                   });
+        }
+        try {
+            listed.await();
+            // Back to this thread: the repairs block
+            for (Map.Entry<String, Set<String>> owner : resourceSets.entrySet()) {
+                reconcileOwner(run, byOwner.get(owner.getKey()), owner.getValue());
+            }
+            if (pauseMillis > 0) {
+                Thread.sleep(pauseMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("UMA share reconciliation interrupted", e);
+        }
+    }
+
+    private void reconcileOwner(final Run run, final List<ShareExt> shares, final Set<String> resourceSets)
+            throws InterruptedException {
+        for (ShareExt share : shares) {
+            if (resourceSets.contains(share.getResourceId())) {
+                if (quarantined.remove(share.getId())) {
+                    service.releaseShare(share.getId());
+                    synchronized (run) {
+                        run.released++;
+                    }
+                }
+                continue;
+            }
+            // Not listed: confirm with a direct read (the AS listing may be truncated)
+            Boolean exists;
+            try {
+                exists = service.hasResourceSet(share).get();
+            } catch (ExecutionException e) {
+                run.unverifiable.incrementAndGet();
+                continue;
+            }
+            if (!exists) {
+                ldapOrphan(run, share);
+            }
+        }
+
+        // Resource sets no share of the owner references (all of its shares, not only the ones of this batch)
+        ShareExt owner = shares.get(0);
+        Set<String> referenced = new HashSet<>();
+        try {
+            for (ShareExt share : ldapManager.getShare(new ShareExt(null, null, owner.getUserId(),
+                                                                    service.getRealm(), service.getClientId()))) {
+                referenced.add(share.getResourceId());
+            }
+        } catch (LdapException e) {
+            synchronized (run) {
+                run.errors++;
+            }
+            return;
+        }
+        for (String resourceId : resourceSets) {
+            if (referenced.contains(resourceId)) {
+                continue;
+            }
+            if (!asOrphanCandidates.contains(resourceId)) {
+                // Possibly a share being created: confirmed if still there on the next run
+                if (nextAsOrphanCandidates.size() < MAX_CANDIDATES) {
+                    nextAsOrphanCandidates.add(resourceId);
+                }
+                continue;
+            }
+            asOrphan(run, owner, resourceId);
+        }
+    }
+
+    private void ldapOrphan(final Run run, final ShareExt share) {
+        synchronized (run) {
+            run.ldapOrphans++;
+        }
+        switch (action) {
+        case REPAIR:
+            try {
+                service.removeOrphanShare(share);
+                quarantined.remove(share.getId());
+                synchronized (run) {
+                    run.repaired++;
+                }
+                logger.info("Removed UMA share {} of {}: its resource set {} is missing from the AS", share.getId(),
+                            share.getUserId(), share.getResourceId());
+            } catch (LdapException e) {
+                synchronized (run) {
+                    run.errors++;
+                }
+                logger.warn("Cannot remove orphan UMA share {}", share.getId(), e);
+            }
+            break;
+        case QUARANTINE:
+            if (quarantined.add(share.getId())) {
+                service.quarantineShare(share.getId());
+                synchronized (run) {
+                    run.quarantined++;
+                }
+                logger.info("Quarantined UMA share {} of {}: its resource set {} is missing from the AS",
+                            share.getId(), share.getUserId(), share.getResourceId());
+            }
+            break;
+        default:
+            logger.info("UMA share {} of {} is an orphan: its resource set {} is missing from the AS", share.getId(),
+                        share.getUserId(), share.getResourceId());
+        }
+    }
+
+    private void asOrphan(final Run run, final ShareExt owner, final String resourceId)
+            throws InterruptedException {
+        synchronized (run) {
+            run.asOrphans++;
+        }
+        if (action != Action.REPAIR) {
+            logger.info("Resource set {} of {} is an orphan: no UMA share references it", resourceId,
+                        owner.getUserId());
+            return;
+        }
+        boolean removed;
+        try {
+            removed = service.removeOrphanResourceSet(owner, resourceId).get();
+        } catch (ExecutionException e) {
+            removed = false;
+        }
+        synchronized (run) {
+            if (removed) {
+                run.repaired++;
+            } else {
+                run.errors++;
+            }
+        }
+        if (removed) {
+            asOrphanCandidates.remove(resourceId);
+            logger.info("Removed orphan resource set {} of {} from the AS", resourceId, owner.getUserId());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+/**
+ * A counting Bloom filter of the shared {@literal umaResourceURI} values of a realm and OAuth 2.0 client.
+ * <p>
+ * <p>It answers "definitely not shared" or "maybe shared": request URIs that are definitely not shared can be
+ * rejected without searching the LDAP store. Counters (instead of bits) allow removing the URI of a deleted share;
+ * a counter that ever saturates is never decremented again, which can only cause false positives.
+ * <p>
+ * <p>Lookups are lock-free and allocation-free; updates are serialized and published through a volatile write.
+ */
+class ShareUriFilter {
+
+    private static final int SATURATED = 0xFF;
+
+    private final byte[] counters;
+    private final int hashes;
+    private volatile long version;
+    private volatile boolean ready;
+    private volatile String changeMarker;
+
+    /**
+     * Creates an empty filter sized for the given number of URIs and false positive rate. The filter only starts
+     * rejecting URIs once {@linkplain #setReady() populated}.
+     *
+     * @param expectedUris      expected number of shared URIs
+     * @param falsePositiveRate acceptable false positive rate, between 0 and 1 (exclusive)
+     */
+    ShareUriFilter(final long expectedUris, final double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+        }
+        long n = Math.max(expectedUris, 1);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        if (m > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many expected URIs for a single filter");
+        }
+        this.counters = new byte[(int) Math.max(m, 64)];
+        this.hashes = (int) Math.max(1, Math.round((double) counters.length / n * Math.log(2)));
+    }
+
+    /**
+     * Returns the memory used by the counters, in bytes.
+     *
+     * @return the memory used by the counters
+     */
+    int getSizeInBytes() {
+        return counters.length;
+    }
+
+    int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Returns the LDAP change marker (latest share creation time) up to which this filter is known to be complete.
+     *
+     * @return the change marker, or {@code null} if unknown
+     */
+    String getChangeMarker() {
+        return changeMarker;
+    }
+
+    void setChangeMarker(final String changeMarker) {
+        this.changeMarker = changeMarker;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Marks the filter as fully populated: from now on, {@link #mightContain(String)} may return {@code false}.
+     */
+    void setReady() {
+        ready = true;
+    }
+
+    /**
+     * Returns {@code false} if the given URI is definitely not shared.
+     *
+     * @param uri request URI
+     * @return {@code false} if the URI is definitely not shared, {@code true} if it may be
+     */
+    boolean mightContain(final String uri) {
+        if (!ready) {
+            return true;
+        }
+        // Pairs with the volatile write of add()/remove()
+        if (version < 0) {
+            return true;
+        }
+        long hash = hash(uri);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            if (counters[index(h1, h2, i)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized void add(final String uri) {
+        long hash = hash(uri);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int index = index(h1, h2, i);
+            int counter = counters[index] & 0xFF;
+            if (counter != SATURATED) {
+                counters[index] = (byte) (counter + 1);
+            }
+        }
+        version++;
+    }
+
+    synchronized void remove(final String uri) {
+        long hash = hash(uri);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int index = index(h1, h2, i);
+            int counter = counters[index] & 0xFF;
+            if (counter != SATURATED && counter != 0) {
+                counters[index] = (byte) (counter - 1);
+            }
+        }
+        version++;
+    }
+
+    private int index(final int h1, final int h2, final int i) {
+        int combined = h1 + i * h2;
+        return (combined & Integer.MAX_VALUE) % counters.length;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 code units, followed by a final avalanche (from MurmurHash3's fmix64).
+     */
+    private static long hash(final String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xFF;
+            hash *= 0x100000001b3L;
+            hash ^= c >>> 8;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.ClientContext;
+import org.forgerock.services.context.Context;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.forgerock.openig.el.Bindings.bindings;
+
+/**
+ * Token-bucket admission control of the permission ticket requests, so that clients that never present an RPT (or
+ * keep presenting unusable ones) cannot turn every request into a call to the AS permission endpoint.
+ * <p>
+ * <p>There is one bucket per client, per share, or per (client, share) pair. Each bucket is a single
+ * {@link AtomicLong} holding its "theoretical arrival time" (the GCRA formulation of a token bucket): admitting a
+ * request is one compare-and-set, without any lock. Buckets that have been idle long enough to be full again are
+ * indistinguishable from new ones, and are evicted when the number of buckets grows past the configured limit.
+ * <p>
+ * <p>The client is identified by its remote address by default. Behind a reverse proxy, all the clients share the
+ * proxy address: an expression (like the first value of a forwarded header) can identify them instead. Only use a
+ * header the proxy sets, replacing any value sent by the client, or a client picks its own bucket.
+ */
+class TicketAdmissionControl {
+
+    /**
+     * What identifies a bucket.
+     */
+    enum KeyType {
+        /** The client (its address by default). */
+        CLIENT,
+        /** The requested share. */
+        SHARE,
+        /** The (client, requested share) pair. */
+        BOTH
+    }
+
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final KeyType keyType;
+    private final Expression<String> client;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxBuckets;
+
+    /**
+     * Creates an admission control.
+     *
+     * @param keyType     what identifies a bucket
+     * @param client      identifies the client of a request, {@code null} for its remote address
+     * @param rate        number of tickets admitted per period
+     * @param periodNanos refill period
+     * @param burst       bucket capacity (number of tickets that can be admitted at once)
+     * @param maxBuckets  number of buckets above which idle buckets are evicted
+     */
+    TicketAdmissionControl(final KeyType keyType,
+                           final Expression<String> client,
+                           final int rate,
+                           final long periodNanos,
+                           final int burst,
+                           final int maxBuckets) {
+        if (rate <= 0 || periodNanos <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("The rate, period and burst must be positive");
+        }
+        this.keyType = keyType;
+        this.client = client;
+        this.intervalNanos = Math.max(1, periodNanos / rate);
+        this.burstNanos = intervalNanos * (burst - 1);
+        this.maxBuckets = maxBuckets;
+    }
+
+    /**
+     * Tries to admit a ticket request.
+     *
+     * @param context request context (provides the client address)
+     * @param request request (evaluated by the client expression)
+     * @param share   requested share
+     * @return {@code 0} if the request is admitted, otherwise the delay in nanoseconds after which it would be
+     */
+    long tryAcquire(final Context context, final Request request, final ShareExt share) {
+        AtomicLong bucket = bucket(key(context, request, share));
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.get();
+            long base = now - tat > 0 ? now : tat;
+            long wait = tat - burstNanos - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(tat, base + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    private AtomicLong bucket(final String key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxBuckets) {
+                evictIdle();
+            }
+            AtomicLong created = new AtomicLong(System.nanoTime());
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Evicts the full buckets: a full bucket behaves exactly as a new one, so this does not change any decision.
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        for (Iterator<AtomicLong> iterator = buckets.values().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next().get() >= 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private String key(final Context context, final Request request, final ShareExt share) {
+        switch (keyType) {
+        case SHARE:
+            return share.getId();
+        case BOTH:
+            return client(context, request) + '\u0000' + share.getId();
+        default:
+            return client(context, request);
+        }
+    }
+
+    /**
+     * Returns the client of a request: the value of the client expression, or its remote address when there is no
+     * expression or when it evaluates to nothing.
+     */
+    private String client(final Context context, final Request request) {
+        if (client != null) {
+            String value = client.eval(bindings(context, request));
+            if (value != null && !value.isEmpty()) {
+                return value;
+            }
+        }
+        return client(context);
+    }
+
+    /**
+     * Returns the remote address of the client, or an empty string if unknown.
+     *
+     * @param context context of the request
+     * @return the client address
+     */
+    static String client(final Context context) {
+        if (context.containsContext(ClientContext.class)) {
+            String address = context.asContext(ClientContext.class).getRemoteAddress();
+            if (address != null) {
+                return address;
+            }
+        }
+        return "";
+    }
+
+    int size() {
+        return buckets.size();
+    }
+}
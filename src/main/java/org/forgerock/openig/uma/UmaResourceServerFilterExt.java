@@ -20,39 +20,66 @@
 
 package org.forgerock.openig.uma;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.forgerock.audit.AuditService;
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.header.Warning;
 import org.forgerock.http.header.WarningHeader;
 import org.forgerock.http.oauth2.OAuth2;
-import org.forgerock.http.protocol.Form;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.uma.DecisionEvent.Decision;
+import org.forgerock.openig.uma.RequestDeadline.Stage;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.uma.UmaResponseParser.Introspection;
+import org.forgerock.openig.uma.UmaResponseParser.ResourceScopes;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
-import static java.lang.String.format;
 import static org.forgerock.http.header.WarningHeader.MISCELLANEOUS_WARNING;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Responses.newInternalServerError;
 import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.JsonValues.expression;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.openig.uma.UmaResponseParser.parseIntrospection;
+import static org.forgerock.openig.uma.UmaResponseParser.parseTicket;
 import static org.forgerock.util.Utils.closeSilently;
+import static org.forgerock.util.promise.Promises.when;
+import static org.forgerock.util.time.Duration.duration;
 
 /**
  * An {@link UmaResourceServerFilter} implements a PEP (Policy Enforcement Point) and is responsible to ensure the
@@ -67,7 +94,22 @@ import static org.forgerock.util.Utils.closeSilently;
  *           "umaService": "UmaServiceExt",
  *           "scopes" : [
  *               "http://login.example.com/scopes/view"
- *           ]
+ *           ],
+ *           "decisionCacheTimeout": "10 seconds",
+ *           "shareUriPattern": "^/history/emp[^/]*$",
+ *           "ticketRateLimit": {
+ *               "key": "client",
+ *               "client": "${request.headers['X-Forwarded-For'][0]}",
+ *               "rate": 10,
+ *               "period": "1 second",
+ *               "burst": 20
+ *           },
+ *           "tenant": "${request.headers['X-UMA-Tenant'][0]}",
+ *           "deadline": "2 seconds",
+ *           "heavyHitters": {
+ *               "enabled": true,
+ *               "topK": 20
+ *           }
  *           }
  *       }
  *     }
@@ -77,10 +119,40 @@ public class UmaResourceServerFilterExt implements Filter {
 
     private static final Logger logger = LoggerFactory.getLogger(UmaResourceServerFilterExt.class);
 
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final int MAX_CACHED_PERMISSION_REQUESTS = 10000;
+    private static final long PERMISSION_REQUEST_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final Status TOO_MANY_REQUESTS = Status.valueOf(429);
+    private static final ResultHandler<Response> INSUFFICIENT_SCOPE_ERROR = new ResultHandler<Response>() {
+        @Override
+        public void handleResult(final Response response) {
+            // Update the Authorization header with a proper error code
+            String authorization = response.getHeaders().getFirst("WWW-Authenticate");
+            if (authorization != null) {
+                authorization = authorization.concat(", error=\"insufficient_scope\"");
+                response.getHeaders().put("WWW-Authenticate", authorization);
+            }
+        }
+    };
+
     private final UmaSharingServiceExt umaService;
     private final Handler protectionApiHandler;
     private final String realm;
-    private final List<Object> scopes;
+    private final ScopeSet scopes;
+    private final DecisionCache decisionCache;
+    private TicketAdmissionControl ticketAdmissionControl;
+    private Pattern shareUriPattern;
+    private int maxShares;
+    private int maxCandidates;
+    private DecisionAuditor decisionAuditor;
+    private HeavyHitters heavyHitters;
+    private long deadlineNanos;
+    private ScheduledExecutorService deadlineScheduler;
+    private final PermissionRequestCache permissionRequests =
+            new PermissionRequestCache(PERMISSION_REQUEST_TIMEOUT_NANOS, MAX_CACHED_PERMISSION_REQUESTS);
+    private final String authenticateHeaderPrefix;
 
     /**
      * Constructs a new UmaResourceServerFilter.
@@ -92,38 +164,299 @@ public class UmaResourceServerFilterExt implements Filter {
     public UmaResourceServerFilterExt(final UmaSharingServiceExt umaService,
                                       final Handler protectionApiHandler,
                                       final String realm, final List<Object> scopes) {
+        this(umaService, protectionApiHandler, realm, ScopeSet.compile(scopes), new DecisionCache(0, 0));
+    }
+
+    /**
+     * Constructs a new UmaResourceServerFilter.
+     *
+     * @param umaService           core service to use
+     * @param protectionApiHandler protectionApiHandler to use when interacting with introspection and permission request endpoints
+     * @param realm                UMA realm name (can be {@code null})
+     * @param scopes               compiled scopes required to access the protected resources
+     * @param decisionCache        cache of the recent allow decisions
+     */
+    UmaResourceServerFilterExt(final UmaSharingServiceExt umaService,
+                               final Handler protectionApiHandler,
+                               final String realm,
+                               final ScopeSet scopes,
+                               final DecisionCache decisionCache) {
         this.umaService = umaService;
         this.protectionApiHandler = protectionApiHandler;
         this.realm = realm;
         this.scopes = scopes;
+        this.decisionCache = decisionCache;
+        // Only the ticket changes between two 401 responses
+        this.authenticateHeaderPrefix = "UMA realm=\"" + realm
+                + "\", as_uri=\"" + umaService.getAuthorizationServer()
+                + "\", ticket=\"";
+    }
+
+    /**
+     * Limits the rate of the permission ticket requests made on behalf of this filter.
+     *
+     * @param ticketAdmissionControl admission control, {@code null} for no limit
+     */
+    void setTicketAdmissionControl(final TicketAdmissionControl ticketAdmissionControl) {
+        this.ticketAdmissionControl = ticketAdmissionControl;
+    }
+
+    /**
+     * Protects each request with all the shares whose URI matches the given pattern (instead of the single share of
+     * the request URI): the RPT must grant this filter's scopes on every one of them, and a single permission ticket
+     * is requested for all the missing ones.
+     *
+     * @param shareUriPattern pattern selecting the shared URIs, {@code null} for the single share mode
+     * @param maxShares       maximum number of shares a request may need
+     */
+    void setMultiShareMode(final Pattern shareUriPattern, final int maxShares) {
+        this.shareUriPattern = shareUriPattern;
+        this.maxShares = maxShares;
+    }
+
+    /**
+     * Resolves the requests whose URI is shared by several owners (without {@literal userId} header) from the RPT
+     * permissions, instead of failing with a {@literal 404}: the share whose resource set is granted by the RPT
+     * protects the request, and without a usable RPT a ticket is requested for each candidate share.
+     *
+     * @param maxCandidates maximum number of candidate shares, {@code 0} to fail on ambiguous requests
+     */
+    void setAmbiguousShareResolution(final int maxCandidates) {
+        this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * Publishes the access decisions of this filter to the given auditor.
+     *
+     * @param decisionAuditor decisions auditor, {@code null} for no audit
+     */
+    void setDecisionAuditor(final DecisionAuditor decisionAuditor) {
+        this.decisionAuditor = decisionAuditor;
+    }
+
+    /**
+     * Counts the requests, {@literal 401} responses and introspection time of this filter by share, client and RPT.
+     *
+     * @param heavyHitters hot keys sketches, {@code null} to count nothing
+     */
+    void setHeavyHitters(final HeavyHitters heavyHitters) {
+        this.heavyHitters = heavyHitters;
+    }
+
+    /**
+     * Bounds the time spent protecting each request (share lookup, RPT introspection and permission ticket, but not
+     * the downstream handler): past the budget, the pending stage is cancelled and a {@literal 503} is returned.
+     *
+     * @param deadlineNanos total budget of a request, {@code 0} for no limit
+     * @param scheduler     used to cancel the pending stages once the budget is gone
+     */
+    void setDeadline(final long deadlineNanos, final ScheduledExecutorService scheduler) {
+        this.deadlineNanos = deadlineNanos;
+        this.deadlineScheduler = scheduler;
+    }
+
+    private void audit(final Decision decision,
+                       final int status,
+                       final Context context,
+                       final Request request,
+                       final List<ShareExt> shares,
+                       final String detail) {
+        DecisionAuditor auditor = decisionAuditor;
+        if (auditor != null) {
+            auditor.publish(DecisionEvent.of(decision, status, context, request, shares, detail));
+        }
     }
 
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
                                                           final Handler next) {
+        final RequestDeadline deadline = deadlineNanos > 0
+                ? RequestDeadline.start(deadlineNanos, deadlineScheduler)
+                : RequestDeadline.NONE;
 
-        try {
-            // Find a Share for this request
-            final ShareExt share = umaService.findShare(request);
-            String rpt = OAuth2.getBearerAccessToken(request.getHeaders().getFirst("Authorization"));
+        AsyncFunction<UmaException, Response, NeverThrowsException> notFound =
+                new AsyncFunction<UmaException, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final UmaException e) {
+                        if (deadline.exhausted(Stage.SHARE_LOOKUP)) {
+                            // Not a missing share: the lookup was skipped, timed out or cancelled
+                            return deadlineExceeded(context, request, Collections.<ShareExt>emptyList(), deadline);
+                        }
+                        logger.error("An error occurred while looking for a UMA share", e);
+                        audit(Decision.NOT_FOUND, 404, context, request, Collections.<ShareExt>emptyList(),
+                              e.getMessage());
+                        // No share found
+                        // Make sure we return a 404
+                        return newResponsePromise(e.getResponse().setStatus(Status.NOT_FOUND));
+                    }
+                };
+
+        if (shareUriPattern != null) {
+            return deadline.boundLookup(umaService.findSharesAsync(request, shareUriPattern, maxShares, deadline))
+                    .thenAsync(new AsyncFunction<List<ShareExt>, Response, NeverThrowsException>() {
+                        @Override
+                        public Promise<Response, NeverThrowsException> apply(final List<ShareExt> shares) {
+                            return filter(context, request, next, shares, deadline);
+                        }
+                    }, notFound);
+        }
+
+        if (maxCandidates > 0) {
+            return deadline.boundLookup(umaService.findCandidateSharesAsync(request, maxCandidates, deadline))
+                    .thenAsync(new AsyncFunction<List<ShareExt>, Response, NeverThrowsException>() {
+                        @Override
+                        public Promise<Response, NeverThrowsException> apply(final List<ShareExt> candidates) {
+                            return candidates.size() == 1
+                                    ? filter(context, request, next, candidates, deadline)
+                                    : filterAmbiguous(context, request, next, candidates, deadline);
+                        }
+                    }, notFound);
+        }
+
+        // Find a Share for this request (the LDAP search, if any, does not hold this thread)
+        return deadline.boundLookup(umaService.findShareAsync(request, deadline))
+                .thenAsync(new AsyncFunction<ShareExt, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final ShareExt share) {
+                        return filter(context, request, next, Collections.singletonList(share), deadline);
+                    }
+                }, notFound);
+    }
 
-            // Is there an RPT ?
-            if (rpt != null) {
-                // Validate the token
-                return introspectToken(context, rpt, share.getPAT())
-                        .thenAsync(new VerifyScopesAsyncFunction(share, context, request, next));
+    private Promise<Response, NeverThrowsException> filter(final Context context,
+                                                           final Request request,
+                                                           final Handler next,
+                                                           final List<ShareExt> shares,
+                                                           final RequestDeadline deadline) {
+        String rpt = OAuth2.getBearerAccessToken(request.getHeaders().getFirst("Authorization"));
+        HeavyHitters hitters = heavyHitters;
+        if (hitters != null) {
+            hitters.request(shares, TicketAdmissionControl.client(context), rpt);
+        }
+
+        // Is there an RPT ?
+        if (rpt != null) {
+            if (isAllowed(shares, rpt)) {
+                // Recently introspected with enough scopes for these shares
+                audit(Decision.ALLOWED_CACHED, 0, context, request, shares, null);
+                return next.handle(context, request);
+            }
+            if (deadline.exhausted(Stage.INTROSPECTION)) {
+                return deadlineExceeded(context, request, shares, deadline);
             }
 
-            // Error case: ask for a ticket
-            return ticket(context, share, request);
+            // Validate the token (once for all the shares)
+            return deadline.bound(introspectToken(context, rpt, shares), Stage.INTROSPECTION)
+                    .thenAsync(new VerifyScopesAsyncFunction(shares, rpt, context, request, next, deadline));
+        }
+
+        // Error case: ask for a ticket
+        return ticket(context, shares, request, Decision.TICKET, "no_rpt", deadline);
+    }
 
-        } catch (UmaException e) {
-            logger.error("An error occurred while looking for a UMA share", e);
-            // No share found
-            // Make sure we return a 404
-            return newResponsePromise(e.getResponse().setStatus(Status.NOT_FOUND));
+    /**
+     * Protects a request with the one of the candidate shares that the RPT is granted for.
+     */
+    private Promise<Response, NeverThrowsException> filterAmbiguous(final Context context,
+                                                                    final Request request,
+                                                                    final Handler next,
+                                                                    final List<ShareExt> candidates,
+                                                                    final RequestDeadline deadline) {
+        String rpt = OAuth2.getBearerAccessToken(request.getHeaders().getFirst("Authorization"));
+        HeavyHitters hitters = heavyHitters;
+        if (hitters != null) {
+            hitters.request(candidates, TicketAdmissionControl.client(context), rpt);
+        }
+        if (rpt == null) {
+            return tickets(context, candidates, request, "no_rpt", deadline);
+        }
+        for (ShareExt candidate : candidates) {
+            if (decisionCache.isAllowed(candidate.getId(), rpt)) {
+                audit(Decision.ALLOWED_CACHED, 0, context, request, Collections.singletonList(candidate), null);
+                return next.handle(context, request);
+            }
+        }
+        return resolveShare(context, request, next, candidates, byOwner(candidates), 0, rpt, deadline);
+    }
+
+    /**
+     * Introspects the RPT with the PAT of the given owner of candidate shares, and resolves the request to one of the
+     * candidates of this owner. Otherwise, the next owner is tried.
+     */
+    private Promise<Response, NeverThrowsException> resolveShare(final Context context,
+                                                                 final Request request,
+                                                                 final Handler next,
+                                                                 final List<ShareExt> candidates,
+                                                                 final List<List<ShareExt>> owners,
+                                                                 final int owner,
+                                                                 final String rpt,
+                                                                 final RequestDeadline deadline) {
+        if (deadline.exhausted(Stage.INTROSPECTION)) {
+            return deadlineExceeded(context, request, candidates, deadline);
+        }
+        return deadline.bound(introspectToken(context, rpt, owners.get(owner)), Stage.INTROSPECTION)
+                .thenAsync(new ResolveShareAsyncFunction(candidates, owners, owner, rpt, context, request, next,
+                                                         deadline));
+    }
+
+    /**
+     * Groups the candidate shares by owner, in order: the shares of an owner are introspected with the owner PAT.
+     */
+    private static List<List<ShareExt>> byOwner(final List<ShareExt> candidates) {
+        Map<String, List<ShareExt>> owners = new LinkedHashMap<>();
+        for (ShareExt candidate : candidates) {
+            List<ShareExt> shares = owners.get(candidate.getUserId());
+            if (shares == null) {
+                shares = new ArrayList<>();
+                owners.put(candidate.getUserId(), shares);
+            }
+            shares.add(candidate);
         }
+        return new ArrayList<>(owners.values());
+    }
+
+    /**
+     * Fails a request that ran out of budget with a {@literal 503}, auditing the exhausted stage.
+     */
+    private Promise<Response, NeverThrowsException> deadlineExceeded(final Context context,
+                                                                     final Request request,
+                                                                     final List<ShareExt> shares,
+                                                                     final RequestDeadline deadline) {
+        Stage stage = deadline.getExhaustedStage();
+        logger.debug("UMA request deadline exceeded during {} for {}", stage, request.getUri());
+        audit(Decision.DEADLINE_EXCEEDED, 503, context, request, shares, stage.toString());
+        return newResponsePromise(RequestDeadline.serviceUnavailable(stage));
+    }
+
+    /**
+     * Audits the outcome of a ticket request: the given decision for a {@literal 401}, otherwise a ticket error or the
+     * exceeded deadline.
+     */
+    private void auditTicket(final Decision decision,
+                             final int status,
+                             final Context context,
+                             final Request request,
+                             final List<ShareExt> shares,
+                             final String detail,
+                             final RequestDeadline deadline) {
+        Stage stage = deadline.getExhaustedStage();
+        if (status == 401) {
+            audit(decision, status, context, request, shares, detail);
+        } else if (stage != null) {
+            audit(Decision.DEADLINE_EXCEEDED, status, context, request, shares, stage.toString());
+        } else {
+            audit(Decision.TICKET_ERROR, status, context, request, shares, detail);
+        }
+    }
+
+    private boolean isAllowed(final List<ShareExt> shares, final String rpt) {
+        for (ShareExt share : shares) {
+            if (!decisionCache.isAllowed(share.getId(), rpt)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -141,27 +474,214 @@ public class UmaResourceServerFilterExt implements Filter {
      * </pre>
      * <p>
      * Otherwise, a {@literal 403 Forbidden} response with an informative {@literal Warning} header is produced.
+     * <p>
+     * In multi-share mode, the ticket covers all the given shares (they all belong to the same owner).
+     * <p>
+     * When the ticket requests rate limit is exceeded, the AS is not called and a {@literal 429 Too Many Requests}
+     * response with a {@literal Retry-After} header is produced.
+     * <p>
+     * When the request deadline is exceeded, a {@literal 503 Service Unavailable} response is produced.
      *
      * @param context  Context chain used to keep a relationship between requests (tracking)
-     * @param share    represents protection information about the requested resource
+     * @param shares   represent protection information about the requested resources
      * @param incoming request used to infer the set of permissions to ask
+     * @param decision audited decision when a ticket is issued
+     * @param detail   audited reason of the ticket request
+     * @param deadline deadline of the request
      * @return an asynchronous {@link Response}
      * @see <a href="https://docs.kantarainitiative.org/uma/ed/oauth-uma-federated-authz-2.0-06.html#permission-endpoint">
      * Permission Endpoint</a>
      */
     private Promise<Response, NeverThrowsException> ticket(final Context context,
-                                                           final ShareExt share,
-                                                           final Request incoming) {
-        Request request = new Request();
-        request.setMethod("POST");
-        request.setUri(umaService.getPermissionEndpoint());
-        request.getHeaders().put("Authorization", format("Bearer %s", share.getPAT()));
-        request.getHeaders().put("Accept", "application/json");
-        request.setEntity(createPermissionRequest(share, incoming).asMap());
-
-        return protectionApiHandler.handle(context, request)
-                .thenAlways(request::close)
+                                                           final List<ShareExt> shares,
+                                                           final Request incoming,
+                                                           final Decision decision,
+                                                           final String detail,
+                                                           final RequestDeadline deadline) {
+        if (deadline.exhausted(Stage.TICKET)) {
+            return deadlineExceeded(context, incoming, shares, deadline);
+        }
+        Response tooManyRequests = admit(context, shares, incoming, detail);
+        if (tooManyRequests != null) {
+            return newResponsePromise(tooManyRequests);
+        }
+        Promise<Response, NeverThrowsException> ticket =
+                countUnauthorized(requestTicket(context, shares, incoming, deadline), context, incoming, shares);
+        if (decisionAuditor == null) {
+            return ticket;
+        }
+        return ticket.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                auditTicket(decision, response.getStatus().getCode(), context, incoming, shares, detail, deadline);
+            }
+        });
+    }
+
+    /**
+     * Applies the ticket requests rate limit (keyed by the first share).
+     *
+     * @return {@code null} if the ticket request is admitted, otherwise the {@literal 429} response to send
+     */
+    private Response admit(final Context context,
+                           final List<ShareExt> shares,
+                           final Request incoming,
+                           final String detail) {
+        if (ticketAdmissionControl == null) {
+            return null;
+        }
+        long wait = ticketAdmissionControl.tryAcquire(context, incoming, shares.get(0));
+        return wait <= 0 ? null : throttled(wait, context, incoming, shares, detail);
+    }
+
+    /**
+     * Returns the {@literal 429} response of throttled ticket requests.
+     */
+    private Response throttled(final long wait,
+                               final Context context,
+                               final Request incoming,
+                               final List<ShareExt> shares,
+                               final String detail) {
+        logger.debug("Ticket request rate limit exceeded for share {}", shares.get(0).getId());
+        Response tooManyRequests = new Response(TOO_MANY_REQUESTS);
+        // Retry-After is expressed in whole seconds
+        tooManyRequests.getHeaders().put("Retry-After",
+                String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999999999L))));
+        audit(Decision.THROTTLED, 429, context, incoming, shares, detail);
+        return tooManyRequests;
+    }
+
+    /**
+     * Requests one ticket for the given shares (of a single owner) from the AS.
+     */
+    private Promise<Response, NeverThrowsException> requestTicket(final Context context,
+                                                                  final List<ShareExt> shares,
+                                                                  final Request incoming,
+                                                                  final RequestDeadline deadline) {
+        final ShareExt share = shares.get(0);
+        final byte[] permissionRequest = shares.size() == 1
+                ? permissionRequest(share, incoming)
+                : permissionRequest(shares, incoming);
+        Promise<Response, NeverThrowsException> ticket = umaService.getAuthorizationHeader(share)
+                .thenAsync(new AsyncFunction<String, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final String authorization) {
+                        return umaService.getAuthorizationServerPool()
+                                .send(context, protectionApiHandler, new AuthorizationServerPool.RequestFactory() {
+                                    @Override
+                                    public Request newRequest(final AuthorizationServerNode node) {
+                                        Request request = new Request();
+                                        request.setMethod("POST");
+                                        request.setUri(node.getPermissionEndpoint());
+                                        request.getHeaders().put("Authorization", authorization);
+                                        request.getHeaders().put("Accept", "application/json");
+                                        request.getHeaders().put("Content-Type", JSON_CONTENT_TYPE);
+                                        request.getEntity().setBytes(permissionRequest);
+                                        return request;
+                                    }
+                                }, true);
+                    }
+                })
                 .then(new TicketResponseFunction());
+        return deadline.bound(ticket, Stage.TICKET);
+    }
+
+    /**
+     * Requests a ticket for each of the candidate shares of an ambiguous request: the candidates belong to different
+     * owners and a ticket only covers the resources of one owner, so the {@literal 401} response carries one
+     * {@literal WWW-Authenticate} challenge per obtained ticket. The client gets an RPT for any of them, and the
+     * next request is resolved to the matching share.
+     * <p>
+     * Each ticket request is charged to the rate limit: the candidates over the limit get no ticket, and a
+     * {@literal 429} response is produced when none is left.
+     *
+     * @param context    Context chain used to keep a relationship between requests (tracking)
+     * @param candidates candidate shares, of different owners
+     * @param incoming   request used to infer the set of permissions to ask
+     * @param detail     audited reason of the ticket requests
+     * @param deadline   deadline of the request
+     * @return an asynchronous {@link Response}
+     */
+    private Promise<Response, NeverThrowsException> tickets(final Context context,
+                                                            final List<ShareExt> candidates,
+                                                            final Request incoming,
+                                                            final String detail,
+                                                            final RequestDeadline deadline) {
+        if (deadline.exhausted(Stage.TICKET)) {
+            return deadlineExceeded(context, incoming, candidates, deadline);
+        }
+        List<ShareExt> admitted = candidates;
+        if (ticketAdmissionControl != null) {
+            admitted = new ArrayList<>(candidates.size());
+            long wait = Long.MAX_VALUE;
+            for (ShareExt candidate : candidates) {
+                long candidateWait = ticketAdmissionControl.tryAcquire(context, incoming, candidate);
+                if (candidateWait <= 0) {
+                    admitted.add(candidate);
+                } else {
+                    wait = Math.min(wait, candidateWait);
+                }
+            }
+            if (admitted.isEmpty()) {
+                return newResponsePromise(throttled(wait, context, incoming, candidates, detail));
+            }
+        }
+        List<Promise<Response, NeverThrowsException>> tickets = new ArrayList<>(admitted.size());
+        for (ShareExt candidate : admitted) {
+            tickets.add(requestTicket(context, Collections.singletonList(candidate), incoming, deadline));
+        }
+        return countUnauthorized(when(tickets).then(new Function<List<Response>, Response, NeverThrowsException>() {
+            @Override
+            public Response apply(final List<Response> responses) {
+                Response challenge = null;
+                Response failure = null;
+                for (Response response : responses) {
+                    if (Status.UNAUTHORIZED == response.getStatus()) {
+                        if (challenge == null) {
+                            challenge = response;
+                            continue;
+                        }
+                        challenge.getHeaders().add("WWW-Authenticate",
+                                                   response.getHeaders().getFirst("WWW-Authenticate"));
+                    } else if (failure == null) {
+                        failure = response;
+                        continue;
+                    }
+                    closeSilently(response);
+                }
+                Response result = challenge != null ? challenge : failure;
+                if (result != failure) {
+                    closeSilently(failure);
+                }
+                auditTicket(Decision.TICKET, result.getStatus().getCode(), context, incoming, candidates, detail,
+                            deadline);
+                return result;
+            }
+        }), context, incoming, candidates);
+    }
+
+    /**
+     * Counts the {@literal 401} responses in the heavy hitters, if any.
+     */
+    private Promise<Response, NeverThrowsException> countUnauthorized(
+            final Promise<Response, NeverThrowsException> ticket,
+            final Context context,
+            final Request incoming,
+            final List<ShareExt> shares) {
+        final HeavyHitters hitters = heavyHitters;
+        if (hitters == null) {
+            return ticket;
+        }
+        return ticket.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                if (Status.UNAUTHORIZED == response.getStatus()) {
+                    hitters.unauthorized(shares,
+                                         TicketAdmissionControl.client(context),
+                                         OAuth2.getBearerAccessToken(incoming.getHeaders().getFirst("Authorization")));
+                }
+            }
+        });
     }
 
     /**
@@ -176,23 +696,110 @@ public class UmaResourceServerFilterExt implements Filter {
     private JsonValue createPermissionRequest(final ShareExt share, final Request request) {
 
         return json(object(field("resource_id", share.getResourceId()),
-                field("resource_scopes", array(scopes.toArray(new Object[scopes.size()])))));
+                field("resource_scopes", new ArrayList<Object>(scopes.getScopes()))));
+    }
+
+    /**
+     * Returns the serialized permission request for several shares: an array of permissions, one per share.
+     */
+    private byte[] permissionRequest(final List<ShareExt> shares, final Request request) {
+        List<Object> permissions = new ArrayList<>(shares.size());
+        for (ShareExt share : shares) {
+            permissions.add(createPermissionRequest(share, request).getObject());
+        }
+        try {
+            return JSON_MAPPER.writeValueAsBytes(permissions);
+        } catch (JsonProcessingException e) {
+            // Only made of strings: should never happen
+            throw new IllegalStateException("Cannot serialize permission request", e);
+        }
+    }
+
+    /**
+     * Returns the serialized permission request for the given share: the body only depends on the share and on this
+     * route's scopes, so it is serialized once and re-used for every ticket request while cached.
+     */
+    private byte[] permissionRequest(final ShareExt share, final Request request) {
+        byte[] body = permissionRequests.get(share.getResourceId());
+        if (body == null) {
+            try {
+                body = JSON_MAPPER.writeValueAsBytes(createPermissionRequest(share, request).getObject());
+            } catch (JsonProcessingException e) {
+                // Only made of strings: should never happen
+                throw new IllegalStateException("Cannot serialize permission request", e);
+            }
+            permissionRequests.put(share.getResourceId(), body);
+        }
+        return body;
     }
 
+    /**
+     * Introspects the RPT with the PAT of the owner of the given shares, counting the time spent in the heavy hitters,
+     * if any.
+     */
     private Promise<Response, NeverThrowsException> introspectToken(final Context context,
                                                                     final String token,
-                                                                    final String pat) {
-        Request request = new Request();
-        request.setUri(umaService.getIntrospectionEndpoint());
-        request.getHeaders().put("Authorization", format("Bearer %s", pat));
-        request.getHeaders().put("Accept", "application/json");
+                                                                    final List<ShareExt> shares) {
+        final HeavyHitters hitters = heavyHitters;
+        if (hitters == null) {
+            return introspectToken(context, token, shares.get(0));
+        }
+        final long start = System.nanoTime();
+        return introspectToken(context, token, shares.get(0)).thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                hitters.introspected(shares, TicketAdmissionControl.client(context), token,
+                                     System.nanoTime() - start);
+            }
+        });
+    }
 
-        Form query = new Form();
-        query.putSingle("token", token);
-        query.toRequestEntity(request);
+    private Promise<Response, NeverThrowsException> introspectToken(final Context context,
+                                                                    final String token,
+                                                                    final ShareExt share) {
+        final String body = "token=" + formEncode(token);
+        return umaService.getAuthorizationHeader(share)
+                .thenAsync(new AsyncFunction<String, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final String authorization) {
+                        return umaService.getAuthorizationServerPool()
+                                .send(context, protectionApiHandler, new AuthorizationServerPool.RequestFactory() {
+                                    @Override
+                                    public Request newRequest(final AuthorizationServerNode node) {
+                                        Request request = new Request();
+                                        request.setMethod("POST");
+                                        request.setUri(node.getIntrospectionEndpoint());
+                                        request.getHeaders().put("Authorization", authorization);
+                                        request.getHeaders().put("Accept", "application/json");
+                                        request.getHeaders().put("Content-Type", FORM_CONTENT_TYPE);
+                                        request.setEntity(body);
+                                        return request;
+                                    }
+                                }, true);
+                    }
+                });
+    }
 
-        return protectionApiHandler.handle(context, request)
-                                   .thenAlways(request::close);
+    /**
+     * URL-encodes a form value, without any allocation in the usual case of a token made of unreserved characters
+     * only (UUIDs, JWTs).
+     *
+     * @param value value to encode
+     * @return the encoded value
+     */
+    static String formEncode(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '*')) {
+                try {
+                    return URLEncoder.encode(value, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return value;
     }
 
     /**
@@ -200,6 +807,11 @@ public class UmaResourceServerFilterExt implements Filter {
      */
     public static class Heaplet extends GenericHeaplet {
 
+        private DecisionAuditor decisionAuditor;
+        private HeavyHitters heavyHitters;
+        private final Map<UmaSharingServiceExt, DecisionCache> revokedDecisions = new LinkedHashMap<>();
+        private ScheduledFuture<?> heavyHittersDecay;
+
         @Override
         public Object create() throws HeapException {
             UmaSharingServiceExt service = config.get("umaService")
@@ -207,79 +819,399 @@ public class UmaResourceServerFilterExt implements Filter {
                     .as(requiredHeapObject(heap, UmaSharingServiceExt.class));
             Handler handler = config.get("protectionApiHandler").required().as(requiredHeapObject(heap, Handler.class));
             String realm = config.get("realm").as(evaluated()).defaultTo("uma").asString();
-            List<Object> scopes = config.get("scopes").as(evaluated()).asList();
-            return new UmaResourceServerFilterExt(service, handler, realm, scopes);
+            // Compiled once, checked as a bitset for every request
+            ScopeSet scopes = ScopeSet.compile(config.get("scopes").as(evaluated()).asList());
+            Duration decisionCacheTimeout = duration(config.get("decisionCacheTimeout")
+                                                           .as(evaluated())
+                                                           // Opt-in: an RPT revoked at the AS stays allowed meanwhile
+                                                           .defaultTo("0 seconds")
+                                                           .asString());
+            int decisionCacheSize = config.get("decisionCacheSize").as(evaluated()).defaultTo(10000).asInteger();
+            DecisionCache decisionCache = new DecisionCache(decisionCacheTimeout.to(TimeUnit.NANOSECONDS),
+                                                            decisionCacheSize);
+            JsonValue rateLimit = config.get("ticketRateLimit");
+            TicketAdmissionControl ticketAdmissionControl = rateLimit.isNotNull()
+                    ? createTicketAdmissionControl(rateLimit)
+                    : null;
+            JsonValue audit = config.get("decisionAudit");
+            if (audit.isNotNull()) {
+                decisionAuditor = createDecisionAuditor(audit);
+            }
+            JsonValue heavyHittersConfig = config.get("heavyHitters");
+            if (heavyHittersConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                configureHeavyHitters(heavyHittersConfig);
+            }
+
+            JsonValue tenant = config.get("tenant");
+            if (tenant.isNull()) {
+                return createFilter(service, handler, realm, scopes, decisionCache, ticketAdmissionControl);
+            }
+            // One filter per tenant, sharing the caches, rate limits and audit
+            Map<String, Filter> filters = new LinkedHashMap<>();
+            for (Map.Entry<String, UmaSharingServiceExt> tenantService : service.getTenants().entrySet()) {
+                filters.put(tenantService.getKey(), createFilter(tenantService.getValue(), handler, realm, scopes,
+                                                                 decisionCache, ticketAdmissionControl));
+            }
+            if (filters.isEmpty()) {
+                throw new HeapException("The tenant setting requires an umaService with tenants");
+            }
+            return new TenantFilter(tenant.as(expression(String.class)), filters);
+        }
+
+        private UmaResourceServerFilterExt createFilter(final UmaSharingServiceExt service,
+                                                        final Handler handler,
+                                                        final String realm,
+                                                        final ScopeSet scopes,
+                                                        final DecisionCache decisionCache,
+                                                        final TicketAdmissionControl ticketAdmissionControl)
+                throws HeapException {
+            UmaResourceServerFilterExt filter = new UmaResourceServerFilterExt(service, handler, realm, scopes,
+                                                                               decisionCache);
+            // Removed shares (here or on a peer gateway) are no longer allowed from the cache
+            service.addDecisionCache(decisionCache);
+            revokedDecisions.put(service, decisionCache);
+            String shareUriPattern = config.get("shareUriPattern").as(evaluated()).asString();
+            if (shareUriPattern != null) {
+                try {
+                    filter.setMultiShareMode(Pattern.compile(shareUriPattern),
+                                             config.get("maxShares").as(evaluated()).defaultTo(100).asInteger());
+                } catch (PatternSyntaxException e) {
+                    throw new HeapException("Invalid shareUriPattern", e);
+                }
+            }
+            if (config.get("resolveAmbiguousShares").as(evaluated()).defaultTo(false).asBoolean()) {
+                filter.setAmbiguousShareResolution(config.get("maxCandidates")
+                                                         .as(evaluated())
+                                                         .defaultTo(10)
+                                                         .asInteger());
+            }
+            filter.setTicketAdmissionControl(ticketAdmissionControl);
+            filter.setDecisionAuditor(decisionAuditor);
+            filter.setHeavyHitters(heavyHitters);
+            Duration deadline = duration(config.get("deadline").as(evaluated()).defaultTo("unlimited").asString());
+            if (!deadline.isUnlimited() && !deadline.isZero()) {
+                filter.setDeadline(deadline.to(TimeUnit.NANOSECONDS),
+                                   config.get("deadlineExecutor")
+                                         .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                         .as(requiredHeapObject(heap, ScheduledExecutorService.class)));
+            }
+            return filter;
+        }
+
+        private DecisionAuditor createDecisionAuditor(final JsonValue audit) throws HeapException {
+            String sinkType = audit.get("sink").as(evaluated()).defaultTo("file").asString();
+            DecisionAuditor.Sink sink;
+            if ("file".equals(sinkType)) {
+                sink = new RollingJsonFileSink(Paths.get(audit.get("file").as(evaluated()).required().asString()),
+                                               audit.get("maxFileSize").as(evaluated()).defaultTo(10485760).asLong(),
+                                               audit.get("maxFiles").as(evaluated()).defaultTo(10).asInteger());
+            } else if ("auditService".equals(sinkType)) {
+                sink = new AuditServiceSink(audit.get("auditService")
+                                                 .required()
+                                                 .as(requiredHeapObject(heap, AuditService.class)),
+                                            audit.get("topic").as(evaluated()).defaultTo("access").asString());
+            } else {
+                throw new HeapException("Unknown decisionAudit sink: " + sinkType);
+            }
+            Duration dropReportInterval = duration(audit.get("dropReportInterval")
+                                                        .as(evaluated())
+                                                        .defaultTo("1 minute")
+                                                        .asString());
+            try {
+                return new DecisionAuditor(audit.get("bufferSize").as(evaluated()).defaultTo(8192).asInteger(),
+                                           sink,
+                                           dropReportInterval.to(TimeUnit.NANOSECONDS));
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid decisionAudit configuration", e);
+            }
+        }
+
+        /**
+         * Deploys the hot keys endpoint ({@literal heavyHitters}), listing the shares, clients and RPTs (hashed) with
+         * the highest request rate, {@literal 401} rate and introspection time (see {@link HeavyHitters}):
+         * <pre>
+         *     {@code "heavyHitters": {
+         *           "enabled": true,
+         *           "topK": 20,
+         *           "width": 2048,
+         *           "depth": 4,
+         *           "decayInterval": "1 minute"
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * The sketches are shared by the filters of all the tenants.
+         */
+        private void configureHeavyHitters(final JsonValue heavyHittersConfig) throws HeapException {
+            Duration decayInterval = duration(heavyHittersConfig.get("decayInterval")
+                                                                .as(evaluated())
+                                                                .defaultTo("1 minute")
+                                                                .asString());
+            if (decayInterval.isUnlimited() || decayInterval.isZero()) {
+                throw new HeapException("heavyHitters.decayInterval must be a finite, positive duration");
+            }
+            long nanos = decayInterval.to(TimeUnit.NANOSECONDS);
+            int width = heavyHittersConfig.get("width").as(evaluated()).defaultTo(2048).asInteger();
+            int depth = heavyHittersConfig.get("depth").as(evaluated()).defaultTo(4).asInteger();
+            int topK = heavyHittersConfig.get("topK").as(evaluated()).defaultTo(20).asInteger();
+            try {
+                heavyHitters = new HeavyHitters(width, depth, topK, nanos);
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid heavyHitters configuration", e);
+            }
+            final HeavyHitters hitters = heavyHitters;
+            ScheduledExecutorService scheduler = heavyHittersConfig.get("executor")
+                                                                   .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                                   .as(requiredHeapObject(heap,
+                                                                           ScheduledExecutorService.class));
+            heavyHittersDecay = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    hitters.decay();
+                }
+            }, nanos, nanos, TimeUnit.NANOSECONDS);
+            EndpointRegistry.Registration endpoint = endpointRegistry().register("heavyHitters", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Response response = new Response(Status.OK);
+                    response.setEntity(hitters.snapshot());
+                    return newResponsePromise(response);
+                }
+            });
+            logger.info("UMA heavy hitters enabled at '{}'", endpoint.getPath());
+        }
+
+        @Override
+        public void destroy() {
+            for (Map.Entry<UmaSharingServiceExt, DecisionCache> registration : revokedDecisions.entrySet()) {
+                registration.getKey().removeDecisionCache(registration.getValue());
+            }
+            revokedDecisions.clear();
+            if (heavyHittersDecay != null) {
+                heavyHittersDecay.cancel(false);
+                heavyHittersDecay = null;
+            }
+            if (decisionAuditor != null) {
+                decisionAuditor.stop(TimeUnit.SECONDS.toNanos(5));
+                decisionAuditor = null;
+            }
+            super.destroy();
+        }
+
+        private TicketAdmissionControl createTicketAdmissionControl(final JsonValue rateLimit) throws HeapException {
+            String key = rateLimit.get("key").as(evaluated()).defaultTo("client").asString();
+            int rate = rateLimit.get("rate").as(evaluated()).required().asInteger();
+            Duration period = duration(rateLimit.get("period").as(evaluated()).defaultTo("1 second").asString());
+            int burst = rateLimit.get("burst").as(evaluated()).defaultTo(rate).asInteger();
+            int maxBuckets = rateLimit.get("maxBuckets").as(evaluated()).defaultTo(100000).asInteger();
+            JsonValue client = rateLimit.get("client");
+            try {
+                return new TicketAdmissionControl(TicketAdmissionControl.KeyType.valueOf(key.toUpperCase(Locale.ROOT)),
+                                                  client.isNull() ? null : client.as(expression(String.class)),
+                                                  rate, period.to(TimeUnit.NANOSECONDS), burst, maxBuckets);
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid ticketRateLimit configuration", e);
+            }
+        }
+    }
+
+    /**
+     * Protects each request with the filter of the tenant it is resolved to (per route with a constant
+     * {@literal tenant}, or per request with an expression): requests of unknown tenants are rejected with a
+     * {@literal 404}.
+     */
+    static final class TenantFilter implements Filter {
+
+        private final Expression<String> tenant;
+        private final Map<String, Filter> filters;
+
+        TenantFilter(final Expression<String> tenant, final Map<String, Filter> filters) {
+            this.tenant = tenant;
+            this.filters = filters;
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                              final Request request,
+                                                              final Handler next) {
+            String name = tenant.eval(bindings(context, request));
+            Filter filter = name != null ? filters.get(name) : null;
+            if (filter == null) {
+                logger.debug("Unknown UMA tenant {} for {}", name, request.getUri());
+                return newResponsePromise(new Response(Status.NOT_FOUND));
+            }
+            return filter.filter(context, request, next);
         }
     }
 
     private class VerifyScopesAsyncFunction implements AsyncFunction<Response, Response, NeverThrowsException> {
-        private final ShareExt share;
+        private final List<ShareExt> shares;
+        private final String rpt;
         private final Context context;
         private final Request request;
         private final Handler next;
+        private final RequestDeadline deadline;
 
-        public VerifyScopesAsyncFunction(final ShareExt share,
+        public VerifyScopesAsyncFunction(final List<ShareExt> shares,
+                                         final String rpt,
                                          final Context context,
                                          final Request request,
-                                         final Handler next) {
-            this.share = share;
+                                         final Handler next,
+                                         final RequestDeadline deadline) {
+            this.shares = shares;
+            this.rpt = rpt;
             this.context = context;
             this.request = request;
             this.next = next;
+            this.deadline = deadline;
         }
 
         @Override
         public Promise<Response, NeverThrowsException> apply(final Response token) {
+            if (deadline.getExhaustedStage() != null) {
+                closeSilently(token);
+                return deadlineExceeded(context, request, shares, deadline);
+            }
 
             if (Status.OK == token.getStatus()) {
-                JsonValue value = null;
+                // Only read the permissions of these shares (if any), not the full response
+                ResourceScopes granted = shares.size() == 1
+                        ? new ResourceScopes(shares.get(0).getResourceId(), scopes)
+                        : new ResourceScopes(resourceIds(shares), scopes);
+                Introspection introspection;
                 try {
-                    value = json(token.getEntity().getJson());
+                    introspection = parseIntrospection(token.getEntity().newDecodedContentInputStream(), granted);
                 } catch (IOException e) {
                     logger.debug("Cannot extract JSON from token introspection response, possibly malformed JSON");
                     return newResponsePromise(newInternalServerError(e));
                 }
-                if (value.get("active").asBoolean()) {
+                if (introspection.isActive()) {
                     // Got a valid token
                     // Need to verify embed scopes against required scopes
 
-                    if (getScopes(value, share.getResourceId()).containsAll(scopes)) {
+                    if (granted.isSatisfied()) {
                         // All required scopes are present, continue the request processing
+                        for (ShareExt share : shares) {
+                            decisionCache.allow(share.getId(), rpt, introspection.getExp());
+                        }
+                        audit(Decision.ALLOWED, 0, context, request, shares, null);
                         return next.handle(context, request);
                     }
 
                     logger.trace("Insufficient scopes encoded in RPT, asking for a new ticket");
                     // Not all of the required scopes are in the token
-                    // Error case: ask for a ticket, append an error code
-                    return ticket(context, share, request)
-                            .thenOnResult(new ResultHandler<Response>() {
-                                @Override
-                                public void handleResult(final Response response) {
-
-                                    // Update the Authorization header with a proper error code
-                                    String authorization = response.getHeaders()
-                                            .getFirst("WWW-Authenticate");
-                                    if (authorization != null) {
-                                        authorization = authorization.concat(", error=\"insufficient_scope\"");
-                                        response.getHeaders().put("WWW-Authenticate", authorization);
-                                    }
-                                }
-                            });
+                    // Error case: ask for a ticket (for the missing permissions only), append an error code
+                    return ticket(context, insufficient(shares, granted), request, Decision.INSUFFICIENT_SCOPE,
+                                  "insufficient_scope", deadline)
+                            .thenOnResult(INSUFFICIENT_SCOPE_ERROR);
                 }
             }
 
             // Error case: ask for a ticket
-            return ticket(context, share, request);
+            return ticket(context, shares, request, Decision.TICKET,
+                          Status.OK == token.getStatus() ? "inactive_rpt" : "introspection_failed", deadline);
         }
+    }
 
-        private List<String> getScopes(final JsonValue value, final String resourceId) {
-            for (JsonValue permission : value.get("permissions")) {
-                if (resourceId.equals(permission.get("resource_id").asString())) {
-                    return permission.get("resource_scopes").asList(String.class);
+    /**
+     * Resolves an ambiguous request to the candidate share of an owner granted by the RPT, as introspected with the
+     * PAT of this owner.
+     */
+    private class ResolveShareAsyncFunction implements AsyncFunction<Response, Response, NeverThrowsException> {
+        private final List<ShareExt> candidates;
+        private final List<List<ShareExt>> owners;
+        private final int owner;
+        private final String rpt;
+        private final Context context;
+        private final Request request;
+        private final Handler next;
+        private final RequestDeadline deadline;
+
+        ResolveShareAsyncFunction(final List<ShareExt> candidates,
+                                  final List<List<ShareExt>> owners,
+                                  final int owner,
+                                  final String rpt,
+                                  final Context context,
+                                  final Request request,
+                                  final Handler next,
+                                  final RequestDeadline deadline) {
+            this.candidates = candidates;
+            this.owners = owners;
+            this.owner = owner;
+            this.rpt = rpt;
+            this.context = context;
+            this.request = request;
+            this.next = next;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> apply(final Response token) {
+            if (deadline.getExhaustedStage() != null) {
+                closeSilently(token);
+                return deadlineExceeded(context, request, candidates, deadline);
+            }
+            List<ShareExt> shares = owners.get(owner);
+            String detail = "introspection_failed";
+            if (Status.OK == token.getStatus()) {
+                // The candidate resource ids, indexed: a single pass over the RPT permissions
+                ResourceScopes granted = new ResourceScopes(resourceIds(shares), scopes);
+                Introspection introspection;
+                try {
+                    introspection = parseIntrospection(token.getEntity().newDecodedContentInputStream(), granted);
+                } catch (IOException e) {
+                    logger.debug("Cannot extract JSON from token introspection response, possibly malformed JSON");
+                    return newResponsePromise(newInternalServerError(e));
+                }
+                detail = "inactive_rpt";
+                if (introspection.isActive()) {
+                    for (ShareExt candidate : shares) {
+                        if (granted.isSatisfied(candidate.getResourceId())) {
+                            decisionCache.allow(candidate.getId(), rpt, introspection.getExp());
+                            audit(Decision.ALLOWED, 0, context, request, Collections.singletonList(candidate),
+                                  "resolved_from_rpt");
+                            return next.handle(context, request);
+                        }
+                    }
+                    for (ShareExt candidate : shares) {
+                        if (granted.isPresent(candidate.getResourceId())) {
+                            // The RPT designates this share, without enough scopes
+                            return ticket(context, Collections.singletonList(candidate), request,
+                                          Decision.INSUFFICIENT_SCOPE, "insufficient_scope", deadline)
+                                    .thenOnResult(INSUFFICIENT_SCOPE_ERROR);
+                        }
+                    }
+                    detail = "no_matching_permission";
                 }
             }
-            return Collections.emptyList();
+            if (owner + 1 < owners.size()) {
+                // The RPT may be granted for the shares of another owner, introspected with the PAT of this owner
+                closeSilently(token);
+                return resolveShare(context, request, next, candidates, owners, owner + 1, rpt, deadline);
+            }
+            return tickets(context, candidates, request, detail, deadline);
+        }
+    }
+
+    private static List<String> resourceIds(final List<ShareExt> shares) {
+        List<String> resourceIds = new ArrayList<>(shares.size());
+        for (ShareExt share : shares) {
+            resourceIds.add(share.getResourceId());
+        }
+        return resourceIds;
+    }
+
+    private static List<ShareExt> insufficient(final List<ShareExt> shares, final ResourceScopes granted) {
+        if (shares.size() == 1) {
+            return shares;
+        }
+        List<ShareExt> insufficient = new ArrayList<>();
+        for (ShareExt share : shares) {
+            if (!granted.isSatisfied(share.getResourceId())) {
+                insufficient.add(share);
+            }
         }
+        return insufficient;
     }
 
     private class TicketResponseFunction implements Function<Response, Response, NeverThrowsException> {
@@ -289,15 +1221,14 @@ public class UmaResourceServerFilterExt implements Filter {
                 if (Status.CREATED == response.getStatus()) {
                     // Create a new response with authenticate header and status code
                     try {
-                        JsonValue value = json(response.getEntity().getJson());
-                        Response unauthorized = new Response(Status.UNAUTHORIZED);
-                        String ticket = value.get("ticket").asString();
-                        unauthorized.getHeaders().put("WWW-Authenticate",
-                                format("UMA realm=\"%s\", as_uri=\"%s\", ticket=\"%s\"",
-                                        realm,
-                                        umaService.getAuthorizationServer(),
-                                        ticket));
-                        return unauthorized;
+                        String ticket = parseTicket(response.getEntity().newDecodedContentInputStream());
+                        if (ticket != null) {
+                            Response unauthorized = new Response(Status.UNAUTHORIZED);
+                            unauthorized.getHeaders().put("WWW-Authenticate",
+                                    authenticateHeaderPrefix.concat(ticket).concat("\""));
+                            return unauthorized;
+                        }
+                        logger.debug("No ticket in the permission request response");
                     } catch (IOException e) {
                         // JSON parsing exception
                         // Do not process them here, handle them in the later catch-all block
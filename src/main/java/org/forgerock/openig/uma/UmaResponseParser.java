@@ -0,0 +1,317 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming extraction of the few fields the UMA filter needs from the AS responses.
+ * <p>
+ * <p>Introspection responses may carry large {@literal permissions} arrays: instead of building a full JSON tree,
+ * the response is read with a pull parser, only {@literal active}, {@literal exp} and the scopes of the wanted
+ * permissions are retained, and parsing stops as soon as everything needed has been seen.
+ */
+final class UmaResponseParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Receives the scopes of the permissions found in an introspection response.
+     *
+     * @param <T> per-permission accumulator type
+     */
+    interface PermissionCollector<T> {
+
+        /**
+         * Selects a permission.
+         *
+         * @param resourceId permission {@literal resource_id}
+         * @return the accumulator to which the permission scopes must be granted, {@code null} to ignore it
+         */
+        T select(String resourceId);
+
+        /**
+         * Grants a scope of a selected permission.
+         *
+         * @param target accumulator returned by {@link #select(String)}
+         * @param scope  granted scope
+         */
+        void grant(T target, String scope);
+
+        /**
+         * Returns {@code true} once all the wanted permissions have been seen.
+         *
+         * @return {@code true} if parsing can stop
+         */
+        boolean isComplete();
+    }
+
+    /**
+     * Collects the scopes granted for one or more resources, against a route {@link ScopeSet}.
+     */
+    static final class ResourceScopes implements PermissionCollector<long[]> {
+        private final String resourceId;
+        private final Map<String, Integer> indexes;
+        private final ScopeSet required;
+        private final long[][] granted;
+        private final boolean[] found;
+        private int remaining;
+
+        ResourceScopes(final String resourceId, final ScopeSet required) {
+            this.resourceId = resourceId;
+            this.indexes = null;
+            this.required = required;
+            this.granted = new long[][] {required.newMask()};
+            this.found = new boolean[1];
+            this.remaining = 1;
+        }
+
+        ResourceScopes(final List<String> resourceIds, final ScopeSet required) {
+            this.resourceId = null;
+            this.indexes = new HashMap<>();
+            for (String id : resourceIds) {
+                if (!indexes.containsKey(id)) {
+                    indexes.put(id, indexes.size());
+                }
+            }
+            this.required = required;
+            this.granted = new long[indexes.size()][];
+            for (int i = 0; i < granted.length; i++) {
+                granted[i] = required.newMask();
+            }
+            this.found = new boolean[granted.length];
+            this.remaining = granted.length;
+        }
+
+        @Override
+        public long[] select(final String resourceId) {
+            int index;
+            if (indexes == null) {
+                index = this.resourceId.equals(resourceId) ? 0 : -1;
+            } else {
+                Integer i = indexes.get(resourceId);
+                index = i != null ? i : -1;
+            }
+            if (index < 0 || found[index]) {
+                return null;
+            }
+            found[index] = true;
+            remaining--;
+            return granted[index];
+        }
+
+        @Override
+        public void grant(final long[] target, final String scope) {
+            required.mark(target, scope);
+        }
+
+        @Override
+        public boolean isComplete() {
+            return remaining == 0;
+        }
+
+        /**
+         * Returns {@code true} if all the required scopes have been granted for all the resources.
+         *
+         * @return {@code true} if all the required scopes have been granted
+         */
+        boolean isSatisfied() {
+            for (long[] mask : granted) {
+                if (!required.isSatisfiedBy(mask)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns {@code true} if all the required scopes have been granted for the given resource.
+         *
+         * @param resourceId resource identifier
+         * @return {@code true} if all the required scopes have been granted for that resource
+         */
+        boolean isSatisfied(final String resourceId) {
+            if (indexes == null) {
+                return this.resourceId.equals(resourceId) && required.isSatisfiedBy(granted[0]);
+            }
+            Integer index = indexes.get(resourceId);
+            return index != null && required.isSatisfiedBy(granted[index]);
+        }
+
+        /**
+         * Returns {@code true} if the token holds a permission (with whatever scopes) for the given resource.
+         *
+         * @param resourceId resource identifier
+         * @return {@code true} if a permission was found for that resource
+         */
+        boolean isPresent(final String resourceId) {
+            if (indexes == null) {
+                return this.resourceId.equals(resourceId) && found[0];
+            }
+            Integer index = indexes.get(resourceId);
+            return index != null && found[index];
+        }
+    }
+
+    /**
+     * The retained part of an introspection response.
+     */
+    static final class Introspection {
+        private boolean active;
+        private long exp;
+
+        boolean isActive() {
+            return active;
+        }
+
+        /**
+         * Returns the token expiration time in seconds since the epoch, or {@code 0} if not provided.
+         *
+         * @return the token expiration time
+         */
+        long getExp() {
+            return exp;
+        }
+    }
+
+    private UmaResponseParser() {
+    }
+
+    /**
+     * Reads an introspection response.
+     *
+     * @param in        response content (closed by this method)
+     * @param collector receives the scopes of the wanted permissions
+     * @param <T>       per-permission accumulator type
+     * @return the token state
+     * @throws IOException if the content is not a JSON object
+     */
+    static <T> Introspection parseIntrospection(final InputStream in,
+                                                final PermissionCollector<T> collector) throws IOException {
+        Introspection result = new Introspection();
+        boolean activeSeen = false;
+        boolean expSeen = false;
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            expectObject(parser);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("active".equals(name)) {
+                    activeSeen = true;
+                    result.active = value == JsonToken.VALUE_TRUE;
+                    if (!result.active) {
+                        // Nothing else matters
+                        return result;
+                    }
+                } else if ("exp".equals(name) && value.isNumeric()) {
+                    expSeen = true;
+                    result.exp = parser.getLongValue();
+                } else if ("permissions".equals(name) && value == JsonToken.START_ARRAY) {
+                    parsePermissions(parser, collector);
+                } else {
+                    parser.skipChildren();
+                }
+                if (activeSeen && expSeen && collector.isComplete()) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static <T> void parsePermissions(final JsonParser parser,
+                                             final PermissionCollector<T> collector) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token != JsonToken.START_OBJECT || collector.isComplete()) {
+                parser.skipChildren();
+                continue;
+            }
+            T target = null;
+            boolean selected = false;
+            List<String> pending = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("resource_id".equals(name) && value == JsonToken.VALUE_STRING) {
+                    selected = true;
+                    target = collector.select(parser.getText());
+                    if (target != null && pending != null) {
+                        for (String scope : pending) {
+                            collector.grant(target, scope);
+                        }
+                    }
+                } else if ("resource_scopes".equals(name) && value == JsonToken.START_ARRAY) {
+                    while ((value = parser.nextToken()) != JsonToken.END_ARRAY && value != null) {
+                        if (value != JsonToken.VALUE_STRING) {
+                            parser.skipChildren();
+                        } else if (target != null) {
+                            collector.grant(target, parser.getText());
+                        } else if (!selected) {
+                            // Scopes listed before the resource_id: keep them until we know
+                            if (pending == null) {
+                                pending = new ArrayList<>();
+                            }
+                            pending.add(parser.getText());
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the {@literal ticket} of a permission request response.
+     *
+     * @param in response content (closed by this method)
+     * @return the ticket, or {@code null} if absent
+     * @throws IOException if the content is not a JSON object
+     */
+    static String parseTicket(final InputStream in) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            expectObject(parser);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("ticket".equals(name) && value == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+        }
+        return null;
+    }
+
+    private static void expectObject(final JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expecting a JSON object");
+        }
+    }
+}
@@ -25,36 +25,71 @@ import org.forgerock.http.MutableUri;
 import org.forgerock.http.oauth2.OAuth2;
 import org.forgerock.http.protocol.*;
 import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
 import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.json.resource.DeleteRequest;
+import org.forgerock.json.resource.PreconditionFailedException;
 import org.forgerock.json.resource.http.HttpContext;
 import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.openig.http.EndpointRegistry;
 import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
+import org.forgerock.util.promise.ExceptionHandler;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import static java.lang.String.format;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.json.JsonValueFunctions.uri;
 import static org.forgerock.json.resource.Resources.newHandler;
 import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.CrestUtil.newCrestApplication;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.util.Utils.closeSilently;
 import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.util.time.Duration.duration;
 
 /**
  * An {@link UmaSharingService} provides core UMA features to OpenIG when acting as an UMA Resource Server.
@@ -75,6 +110,9 @@ import static org.forgerock.util.promise.Promises.newExceptionPromise;
  *           "config": {
  *               "protectionApiHandler": "ClientHandler",
  *               "authorizationServerUri": "http://openam51.example.com:8282/openam",
+ *               "authorizationServerUris": [ "http://openam52.example.com:8282/openam" ],
+ *               "hedging": { "enabled": true, "percentile": 95 },
+ *               "blockingExecutor": { "mode": "virtual", "maxThreads": 64 },
  *               "realm": "/employees",
  *               "ldapHost": "192.168.56.122",
  *               "ldapPort": 3389,
@@ -92,7 +130,10 @@ import static org.forgerock.util.promise.Promises.newExceptionPromise;
  */
 public class UmaSharingServiceExt {
 
+    private static final Logger logger = LoggerFactory.getLogger(UmaSharingServiceExt.class);
+
     private final Handler protectionApiHandler;
+    private final AuthorizationServerPool authorizationServerPool;
     private final URI authorizationServer;
     private final URI introspectionEndpoint;
     private final URI permissionEndpoint;
@@ -100,7 +141,28 @@ public class UmaSharingServiceExt {
     private final String clientId;
     private final String clientSecret;
     private final String realm;
+    private final String lookupKeyPrefix;
     private LDAPManager ldapManager;
+    private ShareLookupCache shareLookupCache = new ShareLookupCache(0, 0);
+    private PatVault patVault;
+    private BlockingCallExecutor blockingCallExecutor = BlockingCallExecutor.CALLER;
+    private volatile ShareUriFilter shareUriFilter;
+    private volatile ShareUriFilter buildingShareUriFilter;
+    /** Shares listed by the last filter catch-up: the next one lists them again (catch-up window). */
+    private Set<String> shareUriFilterCaughtUp = Collections.emptySet();
+    private long shareUriFilterCatchUpWindowMillis;
+    private long shareIndexCatchUpWindowMillis;
+    private volatile ShareIndex shareIndex;
+    private volatile ShareIndex buildingShareIndex;
+    private boolean offHeapShareIndex;
+    private ShareChangeFeed changeFeed;
+    private SharePeerChannel peerChannel;
+    private final List<DecisionCache> decisionCaches = new CopyOnWriteArrayList<>();
+    private final Set<String> quarantinedShares = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> pendingRemovals = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private UmaTenant tenant;
+    private Map<String, UmaSharingServiceExt> tenants = Collections.emptyMap();
+    private volatile boolean ready = true;
 
 
     /**
@@ -120,17 +182,611 @@ public class UmaSharingServiceExt {
                                 final String clientSecret,
                                 final LDAPManager ldapManager)
             throws URISyntaxException {
+        this(protectionApiHandler,
+             realm,
+             new AuthorizationServerPool(Collections.singletonList(
+                     new AuthorizationServerNode(authorizationServerURI, realm))),
+             clientId,
+             clientSecret,
+             ldapManager);
+    }
+
+    /**
+     * Constructs an UmaSharingService bound to a pool of equivalent UMA Authorization Server nodes.
+     *
+     * @param protectionApiHandler    used to call the resource registration endpoint
+     * @param realm                   UMA realm
+     * @param authorizationServerPool Bound UMA Authorization Server nodes
+     * @param clientId                OAuth 2.0 Client identifier
+     * @param clientSecret            OAuth 2.0 Client secret
+     * @param ldapManager             LDAP share store
+     */
+    UmaSharingServiceExt(final Handler protectionApiHandler,
+                         final String realm,
+                         final AuthorizationServerPool authorizationServerPool,
+                         final String clientId,
+                         final String clientSecret,
+                         final LDAPManager ldapManager) {
         this.protectionApiHandler = protectionApiHandler;
-        this.authorizationServer = authorizationServerURI;
+        this.authorizationServerPool = authorizationServerPool;
         // TODO Should find theses values looking at the .well-known/uma2-configuration endpoint
 
+        AuthorizationServerNode primary = authorizationServerPool.getPrimary();
+        this.authorizationServer = primary.getBaseUri();
         this.realm = realm;
-        this.introspectionEndpoint = authorizationServer.resolve("oauth2" + realm + "/introspect");
-        this.permissionEndpoint = authorizationServer.resolve("uma" + realm + "/permission_request");
-        this.resourceRegistrationEndpoint = authorizationServer.resolve("uma" + realm + "/resource_set");
+        this.introspectionEndpoint = primary.getIntrospectionEndpoint();
+        this.permissionEndpoint = primary.getPermissionEndpoint();
+        this.resourceRegistrationEndpoint = primary.getResourceRegistrationEndpoint();
         this.clientId = clientId;
         this.clientSecret = clientSecret;
         this.ldapManager = ldapManager;
+        this.lookupKeyPrefix = ShareExt.lookupKeyPrefix(realm, clientId);
+    }
+
+    /**
+     * Sets the cache of the shares resolved by {@link #findShare(Request)}.
+     *
+     * @param shareLookupCache share lookup cache
+     */
+    void setShareLookupCache(final ShareLookupCache shareLookupCache) {
+        this.shareLookupCache = shareLookupCache;
+    }
+
+    /**
+     * Returns {@code true} once the service is warmed up and can take traffic.
+     *
+     * @return {@code true} if the service is ready
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    void setReady(final boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * Sets the executor running the blocking LDAP sections of {@link #findShareAsync(Request, RequestDeadline)},
+     * {@link #removeShare(Context, DeleteRequest, String, String)} and of the share endpoint.
+     *
+     * @param blockingCallExecutor blocking sections executor
+     */
+    void setBlockingCallExecutor(final BlockingCallExecutor blockingCallExecutor) {
+        this.blockingCallExecutor = blockingCallExecutor;
+    }
+
+    /**
+     * Runs a blocking section (LDAP search or update) with the configured executor, off the calling thread unless
+     * the executor mode is {@literal caller}. A tenant has at most {@code maxConcurrentCalls} sections on the
+     * executor, the others wait in its queue.
+     *
+     * @param call blocking section
+     * @param <V>  result type
+     * @param <E>  exception type
+     * @return a promise completed with the call outcome
+     */
+    <V, E extends Exception> Promise<V, E> offload(final BlockingCallExecutor.BlockingCall<V, E> call) {
+        final UmaTenant tenant = this.tenant;
+        if (tenant == null || blockingCallExecutor == BlockingCallExecutor.CALLER) {
+            return blockingCallExecutor.execute(call);
+        }
+        // Over the tenant quota, the call waits for one of the tenant calls to complete: it neither takes more of
+        // the shared executor nor a container thread
+        final PromiseImpl<V, E> promise = PromiseImpl.create();
+        tenant.submitCall(new Runnable() {
+            @Override
+            public void run() {
+                Promise<V, E> outcome;
+                try {
+                    outcome = blockingCallExecutor.execute(call);
+                } catch (RuntimeException e) {
+                    // Executor shut down
+                    tenant.releaseCall();
+                    promise.handleRuntimeException(e);
+                    return;
+                }
+                // Released first: the next stage of the caller may offload again
+                outcome.thenAlways(new Runnable() {
+                    @Override
+                    public void run() {
+                        tenant.releaseCall();
+                    }
+                }).thenOnResult(new ResultHandler<V>() {
+                    @Override
+                    public void handleResult(final V result) {
+                        promise.handleResult(result);
+                    }
+                }).thenOnException(new ExceptionHandler<E>() {
+                    @Override
+                    public void handleException(final E exception) {
+                        promise.handleException(exception);
+                    }
+                }).thenOnRuntimeException(new RuntimeExceptionHandler() {
+                    @Override
+                    public void handleRuntimeException(final RuntimeException exception) {
+                        promise.handleRuntimeException(exception);
+                    }
+                });
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Binds this service to a tenant of a multi-tenant service: applies its quotas and records its metrics.
+     *
+     * @param tenant tenant of this service
+     */
+    void setTenant(final UmaTenant tenant) {
+        this.tenant = tenant;
+    }
+
+    UmaTenant getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Sets the services of the tenants hosted with this one (itself included), sharing its LDAP store, protection
+     * API handler, executor and caches.
+     *
+     * @param tenants tenant services by tenant name
+     */
+    void setTenants(final Map<String, UmaSharingServiceExt> tenants) {
+        this.tenants = tenants;
+    }
+
+    /**
+     * Returns the services of the hosted tenants.
+     *
+     * @return the tenant services by tenant name, empty if this service is not multi-tenant
+     */
+    Map<String, UmaSharingServiceExt> getTenants() {
+        return tenants;
+    }
+
+    /**
+     * Returns the number of shares of this service realm and client, at most {@code limit}.
+     *
+     * @param limit maximum count
+     * @return the number of shares, at most {@code limit}
+     * @throws LdapException if the shares cannot be counted
+     */
+    int countShares(final int limit) throws LdapException {
+        ShareIndex index = shareIndex;
+        if (index != null) {
+            return Math.min(index.size(), limit);
+        }
+        List<String> ids = new ArrayList<>();
+        ldapManager.listShareIds(new ShareExt(null, null, null, realm, clientId), ids, limit);
+        return ids.size();
+    }
+
+    /**
+     * (Re)builds the Bloom filter of the shared URIs of this realm and client from the LDAP store. Until the first
+     * build completes, every URI is looked up in LDAP.
+     *
+     * @param expectedShares    expected number of shares, used to size the filter
+     * @param falsePositiveRate acceptable false positive rate
+     * @throws LdapException if the shares cannot be listed (the previous filter is kept)
+     */
+    synchronized void rebuildShareUriFilter(final long expectedShares,
+                                            final double falsePositiveRate) throws LdapException {
+        final ShareUriFilter filter = new ShareUriFilter(expectedShares, falsePositiveRate);
+        // Shares created meanwhile are added to both filters
+        buildingShareUriFilter = filter;
+        try {
+            filter.setChangeMarker(ldapManager.searchSharesCreatedSince(new ShareExt(null, null, null, realm, clientId),
+                                                                        null,
+                                                                        new LDAPManager.ShareVisitor() {
+                @Override
+                public void visit(final ShareExt share) {
+                    filter.add(share.getRequestURI());
+                }
+            }));
+        } finally {
+            buildingShareUriFilter = null;
+        }
+        filter.setReady();
+        shareUriFilter = filter;
+        shareUriFilterCaughtUp = Collections.emptySet();
+    }
+
+    /**
+     * Adds to the Bloom filter the URIs of the shares created since its change marker, through this gateway or
+     * another one. A URI added twice (created here, then caught up) is only removed from the filter by the next
+     * rebuild: this may cause false positives, never false negatives.
+     *
+     * @throws LdapException if the shares cannot be listed (the filter is left as is)
+     */
+    synchronized void catchUpShareUriFilter() throws LdapException {
+        final ShareUriFilter filter = shareUriFilter;
+        if (filter == null) {
+            return;
+        }
+        final Set<String> previous = shareUriFilterCaughtUp;
+        final Set<String> listed = new HashSet<>();
+        String marker = ldapManager.searchSharesCreatedSince(new ShareExt(null, null, null, realm, clientId),
+                                                             filter.getChangeMarker(),
+                                                             shareUriFilterCatchUpWindowMillis,
+                                                             new LDAPManager.ShareVisitor() {
+            @Override
+            public void visit(final ShareExt share) {
+                listed.add(share.getId());
+                if (!previous.contains(share.getId())) {
+                    filter.add(share.getRequestURI());
+                    ShareUriFilter building = buildingShareUriFilter;
+                    if (building != null) {
+                        building.add(share.getRequestURI());
+                    }
+                }
+            }
+        });
+        if (marker != null) {
+            filter.setChangeMarker(marker);
+        }
+        shareUriFilterCaughtUp = listed;
+    }
+
+    ShareUriFilter getShareUriFilter() {
+        return shareUriFilter;
+    }
+
+    /**
+     * Sets the safety window subtracted from the change marker of the Bloom filter catch-ups (see
+     * {@link LDAPManager#searchSharesCreatedSince(ShareExt, String, long, LDAPManager.ShareVisitor)}).
+     *
+     * @param windowMillis catch-up window
+     */
+    void setShareUriFilterCatchUpWindow(final long windowMillis) {
+        this.shareUriFilterCatchUpWindowMillis = windowMillis;
+    }
+
+    /**
+     * Sets the safety window subtracted from the change marker of the owner index catch-ups (see
+     * {@link LDAPManager#searchSharesCreatedSince(ShareExt, String, long, LDAPManager.ShareVisitor)}).
+     *
+     * @param windowMillis catch-up window
+     */
+    void setShareIndexCatchUpWindow(final long windowMillis) {
+        this.shareIndexCatchUpWindowMillis = windowMillis;
+    }
+
+    /**
+     * (Re)loads the owner index of the shares of this realm and client from the LDAP store. Until the first load
+     * completes, share reads and queries search LDAP.
+     *
+     * @throws LdapException if the shares cannot be listed (the previous index is kept)
+     */
+    synchronized void reloadShareIndex() throws LdapException {
+        final ShareIndex index = newShareIndex();
+        // Shares created or removed meanwhile are applied to both indexes
+        buildingShareIndex = index;
+        try {
+            index.setChangeMarker(ldapManager.searchSharesCreatedSince(new ShareExt(null, null, null, realm, clientId),
+                                                                       null,
+                                                                       new LDAPManager.ShareVisitor() {
+                @Override
+                public void visit(final ShareExt share) {
+                    index.add(share);
+                }
+            }));
+        } finally {
+            buildingShareIndex = null;
+        }
+        shareIndex = index;
+    }
+
+    /**
+     * Brings the owner index up to date with the LDAP store: adds the shares created since its change marker (minus
+     * the catch-up window), and reconciles the index with an identifiers-only search of all the shares: the shares
+     * that no longer exist are dropped, and the shares missing from the index are read by id. The latter reached this
+     * replica too late for any window (long replication delay, clock skew), and would otherwise never be indexed, as
+     * catch-ups replace the full reloads in snapshot mode. Falls back to a full {@linkplain #reloadShareIndex()
+     * reload} when the index has no change marker.
+     *
+     * @throws LdapException if the shares cannot be listed (the index is left as is)
+     */
+    synchronized void catchUpShareIndex() throws LdapException {
+        final ShareIndex index = shareIndex;
+        if (index == null || index.getChangeMarker() == null) {
+            reloadShareIndex();
+            return;
+        }
+        ShareExt probe = new ShareExt(null, null, null, realm, clientId);
+        // Only the shares known before the sweep may be dropped: shares created meanwhile are not listed yet
+        Set<String> known = new HashSet<>();
+        for (ShareExt share : index.values()) {
+            known.add(share.getId());
+        }
+        final LDAPManager.ShareVisitor caughtUp = new LDAPManager.ShareVisitor() {
+            @Override
+            public void visit(final ShareExt share) {
+                if (changeFeed != null && index.get(share.getId()) == null) {
+                    // Created through another gateway
+                    changeFeed.created(share);
+                }
+                index.add(share);
+            }
+        };
+        String marker = ldapManager.searchSharesCreatedSince(probe,
+                                                             index.getChangeMarker(),
+                                                             shareIndexCatchUpWindowMillis,
+                                                             caughtUp);
+        Set<String> existing = new HashSet<>();
+        ldapManager.listShareIds(probe, existing);
+        for (String id : existing) {
+            if (index.get(id) == null) {
+                ShareExt missing = new ShareExt(null, null, null, realm, clientId);
+                missing.setId(id);
+                for (ShareExt share : ldapManager.getShare(missing)) {
+                    logger.debug("Share {} reached the LDAP store after the index change marker", id);
+                    caughtUp.visit(share);
+                }
+            }
+        }
+        known.removeAll(existing);
+        for (String removed : known) {
+            ShareExt share = index.get(removed);
+            unindexShare(removed);
+            shareLookupCache.invalidateShare(removed);
+            revokeDecisions(removed);
+            if (changeFeed != null && share != null) {
+                changeFeed.removed(share);
+            }
+        }
+        index.setChangeMarker(marker);
+    }
+
+    /**
+     * Serves the share reads and queries from the given (snapshot) index, until the next reload.
+     *
+     * @param index owner index of the shares of this realm and client
+     */
+    void setShareIndex(final ShareIndex index) {
+        this.shareIndex = index;
+    }
+
+    /**
+     * Records the share creations and removals in the given feed, served by the share endpoint.
+     *
+     * @param changeFeed share change feed
+     */
+    void setChangeFeed(final ShareChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    /**
+     * Evicts the cached allow decisions of the shares removed (here or on a peer gateway) from the given cache.
+     *
+     * @param decisionCache decision cache of a filter using this service
+     */
+    void addDecisionCache(final DecisionCache decisionCache) {
+        decisionCaches.add(decisionCache);
+    }
+
+    /**
+     * Stops evicting the decisions of the given cache, once its filter is destroyed.
+     *
+     * @param decisionCache decision cache of a filter using this service
+     */
+    void removeDecisionCache(final DecisionCache decisionCache) {
+        decisionCaches.remove(decisionCache);
+    }
+
+    private void revokeDecisions(final String shareId) {
+        for (DecisionCache decisionCache : decisionCaches) {
+            decisionCache.invalidateShare(shareId);
+        }
+    }
+
+    /**
+     * Tells the peer gateways about the shares created and removed through this service, and applies theirs (see
+     * {@link SharePeerChannel}).
+     *
+     * @param peerChannel share peers channel
+     */
+    void setPeerChannel(final SharePeerChannel peerChannel) {
+        this.peerChannel = peerChannel;
+        peerChannel.register(realm, clientId, new SharePeerChannel.Listener() {
+            @Override
+            public void created(final String shareId, final String uri, final String userId) {
+                peerCreated(shareId, uri, userId);
+            }
+
+            @Override
+            public void removed(final String shareId, final String uri, final String userId) {
+                peerRemoved(shareId, uri, userId);
+            }
+        });
+    }
+
+    SharePeerChannel getPeerChannel() {
+        return peerChannel;
+    }
+
+    /**
+     * Applies a share creation made through a peer gateway: the lookups of its URI that found nothing are
+     * invalidated, and the share is read from LDAP into the owner index (its PAT is never on the wire). A share not
+     * replicated to our directory yet is picked up by the next index catch-up.
+     */
+    private void peerCreated(final String shareId, final String uri, final String userId) {
+        if (uri != null) {
+            addSharedUri(uri);
+            shareLookupCache.invalidate(lookupKeyPrefix, uri, userId);
+            shareLookupCache.invalidate(lookupKeyPrefix, uri, null);
+        }
+        if (userId == null || (shareIndex == null && changeFeed == null)) {
+            return;
+        }
+        offload(new BlockingCallExecutor.BlockingCall<Void, RuntimeException>() {
+            @Override
+            public Void call() {
+                ShareIndex index = shareIndex;
+                boolean known = index != null && index.get(shareId) != null;
+                ShareExt share = known ? null : getShare(shareId, userId);
+                if (share != null && changeFeed != null) {
+                    changeFeed.created(share);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Applies a share removal made through a peer gateway, once confirmed in LDAP: a message cannot make a share that
+     * still exists disappear from the index. Until the confirmation, the lookups no longer serve the share from the
+     * index but from LDAP. A removal not replicated to our directory yet is picked up by the next index catch-up. The
+     * URI filter is left as is: a peer message may arrive before the filter counted the URI, and a stale URI only
+     * costs a lookup until the next rebuild.
+     */
+    private void peerRemoved(final String shareId, final String uri, final String userId) {
+        // Only costs a lookup if the share still exists
+        pendingRemovals.add(shareId);
+        shareLookupCache.invalidateShare(shareId);
+        offload(new BlockingCallExecutor.BlockingCall<Void, RuntimeException>() {
+            @Override
+            public Void call() {
+                ShareExt probe = new ShareExt(null, null, userId, realm, clientId);
+                probe.setId(shareId);
+                try {
+                    if (!ldapManager.getShare(probe).isEmpty()) {
+                        logger.debug("Ignoring the peer removal of share {}: still in OpenIG LDAP", shareId);
+                        return null;
+                    }
+                } catch (LdapException e) {
+                    logger.warn("Cannot confirm the peer removal of share {}, left to the index catch-up", shareId, e);
+                    return null;
+                }
+                ShareIndex index = shareIndex;
+                ShareExt share = index != null ? index.get(shareId) : null;
+                unindexShare(shareId);
+                revokeDecisions(shareId);
+                if (changeFeed != null && (index == null || share != null)) {
+                    if (share == null) {
+                        share = new ShareExt(null, uri, userId, realm, clientId);
+                        share.setId(shareId);
+                    }
+                    changeFeed.removed(share);
+                }
+                return null;
+            }
+        }).thenAlways(new Runnable() {
+            @Override
+            public void run() {
+                pendingRemovals.remove(shareId);
+            }
+        });
+    }
+
+    /**
+     * Returns the share change feed.
+     *
+     * @return the share change feed, or {@code null} if disabled
+     */
+    ShareChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    ShareIndex getShareIndex() {
+        return shareIndex;
+    }
+
+    /**
+     * Keeps the shares of the indexes built from now on out of the Java heap (see {@link OffHeapShareIndex}).
+     *
+     * @param offHeapShareIndex {@code true} to build off-heap indexes
+     */
+    void setOffHeapShareIndex(final boolean offHeapShareIndex) {
+        this.offHeapShareIndex = offHeapShareIndex;
+    }
+
+    /**
+     * Returns a new empty share index of this realm and client.
+     *
+     * @return the new index, off-heap if so configured
+     */
+    ShareIndex newShareIndex() {
+        return offHeapShareIndex ? new OffHeapShareIndex(realm, clientId) : new ShareIndex();
+    }
+
+    /**
+     * Sets the vault holding one PAT per share owner ({@code null} to keep a PAT copy in every share).
+     *
+     * @param patVault PAT vault
+     */
+    void setPatVault(final PatVault patVault) {
+        this.patVault = patVault;
+    }
+
+    /**
+     * Returns the PAT to use on behalf of the owner of the given share: the vaulted one if any, otherwise the copy
+     * stored with the share. May read the vault from LDAP: only for the background tasks and the blocking calls.
+     *
+     * @param share share
+     * @return the owner's PAT
+     */
+    String getPAT(final ShareExt share) {
+        PatVault.Entry entry = vaultedPat(share);
+        return entry != null ? entry.getAccessToken() : share.getPAT();
+    }
+
+    /**
+     * Returns the {@literal Authorization} header value to use on behalf of the owner of the given share. A vault
+     * entry not in memory yet is read from LDAP on the blocking sections executor.
+     *
+     * @param share share
+     * @return {@literal Bearer <PAT>}
+     */
+    Promise<String, NeverThrowsException> getAuthorizationHeader(final ShareExt share) {
+        return resolvePat(share).then(new Function<PatVault.Entry, String, NeverThrowsException>() {
+            @Override
+            public String apply(final PatVault.Entry entry) {
+                return entry != null ? entry.getAuthorizationHeader() : share.getAuthorizationHeader();
+            }
+        });
+    }
+
+    private Promise<PatVault.Entry, NeverThrowsException> resolvePat(final ShareExt share) {
+        if (patVault == null) {
+            return Promises.<PatVault.Entry, NeverThrowsException>newResultPromise(null);
+        }
+        PatVault.Entry entry = share.getPatEntry();
+        if (entry == null) {
+            entry = patVault.peek(share.getUserId());
+        }
+        if (entry != null) {
+            share.setPatEntry(entry);
+            return newResultPromise(usable(entry));
+        }
+        return offload(new BlockingCallExecutor.BlockingCall<PatVault.Entry, NeverThrowsException>() {
+            @Override
+            public PatVault.Entry call() {
+                return vaultedPat(share);
+            }
+        });
+    }
+
+    private PatVault.Entry vaultedPat(final ShareExt share) {
+        if (patVault == null) {
+            return null;
+        }
+        PatVault.Entry entry = share.getPatEntry();
+        if (entry == null) {
+            entry = patVault.get(share.getUserId());
+            if (entry == null) {
+                return null;
+            }
+            share.setPatEntry(entry);
+        }
+        return usable(entry);
+    }
+
+    /**
+     * Returns the vault entry if it holds a PAT: an entry without token is for a share created before the vault was
+     * enabled.
+     */
+    private static PatVault.Entry usable(final PatVault.Entry entry) {
+        return entry.getAccessToken() != null ? entry : null;
     }
 
     /**
@@ -160,17 +816,40 @@ public class UmaSharingServiceExt {
      */
     public Promise<ShareExt, UmaException> createShare(final Context context,
                                                        final CreateRequest createRequest, final String userId) {
+        return createShare(context, createRequest, userId, 0L);
+    }
+
+    /**
+     * Creates a Share that will be used to protect the given {@code resourcePath}.
+     * <p>
+     * <p>When a PAT vault is configured, the caller's PAT (and the optional {@code refresh_token} of the request
+     * content) is vaulted for the share owner instead of being copied into the share.
+     *
+     * @param context       Context chain used to keep a relationship between requests (tracking)
+     * @param createRequest CreateRequest
+     * @param userId        share owner
+     * @param patExpiresAt  PAT expiration time in milliseconds since the epoch, {@code 0} if unknown
+     * @return the created {@link Share} asynchronously
+     */
+    Promise<ShareExt, UmaException> createShare(final Context context,
+                                                final CreateRequest createRequest,
+                                                final String userId,
+                                                final long patExpiresAt) {
         final String uri = createRequest.getContent().get("uri").asString();
         final String name = createRequest.getContent().get("name").asString();
         String type = createRequest.getContent().get("type").asString();
         List<Object> scopes = createRequest.getContent().get("scopes").asList();
 
         final String pat = OAuth2.getBearerAccessToken(((HttpContext) context.getParent()).getHeaderAsString("Authorization"));
+        final String refreshToken = createRequest.getContent().get("refresh_token").asString();
 
         if (isShared(name, uri, userId)) {
             // We do not accept re-sharing or post-creation resource configuration
             return newExceptionPromise(new UmaException(format("Share already exists with similar name: %s or uri: %s ", name, uri)));
         }
+        if (isOverShareQuota()) {
+            return newExceptionPromise(new UmaException(format("Share quota of tenant %s exceeded", tenant.getName())));
+        }
 
         return createResource(context, pat, resourceSet(name, scopes, type))
                 .then(new Function<Response, ShareExt, UmaException>() {
@@ -181,8 +860,27 @@ public class UmaSharingServiceExt {
                             try {
                                 JsonValue value = json(response.getEntity().getJson());
                                 resource_id = value.get("_id").asString();
-                                ShareExt share = new ShareExt(resource_id, name, pat, uri, value.get("user_access_policy_uri").asString(), userId, realm, clientId);
+                                String sharePat = pat;
+                                if (patVault != null) {
+                                    // One PAT per owner, referenced by all of the owner's shares
+                                    patVault.store(userId, pat, refreshToken, patExpiresAt);
+                                    sharePat = null;
+                                }
+                                ShareExt share = new ShareExt(resource_id, name, sharePat, uri, value.get("user_access_policy_uri").asString(), userId, realm, clientId);
                                 ldapManager.addShare(share);
+                                addSharedUri(uri);
+                                indexShare(share);
+                                shareLookupCache.invalidate(lookupKeyPrefix, uri, userId);
+                                shareLookupCache.invalidate(lookupKeyPrefix, uri, null);
+                                if (changeFeed != null) {
+                                    changeFeed.created(share);
+                                }
+                                if (peerChannel != null) {
+                                    peerChannel.created(share);
+                                }
+                                if (tenant != null) {
+                                    tenant.created();
+                                }
                                 return share;
                             } catch (IOException e) {
                                 //attempt to delete the resource in Authz Server so that we are consistent with the LDAP
@@ -197,6 +895,309 @@ public class UmaSharingServiceExt {
                 }, Responses.<ShareExt, UmaException>noopExceptionFunction());
     }
 
+    /**
+     * Imports a share exported from another environment (see {@link ShareMigration}): registers its resource set at
+     * the AS on behalf of its owner (with the vaulted PAT if any, else the exported one), then adds it to the LDAP
+     * store with the new resource set identifier and policy URI, keeping the share identifier.
+     *
+     * @param share  exported share
+     * @param scopes scopes of the resource set
+     * @param type   type of the resource set, may be {@code null}
+     * @return the imported share, or {@code null} if a share with the same identifier already exists
+     * @throws UmaException if the share cannot be imported (its resource set is then removed from the AS)
+     * @throws InterruptedException if interrupted while waiting for the AS
+     */
+    ShareExt importShare(final ShareExt share, final List<Object> scopes, final String type)
+            throws UmaException, InterruptedException {
+        ShareExt probe = new ShareExt(null, null, null, null, null);
+        probe.setId(share.getId());
+        final String pat = getPAT(share);
+        try {
+            if (!ldapManager.getShare(probe).isEmpty()) {
+                // Already imported (resumed import)
+                return null;
+            }
+        } catch (LdapException e) {
+            throw new UmaException("Cannot read share " + share.getId() + " from OpenIG LDAP", e);
+        }
+        if (pat == null) {
+            throw new UmaException("No PAT for the owner of share " + share.getId());
+        }
+        Response response;
+        try {
+            response = createResource(new RootContext(), pat, resourceSet(share.getResourceName(), scopes, type))
+                    .get();
+        } catch (ExecutionException e) {
+            throw new UmaException("Cannot register resource_set in AS", e.getCause());
+        }
+        String resourceId = null;
+        try {
+            if (response.getStatus() != Status.CREATED) {
+                throw new UmaException("Cannot register resource_set in AS: " + response.getEntity());
+            }
+            JsonValue value = json(response.getEntity().getJson());
+            resourceId = value.get("_id").asString();
+            ShareExt imported = new ShareExt(resourceId,
+                                             share.getResourceName(),
+                                             vaultedPat(share) != null ? null : share.getPAT(),
+                                             share.getRequestURI(),
+                                             value.get("user_access_policy_uri").asString(),
+                                             share.getUserId(),
+                                             realm,
+                                             clientId);
+            imported.setId(share.getId());
+            ldapManager.addShare(imported);
+            imported(imported);
+            return imported;
+        } catch (IOException e) {
+            if (resourceId != null) {
+                deleteResource(new RootContext(), pat, resourceId);
+            }
+            throw new UmaException("Cannot import share " + share.getId() + " in OpenIG LDAP", e);
+        } finally {
+            closeSilently(response);
+        }
+    }
+
+    /**
+     * Applies a share added to the LDAP store by an import, as if it was created through this service.
+     *
+     * @param share imported share
+     */
+    void imported(final ShareExt share) {
+        String uri = share.getRequestURI();
+        addSharedUri(uri);
+        indexShare(share);
+        shareLookupCache.invalidate(lookupKeyPrefix, uri, share.getUserId());
+        shareLookupCache.invalidate(lookupKeyPrefix, uri, null);
+        if (changeFeed != null) {
+            changeFeed.created(share);
+        }
+        if (peerChannel != null) {
+            peerChannel.created(share);
+        }
+        if (tenant != null) {
+            tenant.created();
+        }
+    }
+
+    /**
+     * Lists the identifiers of the resource sets registered at the AS by this client on behalf of the owner of the
+     * given share (see {@link ShareReconciler}).
+     *
+     * @param share share of the owner
+     * @return the resource set identifiers, or an {@link UmaException} if they cannot be listed (like an expired PAT)
+     */
+    Promise<Set<String>, UmaException> listResourceSetIds(final ShareExt share) {
+        final String pat = getPAT(share);
+        if (pat == null) {
+            return newExceptionPromise(new UmaException("No PAT for the owner of share " + share.getId()));
+        }
+        return authorizationServerPool.send(new RootContext(), protectionApiHandler,
+                                            new AuthorizationServerPool.RequestFactory() {
+            @Override
+            public Request newRequest(final AuthorizationServerNode node) {
+                Request request = new Request();
+                request.setMethod("GET");
+                request.setUri(node.getResourceRegistrationEndpoint());
+                request.getHeaders().put("Authorization", format("Bearer %s", pat));
+                request.getHeaders().put("Accept", "application/json");
+                return request;
+            }
+        }, false).then(new Function<Response, Set<String>, UmaException>() {
+            @Override
+            public Set<String> apply(final Response response) throws UmaException {
+                try {
+                    if (response.getStatus() != Status.OK) {
+                        throw new UmaException("Cannot list the resource sets at the AS: " + response.getStatus());
+                    }
+                    Set<String> ids = new HashSet<>();
+                    for (JsonValue id : json(response.getEntity().getJson())) {
+                        ids.add(id.asString());
+                    }
+                    return ids;
+                } catch (IOException | JsonValueException e) {
+                    throw new UmaException("Cannot read the resource sets listed by the AS", e);
+                } finally {
+                    closeSilently(response);
+                }
+            }
+        }, Responses.<Set<String>, UmaException>noopExceptionFunction());
+    }
+
+    /**
+     * Checks whether the resource set of the given share is registered at the AS.
+     *
+     * @param share share
+     * @return {@code true} if the AS has the resource set, {@code false} if it answered it does not, or an
+     * {@link UmaException} if it cannot tell
+     */
+    Promise<Boolean, UmaException> hasResourceSet(final ShareExt share) {
+        final String pat = getPAT(share);
+        if (pat == null) {
+            return newExceptionPromise(new UmaException("No PAT for the owner of share " + share.getId()));
+        }
+        return authorizationServerPool.send(new RootContext(), protectionApiHandler,
+                                            new AuthorizationServerPool.RequestFactory() {
+            @Override
+            public Request newRequest(final AuthorizationServerNode node) {
+                Request request = new Request();
+                request.setMethod("GET");
+                request.setUri(URI.create(node.getResourceRegistrationEndpoint().toString() + "/"
+                                                  + share.getResourceId()));
+                request.getHeaders().put("Authorization", format("Bearer %s", pat));
+                request.getHeaders().put("Accept", "application/json");
+                return request;
+            }
+        }, false).then(new Function<Response, Boolean, UmaException>() {
+            @Override
+            public Boolean apply(final Response response) throws UmaException {
+                try {
+                    if (response.getStatus() == Status.OK) {
+                        return true;
+                    }
+                    if (response.getStatus() == Status.NOT_FOUND) {
+                        return false;
+                    }
+                    throw new UmaException("Cannot read the resource set at the AS: " + response.getStatus());
+                } finally {
+                    closeSilently(response);
+                }
+            }
+        }, Responses.<Boolean, UmaException>noopExceptionFunction());
+    }
+
+    /**
+     * Removes from the AS a resource set that no share references, on behalf of the owner of the given share.
+     *
+     * @param share      share of the owner
+     * @param resourceId orphan resource set
+     * @return {@code true} if the AS removed it
+     */
+    Promise<Boolean, NeverThrowsException> removeOrphanResourceSet(final ShareExt share, final String resourceId) {
+        String pat = getPAT(share);
+        if (pat == null) {
+            return newResultPromise(false);
+        }
+        return deleteResource(new RootContext(), pat, resourceId)
+                .then(new Function<Response, Boolean, NeverThrowsException>() {
+                    @Override
+                    public Boolean apply(final Response response) {
+                        closeSilently(response);
+                        return response.getStatus() == Status.NO_CONTENT;
+                    }
+                });
+    }
+
+    /**
+     * Removes a share whose resource set is gone from the AS, as if its owner removed it.
+     *
+     * @param share orphan share
+     * @throws LdapException if the share cannot be removed (it is left as is)
+     */
+    void removeOrphanShare(final ShareExt share) throws LdapException {
+        String shareId = share.getId();
+        // Not removed if it changed since it was verified
+        ldapManager.removeShare(shareId, share.getRevision());
+        quarantinedShares.remove(shareId);
+        shareLookupCache.invalidateShare(shareId);
+        revokeDecisions(shareId);
+        removeSharedUri(share.getRequestURI());
+        unindexShare(shareId);
+        if (changeFeed != null) {
+            changeFeed.removed(share);
+        }
+        if (peerChannel != null) {
+            peerChannel.removed(share);
+        }
+        if (tenant != null) {
+            tenant.removed();
+        }
+    }
+
+    /**
+     * Stops serving a share whose resource set is gone from the AS: its lookups fail as if it did not exist, instead
+     * of failing later on the permission ticket call. The share is kept in LDAP for inspection.
+     *
+     * @param shareId orphan share
+     */
+    void quarantineShare(final String shareId) {
+        if (quarantinedShares.add(shareId)) {
+            shareLookupCache.invalidateShare(shareId);
+            revokeDecisions(shareId);
+        }
+    }
+
+    /**
+     * Serves again a quarantined share whose resource set is back at the AS.
+     *
+     * @param shareId share identifier
+     */
+    void releaseShare(final String shareId) {
+        quarantinedShares.remove(shareId);
+    }
+
+    int getQuarantinedShareCount() {
+        return quarantinedShares.size();
+    }
+
+    private boolean isOverShareQuota() {
+        if (tenant == null || tenant.getMaxShares() <= 0) {
+            return false;
+        }
+        try {
+            if (countShares(tenant.getMaxShares()) < tenant.getMaxShares()) {
+                return false;
+            }
+        } catch (LdapException e) {
+            // Not enforced while the shares cannot be counted
+            return false;
+        }
+        tenant.rejected();
+        return true;
+    }
+
+    private void addSharedUri(final String uri) {
+        ShareUriFilter filter = shareUriFilter;
+        if (filter != null) {
+            filter.add(uri);
+        }
+        ShareUriFilter building = buildingShareUriFilter;
+        if (building != null) {
+            building.add(uri);
+        }
+    }
+
+    private void indexShare(final ShareExt share) {
+        ShareIndex index = shareIndex;
+        if (index != null) {
+            index.add(share);
+        }
+        ShareIndex building = buildingShareIndex;
+        if (building != null) {
+            building.add(share);
+        }
+    }
+
+    private void unindexShare(final String shareId) {
+        ShareIndex index = shareIndex;
+        if (index != null) {
+            index.remove(shareId);
+        }
+        ShareIndex building = buildingShareIndex;
+        if (building != null) {
+            building.remove(shareId);
+        }
+    }
+
+    private void removeSharedUri(final String uri) {
+        // Not removed from a filter being built: it may not have counted that URI yet
+        ShareUriFilter filter = shareUriFilter;
+        if (filter != null) {
+            filter.remove(uri);
+        }
+    }
+
     /**
      * Check the share already exists with same share name or URI for a given user / realm / OAuth Client
      *
@@ -213,82 +1214,404 @@ public class UmaSharingServiceExt {
                 return true;
             }
 
-            // Pass 2
-            matchingShareExt = new ShareExt(null, uri, userId, realm, clientId);
-            if (ldapManager.getShare(matchingShareExt).size() != 0) {
-                return true;
+            // Pass 2
+            matchingShareExt = new ShareExt(null, uri, userId, realm, clientId);
+            if (ldapManager.getShare(matchingShareExt).size() != 0) {
+                return true;
+            }
+
+            //TODO Better option is to optimize LDAP filter for above search
+        } catch (LdapException e) {
+            return false;
+        }
+        return false;
+    }
+
+    private Promise<Response, NeverThrowsException> createResource(final Context context,
+                                                                      final String pat,
+                                                                      final JsonValue data) {
+        // Resource registration is not idempotent: never hedged
+        return authorizationServerPool.send(context, protectionApiHandler, new AuthorizationServerPool.RequestFactory() {
+            @Override
+            public Request newRequest(final AuthorizationServerNode node) {
+                Request request = new Request();
+                request.setMethod("POST");
+                request.setUri(node.getResourceRegistrationEndpoint());
+                request.getHeaders().put("Authorization", format("Bearer %s", pat));
+                request.getHeaders().put("Accept", "application/json");
+
+                request.setEntity(data.asMap());
+                return request;
+            }
+        }, false);
+    }
+
+    private Promise<Response, NeverThrowsException> deleteResource(final Context context,
+                                                                      final String pat,
+                                                                      final String resource_id) {
+
+        return authorizationServerPool.send(context, protectionApiHandler, new AuthorizationServerPool.RequestFactory() {
+            @Override
+            public Request newRequest(final AuthorizationServerNode node) {
+                Request request = new Request();
+                request.setMethod("DELETE");
+                request.setUri(URI.create(node.getResourceRegistrationEndpoint().toString() + "/" + resource_id));
+                request.getHeaders().put("Authorization", format("Bearer %s", pat));
+                return request;
+            }
+        }, false);
+    }
+
+    private JsonValue resourceSet(final String name, final List<Object> scopes, final String type) {
+        return json(object(field("name", name),
+                field("resource_scopes", scopes), field("type", type)));
+    }
+
+    /**
+     * Find a {@link ShareExt}.
+     *
+     * @param request the incoming requesting party request
+     * @return a {@link ShareExt} to be used to protect the resource access
+     * @throws UmaException when no {@link ShareExt} can handle the request.
+     */
+    public ShareExt findShare(Request request) throws UmaException {
+        return findShare(request, 0);
+    }
+
+    private ShareExt findShare(final Request request, final int timeLimit) throws UmaException {
+
+        // Need to find which Share to use (cached for a short time, looked up without building a key)
+        String requestURI = request.getUri().getPath();
+        String userId = userId(request);
+
+        ShareExt cached = shareLookupCache.get(lookupKeyPrefix, requestURI, userId);
+        if (cached != null) {
+            return checkNotQuarantined(cached);
+        }
+
+        ShareUriFilter filter = shareUriFilter;
+        if (filter != null && !filter.mightContain(requestURI)) {
+            // Definitely not shared: no need to ask the directory
+            throw new UmaException(format("Can't find any shared resource for %s", requestURI));
+        }
+
+        ShareExt matchShareExt = new ShareExt(null, requestURI, userId, realm, clientId);
+
+        try {
+            Set<ShareExt> shares = ldapManager.getShare(matchShareExt, timeLimit);
+            if (shares.size() == 1) {
+                // Never cached while quarantined
+                ShareExt share = checkNotQuarantined(shares.iterator().next());
+                shareLookupCache.put(lookupKeyPrefix, requestURI, userId, share);
+                return share;
+            } else if (shares.size() > 1) {
+                throw new UmaException(format("More than 1 shared resource found for %s, Need more context such as 'userId' to locate resource", requestURI));
+            }
+        } catch (LdapException e) {
+            throw new UmaException(format("Can't find any shared resource for %s", requestURI));
+        }
+        throw new UmaException(format("Can't find any shared resource for %s", requestURI));
+    }
+
+    /**
+     * Resolves the share of a request as {@link #findShare(Request)} does, and keeps it in the share lookup cache for
+     * the given time (warm-up).
+     *
+     * @param request      synthetic request, with the {@literal userId} header of the lookup if it had one
+     * @param timeoutNanos time the share is kept in the share lookup cache
+     * @return the share
+     * @throws UmaException when no share can handle the request
+     */
+    ShareExt preloadShare(final Request request, final long timeoutNanos) throws UmaException {
+        ShareExt share = findShare(request);
+        shareLookupCache.put(lookupKeyPrefix, request.getUri().getPath(), userId(request), share, timeoutNanos);
+        return share;
+    }
+
+    /**
+     * Returns the cached share lookups of this service with the most hits.
+     *
+     * @param max maximum number of lookups
+     * @return the request URI and optional owner of the lookups, by decreasing hits
+     */
+    List<String[]> getHottestLookups(final int max) {
+        return shareLookupCache.hottest(lookupKeyPrefix, max);
+    }
+
+    private ShareExt checkNotQuarantined(final ShareExt share) throws UmaException {
+        if (isQuarantined(share)) {
+            // Its resource set is gone from the AS: a permission ticket cannot be requested for it
+            throw quarantined(share);
+        }
+        return share;
+    }
+
+    private boolean isQuarantined(final ShareExt share) {
+        return !quarantinedShares.isEmpty() && quarantinedShares.contains(share.getId());
+    }
+
+    private static UmaException quarantined(final ShareExt share) {
+        return new UmaException(format("Share %s is quarantined: its resource set is missing from the AS",
+                                       share.getId()));
+    }
+
+    /**
+     * Finds a {@link ShareExt} asynchronously: cached shares and URIs that are definitely not shared are resolved
+     * on the calling thread, the LDAP search (if any) runs with the configured blocking sections executor, within the
+     * remaining budget of the request (it is skipped when the budget is gone before it starts).
+     *
+     * @param request  the incoming requesting party request
+     * @param deadline deadline of the request
+     * @return a {@link ShareExt} to be used to protect the resource access, or an {@link UmaException} when no
+     * {@link ShareExt} can handle the request
+     */
+    Promise<ShareExt, UmaException> findShareAsync(final Request request, final RequestDeadline deadline) {
+        if (tenant != null) {
+            tenant.lookedUp();
+        }
+        String requestURI = request.getUri().getPath();
+        ShareExt cached = shareLookupCache.get(lookupKeyPrefix, requestURI, userId(request));
+        if (cached != null) {
+            if (isQuarantined(cached)) {
+                return newExceptionPromise(quarantined(cached));
+            }
+            return newResultPromise(cached);
+        }
+        ShareUriFilter filter = shareUriFilter;
+        if (filter != null && !filter.mightContain(requestURI)) {
+            return newExceptionPromise(new UmaException(format("Can't find any shared resource for %s", requestURI)));
+        }
+        return offload(new BlockingCallExecutor.BlockingCall<ShareExt, UmaException>() {
+            @Override
+            public ShareExt call() throws UmaException {
+                checkDeadline(deadline);
+                return findShare(request, deadline.ldapTimeLimit());
+            }
+        });
+    }
+
+    /**
+     * Finds the candidate shares of a request in one lookup: like {@link #findShareAsync(Request, RequestDeadline)}, except that when
+     * several owners share the request URI (and there is no {@literal userId} header), all their shares are returned
+     * instead of failing, so that the caller can pick the one granted by the RPT.
+     *
+     * @param request       the incoming requesting party request
+     * @param maxCandidates maximum number of candidate shares
+     * @param deadline      deadline of the request
+     * @return the candidate shares ordered by share identifier (a single one when the request is not ambiguous), or
+     * an {@link UmaException} when there is none or more than {@code maxCandidates}
+     */
+    Promise<List<ShareExt>, UmaException> findCandidateSharesAsync(final Request request,
+                                                                   final int maxCandidates,
+                                                                   final RequestDeadline deadline) {
+        if (tenant != null) {
+            tenant.lookedUp();
+        }
+        final String requestURI = request.getUri().getPath();
+        final String userId = userId(request);
+        ShareExt cached = shareLookupCache.get(lookupKeyPrefix, requestURI, userId);
+        if (cached != null) {
+            if (isQuarantined(cached)) {
+                return newExceptionPromise(quarantined(cached));
+            }
+            return newResultPromise(Collections.singletonList(cached));
+        }
+        ShareUriFilter filter = shareUriFilter;
+        if (filter != null && !filter.mightContain(requestURI)) {
+            return newExceptionPromise(new UmaException(format("Can't find any shared resource for %s", requestURI)));
+        }
+        return offload(new BlockingCallExecutor.BlockingCall<List<ShareExt>, UmaException>() {
+            @Override
+            public List<ShareExt> call() throws UmaException {
+                checkDeadline(deadline);
+                List<ShareExt> candidates = findCandidateShares(requestURI, userId, deadline.ldapTimeLimit());
+                if (candidates.isEmpty()) {
+                    throw new UmaException(format("Can't find any shared resource for %s", requestURI));
+                }
+                if (candidates.size() == 1) {
+                    shareLookupCache.put(lookupKeyPrefix, requestURI, userId, candidates.get(0));
+                } else if (candidates.size() > maxCandidates) {
+                    throw new UmaException(format("More than %d shared resources found for %s", maxCandidates, requestURI));
+                }
+                return candidates;
+            }
+        });
+    }
+
+    private List<ShareExt> findCandidateShares(final String requestURI,
+                                               final String userId,
+                                               final int timeLimit) throws UmaException {
+        List<ShareExt> candidates = new ArrayList<>();
+        ShareIndex index = shareIndex;
+        if (index != null) {
+            for (ShareExt share : index.listByUri(requestURI)) {
+                if (userId == null || userId.equals(share.getUserId())) {
+                    candidates.add(share);
+                }
             }
-
-            //TODO Better option is to optimize LDAP filter for above search
+            if (servedByIndex(candidates)) {
+                return withoutQuarantined(candidates);
+            }
+            candidates.clear();
+        }
+        try {
+            candidates.addAll(ldapManager.getShare(new ShareExt(null, requestURI, userId, realm, clientId),
+                                                   timeLimit));
         } catch (LdapException e) {
-            return false;
+            throw new UmaException(format("Can't find any shared resource for %s", requestURI));
         }
-        return false;
-    }
-
-    private Promise<Response, NeverThrowsException> createResource(final Context context,
-                                                                      final String pat,
-                                                                      final JsonValue data) {
-        Request request = new Request();
-        request.setMethod("POST");
-        request.setUri(resourceRegistrationEndpoint);
-        request.getHeaders().put("Authorization", format("Bearer %s", pat));
-        request.getHeaders().put("Accept", "application/json");
-
-        request.setEntity(data.asMap());
-
-        return protectionApiHandler.handle(context, request);
+        Collections.sort(candidates, new Comparator<ShareExt>() {
+            @Override
+            public int compare(final ShareExt share1, final ShareExt share2) {
+                return share1.getId().compareTo(share2.getId());
+            }
+        });
+        return withoutQuarantined(candidates);
     }
 
-    private Promise<Response, NeverThrowsException> deleteResource(final Context context,
-                                                                      final String pat,
-                                                                      final String resource_id) {
-
-        Request request = new Request();
-        request.setMethod("DELETE");
-        request.setUri(authorizationServer.resolve(resourceRegistrationEndpoint.toString() + "/" + resource_id));
-        request.getHeaders().put("Authorization", format("Bearer %s", pat));
-
-        return protectionApiHandler.handle(context, request);
+    /**
+     * Tells whether the shares read from the index can answer a lookup. An empty result falls back to LDAP, the share
+     * may have been created through another gateway since the last index catch-up (the lookup cache and the URI filter
+     * keep those fallbacks rare), and so does a result holding a share whose removal through a peer gateway is being
+     * confirmed.
+     */
+    private boolean servedByIndex(final List<ShareExt> shares) {
+        if (shares.isEmpty()) {
+            return false;
+        }
+        if (!pendingRemovals.isEmpty()) {
+            for (ShareExt share : shares) {
+                if (pendingRemovals.contains(share.getId())) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
-    private JsonValue resourceSet(final String name, final List<Object> scopes, final String type) {
-        return json(object(field("name", name),
-                field("resource_scopes", scopes), field("type", type)));
+    /**
+     * Removes the quarantined shares from the candidate shares of a request.
+     *
+     * @return the remaining candidates
+     * @throws UmaException if all the candidates are quarantined
+     */
+    private List<ShareExt> withoutQuarantined(final List<ShareExt> candidates) throws UmaException {
+        if (quarantinedShares.isEmpty() || candidates.isEmpty()) {
+            return candidates;
+        }
+        List<ShareExt> served = new ArrayList<>(candidates.size());
+        for (ShareExt candidate : candidates) {
+            if (!isQuarantined(candidate)) {
+                served.add(candidate);
+            }
+        }
+        if (served.isEmpty()) {
+            throw quarantined(candidates.get(0));
+        }
+        return served;
     }
 
     /**
-     * Find a {@link ShareExt}.
+     * Finds all the shares whose URI matches the given pattern, for routes that need access to several shared
+     * resources at once. All the shares must belong to the same owner (the optional {@literal userId} header
+     * restricts the search to one owner), so that a single permission ticket can be requested for all of them.
      *
-     * @param request the incoming requesting party request
-     * @return a {@link ShareExt} to be used to protect the resource access
-     * @throws UmaException when no {@link ShareExt} can handle the request.
+     * @param request    the incoming requesting party request
+     * @param uriPattern pattern selecting the shared URIs
+     * @param maxShares  maximum number of shares a request may need
+     * @param deadline   deadline of the request
+     * @return the matching shares ordered by share identifier, or an {@link UmaException} when there is none, when
+     * they belong to several owners, or when there are too many of them
      */
-    public ShareExt findShare(Request request) throws UmaException {
-
-        // Need to find which Share to use
-        String requestURI = request.getUri().getPath();
-
-        // Check if userId header is present
-        Header userIdHeader = request.getHeaders().get("userId");
-        String userId = null;
-        if (null != userIdHeader) {
-            userId = userIdHeader.getFirstValue();
+    Promise<List<ShareExt>, UmaException> findSharesAsync(final Request request,
+                                                          final Pattern uriPattern,
+                                                          final int maxShares,
+                                                          final RequestDeadline deadline) {
+        if (tenant != null) {
+            tenant.lookedUp();
         }
+        final String userId = userId(request);
+        return offload(new BlockingCallExecutor.BlockingCall<List<ShareExt>, UmaException>() {
+            @Override
+            public List<ShareExt> call() throws UmaException {
+                checkDeadline(deadline);
+                return findShares(userId, uriPattern, maxShares, deadline.ldapTimeLimit());
+            }
+        });
+    }
 
-        ShareExt matchShareExt = new ShareExt(null, requestURI, userId, realm, clientId);
+    private List<ShareExt> findShares(final String userId,
+                                      final Pattern uriPattern,
+                                      final int maxShares,
+                                      final int timeLimit) throws UmaException {
+        final List<ShareExt> shares = new ArrayList<>();
+        ShareIndex index = shareIndex;
+        if (index != null) {
+            for (ShareExt share : userId != null ? index.listByOwner(userId) : index.values()) {
+                if (uriPattern.matcher(share.getRequestURI()).matches()) {
+                    shares.add(share);
+                }
+            }
+            if (!servedByIndex(shares)) {
+                shares.clear();
+            }
+        }
+        if (shares.isEmpty()) {
+            try {
+                ldapManager.searchShares(new ShareExt(null, null, userId, realm, clientId),
+                                         new LDAPManager.ShareVisitor() {
+                    @Override
+                    public void visit(final ShareExt share) {
+                        if (uriPattern.matcher(share.getRequestURI()).matches()) {
+                            shares.add(share);
+                        }
+                    }
+                }, 0, timeLimit);
+            } catch (LdapException e) {
+                throw new UmaException(format("Can't find any shared resource for %s", uriPattern));
+            }
+        }
 
-        try {
-            Set<ShareExt> shares = ldapManager.getShare(matchShareExt);
-            if (shares.size() == 1) {
-                return shares.iterator().next();
-            } else if (shares.size() > 1) {
-                throw new UmaException(format("More than 1 shared resource found for %s, Need more context such as 'userId' to locate resource", requestURI));
+        if (shares.isEmpty()) {
+            throw new UmaException(format("Can't find any shared resource for %s", uriPattern));
+        }
+        for (ShareExt share : shares) {
+            // A request needing a quarantined share cannot be granted (no ticket can cover it)
+            checkNotQuarantined(share);
+        }
+        if (shares.size() > maxShares) {
+            throw new UmaException(format("More than %d shared resources found for %s", maxShares, uriPattern));
+        }
+        String owner = shares.get(0).getUserId();
+        for (ShareExt share : shares) {
+            if (!owner.equals(share.getUserId())) {
+                throw new UmaException(format("Shared resources of several users found for %s, Need more context such as 'userId' to locate resources", uriPattern));
             }
-        } catch (LdapException e) {
-            throw new UmaException(format("Can't find any shared resource for %s", requestURI));
         }
-        throw new UmaException(format("Can't find any shared resource for %s", requestURI));
+        Collections.sort(shares, new Comparator<ShareExt>() {
+            @Override
+            public int compare(final ShareExt share1, final ShareExt share2) {
+                return share1.getId().compareTo(share2.getId());
+            }
+        });
+        return shares;
+    }
+
+    /**
+     * Skips a share lookup that waited for the blocking sections executor past the request deadline.
+     */
+    private static void checkDeadline(final RequestDeadline deadline) throws UmaException {
+        if (deadline.exhausted(RequestDeadline.Stage.SHARE_LOOKUP)) {
+            throw new UmaException("Request deadline exceeded before looking for a UMA share");
+        }
+    }
+
+    /**
+     * Returns the value of the optional {@literal userId} header, used to disambiguate shares of the same URI.
+     */
+    private static String userId(final Request request) {
+        Header userIdHeader = request.getHeaders().get("userId");
+        return userIdHeader != null ? userIdHeader.getFirstValue() : null;
     }
 
     /**
@@ -298,32 +1621,87 @@ public class UmaSharingServiceExt {
      * @param shareId share identifier
      * @return the removed Share instance if found, {@code null} otherwise.
      */
-    public Promise<ShareExt, UmaException> removeShare(final Context context, final DeleteRequest request, String shareId, final String userId) {
-
-        ShareExt shareExt = getShare(shareId, userId);
-        if (shareExt != null) {
-           //delete share from Authz Server
-           return deleteResource(context, shareExt.getPAT(), shareExt.getResourceId())
-                    .then(new Function<Response, ShareExt, UmaException>() {
-                        @Override
-                        public ShareExt apply(final Response response) throws UmaException {
-                            if (response.getStatus() == Status.NO_CONTENT) {
-                                try {
-                                    ldapManager.removeShare(shareId);
-                                    return shareExt;
-                                } catch (LdapException e) {
-                                    throw new UmaException("Cannot remove resource from IG LDAP, but it has been removed from AS", e);
-                                }
-                            }
-                            throw new UmaException("Cannot remove resource from AS (so removal from IG LDAP not attempted): " + response.getEntity());
-                        }
-                    }, Responses.<ShareExt, UmaException>noopExceptionFunction());
-        }
-        return newExceptionPromise(new UmaException(format("Share does not exist with _id: %s or user_id: %s ", shareId, userId)));
+    public Promise<ShareExt, UmaException> removeShare(final Context context, final DeleteRequest request, final String shareId, final String userId) {
+
+        return offload(new BlockingCallExecutor.BlockingCall<ShareExt, UmaException>() {
+            @Override
+            public ShareExt call() throws UmaException {
+                ShareExt shareExt = getShare(shareId, userId);
+                if (shareExt == null) {
+                    throw new UmaException(format("Share does not exist with _id: %s or user_id: %s ", shareId, userId));
+                }
+                // If-Match: checked before removing anything
+                String revision = request.getRevision();
+                if (revision != null && shareExt.getRevision() != null && !revision.equals(shareExt.getRevision())) {
+                    throw revisionMismatch(shareId, revision);
+                }
+                // LDAP first: a resource set left at the AS is harmless (and reconciled), a share left without its
+                // resource set is not
+                removeShare(shareExt);
+                return shareExt;
+            }
+        }).thenAsync(new AsyncFunction<ShareExt, ShareExt, UmaException>() {
+            @Override
+            public Promise<ShareExt, UmaException> apply(final ShareExt shareExt) {
+                return removeResourceSet(context, shareExt);
+            }
+        });
     }
 
+    private static UmaException revisionMismatch(final String shareId, final String revision) {
+        String message = format("Share %s is not at revision %s", shareId, revision);
+        return new UmaException(message, new PreconditionFailedException(message));
+    }
 
+    /**
+     * Removes a share from LDAP (blocking), provided it did not change since it was read.
+     */
+    private void removeShare(final ShareExt shareExt) throws UmaException {
+        final String shareId = shareExt.getId();
+        try {
+            // The directory checks the entry did not change since it was read
+            ldapManager.removeShare(shareId, shareExt.getRevision());
+        } catch (LdapException e) {
+            if (e.getResult().getResultCode() == ResultCode.ASSERTION_FAILED) {
+                throw revisionMismatch(shareId, shareExt.getRevision());
+            }
+            throw new UmaException("Cannot remove resource from IG LDAP (so removal from AS not attempted)", e);
+        }
+        quarantinedShares.remove(shareId);
+        shareLookupCache.invalidateShare(shareId);
+        revokeDecisions(shareId);
+        removeSharedUri(shareExt.getRequestURI());
+        unindexShare(shareId);
+        if (changeFeed != null) {
+            changeFeed.removed(shareExt);
+        }
+        if (peerChannel != null) {
+            peerChannel.removed(shareExt);
+        }
+        if (tenant != null) {
+            tenant.removed();
+        }
+    }
 
+    /**
+     * Deletes the resource set of a share already removed from LDAP. A failure leaves an AS orphan, only logged: the
+     * share is gone either way, and the reconciliation removes the leftover resource set.
+     */
+    private Promise<ShareExt, UmaException> removeResourceSet(final Context context, final ShareExt shareExt) {
+        return deleteResource(context, getPAT(shareExt), shareExt.getResourceId())
+                .then(new Function<Response, ShareExt, UmaException>() {
+                    @Override
+                    public ShareExt apply(final Response response) {
+                        // Already gone from the AS (e.g. a quarantined share) is fine
+                        if (response.getStatus() != Status.NO_CONTENT && response.getStatus() != Status.NOT_FOUND) {
+                            logger.warn("Share {} removed from IG LDAP, but not its resource set {} from the AS: {}",
+                                        shareExt.getId(), shareExt.getResourceId(), response.getStatus());
+                        }
+                        closeSilently(response);
+                        return shareExt;
+                    }
+                }, Responses.<ShareExt, UmaException>noopExceptionFunction());
+    }
 
     /**
      * Returns the {@link ShareExt} with the given {@code id}.
@@ -332,13 +1710,25 @@ public class UmaSharingServiceExt {
      * @return the {@link ShareExt} with the given {@code id} (or {@code null} if none was found).
      */
     public ShareExt getShare(final String shareId, final String userId) {
+        ShareIndex index = shareIndex;
+        if (index != null) {
+            ShareExt share = pendingRemovals.contains(shareId) ? null : index.get(shareId);
+            if (share != null) {
+                return userId == null || userId.equals(share.getUserId()) ? share : null;
+            }
+            // Possibly created through another gateway since the last index load, or removed through another
+            // gateway: check LDAP
+        }
+
         ShareExt matchShareExt = new ShareExt(null, null, userId, realm, clientId);
         matchShareExt.setId(shareId);
 
         try {
             Set<ShareExt> shares = ldapManager.getShare(matchShareExt);
             if (shares.size() != 0) {
-                return shares.iterator().next();
+                ShareExt share = shares.iterator().next();
+                indexShare(share);
+                return share;
             }
         } catch (LdapException e) {
             return null;
@@ -353,6 +1743,11 @@ public class UmaSharingServiceExt {
      */
     public Set<ShareExt> listShares(String userId) {
 
+        ShareIndex index = shareIndex;
+        if (index != null) {
+            return index.listByOwner(userId);
+        }
+
         ShareExt matchShareExt = new ShareExt(null, null, userId, realm, clientId);
 
         try {
@@ -362,6 +1757,15 @@ public class UmaSharingServiceExt {
         }
     }
 
+    /**
+     * Returns the pool of UMA authorization server nodes used for the protection API calls.
+     *
+     * @return the pool of UMA authorization server nodes.
+     */
+    AuthorizationServerPool getAuthorizationServerPool() {
+        return authorizationServerPool;
+    }
+
     /**
      * Returns the UMA authorization server base Uri.
      *
@@ -389,6 +1793,15 @@ public class UmaSharingServiceExt {
         return introspectionEndpoint;
     }
 
+    /**
+     * Returns the realm of the shares of this service.
+     *
+     * @return the realm of the shares of this service.
+     */
+    String getRealm() {
+        return realm;
+    }
+
     /**
      * Returns the client identifier used to identify this RS as an OAuth 2.0 client.
      *
@@ -418,6 +1831,18 @@ public class UmaSharingServiceExt {
     public static class Heaplet extends GenericHeaplet {
 
         private static final Logger logger = LoggerFactory.getLogger(UmaSharingServiceExt.Heaplet.class);
+        private static final String DEFAULT_TENANT = "default";
+
+        private LDAPManager ldapManager;
+        private PatVault patVault;
+        private BlockingCallExecutor blockingCallExecutor;
+        private SharePeerChannel peerChannel;
+        private ShareMigration migration;
+        private final List<ShareReconciler> reconcilers = new ArrayList<>();
+        private final List<Runnable> shareIndexSnapshotWriters = new ArrayList<>();
+        private Thread warmUpThread;
+        private Runnable hotSharesWriter;
+        private final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();
 
         private static String startsWithSlash(final String realm) {
             String nonNullRealm = realm != null ? realm : "/";
@@ -427,8 +1852,8 @@ public class UmaSharingServiceExt {
         @Override
         public Object create() throws HeapException {
             Handler handler = config.get("protectionApiHandler").required().as(requiredHeapObject(heap, Handler.class));
-            URI uri = config.get("authorizationServerUri").as(evaluated()).required().as(uri());
             String realm = startsWithSlash(config.get("realm").defaultTo("/").asString());
+            AuthorizationServerPool pool = createAuthorizationServerPool(realm);
             String clientId = config.get("clientId").as(evaluated()).required().asString();
             String clientSecret = config.get("clientSecret").as(evaluated()).required().asString();
 
@@ -440,25 +1865,892 @@ public class UmaSharingServiceExt {
             String ldapBaseDN = config.get("ldapBaseDN").as(evaluated()).defaultTo("dc=openig,dc=forgerock,dc=org").asString();
 
             try {
-                LDAPManager ldapManager = new LDAPManager(ldapHost, ldapPort, ldapAdminId, ldapAdminPassword, ldapBaseDN);
+                ldapManager = new LDAPManager(ldapHost, ldapPort, ldapAdminId, ldapAdminPassword, ldapBaseDN);
+                if (config.get("compositeKeys").as(evaluated()).defaultTo(false).asBoolean()) {
+                    enableCompositeKeys(ldapManager);
+                }
                 UmaSharingServiceExt service = new UmaSharingServiceExt(handler, realm,
-                        uri,
+                        pool,
                         clientId,
                         clientSecret,
                         ldapManager);
+                Duration shareCacheTimeout = duration(config.get("shareCacheTimeout")
+                                                            .as(evaluated())
+                                                            .defaultTo("10 seconds")
+                                                            .asString());
+                int shareCacheSize = config.get("shareCacheSize").as(evaluated()).defaultTo(10000).asInteger();
+                ShareLookupCache shareLookupCache = new ShareLookupCache(shareCacheTimeout.to(TimeUnit.NANOSECONDS),
+                                                                         shareCacheSize);
+                service.setShareLookupCache(shareLookupCache);
+                JsonValue executorConfig = config.get("blockingExecutor");
+                blockingCallExecutor = BlockingCallExecutor.create(
+                        executorConfig.get("mode").as(evaluated()).defaultTo("caller").asString(),
+                        executorConfig.get("maxThreads").as(evaluated()).defaultTo(64).asInteger(),
+                        executorConfig.get("queueSize").as(evaluated()).defaultTo(1000).asInteger());
+                service.setBlockingCallExecutor(blockingCallExecutor);
+                logger.info("UMA blocking calls executor mode: {}", blockingCallExecutor.getMode());
+                JsonValue patVaultConfig = config.get("patVault");
+                if (patVaultConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                    patVault = new PatVault(ldapManager, realm, clientId, clientSecret, handler, pool,
+                                            blockingCallExecutor);
+                    ScheduledExecutorService scheduler = scheduler(patVaultConfig);
+                    Duration interval = duration(patVaultConfig.get("refreshInterval")
+                                                               .as(evaluated())
+                                                               .defaultTo("1 minute")
+                                                               .asString());
+                    Duration window = duration(patVaultConfig.get("refreshWindow")
+                                                             .as(evaluated())
+                                                             .defaultTo("5 minutes")
+                                                             .asString());
+                    patVault.start(scheduler, interval.to(TimeUnit.NANOSECONDS), window.to(TimeUnit.NANOSECONDS));
+                    service.setPatVault(patVault);
+                }
+                configureShareUriFilter(service, config.get("uriFilter"));
+                configureShareIndex(service, realm, clientId, config.get("shareIndex"));
+                configureChangeFeed(service, ldapManager, realm, clientId, config.get("changeFeed"));
                 // register admin endpoint
-                Handler httpHandler = newHttpHandler(
-                        newCrestApplication(newHandler(new ShareCollectionProviderExt(service)),
-                                "frapi:openig:uma:shareExt"));
-                EndpointRegistry.Registration share = endpointRegistry().register("share", httpHandler);
-                logger.info("UMA Share endpoint available at '{}'", share.getPath());
+                registerShareEndpoint("share", service);
+                JsonValue tenantsConfig = config.get("tenants");
+                if (tenantsConfig.isNotNull()) {
+                    configureTenants(service, handler, ldapManager, shareLookupCache, realm, clientId, tenantsConfig);
+                }
+                configurePeerInvalidation(service, config.get("peerInvalidation"));
+                configureMigration(service, ldapManager, config.get("migration"));
+                configureReconciliation(service, ldapManager, config.get("reconciliation"));
+
+                UmaWarmUp warmUp = configureWarmUp(service, ldapManager, realm, clientId, config.get("warmUp"));
+                EndpointRegistry.Registration ready = endpointRegistry().register("ready", readinessHandler(service, warmUp));
+                logger.info("UMA readiness endpoint available at '{}'", ready.getPath());
 
                 return service;
-            } catch (URISyntaxException e) {
+            } catch (IllegalArgumentException e) {
                 throw new HeapException("Cannot build UmaSharingService", e);
             }
         }
 
+        private void registerShareEndpoint(final String name, final UmaSharingServiceExt service) {
+            Handler httpHandler = newHttpHandler(
+                    newCrestApplication(newHandler(new ShareCollectionProviderExt(service)),
+                            "frapi:openig:uma:shareExt"));
+            EndpointRegistry.Registration share = endpointRegistry().register(name, httpHandler);
+            logger.info("UMA Share endpoint available at '{}'", share.getPath());
+        }
+
+        /**
+         * Hosts additional (realm, client) tenants in this service. They share its LDAP store, protection API handler
+         * (and its HTTP client), blocking calls executor and share lookup cache, and have their own quotas, metrics
+         * and share endpoint ({@literal tenants/<name>/share}). This service is the {@literal default} tenant:
+         * <pre>
+         *     {@code "quotas": { "maxShares": 100000, "maxConcurrentCalls": 32 },
+         *     "tenants": {
+         *           "acme": {
+         *             "realm": "/acme",
+         *             "clientId": "OpenIG_RS",
+         *             "clientSecret": "password",
+         *             "quotas": { "maxShares": 10000, "maxConcurrentCalls": 8 },
+         *             "shareIndex": { "enabled": true },
+         *             "uriFilter": { "enabled": true },
+         *             "changeFeed": { "enabled": true }
+         *           }
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * The tenants use the AS nodes and hedging settings of this service. The PAT vault and the warm-up only
+         * apply to the default tenant.
+         */
+        private void configureTenants(final UmaSharingServiceExt service,
+                                      final Handler handler,
+                                      final LDAPManager ldapManager,
+                                      final ShareLookupCache shareLookupCache,
+                                      final String realm,
+                                      final String clientId,
+                                      final JsonValue tenantsConfig) throws HeapException {
+            Map<String, UmaSharingServiceExt> tenants = new LinkedHashMap<>();
+            service.setTenant(tenant(DEFAULT_TENANT, realm, clientId, config.get("quotas")));
+            tenants.put(DEFAULT_TENANT, service);
+            for (String name : tenantsConfig.keys()) {
+                if (tenants.containsKey(name)) {
+                    throw new HeapException("Duplicate UMA tenant: " + name);
+                }
+                JsonValue tenantConfig = tenantsConfig.get(name);
+                String tenantRealm = startsWithSlash(tenantConfig.get("realm").as(evaluated()).defaultTo("/").asString());
+                String tenantClientId = tenantConfig.get("clientId").as(evaluated()).required().asString();
+                UmaSharingServiceExt tenantService = new UmaSharingServiceExt(
+                        handler,
+                        tenantRealm,
+                        createAuthorizationServerPool(tenantRealm),
+                        tenantClientId,
+                        tenantConfig.get("clientSecret").as(evaluated()).required().asString(),
+                        ldapManager);
+                tenantService.setShareLookupCache(shareLookupCache);
+                tenantService.setBlockingCallExecutor(blockingCallExecutor);
+                tenantService.setTenant(tenant(name, tenantRealm, tenantClientId, tenantConfig.get("quotas")));
+                configureShareUriFilter(tenantService, tenantConfig.get("uriFilter"));
+                configureShareIndex(tenantService, tenantRealm, tenantClientId, tenantConfig.get("shareIndex"));
+                configureChangeFeed(tenantService, ldapManager, tenantRealm, tenantClientId,
+                                    tenantConfig.get("changeFeed"));
+                registerShareEndpoint("tenants/" + name + "/share", tenantService);
+                tenants.put(name, tenantService);
+            }
+            tenants = Collections.unmodifiableMap(tenants);
+            service.setTenants(tenants);
+            EndpointRegistry.Registration metrics = endpointRegistry().register("tenantMetrics",
+                                                                                tenantsHandler(tenants));
+            logger.info("UMA tenants metrics endpoint available at '{}' ({} tenants)", metrics.getPath(),
+                        tenants.size());
+        }
+
+        private static UmaTenant tenant(final String name,
+                                        final String realm,
+                                        final String clientId,
+                                        final JsonValue quotas) {
+            return new UmaTenant(name,
+                                 realm,
+                                 clientId,
+                                 quotas.get("maxShares").as(evaluated()).defaultTo(0).asInteger(),
+                                 quotas.get("maxConcurrentCalls").as(evaluated()).defaultTo(0).asInteger());
+        }
+
+        /**
+         * Answers the quotas and metrics of every tenant.
+         */
+        private static Handler tenantsHandler(final Map<String, UmaSharingServiceExt> tenants) {
+            return new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Map<String, Object> metrics = new LinkedHashMap<>();
+                    for (Map.Entry<String, UmaSharingServiceExt> tenant : tenants.entrySet()) {
+                        ShareIndex index = tenant.getValue().getShareIndex();
+                        metrics.put(tenant.getKey(),
+                                    tenant.getValue().getTenant().metrics(index != null ? index.size() : -1));
+                    }
+                    Response response = new Response(Status.OK);
+                    response.setEntity(metrics);
+                    return newResponsePromise(response);
+                }
+            };
+        }
+
+        /**
+         * Adds the composite keys to the existing shares, then enables them: lookups by key would miss the shares
+         * without one, so they stay disabled if some shares cannot be updated.
+         */
+        private void enableCompositeKeys(final LDAPManager ldapManager) {
+            try {
+                int updated = ldapManager.addMissingCompositeKeys();
+                ldapManager.setCompositeKeys(true);
+                logger.info("UMA share composite keys enabled ({} existing shares updated)", updated);
+            } catch (LdapException e) {
+                logger.error("Cannot add the composite keys to the existing shares, composite keys are disabled", e);
+            }
+        }
+
+        @Override
+        public void destroy() {
+            if (warmUpThread != null) {
+                warmUpThread.interrupt();
+                warmUpThread = null;
+            }
+            if (patVault != null) {
+                patVault.stop();
+            }
+            if (migration != null) {
+                // An import resumes from its checkpoint
+                migration.stop();
+            }
+            for (ShareReconciler reconciler : reconcilers) {
+                reconciler.stop();
+            }
+            reconcilers.clear();
+            if (peerChannel != null) {
+                peerChannel.close();
+            }
+            for (ScheduledFuture<?> task : scheduledTasks) {
+                task.cancel(false);
+            }
+            scheduledTasks.clear();
+            if (blockingCallExecutor != null) {
+                blockingCallExecutor.shutdown();
+            }
+            for (Runnable shareIndexSnapshotWriter : shareIndexSnapshotWriters) {
+                // Next start catches up from here
+                shareIndexSnapshotWriter.run();
+            }
+            shareIndexSnapshotWriters.clear();
+            if (hotSharesWriter != null) {
+                hotSharesWriter.run();
+                hotSharesWriter = null;
+            }
+            if (ldapManager != null) {
+                // Last: the tasks stopped above no longer use it
+                ldapManager.close();
+                ldapManager = null;
+            }
+            super.destroy();
+        }
+
+        /**
+         * Starts warming up the service in the background, when enabled: the service is reported not ready until the
+         * warm-up completes (or the heap is destroyed, which interrupts it).
+         * <pre>
+         *     {@code "warmUp": {
+         *           "enabled": true,
+         *           "hotSharesFile": "/var/openig/uma-hot-shares.bin",
+         *           "hotSharesInterval": "1 minute",
+         *           "preloadShares": 1000,
+         *           "cacheTimeout": "2 minutes",
+         *           "syntheticIterations": 10000,
+         *           "timeout": "30 seconds"
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * With a {@code hotSharesFile}, the {@code preloadShares} share lookups with the most cache hits are saved
+         * every {@code hotSharesInterval} and when the heap is destroyed, and preloaded by the next warm-up (see
+         * {@link UmaWarmUp}). The preloaded shares are cached for {@code cacheTimeout}.
+         */
+        private UmaWarmUp configureWarmUp(final UmaSharingServiceExt service,
+                                          final LDAPManager ldapManager,
+                                          final String realm,
+                                          final String clientId,
+                                          final JsonValue warmUpConfig) throws HeapException {
+            if (!warmUpConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return null;
+            }
+            Duration timeout = duration(warmUpConfig.get("timeout").as(evaluated()).defaultTo("30 seconds").asString());
+            Duration cacheTimeout = duration(warmUpConfig.get("cacheTimeout")
+                                                         .as(evaluated())
+                                                         .defaultTo("2 minutes")
+                                                         .asString());
+            long cacheTimeoutNanos = cacheTimeout.isUnlimited()
+                    ? Long.MAX_VALUE
+                    : cacheTimeout.to(TimeUnit.NANOSECONDS);
+            final int preloadShares = warmUpConfig.get("preloadShares").as(evaluated()).defaultTo(1000).asInteger();
+            String hotSharesFile = warmUpConfig.get("hotSharesFile").as(evaluated()).asString();
+            final Path hotShares = hotSharesFile != null ? Paths.get(hotSharesFile) : null;
+            UmaWarmUp warmUp = new UmaWarmUp(service,
+                                             ldapManager,
+                                             realm,
+                                             clientId,
+                                             hotShares,
+                                             preloadShares,
+                                             cacheTimeoutNanos,
+                                             warmUpConfig.get("syntheticIterations").as(evaluated()).defaultTo(10000).asInteger(),
+                                             timeout.isUnlimited() ? Long.MAX_VALUE / 2 : timeout.to(TimeUnit.NANOSECONDS));
+
+            if (hotShares != null) {
+                hotSharesWriter = new Runnable() {
+                    @Override
+                    public void run() {
+                        List<String[]> lookups = service.getHottestLookups(preloadShares);
+                        if (lookups.isEmpty()) {
+                            // Keep the previous file (e.g. the heap is destroyed before any traffic)
+                            return;
+                        }
+                        try {
+                            UmaWarmUp.writeHotLookups(lookups, hotShares);
+                            logger.debug("UMA hot shares written to {} ({} lookups)", hotShares, lookups.size());
+                        } catch (IOException e) {
+                            logger.error("Cannot write the UMA hot shares file {}", hotShares, e);
+                        }
+                    }
+                };
+                Duration hotSharesInterval = duration(warmUpConfig.get("hotSharesInterval")
+                                                                  .as(evaluated())
+                                                                  .defaultTo("1 minute")
+                                                                  .asString());
+                if (!hotSharesInterval.isUnlimited() && !hotSharesInterval.isZero()) {
+                    long interval = hotSharesInterval.to(TimeUnit.NANOSECONDS);
+                    scheduledTasks.add(scheduler(warmUpConfig).scheduleWithFixedDelay(hotSharesWriter,
+                                                                                      interval,
+                                                                                      interval,
+                                                                                      TimeUnit.NANOSECONDS));
+                }
+            }
+
+            service.setReady(false);
+            warmUpThread = new Thread(warmUp, "uma-warm-up");
+            warmUpThread.setDaemon(true);
+            warmUpThread.start();
+            return warmUp;
+        }
+
+        /**
+         * Answers {@literal 200} once the service is ready, {@literal 503} while it is warming up (for load balancer
+         * health checks).
+         */
+        private static Handler readinessHandler(final UmaSharingServiceExt service, final UmaWarmUp warmUp) {
+            return new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    boolean ready = service.isReady();
+                    Response response = new Response(ready ? Status.OK : Status.SERVICE_UNAVAILABLE);
+                    response.setEntity(object(field("ready", ready),
+                                              field("stage", warmUp != null ? warmUp.getStage() : "done")));
+                    return newResponsePromise(response);
+                }
+            };
+        }
+
+        /**
+         * Loads the owner index of the shares at startup, and schedules its periodic reload (which also picks up the
+         * shares created or removed through other gateways):
+         * <pre>
+         *     {@code "shareIndex": {
+         *           "enabled": true,
+         *           "offHeap": false,
+         *           "reloadInterval": "5 minutes",
+         *           "snapshotFile": "/var/openig/uma-share-index.bin",
+         *           "snapshotInterval": "5 minutes",
+         *           "catchUpWindow": "1 minute"
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * With a {@code snapshotFile}, the index is started from the last snapshot and caught up with the LDAP
+         * changes made since, periodic reloads are replaced by catch-ups, and a new snapshot is written every
+         * {@code snapshotInterval} and when the heap is destroyed. Each catch-up searches the shares created since
+         * its change marker minus {@code catchUpWindow} (shares replicated late), and reads the shares still missing
+         * from the index after a sweep of all the share identifiers.
+         * <p>
+         * With {@code offHeap}, the indexed shares are kept in direct buffers instead of Java objects, for share
+         * populations too large for the heap (reads then decode the shares they return).
+         */
+        private void configureShareIndex(final UmaSharingServiceExt service,
+                                         final String realm,
+                                         final String clientId,
+                                         final JsonValue indexConfig) throws HeapException {
+            if (!indexConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return;
+            }
+            service.setOffHeapShareIndex(indexConfig.get("offHeap").as(evaluated()).defaultTo(false).asBoolean());
+            service.setShareIndexCatchUpWindow(catchUpWindow(indexConfig));
+            String snapshotFile = indexConfig.get("snapshotFile").as(evaluated()).asString();
+            final Path snapshot = snapshotFile != null ? Paths.get(snapshotFile) : null;
+            if (snapshot != null) {
+                ShareIndex index = ShareIndexSnapshot.read(snapshot, realm, clientId, service.newShareIndex());
+                if (index != null) {
+                    service.setShareIndex(index);
+                    logger.info("UMA share index loaded from snapshot {} ({} shares)", snapshot, index.size());
+                }
+            }
+            try {
+                if (snapshot != null) {
+                    service.catchUpShareIndex();
+                } else {
+                    service.reloadShareIndex();
+                }
+                logger.info("UMA share index loaded ({} shares)", service.getShareIndex().size());
+            } catch (LdapException e) {
+                logger.error("Cannot load the UMA share index, will retry on next reload", e);
+            }
+
+            if (snapshot != null) {
+                Runnable shareIndexSnapshotWriter = new Runnable() {
+                    @Override
+                    public void run() {
+                        ShareIndex index = service.getShareIndex();
+                        if (index == null) {
+                            return;
+                        }
+                        try {
+                            ShareIndexSnapshot.write(index, snapshot, realm, clientId);
+                            logger.debug("UMA share index snapshot written to {} ({} shares)", snapshot, index.size());
+                        } catch (IOException e) {
+                            logger.error("Cannot write the UMA share index snapshot {}", snapshot, e);
+                        }
+                    }
+                };
+                shareIndexSnapshotWriters.add(shareIndexSnapshotWriter);
+                Duration snapshotInterval = duration(indexConfig.get("snapshotInterval")
+                                                                .as(evaluated())
+                                                                .defaultTo("5 minutes")
+                                                                .asString());
+                if (!snapshotInterval.isUnlimited() && !snapshotInterval.isZero()) {
+                    long interval = snapshotInterval.to(TimeUnit.NANOSECONDS);
+                    scheduledTasks.add(scheduler(indexConfig).scheduleWithFixedDelay(shareIndexSnapshotWriter,
+                                                                                     interval,
+                                                                                     interval,
+                                                                                     TimeUnit.NANOSECONDS));
+                }
+            }
+
+            Duration reloadInterval = duration(indexConfig.get("reloadInterval")
+                                                          .as(evaluated())
+                                                          .defaultTo("5 minutes")
+                                                          .asString());
+            if (reloadInterval.isUnlimited() || reloadInterval.isZero()) {
+                return;
+            }
+            long interval = reloadInterval.to(TimeUnit.NANOSECONDS);
+            scheduledTasks.add(scheduler(indexConfig).scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (snapshot != null) {
+                            service.catchUpShareIndex();
+                        } else {
+                            service.reloadShareIndex();
+                        }
+                    } catch (LdapException e) {
+                        logger.error("Cannot reload the UMA share index, keeping the previous one", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.NANOSECONDS));
+        }
+
+        /**
+         * Records the share creations and removals for the {@literal changes} action of the share endpoint:
+         * <pre>
+         *     {@code "changeFeed": {
+         *           "enabled": true,
+         *           "journalSize": 10000,
+         *           "changelog": false,
+         *           "maxWait": "30 seconds",
+         *           "maxWaiters": 1000
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * The journal keeps the last {@code journalSize} changes in memory; with {@code changelog}, older cursors are
+         * served from the DS external changelog instead of being rejected. {@code maxWait} caps the long-polls.
+         */
+        private void configureChangeFeed(final UmaSharingServiceExt service,
+                                         final LDAPManager ldapManager,
+                                         final String realm,
+                                         final String clientId,
+                                         final JsonValue feedConfig) throws HeapException {
+            if (!feedConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return;
+            }
+            boolean changelog = feedConfig.get("changelog").as(evaluated()).defaultTo(false).asBoolean();
+            Duration maxWait = duration(feedConfig.get("maxWait").as(evaluated()).defaultTo("30 seconds").asString());
+            try {
+                service.setChangeFeed(new ShareChangeFeed(
+                        feedConfig.get("journalSize").as(evaluated()).defaultTo(10000).asInteger(),
+                        changelog ? ldapManager.changelog() : null,
+                        realm,
+                        clientId,
+                        scheduler(feedConfig),
+                        feedConfig.get("maxWaiters").as(evaluated()).defaultTo(1000).asInteger(),
+                        maxWait.isUnlimited() ? Long.MAX_VALUE / 2 : maxWait.to(TimeUnit.NANOSECONDS)));
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid changeFeed configuration", e);
+            }
+            logger.info("UMA share change feed enabled (changelog fallback: {})", changelog);
+        }
+
+        /**
+         * Tells the peer gateways about the shares created and removed through this service (and its tenants), and
+         * applies theirs, so that they are seen before the next share index catch-up or URI filter rebuild:
+         * <pre>
+         *     {@code "peerInvalidation": {
+         *           "enabled": true,
+         *           "bindAddress": "0.0.0.0",
+         *           "port": 7946,
+         *           "peers": [ "ig2.example.com:7946", "ig3.example.com:7946" ],
+         *           "secret": "shared-between-the-gateways"
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * Instead of {@code peers}, {@code multicastGroup} (with {@code networkInterface}) sends the changes to a
+         * multicast group on {@code port}. The {@code secret} is required: the messages change what this gateway
+         * serves, they must come from the peers. Removals are still confirmed in LDAP before being applied.
+         */
+        private void configurePeerInvalidation(final UmaSharingServiceExt service,
+                                               final JsonValue peersConfig) throws HeapException {
+            if (!peersConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return;
+            }
+            int port = peersConfig.get("port").as(evaluated()).defaultTo(7946).asInteger();
+            String bindAddress = peersConfig.get("bindAddress").as(evaluated()).defaultTo("0.0.0.0").asString();
+            String group = peersConfig.get("multicastGroup").as(evaluated()).asString();
+            String secret = peersConfig.get("secret").as(evaluated()).asString();
+            if (secret == null || secret.isEmpty()) {
+                throw new HeapException("peerInvalidation requires a secret shared by the gateways");
+            }
+            List<InetSocketAddress> peers = new ArrayList<>();
+            InetAddress multicastGroup = null;
+            try {
+                NetworkInterface networkInterface = null;
+                if (group != null) {
+                    multicastGroup = InetAddress.getByName(group);
+                    String name = peersConfig.get("networkInterface").as(evaluated()).required().asString();
+                    networkInterface = NetworkInterface.getByName(name);
+                    if (networkInterface == null) {
+                        throw new HeapException("Unknown network interface: " + name);
+                    }
+                    peers.add(new InetSocketAddress(multicastGroup, port));
+                } else {
+                    for (JsonValue peer : peersConfig.get("peers").required()) {
+                        peers.add(SharePeerChannel.parseAddress(peer.as(evaluated()).asString()));
+                    }
+                }
+                peerChannel = new SharePeerChannel(new InetSocketAddress(bindAddress, port),
+                                                   peers,
+                                                   multicastGroup,
+                                                   networkInterface,
+                                                   secret);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new HeapException("Invalid peerInvalidation configuration", e);
+            }
+            service.setPeerChannel(peerChannel);
+            for (UmaSharingServiceExt tenantService : service.getTenants().values()) {
+                if (tenantService != service) {
+                    tenantService.setPeerChannel(peerChannel);
+                }
+            }
+            final SharePeerChannel channel = peerChannel;
+            EndpointRegistry.Registration metrics = endpointRegistry().register("peerMetrics", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    Response response = new Response(Status.OK);
+                    response.setEntity(channel.metrics());
+                    return newResponsePromise(response);
+                }
+            });
+            logger.info("UMA share peer invalidation enabled on port {} ({}), metrics at '{}'", port,
+                        multicastGroup != null ? "multicast " + group : peers.size() + " peers", metrics.getPath());
+        }
+
+        /**
+         * Deploys the share migration endpoint ({@literal shareMigration}), which exports all the shares to a JSON
+         * Lines file and imports them back (see {@link ShareMigration}):
+         * <pre>
+         *     {@code "migration": {
+         *           "enabled": true,
+         *           "directory": "/var/openig/migration",
+         *           "parallelism": 16,
+         *           "batchSize": 500,
+         *           "pageSize": 1000
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * {@literal POST ?_action=export&file=shares.jsonl} starts an export,
+         * {@literal POST ?_action=import&file=shares.jsonl} an import (with {@literal reRegister=true},
+         * {@literal scopes=view,edit} and {@literal type=...} to register the resource sets again), {@literal GET}
+         * returns the progress. The files are on the OpenIG host, in the required {@literal directory}: file names
+         * resolving outside of it are rejected.
+         */
+        private void configureMigration(final UmaSharingServiceExt service,
+                                        final LDAPManager ldapManager,
+                                        final JsonValue migrationConfig) throws HeapException {
+            if (!migrationConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return;
+            }
+            String directory = migrationConfig.get("directory").as(evaluated()).asString();
+            if (directory == null) {
+                throw new HeapException("migration.directory is required when the share migration is enabled");
+            }
+            try {
+                Files.createDirectories(Paths.get(directory));
+            } catch (IOException e) {
+                throw new HeapException("Cannot create the migration directory " + directory, e);
+            }
+            try {
+                migration = new ShareMigration(
+                        ldapManager,
+                        service,
+                        Paths.get(directory),
+                        migrationConfig.get("parallelism").as(evaluated()).defaultTo(16).asInteger(),
+                        migrationConfig.get("batchSize").as(evaluated()).defaultTo(500).asInteger(),
+                        migrationConfig.get("pageSize").as(evaluated()).defaultTo(1000).asInteger());
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid migration configuration", e);
+            }
+            EndpointRegistry.Registration endpoint = endpointRegistry().register("shareMigration",
+                                                                                 migrationHandler(migration));
+            logger.info("UMA share migration endpoint available at '{}'", endpoint.getPath());
+        }
+
+        /**
+         * Starts the share exports and imports, and answers their progress.
+         */
+        private static Handler migrationHandler(final ShareMigration migration) {
+            return new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    if ("GET".equals(request.getMethod())) {
+                        return migrationResponse(Status.OK, migration.status());
+                    }
+                    if (!"POST".equals(request.getMethod())) {
+                        return newResponsePromise(new Response(Status.METHOD_NOT_ALLOWED));
+                    }
+                    Form query = new Form().fromRequestQuery(request);
+                    String action = query.getFirst("_action");
+                    String file = query.getFirst("file");
+                    if (file == null || file.isEmpty()) {
+                        return migrationResponse(Status.BAD_REQUEST, object(field("error", "Missing file")));
+                    }
+                    Path path;
+                    try {
+                        path = migration.resolve(file);
+                    } catch (IllegalArgumentException e) {
+                        return migrationResponse(Status.BAD_REQUEST, object(field("error", e.getMessage())));
+                    }
+                    boolean started;
+                    if ("export".equals(action)) {
+                        started = migration.startExport(path);
+                    } else if ("import".equals(action)) {
+                        String scopes = query.getFirst("scopes");
+                        started = migration.startImport(path,
+                                                        Boolean.parseBoolean(query.getFirst("reRegister")),
+                                                        scopes != null
+                                                                ? new ArrayList<Object>(Arrays.asList(scopes.split(",")))
+                                                                : Collections.<Object>emptyList(),
+                                                        query.getFirst("type"));
+                    } else {
+                        return migrationResponse(Status.BAD_REQUEST,
+                                                 object(field("error", "Expected _action=export or _action=import")));
+                    }
+                    return migrationResponse(started ? Status.ACCEPTED : Status.CONFLICT, migration.status());
+                }
+            };
+        }
+
+        private static Promise<Response, NeverThrowsException> migrationResponse(final Status status,
+                                                                                  final Object entity) {
+            Response response = new Response(status);
+            response.setEntity(entity);
+            return newResponsePromise(response);
+        }
+
+        /**
+         * Schedules the reconciliation of the shares with their resource sets at the AS (see {@link ShareReconciler}),
+         * for this service and each of its tenants:
+         * <pre>
+         *     {@code "reconciliation": {
+         *           "enabled": true,
+         *           "interval": "1 hour",
+         *           "action": "quarantine",
+         *           "batchSize": 500,
+         *           "maxConcurrency": 4,
+         *           "pause": "200 milliseconds"
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * {@code action} is {@literal report} (default), {@literal quarantine} or {@literal repair}. The drift metrics
+         * are served by the {@literal reconciliation} endpoint, where {@literal POST ?_action=run} starts a run.
+         */
+        private void configureReconciliation(final UmaSharingServiceExt service,
+                                             final LDAPManager ldapManager,
+                                             final JsonValue reconciliationConfig) throws HeapException {
+            if (!reconciliationConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return;
+            }
+            Map<String, UmaSharingServiceExt> services = service.getTenants();
+            if (services.isEmpty()) {
+                services = Collections.singletonMap(DEFAULT_TENANT, service);
+            }
+            final Map<String, ShareReconciler> byTenant = new LinkedHashMap<>();
+            try {
+                ShareReconciler.Action action = ShareReconciler.Action.parse(
+                        reconciliationConfig.get("action").as(evaluated()).defaultTo("report").asString());
+                Duration pause = duration(reconciliationConfig.get("pause")
+                                                              .as(evaluated())
+                                                              .defaultTo("200 milliseconds")
+                                                              .asString());
+                for (Map.Entry<String, UmaSharingServiceExt> tenant : services.entrySet()) {
+                    ShareReconciler reconciler = new ShareReconciler(
+                            tenant.getValue(),
+                            ldapManager,
+                            action,
+                            reconciliationConfig.get("batchSize").as(evaluated()).defaultTo(500).asInteger(),
+                            reconciliationConfig.get("maxConcurrency").as(evaluated()).defaultTo(4).asInteger(),
+                            pause.isUnlimited() ? 0L : pause.to(TimeUnit.MILLISECONDS));
+                    byTenant.put(tenant.getKey(), reconciler);
+                    reconcilers.add(reconciler);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid reconciliation configuration", e);
+            }
+
+            Duration interval = duration(reconciliationConfig.get("interval")
+                                                             .as(evaluated())
+                                                             .defaultTo("1 hour")
+                                                             .asString());
+            if (!interval.isUnlimited() && !interval.isZero()) {
+                long nanos = interval.to(TimeUnit.NANOSECONDS);
+                scheduledTasks.add(scheduler(reconciliationConfig).scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The runs have their own threads: a long run does not hold the scheduler
+                        for (ShareReconciler reconciler : byTenant.values()) {
+                            reconciler.start();
+                        }
+                    }
+                }, nanos, nanos, TimeUnit.NANOSECONDS));
+            }
+            EndpointRegistry.Registration endpoint = endpointRegistry().register("reconciliation", new Handler() {
+                @Override
+                public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                    if ("POST".equals(request.getMethod())
+                            && "run".equals(new Form().fromRequestQuery(request).getFirst("_action"))) {
+                        for (ShareReconciler reconciler : byTenant.values()) {
+                            reconciler.start();
+                        }
+                    }
+                    Map<String, Object> metrics = new LinkedHashMap<>();
+                    for (Map.Entry<String, ShareReconciler> tenant : byTenant.entrySet()) {
+                        metrics.put(tenant.getKey(), tenant.getValue().metrics());
+                    }
+                    Response response = new Response(Status.OK);
+                    response.setEntity(metrics);
+                    return newResponsePromise(response);
+                }
+            });
+            logger.info("UMA share reconciliation enabled, drift metrics at '{}'", endpoint.getPath());
+        }
+
+        /**
+         * Returns the safety window subtracted from the change markers of the catch-ups.
+         */
+        private static long catchUpWindow(final JsonValue config) {
+            Duration window = duration(config.get("catchUpWindow").as(evaluated()).defaultTo("1 minute").asString());
+            return window.isUnlimited() ? Long.MAX_VALUE / 2 : window.to(TimeUnit.MILLISECONDS);
+        }
+
+        private ScheduledExecutorService scheduler(final JsonValue config) throws HeapException {
+            return config.get("executor")
+                         .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                         .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+        }
+
+        /**
+         * Builds the Bloom filter of the shared URIs at startup, and schedules its periodic catch-up (which adds the
+         * shares created through other gateways since the previous one) and rebuild (which also drops the shares
+         * removed through other gateways):
+         * <pre>
+         *     {@code "uriFilter": {
+         *           "enabled": true,
+         *           "expectedShares": 100000,
+         *           "falsePositiveRate": 0.01,
+         *           "refreshInterval": "10 seconds",
+         *           "catchUpWindow": "1 minute",
+         *           "rebuildInterval": "5 minutes"
+         *       }
+         *     }
+         * </pre>
+         * <p>
+         * Each catch-up searches the shares created since the last one minus {@code catchUpWindow}, so that the shares
+         * replicated late to this LDAP replica are caught up too.
+         */
+        private void configureShareUriFilter(final UmaSharingServiceExt service,
+                                             final JsonValue filterConfig) throws HeapException {
+            if (!filterConfig.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return;
+            }
+            final long expectedShares = filterConfig.get("expectedShares").as(evaluated()).defaultTo(100000).asLong();
+            service.setShareUriFilterCatchUpWindow(catchUpWindow(filterConfig));
+            final double falsePositiveRate = filterConfig.get("falsePositiveRate")
+                                                         .as(evaluated())
+                                                         .defaultTo(0.01)
+                                                         .asDouble();
+            try {
+                service.rebuildShareUriFilter(expectedShares, falsePositiveRate);
+                logger.info("UMA shared URI filter built ({} bytes, {} hashes)",
+                            service.getShareUriFilter().getSizeInBytes(), service.getShareUriFilter().getHashes());
+            } catch (LdapException e) {
+                logger.error("Cannot build the UMA shared URI filter, will retry on next rebuild", e);
+            } catch (IllegalArgumentException e) {
+                throw new HeapException("Invalid uriFilter configuration", e);
+            }
+
+            Duration refreshInterval = duration(filterConfig.get("refreshInterval")
+                                                            .as(evaluated())
+                                                            .defaultTo("10 seconds")
+                                                            .asString());
+            if (!refreshInterval.isUnlimited() && !refreshInterval.isZero()) {
+                long refresh = refreshInterval.to(TimeUnit.NANOSECONDS);
+                scheduledTasks.add(scheduler(filterConfig).scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            service.catchUpShareUriFilter();
+                        } catch (LdapException e) {
+                            logger.warn("Cannot catch up the UMA shared URI filter, will retry on next refresh", e);
+                        }
+                    }
+                }, refresh, refresh, TimeUnit.NANOSECONDS));
+            }
+
+            Duration rebuildInterval = duration(filterConfig.get("rebuildInterval")
+                                                            .as(evaluated())
+                                                            .defaultTo("5 minutes")
+                                                            .asString());
+            if (rebuildInterval.isUnlimited() || rebuildInterval.isZero()) {
+                return;
+            }
+            long interval = rebuildInterval.to(TimeUnit.NANOSECONDS);
+            scheduledTasks.add(scheduler(filterConfig).scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        service.rebuildShareUriFilter(expectedShares, falsePositiveRate);
+                    } catch (LdapException e) {
+                        logger.error("Cannot rebuild the UMA shared URI filter, keeping the previous one", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.NANOSECONDS));
+        }
+
+        /**
+         * Builds the AS pool from {@code authorizationServerUri} (the preferred node) and the optional
+         * {@code authorizationServerUris} list of additional nodes, plus the optional {@code hedging} settings:
+         * <pre>
+         *     {@code "hedging": {
+         *           "enabled": true,
+         *           "percentile": 95,
+         *           "minDelay": "20 milliseconds",
+         *           "maxDelay": "1 second",
+         *           "executor": "ScheduledExecutorService"
+         *       }
+         *     }
+         * </pre>
+         */
+        private AuthorizationServerPool createAuthorizationServerPool(final String realm) throws HeapException {
+            List<URI> uris = new ArrayList<>();
+            JsonValue primary = config.get("authorizationServerUri").as(evaluated());
+            if (primary.isNotNull()) {
+                uris.add(primary.as(uri()));
+            }
+            for (JsonValue additional : config.get("authorizationServerUris").as(evaluated())) {
+                URI node = additional.as(uri());
+                if (!uris.contains(node)) {
+                    uris.add(node);
+                }
+            }
+            if (uris.isEmpty()) {
+                throw new HeapException("Either 'authorizationServerUri' or 'authorizationServerUris' is required");
+            }
+
+            List<AuthorizationServerNode> nodes = new ArrayList<>();
+            for (URI uri : uris) {
+                nodes.add(new AuthorizationServerNode(uri, realm));
+            }
+
+            JsonValue hedging = config.get("hedging");
+            if (nodes.size() < 2 || !hedging.get("enabled").as(evaluated()).defaultTo(false).asBoolean()) {
+                return new AuthorizationServerPool(nodes);
+            }
+            ScheduledExecutorService scheduler = hedging.get("executor")
+                                                        .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                        .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            int percentile = hedging.get("percentile").as(evaluated()).defaultTo(95).asInteger();
+            Duration minDelay = duration(hedging.get("minDelay").as(evaluated()).defaultTo("20 milliseconds").asString());
+            Duration maxDelay = duration(hedging.get("maxDelay").as(evaluated()).defaultTo("1 second").asString());
+            logger.info("UMA protection API calls hedged over {} after p{} latency", uris, percentile);
+            return new AuthorizationServerPool(nodes,
+                                               scheduler,
+                                               percentile,
+                                               minDelay.to(TimeUnit.NANOSECONDS),
+                                               maxDelay.to(TimeUnit.NANOSECONDS));
+        }
+
     }
 
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Quotas and metrics of one (realm, client) tenant of a multi-tenant {@link UmaSharingServiceExt}.
+ * <p>
+ * <p>The tenants share the LDAP store, the protection API handler, the blocking calls executor and the share lookup
+ * cache; the quotas keep one tenant from taking all of the shared capacity:
+ * <ul>
+ * <li>{@code maxShares}: share creations are rejected once the tenant has that many shares</li>
+ * <li>{@code maxConcurrentCalls}: the tenant blocking calls beyond that many in flight wait in a tenant queue (without
+ * holding a thread) until one of its calls completes</li>
+ * </ul>
+ */
+class UmaTenant {
+
+    private final String name;
+    private final String realm;
+    private final String clientId;
+    private final int maxShares;
+    private final Semaphore calls;
+    private final Queue<Runnable> queuedCalls = new ConcurrentLinkedQueue<>();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong sharesCreated = new AtomicLong();
+    private final AtomicLong sharesRemoved = new AtomicLong();
+    private final AtomicLong sharesRejected = new AtomicLong();
+    private final AtomicLong callsOverQuota = new AtomicLong();
+
+    /**
+     * Creates a tenant.
+     *
+     * @param name               tenant name
+     * @param realm              realm of the tenant shares
+     * @param clientId           OAuth 2.0 client of the tenant shares
+     * @param maxShares          maximum number of shares, {@code 0} for no limit
+     * @param maxConcurrentCalls maximum number of blocking calls on the shared executor, {@code 0} for no limit
+     */
+    UmaTenant(final String name,
+              final String realm,
+              final String clientId,
+              final int maxShares,
+              final int maxConcurrentCalls) {
+        this.name = name;
+        this.realm = realm;
+        this.clientId = clientId;
+        this.maxShares = maxShares;
+        this.calls = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls) : null;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the maximum number of shares of the tenant.
+     *
+     * @return the maximum number of shares, {@code 0} for no limit
+     */
+    int getMaxShares() {
+        return maxShares;
+    }
+
+    /**
+     * Starts a blocking call on the shared executor as soon as the tenant has fewer than {@code maxConcurrentCalls}
+     * in flight: right away, or when one of its calls is {@linkplain #releaseCall() released}. No thread waits
+     * meanwhile.
+     *
+     * @param start starts the call, which must {@linkplain #releaseCall() release} it once done
+     */
+    void submitCall(final Runnable start) {
+        if (calls == null) {
+            start.run();
+            return;
+        }
+        if (calls.tryAcquire()) {
+            start.run();
+            return;
+        }
+        callsOverQuota.incrementAndGet();
+        queuedCalls.add(start);
+        // A call may have been released since the first attempt
+        drain();
+    }
+
+    /**
+     * Releases a call started by {@link #submitCall(Runnable)}, and starts the next queued one.
+     */
+    void releaseCall() {
+        if (calls != null) {
+            calls.release();
+            drain();
+        }
+    }
+
+    private void drain() {
+        while (!queuedCalls.isEmpty() && calls.tryAcquire()) {
+            Runnable start = queuedCalls.poll();
+            if (start == null) {
+                calls.release();
+                return;
+            }
+            start.run();
+        }
+    }
+
+    void lookedUp() {
+        lookups.incrementAndGet();
+    }
+
+    void created() {
+        sharesCreated.incrementAndGet();
+    }
+
+    void removed() {
+        sharesRemoved.incrementAndGet();
+    }
+
+    void rejected() {
+        sharesRejected.incrementAndGet();
+    }
+
+    /**
+     * Returns the tenant metrics.
+     *
+     * @param shares number of shares of the tenant, {@code -1} if unknown
+     * @return the tenant metrics
+     */
+    Map<String, Object> metrics(final int shares) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("realm", realm);
+        metrics.put("clientId", clientId);
+        if (shares >= 0) {
+            metrics.put("shares", shares);
+        }
+        metrics.put("maxShares", maxShares);
+        metrics.put("lookups", lookups.get());
+        metrics.put("sharesCreated", sharesCreated.get());
+        metrics.put("sharesRemoved", sharesRemoved.get());
+        metrics.put("sharesRejected", sharesRejected.get());
+        metrics.put("callsOverQuota", callsOverQuota.get());
+        if (calls != null) {
+            metrics.put("availableCalls", calls.availablePermits());
+            metrics.put("queuedCalls", queuedCalls.size());
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.forgerock.util.Utils.closeSilently;
+
+/**
+ * Warms up an {@link UmaSharingServiceExt} after a (re)start, before it is reported ready:
+ * <ol>
+ * <li>opens an authenticated connection to the share store</li>
+ * <li>fetches the UMA configuration of every AS node, priming the HTTP connections and the node statistics</li>
+ * <li>runs the RPT introspection and ticket parsing code on synthetic responses, so it is compiled before the first
+ * real requests</li>
+ * <li>resolves the hottest shares, priming the share lookup path and caches</li>
+ * </ol>
+ * <p>
+ * <p>The hottest shares are the cached share lookups with the most hits, saved to the hot shares file while the
+ * service runs (see {@link #writeHotLookups(List, Path)}). Each is resolved with the request URI and {@literal userId}
+ * header (or none) of the requests that hit it, so it is cached under their key, and kept in the share lookup cache for
+ * the warm-up cache timeout instead of the (shorter) cache time-to-live. Without a saved file, the first shares of the
+ * store are resolved by request URI only, as requests without a {@literal userId} header are. The shares are resolved
+ * last, just before the service is marked ready.
+ * <p>
+ * <p>A failing step is logged and does not prevent the next ones: the service is marked ready once all the steps have
+ * been attempted. An interrupted warm-up (the heap is destroyed) stops at the next step or share.
+ */
+class UmaWarmUp implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UmaWarmUp.class);
+
+    private final UmaSharingServiceExt service;
+    private final LDAPManager ldapManager;
+    private final ShareExt probe;
+    private final Path hotShares;
+    private final int preloadShares;
+    private final long cacheTimeoutNanos;
+    private final int syntheticIterations;
+    private final long timeoutNanos;
+    private volatile String stage = "pending";
+
+    /**
+     * Creates a warm-up.
+     *
+     * @param service             service to warm up
+     * @param ldapManager         share store of the service
+     * @param realm               UMA realm of the service
+     * @param clientId            OAuth 2.0 client of the service
+     * @param hotShares           file of the hottest share lookups, may be {@code null}
+     * @param preloadShares       number of shares to resolve
+     * @param cacheTimeoutNanos   time the resolved shares are kept in the share lookup cache
+     * @param syntheticIterations number of synthetic responses to parse
+     * @param timeoutNanos        maximum wait for each AS node
+     */
+    UmaWarmUp(final UmaSharingServiceExt service,
+              final LDAPManager ldapManager,
+              final String realm,
+              final String clientId,
+              final Path hotShares,
+              final int preloadShares,
+              final long cacheTimeoutNanos,
+              final int syntheticIterations,
+              final long timeoutNanos) {
+        this.service = service;
+        this.ldapManager = ldapManager;
+        this.probe = new ShareExt(null, null, null, realm, clientId);
+        this.hotShares = hotShares;
+        this.preloadShares = preloadShares;
+        this.cacheTimeoutNanos = cacheTimeoutNanos;
+        this.syntheticIterations = syntheticIterations;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Returns the current warm-up step ({@literal pending}, {@literal ldap}, {@literal authorization-server},
+     * {@literal synthetic}, {@literal shares}, {@literal done} or {@literal interrupted}).
+     *
+     * @return the current warm-up step
+     */
+    String getStage() {
+        return stage;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            stage = "ldap";
+            try {
+                ldapManager.ping();
+            } catch (LdapException e) {
+                logger.warn("UMA warm-up: cannot reach OpenIG LDAP", e);
+            }
+
+            if (!isInterrupted()) {
+                stage = "authorization-server";
+                fetchConfigurations();
+            }
+
+            if (!isInterrupted()) {
+                stage = "synthetic";
+                parseSyntheticResponses();
+            }
+
+            if (!isInterrupted()) {
+                // Last: the preloaded shares are cached as close as possible to the first requests
+                stage = "shares";
+                preloadShares();
+            }
+        } catch (RuntimeException e) {
+            logger.error("UMA warm-up failed at step {}", stage, e);
+        } finally {
+            if (isInterrupted()) {
+                logger.info("UMA warm-up interrupted at step {}", stage);
+                stage = "interrupted";
+            } else {
+                stage = "done";
+                service.setReady(true);
+                logger.info("UMA warm-up done in {} ms",
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+    }
+
+    private static boolean isInterrupted() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    private void preloadShares() {
+        if (preloadShares <= 0) {
+            return;
+        }
+        List<String[]> lookups = readHotLookups();
+        if (lookups.isEmpty()) {
+            lookups = firstLookups();
+        }
+        int resolved = 0;
+        for (String[] lookup : lookups) {
+            if (isInterrupted()) {
+                return;
+            }
+            Request request = new Request();
+            try {
+                request.setUri(lookup[0]);
+            } catch (URISyntaxException e) {
+                continue;
+            }
+            if (lookup[1] != null) {
+                request.getHeaders().put("userId", lookup[1]);
+            }
+            try {
+                service.preloadShare(request, cacheTimeoutNanos);
+                resolved++;
+            } catch (UmaException e) {
+                logger.trace("UMA warm-up: cannot resolve share of {}", lookup[0], e);
+            }
+        }
+        logger.debug("UMA warm-up: resolved {} of {} shares", resolved, lookups.size());
+    }
+
+    private List<String[]> readHotLookups() {
+        if (hotShares == null || !Files.exists(hotShares)) {
+            return Collections.emptyList();
+        }
+        try {
+            return readHotLookups(hotShares, preloadShares);
+        } catch (IOException e) {
+            logger.warn("UMA warm-up: cannot read the hot shares file {}", hotShares, e);
+            return Collections.emptyList();
+        }
+    }
+
+    private List<String[]> firstLookups() {
+        final Set<String> uris = new LinkedHashSet<>();
+        try {
+            ldapManager.searchShares(probe, new LDAPManager.ShareVisitor() {
+                @Override
+                public void visit(final ShareExt share) {
+                    uris.add(share.getRequestURI());
+                }
+            }, preloadShares);
+        } catch (LdapException e) {
+            logger.warn("UMA warm-up: cannot list shares", e);
+        }
+        List<String[]> lookups = new ArrayList<>(uris.size());
+        for (String uri : uris) {
+            lookups.add(new String[] {uri, null});
+        }
+        return lookups;
+    }
+
+    /**
+     * Saves the given share lookups, for the warm-up of the next start.
+     *
+     * @param lookups request URI and optional owner of the lookups, hottest first
+     * @param file    hot shares file
+     * @throws IOException if the file cannot be written (the previous file, if any, is kept)
+     */
+    static void writeHotLookups(final List<String[]> lookups, final Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(lookups.size());
+            for (String[] lookup : lookups) {
+                out.writeUTF(lookup[0]);
+                out.writeBoolean(lookup[1] != null);
+                if (lookup[1] != null) {
+                    out.writeUTF(lookup[1]);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the share lookups saved by {@link #writeHotLookups(List, Path)}.
+     *
+     * @param file hot shares file
+     * @param max  maximum number of lookups
+     * @return the request URI and optional owner of the lookups, hottest first
+     * @throws IOException if the file cannot be read
+     */
+    static List<String[]> readHotLookups(final Path file, final int max) throws IOException {
+        List<String[]> lookups = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int count = Math.min(in.readInt(), max);
+            for (int i = 0; i < count; i++) {
+                String uri = in.readUTF();
+                String userId = in.readBoolean() ? in.readUTF() : null;
+                lookups.add(new String[] {uri, userId});
+            }
+        }
+        return lookups;
+    }
+
+    private void fetchConfigurations() {
+        AuthorizationServerPool pool = service.getAuthorizationServerPool();
+        Handler handler = service.getProtectionApiHandler();
+        List<Promise<Response, NeverThrowsException>> responses = new ArrayList<>();
+        for (AuthorizationServerNode node : pool.getNodes()) {
+            responses.add(pool.sendTo(new RootContext(), handler, new AuthorizationServerPool.RequestFactory() {
+                @Override
+                public Request newRequest(final AuthorizationServerNode node) {
+                    Request request = new Request();
+                    request.setMethod("GET");
+                    request.setUri(node.getConfigurationEndpoint());
+                    request.getHeaders().put("Accept", "application/json");
+                    return request;
+                }
+            }, node));
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (int i = 0; i < responses.size(); i++) {
+            try {
+                Response response = responses.get(i)
+                                             .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                logger.debug("UMA warm-up: {} answered {}", pool.getNodes().get(i), response.getStatus());
+                closeSilently(response);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Promise<Response, NeverThrowsException> pending : responses) {
+                    pending.cancel(true);
+                }
+                return;
+            } catch (Exception e) {
+                logger.warn("UMA warm-up: no answer from {}", pool.getNodes().get(i), e);
+            }
+        }
+    }
+
+    private void parseSyntheticResponses() {
+        String resourceId = "warm-up";
+        ScopeSet scopes = ScopeSet.compile(Collections.singletonList("warm-up"));
+        byte[] introspection = ("{\"active\":true,\"exp\":" + (System.currentTimeMillis() / 1000 + 60)
+                + ",\"permissions\":[{\"resource_id\":\"other\",\"resource_scopes\":[\"a\",\"b\"]},"
+                + "{\"resource_scopes\":[\"warm-up\"],\"resource_id\":\"" + resourceId + "\"}]}")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] ticket = "{\"ticket\":\"016f84e8-f9b9-11e0-bd6f-0021cc6004de\"}".getBytes(StandardCharsets.UTF_8);
+        try {
+            for (int i = 0; i < syntheticIterations && !isInterrupted(); i++) {
+                UmaResponseParser.ResourceScopes granted = new UmaResponseParser.ResourceScopes(resourceId, scopes);
+                UmaResponseParser.parseIntrospection(new ByteArrayInputStream(introspection), granted);
+                granted.isSatisfied();
+                UmaResponseParser.parseTicket(new ByteArrayInputStream(ticket));
+                UmaResourceServerFilterExt.formEncode(resourceId);
+            }
+        } catch (IOException e) {
+            // In-memory streams: should never happen
+            logger.warn("UMA warm-up: cannot parse synthetic responses", e);
+        }
+    }
+}
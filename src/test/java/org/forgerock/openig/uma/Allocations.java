@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.SkipException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the heap allocated by the current thread, for the hot path allocation tests.
+ */
+final class Allocations {
+
+    private Allocations() {
+    }
+
+    /**
+     * Runs an operation repeatedly (after a warm-up run) and returns the bytes allocated by the measured runs.
+     *
+     * @param operation  operation to measure
+     * @param operations number of measured runs
+     * @return the allocated bytes
+     * @throws SkipException if the JVM cannot measure the allocations of a thread
+     */
+    static long allocatedBytes(final Runnable operation, final int operations) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Thread allocated memory is not supported by this JVM");
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        for (int i = 0; i < operations; i++) {
+            operation.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < operations; i++) {
+            operation.run();
+        }
+        return allocations.getThreadAllocatedBytes(thread) - before;
+    }
+}
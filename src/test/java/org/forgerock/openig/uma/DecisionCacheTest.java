@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DecisionCacheTest {
+
+    private static final long ONE_HOUR = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    public void shouldAllowUntilTimeout() throws Exception {
+        DecisionCache cache = new DecisionCache(TimeUnit.MILLISECONDS.toNanos(100), 100);
+        cache.allow("share", "rpt", 0L);
+
+        assertThat(cache.isAllowed("share", "rpt")).isTrue();
+        assertThat(cache.isAllowed("share", "other-rpt")).isFalse();
+        assertThat(cache.isAllowed("other-share", "rpt")).isFalse();
+
+        Thread.sleep(200);
+        assertThat(cache.isAllowed("share", "rpt")).isFalse();
+    }
+
+    @Test
+    public void shouldNotOutliveTheRptExpiration() throws Exception {
+        DecisionCache cache = new DecisionCache(ONE_HOUR, 100);
+        long exp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 2;
+        cache.allow("share", "rpt", exp);
+
+        assertThat(cache.isAllowed("share", "rpt")).isTrue();
+        // The cache timeout is one hour, the RPT expires within two seconds
+        Thread.sleep(TimeUnit.SECONDS.toMillis(exp) - System.currentTimeMillis() + 100);
+        assertThat(cache.isAllowed("share", "rpt")).isFalse();
+    }
+
+    @Test
+    public void shouldNotCacheAnExpiredRpt() {
+        DecisionCache cache = new DecisionCache(ONE_HOUR, 100);
+        cache.allow("share", "rpt", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - 10);
+
+        assertThat(cache.isAllowed("share", "rpt")).isFalse();
+    }
+
+    @Test
+    public void shouldInvalidateAllTheDecisionsOfAShare() {
+        DecisionCache cache = new DecisionCache(ONE_HOUR, 100);
+        cache.allow("share", "rpt1", 0L);
+        cache.allow("share", "rpt2", 0L);
+        cache.allow("other-share", "rpt1", 0L);
+
+        cache.invalidateShare("share");
+
+        assertThat(cache.isAllowed("share", "rpt1")).isFalse();
+        assertThat(cache.isAllowed("share", "rpt2")).isFalse();
+        assertThat(cache.isAllowed("other-share", "rpt1")).isTrue();
+    }
+
+    @Test
+    public void shouldStayBoundedWhenFullOfLiveDecisions() {
+        DecisionCache cache = new DecisionCache(ONE_HOUR, 10);
+        for (int i = 0; i < 25; i++) {
+            cache.allow("share" + i, "rpt", 0L);
+        }
+
+        int cached = 0;
+        for (int i = 0; i < 25; i++) {
+            if (cache.isAllowed("share" + i, "rpt")) {
+                cached++;
+            }
+        }
+        assertThat(cached).isBetween(1, 10);
+        // The last decision survives the purge it triggered
+        assertThat(cache.isAllowed("share24", "rpt")).isTrue();
+    }
+
+    @Test
+    public void shouldBeDisabledWithoutTimeout() {
+        DecisionCache cache = new DecisionCache(0L, 100);
+        cache.allow("share", "rpt", 0L);
+
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.isAllowed("share", "rpt")).isFalse();
+    }
+
+    @Test
+    public void shouldNotAllocateOnAHit() {
+        final DecisionCache cache = new DecisionCache(ONE_HOUR, 100);
+        final String shareId = "share";
+        final String rpt = "rpt";
+        cache.allow(shareId, rpt, 0L);
+
+        long allocated = Allocations.allocatedBytes(new Runnable() {
+            @Override
+            public void run() {
+                if (!cache.isAllowed(shareId, rpt)) {
+                    throw new AssertionError("Cache miss");
+                }
+            }
+        }, 100000);
+
+        // A few bytes of slack for the measurement itself
+        assertThat(allocated).isLessThan(1024L);
+    }
+}
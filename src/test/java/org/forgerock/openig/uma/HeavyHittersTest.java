@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HeavyHittersTest {
+
+    @Test
+    public void shouldFindTheHeavyKeys() {
+        HeavyHitters.TopK topK = new HeavyHitters.TopK(1024, 4, 3);
+        Map<String, Long> counts = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // 3 heavy keys (about 20% of the traffic each) in a long tail
+            String key = random.nextInt(5) < 3 ? "heavy" + random.nextInt(3) : "tail" + random.nextInt(5000);
+            topK.add(key, 1L);
+            Long count = counts.get(key);
+            counts.put(key, count == null ? 1L : count + 1);
+        }
+
+        List<Map<String, Object>> top = topK.top(1.0);
+
+        assertThat(top).extracting("key").containsOnly("heavy0", "heavy1", "heavy2");
+        for (Map<String, Object> key : top) {
+            // Count-Min estimates never underestimate
+            assertThat((Double) key.get("value")).isGreaterThanOrEqualTo((double) counts.get(key.get("key")));
+        }
+    }
+
+    @Test
+    public void shouldSortTheTopKeysByDecreasingCount() {
+        HeavyHitters.TopK topK = new HeavyHitters.TopK(1024, 4, 10);
+        topK.add("a", 1L);
+        topK.add("b", 3L);
+        topK.add("c", 2L);
+
+        List<Map<String, Object>> top = topK.top(2.0);
+
+        assertThat(top).extracting("key").containsExactly("b", "c", "a");
+        assertThat(top).extracting("value").containsExactly(1.5, 1.0, 0.5);
+    }
+
+    @Test
+    public void shouldHalveTheCountsOnDecay() {
+        HeavyHitters.TopK topK = new HeavyHitters.TopK(1024, 4, 10);
+        topK.add("hot", 8L);
+        topK.add("cold", 1L);
+
+        topK.decay();
+
+        assertThat(topK.top(1.0)).extracting("key").containsExactly("hot");
+        assertThat(topK.top(1.0)).extracting("value").containsExactly(4.0);
+        topK.add("hot", 1L);
+        assertThat(topK.top(1.0)).extracting("value").containsExactly(5.0);
+    }
+
+    @Test
+    public void shouldReplaceTheSmallestTopKeyWithAHeavierOne() {
+        HeavyHitters.TopK topK = new HeavyHitters.TopK(1024, 4, 2);
+        topK.add("a", 5L);
+        topK.add("b", 1L);
+
+        topK.add("c", 3L);
+
+        assertThat(topK.top(1.0)).extracting("key").containsExactly("a", "c");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReportTheRatesOfEveryKindOfKey() {
+        HeavyHitters heavyHitters = new HeavyHitters(1024, 4, 10, TimeUnit.SECONDS.toNanos(10));
+        List<ShareExt> shares = Collections.singletonList(share("1"));
+        heavyHitters.request(shares, "192.0.2.1", "secret-rpt");
+        heavyHitters.request(shares, null, null);
+        heavyHitters.unauthorized(shares, "192.0.2.1", null);
+        heavyHitters.introspected(shares, "192.0.2.1", "secret-rpt", TimeUnit.MILLISECONDS.toNanos(5));
+
+        Map<String, Object> snapshot = heavyHitters.snapshot();
+
+        assertThat(snapshot).containsOnlyKeys("shares", "clients", "rpts");
+        Map<String, Object> shareMetrics = (Map<String, Object>) snapshot.get("shares");
+        assertThat(shareMetrics).containsOnlyKeys("requestsPerSecond",
+                                                  "unauthorizedPerSecond",
+                                                  "introspectionMillisPerSecond");
+        assertThat((List<Map<String, Object>>) shareMetrics.get("requestsPerSecond")).extracting("key")
+                                                                                     .containsExactly("1");
+        // Two requests over a ten seconds interval, just decayed
+        assertThat((List<Map<String, Object>>) shareMetrics.get("requestsPerSecond")).extracting("value")
+                                                                                     .containsExactly(0.2);
+        Map<String, Object> clientMetrics = (Map<String, Object>) snapshot.get("clients");
+        assertThat((List<Map<String, Object>>) clientMetrics.get("requestsPerSecond")).extracting("key")
+                                                                                      .containsExactly("192.0.2.1");
+        Map<String, Object> rptMetrics = (Map<String, Object>) snapshot.get("rpts");
+        List<Map<String, Object>> rpts = (List<Map<String, Object>>) rptMetrics.get("requestsPerSecond");
+        assertThat(rpts).hasSize(1);
+        // Only hashes of the RPTs are kept
+        assertThat(rpts.get(0).get("key")).isNotEqualTo("secret-rpt");
+        assertThat((List<Map<String, Object>>) rptMetrics.get("unauthorizedPerSecond")).isEmpty();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectAnEmptySketch() {
+        new HeavyHitters(0, 4, 10, TimeUnit.SECONDS.toNanos(10));
+    }
+
+    private static ShareExt share(final String id) {
+        ShareExt share = new ShareExt("resource-" + id, "name", "pat", "/uri/" + id, "policy", "alice", "/", "client");
+        share.setId(id);
+        return share;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffHeapShareIndexTest {
+
+    private static final String POLICY_PAGE = "http://as.example.com/openam/XUI/?realm=/#uma/share/";
+
+    @Test
+    public void shouldDecodeTheIndexedShare() {
+        OffHeapShareIndex index = new OffHeapShareIndex("/", "client");
+        ShareExt share = share("1", "alice", "/alice/été");
+        share.setRevision("rev-1");
+        index.add(share);
+
+        ShareExt read = index.get("1");
+
+        assertThat(read).isNotSameAs(share);
+        assertThat(read.getId()).isEqualTo("1");
+        assertThat(read.getResourceId()).isEqualTo("resource-1");
+        assertThat(read.getResourceName()).isEqualTo("name-1");
+        assertThat(read.getPAT()).isEqualTo("pat-alice");
+        assertThat(read.getRequestURI()).isEqualTo("/alice/été");
+        assertThat(read.getPolicyURI()).isEqualTo(POLICY_PAGE + "resource-1");
+        assertThat(read.getUserId()).isEqualTo("alice");
+        assertThat(read.getRevision()).isEqualTo("rev-1");
+        assertThat(read.getRealm()).isEqualTo("/");
+        assertThat(read.getClientId()).isEqualTo("client");
+        assertThat(index.get("2")).isNull();
+    }
+
+    @Test
+    public void shouldKeepTheNullFields() {
+        OffHeapShareIndex index = new OffHeapShareIndex("/", "client");
+        ShareExt share = new ShareExt(null, null, null, "/uri", null, null, "/", "client");
+        share.setId("1");
+        index.add(share);
+
+        ShareExt read = index.get("1");
+
+        assertThat(read.getResourceId()).isNull();
+        assertThat(read.getPAT()).isNull();
+        assertThat(read.getPolicyURI()).isNull();
+        assertThat(read.getUserId()).isNull();
+        assertThat(read.getRevision()).isNull();
+        assertThat(index.listByUri("/uri")).extracting("id").containsExactly("1");
+        assertThat(index.listByOwner(null)).isEmpty();
+    }
+
+    @Test
+    public void shouldListByOwnerAndUri() {
+        OffHeapShareIndex index = new OffHeapShareIndex("/", "client");
+        index.add(share("3", "alice", "/shared"));
+        index.add(share("1", "alice", "/alice/photos"));
+        index.add(share("2", "bob", "/shared"));
+
+        assertThat(index.listByOwner("alice")).extracting("id").containsExactly("1", "3");
+        assertThat(index.listByOwner("bob")).extracting("id").containsExactly("2");
+        assertThat(index.listByOwner("carol")).isEmpty();
+        assertThat(index.listByUri("/shared")).extracting("id").containsExactly("2", "3");
+        assertThat(index.listByUri("/none")).isEmpty();
+        assertThat(index.size()).isEqualTo(3);
+        assertThat(index.values()).extracting("id").containsOnly("1", "2", "3");
+    }
+
+    @Test
+    public void shouldReplaceAShareWithTheSameId() {
+        OffHeapShareIndex index = new OffHeapShareIndex("/", "client");
+        index.add(share("1", "alice", "/alice/photos"));
+        index.add(share("1", "bob", "/bob/photos"));
+
+        assertThat(index.size()).isEqualTo(1);
+        assertThat(index.get("1").getUserId()).isEqualTo("bob");
+        assertThat(index.listByOwner("alice")).isEmpty();
+        assertThat(index.listByUri("/alice/photos")).isEmpty();
+        assertThat(index.listByOwner("bob")).extracting("id").containsExactly("1");
+    }
+
+    @Test
+    public void shouldRemoveAShare() {
+        OffHeapShareIndex index = new OffHeapShareIndex("/", "client");
+        index.add(share("1", "alice", "/shared"));
+        index.add(share("2", "alice", "/shared"));
+        index.add(share("3", "alice", "/shared"));
+
+        // Head, middle and tail of the owner and URI chains
+        assertThat(index.remove("2").getId()).isEqualTo("2");
+        assertThat(index.listByOwner("alice")).extracting("id").containsExactly("1", "3");
+        assertThat(index.remove("3").getId()).isEqualTo("3");
+        assertThat(index.remove("1").getId()).isEqualTo("1");
+
+        assertThat(index.remove("1")).isNull();
+        assertThat(index.get("1")).isNull();
+        assertThat(index.size()).isZero();
+        assertThat(index.values()).isEmpty();
+        assertThat(index.listByOwner("alice")).isEmpty();
+        assertThat(index.listByUri("/shared")).isEmpty();
+
+        index.add(share("1", "alice", "/shared"));
+        assertThat(index.listByUri("/shared")).extracting("id").containsExactly("1");
+    }
+
+    @Test
+    public void shouldMatchTheHeapIndexUnderChurn() {
+        // Enough operations to grow the store and to rebuild it for its garbage
+        OffHeapShareIndex index = new OffHeapShareIndex("/", "client");
+        ShareIndex expected = new ShareIndex();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String id = Integer.toString(random.nextInt(3000));
+            if (random.nextInt(3) == 0) {
+                ShareExt removed = index.remove(id);
+                ShareExt expectedRemoved = expected.remove(id);
+                assertThat(removed == null).isEqualTo(expectedRemoved == null);
+            } else {
+                ShareExt share = share(id, "user" + random.nextInt(50), "/uri/" + random.nextInt(500));
+                index.add(share);
+                expected.add(share);
+            }
+        }
+
+        assertThat(index.size()).isEqualTo(expected.size());
+        for (int i = 0; i < 3000; i++) {
+            String id = Integer.toString(i);
+            ShareExt share = index.get(id);
+            ShareExt expectedShare = expected.get(id);
+            assertThat(share == null).isEqualTo(expectedShare == null);
+            if (share != null) {
+                assertThat(share.getUserId()).isEqualTo(expectedShare.getUserId());
+                assertThat(share.getRequestURI()).isEqualTo(expectedShare.getRequestURI());
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            assertThat(ids(index.listByOwner("user" + i))).isEqualTo(ids(expected.listByOwner("user" + i)));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertThat(ids(index.listByUri("/uri/" + i))).isEqualTo(ids(expected.listByUri("/uri/" + i)));
+        }
+        assertThat(index.values()).hasSize(expected.size());
+    }
+
+    private static List<String> ids(final Set<ShareExt> shares) {
+        List<String> ids = new ArrayList<>();
+        for (ShareExt share : shares) {
+            ids.add(share.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static ShareExt share(final String id, final String userId, final String uri) {
+        ShareExt share = new ShareExt("resource-" + id,
+                                      "name-" + id,
+                                      "pat-" + userId,
+                                      uri,
+                                      POLICY_PAGE + "resource-" + id,
+                                      userId,
+                                      "/",
+                                      "client");
+        share.setId(id);
+        return share;
+    }
+}
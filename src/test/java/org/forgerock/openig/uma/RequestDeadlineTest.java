@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.openig.uma.RequestDeadline.Stage.INTROSPECTION;
+import static org.forgerock.openig.uma.RequestDeadline.Stage.SHARE_LOOKUP;
+import static org.forgerock.openig.uma.RequestDeadline.Stage.TICKET;
+
+public class RequestDeadlineTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeClass
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldNeverExhaustTheNoneDeadline() {
+        assertThat(RequestDeadline.NONE.exhausted(SHARE_LOOKUP)).isFalse();
+        assertThat(RequestDeadline.NONE.remainingNanos()).isEqualTo(Long.MAX_VALUE);
+        assertThat(RequestDeadline.NONE.ldapTimeLimit()).isZero();
+        assertThat(RequestDeadline.NONE.getExhaustedStage()).isNull();
+    }
+
+    @Test
+    public void shouldRoundTheLdapTimeLimitUp() {
+        assertThat(RequestDeadline.start(TimeUnit.MILLISECONDS.toNanos(1500), scheduler).ldapTimeLimit())
+                .isEqualTo(2);
+        assertThat(RequestDeadline.start(TimeUnit.MILLISECONDS.toNanos(10), scheduler).ldapTimeLimit()).isEqualTo(1);
+        // Never 0 (no limit) once the budget is gone
+        assertThat(RequestDeadline.start(-1L, scheduler).ldapTimeLimit()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRecordTheFirstExhaustedStage() {
+        RequestDeadline deadline = RequestDeadline.start(0L, scheduler);
+
+        assertThat(deadline.exhausted(INTROSPECTION)).isTrue();
+        assertThat(deadline.exhausted(TICKET)).isTrue();
+
+        assertThat(deadline.getExhaustedStage()).isEqualTo(INTROSPECTION);
+    }
+
+    @Test
+    public void shouldNotBeExhaustedWithinBudget() {
+        RequestDeadline deadline = RequestDeadline.start(TimeUnit.HOURS.toNanos(1), scheduler);
+
+        assertThat(deadline.exhausted(SHARE_LOOKUP)).isFalse();
+        assertThat(deadline.getExhaustedStage()).isNull();
+    }
+
+    @Test
+    public void shouldReturnTheResponseOfACallWithinBudget() throws Exception {
+        RequestDeadline deadline = RequestDeadline.start(TimeUnit.HOURS.toNanos(1), scheduler);
+        CancellablePromise<Response, NeverThrowsException> call = new CancellablePromise<>();
+        Response response = new Response(Status.OK);
+
+        Promise<Response, NeverThrowsException> bound = deadline.bound(call, INTROSPECTION);
+        call.handleResult(response);
+
+        assertThat(bound.get()).isSameAs(response);
+        assertThat(call.cancelled.get()).isFalse();
+        assertThat(deadline.getExhaustedStage()).isNull();
+    }
+
+    @Test
+    public void shouldCancelACallOutOfBudget() throws Exception {
+        RequestDeadline deadline = RequestDeadline.start(TimeUnit.MILLISECONDS.toNanos(50), scheduler);
+        CancellablePromise<Response, NeverThrowsException> call = new CancellablePromise<>();
+
+        Response response = deadline.bound(call, TICKET).get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(response.getHeaders().getFirst("Warning")).contains("UMA request deadline exceeded: ticket");
+        assertThat(call.awaitCancelled()).isTrue();
+        assertThat(deadline.getExhaustedStage()).isEqualTo(TICKET);
+    }
+
+    @Test
+    public void shouldCloseALateResponse() throws Exception {
+        RequestDeadline deadline = RequestDeadline.start(TimeUnit.MILLISECONDS.toNanos(50), scheduler);
+        // Not cancellable: completes anyway
+        PromiseImpl<Response, NeverThrowsException> call = PromiseImpl.create();
+        Promise<Response, NeverThrowsException> bound = deadline.bound(call, INTROSPECTION);
+        bound.get(5, TimeUnit.SECONDS);
+
+        Response late = new Response(Status.OK);
+        late.setEntity("late");
+        call.handleResult(late);
+
+        assertThat(late.getEntity().isRawContentEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldFailALookupOutOfBudget() throws Exception {
+        RequestDeadline deadline = RequestDeadline.start(TimeUnit.MILLISECONDS.toNanos(50), scheduler);
+        CancellablePromise<ShareExt, UmaException> lookup = new CancellablePromise<>();
+
+        try {
+            deadline.boundLookup(lookup).getOrThrow(5, TimeUnit.SECONDS);
+            fail("Expected an UmaException");
+        } catch (UmaException e) {
+            assertThat(e.getMessage()).contains("deadline");
+        }
+        assertThat(lookup.awaitCancelled()).isTrue();
+        assertThat(deadline.getExhaustedStage()).isEqualTo(SHARE_LOOKUP);
+    }
+
+    @Test
+    public void shouldNotBoundWithoutScheduler() {
+        PromiseImpl<Response, NeverThrowsException> call = PromiseImpl.create();
+
+        assertThat(RequestDeadline.NONE.bound(call, TICKET)).isSameAs(call);
+    }
+
+    /**
+     * A pending call that records its cancellation.
+     */
+    private static final class CancellablePromise<V, E extends Exception> extends PromiseImpl<V, E> {
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        @Override
+        protected E tryCancel(final boolean mayInterruptIfRunning) {
+            cancelled.set(true);
+            return null;
+        }
+
+        /** The call is cancelled right after the deadline response is delivered. */
+        private boolean awaitCancelled() throws InterruptedException {
+            for (int i = 0; i < 100 && !cancelled.get(); i++) {
+                Thread.sleep(10);
+            }
+            return cancelled.get();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShareLookupCacheTest {
+
+    private static final long ONE_HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final String PREFIX = ShareExt.lookupKeyPrefix("/", "client");
+
+    @Test
+    public void shouldReturnTheCachedShareUntilTimeout() throws Exception {
+        ShareLookupCache cache = new ShareLookupCache(TimeUnit.MILLISECONDS.toNanos(100), 100);
+        ShareExt share = share("1", "/uri", "alice");
+        cache.put(PREFIX, "/uri", "alice", share);
+
+        assertThat(cache.get(PREFIX, "/uri", "alice")).isSameAs(share);
+        assertThat(cache.get(PREFIX, "/uri", null)).isNull();
+        assertThat(cache.get(PREFIX, "/other", "alice")).isNull();
+        assertThat(cache.get(ShareExt.lookupKeyPrefix("/", "other-client"), "/uri", "alice")).isNull();
+
+        Thread.sleep(200);
+        assertThat(cache.get(PREFIX, "/uri", "alice")).isNull();
+    }
+
+    @Test
+    public void shouldCacheForTheGivenTime() throws Exception {
+        ShareLookupCache cache = new ShareLookupCache(TimeUnit.MILLISECONDS.toNanos(100), 100);
+        ShareExt share = share("1", "/uri", null);
+        cache.put(PREFIX, "/uri", null, share, ONE_HOUR);
+
+        Thread.sleep(200);
+        assertThat(cache.get(PREFIX, "/uri", null)).isSameAs(share);
+    }
+
+    @Test
+    public void shouldInvalidateAllTheLookupsOfAShare() {
+        ShareLookupCache cache = new ShareLookupCache(ONE_HOUR, 100);
+        ShareExt share = share("1", "/uri", "alice");
+        ShareExt other = share("2", "/other", "alice");
+        cache.put(PREFIX, "/uri", "alice", share);
+        cache.put(PREFIX, "/uri", null, share);
+        cache.put(PREFIX, "/other", "alice", other);
+
+        cache.invalidateShare("1");
+
+        assertThat(cache.get(PREFIX, "/uri", "alice")).isNull();
+        assertThat(cache.get(PREFIX, "/uri", null)).isNull();
+        assertThat(cache.get(PREFIX, "/other", "alice")).isSameAs(other);
+    }
+
+    @Test
+    public void shouldInvalidateALookup() {
+        ShareLookupCache cache = new ShareLookupCache(ONE_HOUR, 100);
+        ShareExt share = share("1", "/uri", "alice");
+        cache.put(PREFIX, "/uri", "alice", share);
+        cache.put(PREFIX, "/uri", null, share);
+
+        cache.invalidate(PREFIX, "/uri", "alice");
+
+        assertThat(cache.get(PREFIX, "/uri", "alice")).isNull();
+        assertThat(cache.get(PREFIX, "/uri", null)).isSameAs(share);
+    }
+
+    @Test
+    public void shouldDropTheExpiredEntriesFirstWhenFull() throws Exception {
+        ShareLookupCache cache = new ShareLookupCache(ONE_HOUR, 3);
+        ShareExt live = share("1", "/live", null);
+        cache.put(PREFIX, "/live", null, live);
+        cache.put(PREFIX, "/expired1", null, share("2", "/expired1", null), TimeUnit.MILLISECONDS.toNanos(1));
+        cache.put(PREFIX, "/expired2", null, share("3", "/expired2", null), TimeUnit.MILLISECONDS.toNanos(1));
+        Thread.sleep(50);
+
+        ShareExt added = share("4", "/added", null);
+        cache.put(PREFIX, "/added", null, added);
+
+        assertThat(cache.get(PREFIX, "/live", null)).isSameAs(live);
+        assertThat(cache.get(PREFIX, "/added", null)).isSameAs(added);
+    }
+
+    @Test
+    public void shouldListTheHottestLookups() {
+        ShareLookupCache cache = new ShareLookupCache(ONE_HOUR, 100);
+        cache.put(PREFIX, "/cold", null, share("1", "/cold", null));
+        cache.put(PREFIX, "/hot", "alice", share("2", "/hot", "alice"));
+        cache.put(ShareExt.lookupKeyPrefix("/", "other-client"), "/hot", null, share("3", "/hot", null));
+        for (int i = 0; i < 5; i++) {
+            cache.get(PREFIX, "/hot", "alice");
+        }
+        cache.get(PREFIX, "/cold", null);
+
+        List<String[]> hottest = cache.hottest(PREFIX, 10);
+
+        assertThat(hottest).hasSize(2);
+        assertThat(hottest.get(0)).containsExactly("/hot", "alice");
+        assertThat(hottest.get(1)).containsExactly("/cold", null);
+        assertThat(cache.hottest(PREFIX, 1)).hasSize(1);
+    }
+
+    @Test
+    public void shouldBeDisabledWithoutTimeout() {
+        ShareLookupCache cache = new ShareLookupCache(0L, 100);
+        cache.put(PREFIX, "/uri", null, share("1", "/uri", null));
+
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.get(PREFIX, "/uri", null)).isNull();
+    }
+
+    @Test
+    public void shouldNotAllocateOnAHit() {
+        final ShareLookupCache cache = new ShareLookupCache(ONE_HOUR, 100);
+        final ShareExt share = share("1", "/uri", "alice");
+        cache.put(PREFIX, "/uri", "alice", share);
+        // Distinct instances, as read from a request
+        final String requestURI = new String("/uri");
+        final String userId = new String("alice");
+
+        long allocated = Allocations.allocatedBytes(new Runnable() {
+            @Override
+            public void run() {
+                if (cache.get(PREFIX, requestURI, userId) != share) {
+                    throw new AssertionError("Cache miss");
+                }
+            }
+        }, 100000);
+
+        // A few bytes of slack for the measurement itself
+        assertThat(allocated).isLessThan(1024L);
+    }
+
+    private static ShareExt share(final String id, final String uri, final String userId) {
+        ShareExt share = new ShareExt("resource-" + id, "name", "pat", uri, "policy", userId, "/", "client");
+        share.setId(id);
+        return share;
+    }
+}
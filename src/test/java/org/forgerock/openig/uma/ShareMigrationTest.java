@@ -0,0 +1,267 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.opendj.ldap.LdapException;
+import org.forgerock.opendj.ldap.ResultCode;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShareMigrationTest {
+
+    private Path directory;
+    private LDAPManager ldapManager;
+    private UmaSharingServiceExt service;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("uma-migration");
+        ldapManager = mock(LDAPManager.class);
+        service = mock(UmaSharingServiceExt.class);
+        when(service.getRealm()).thenReturn("/");
+        when(service.getClientId()).thenReturn("client");
+        when(service.getTenants()).thenReturn(Collections.<String, UmaSharingServiceExt>emptyMap());
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void shouldKeepTheFilesInTheMigrationDirectory() {
+        ShareMigration migration = migration(1, 10);
+
+        assertThat(migration.resolve("shares.jsonl")).isEqualTo(directory.toAbsolutePath().resolve("shares.jsonl"));
+        assertThat(migration.resolve("2017/./shares.jsonl").startsWith(directory.toAbsolutePath())).isTrue();
+        for (String escape : Arrays.asList("../shares.jsonl", "/etc/passwd", "2017/../../shares.jsonl", "", ".")) {
+            try {
+                migration.resolve(escape);
+                throw new AssertionError("Accepted " + escape);
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).contains("not in the migration directory");
+            }
+        }
+    }
+
+    @Test
+    public void shouldExportTheSharesToAnOwnerOnlyFile() throws Exception {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                LDAPManager.ShareVisitor visitor = (LDAPManager.ShareVisitor) invocation.getArguments()[2];
+                visitor.visit(share("1"));
+                visitor.visit(share("2"));
+                return null;
+            }
+        }).when(ldapManager).searchSharesPaged(any(ShareExt.class), anyInt(), any(LDAPManager.ShareVisitor.class));
+        ShareMigration migration = migration(1, 10);
+        Path file = migration.resolve("shares.jsonl");
+
+        assertThat(migration.startExport(file)).isTrue();
+        Map<String, Object> status = await(migration);
+
+        assertThat(status.get("state")).isEqualTo("done");
+        assertThat(status.get("exported")).isEqualTo(2L);
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0)).contains("\"id\":\"1\"", "\"uri\":\"/alice/1\"", "\"pat\":\"pat\"");
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+        }
+        assertThat(Files.exists(file.resolveSibling("shares.jsonl.partial"))).isFalse();
+    }
+
+    @Test
+    public void shouldImportTheSharesAndRejectTheMalformedLines() throws Exception {
+        when(ldapManager.addShares(anyListOf(ShareExt.class))).thenAnswer(addedAll());
+        ShareMigration migration = migration(2, 2);
+        Path file = write("shares.jsonl", line("1"), line("2"), "{not json", line("3"), line("4"));
+
+        assertThat(migration.startImport(file, false, null, null)).isTrue();
+        Map<String, Object> status = await(migration);
+
+        assertThat(status.get("state")).isEqualTo("done");
+        assertThat(status.get("read")).isEqualTo(5L);
+        assertThat(status.get("imported")).isEqualTo(4L);
+        assertThat(status.get("rejected")).isEqualTo(1L);
+        verify(service, times(4)).imported(any(ShareExt.class));
+        assertThat(Files.readAllLines(file.resolveSibling("shares.jsonl.rejected"), StandardCharsets.UTF_8))
+                .hasSize(1);
+        // Completed: the next import starts over
+        assertThat(Files.exists(file.resolveSibling("shares.jsonl.checkpoint"))).isFalse();
+    }
+
+    @Test
+    public void shouldResumeAFailedImportFromItsCheckpoint() throws Exception {
+        Path file = write("shares.jsonl", line("1"), line("2"), line("3"), line("4"), line("5"));
+        when(ldapManager.addShares(anyListOf(ShareExt.class)))
+                .thenAnswer(addedAll())
+                .thenThrow(LdapException.newLdapException(ResultCode.UNAVAILABLE));
+        ShareMigration migration = migration(1, 2);
+
+        migration.startImport(file, false, null, null);
+        Map<String, Object> failed = await(migration);
+
+        assertThat(failed.get("state")).isEqualTo("failed");
+        assertThat(failed.get("checkpoint")).isEqualTo(2L);
+        assertThat(new String(Files.readAllBytes(file.resolveSibling("shares.jsonl.checkpoint")),
+                              StandardCharsets.UTF_8)).isEqualTo("2");
+
+        LDAPManager recovered = mock(LDAPManager.class);
+        when(recovered.addShares(anyListOf(ShareExt.class))).thenAnswer(addedAll());
+        ShareMigration resumed = new ShareMigration(recovered, service, directory, 1, 2, 10);
+        resumed.startImport(file, false, null, null);
+        Map<String, Object> done = await(resumed);
+
+        assertThat(done.get("state")).isEqualTo("done");
+        assertThat(done.get("resumedFrom")).isEqualTo(2L);
+        assertThat(done.get("imported")).isEqualTo(3L);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ShareExt>> batches = (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+        verify(recovered, times(2)).addShares(batches.capture());
+        List<String> ids = new ArrayList<>();
+        for (List<ShareExt> batch : batches.getAllValues()) {
+            for (ShareExt share : batch) {
+                ids.add(share.getId());
+            }
+        }
+        assertThat(ids).containsExactly("3", "4", "5");
+    }
+
+    @Test
+    public void shouldCountTheExistingShares() throws Exception {
+        when(ldapManager.addShares(anyListOf(ShareExt.class))).thenReturn(Collections.<ShareExt>emptyList());
+        ShareMigration migration = migration(1, 10);
+        Path file = write("shares.jsonl", line("1"), line("2"));
+
+        migration.startImport(file, false, null, null);
+        Map<String, Object> status = await(migration);
+
+        assertThat(status.get("imported")).isEqualTo(0L);
+        assertThat(status.get("existing")).isEqualTo(2L);
+    }
+
+    @Test
+    public void shouldRunOneMigrationAtATime() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws InterruptedException {
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(ldapManager).searchSharesPaged(any(ShareExt.class), anyInt(), any(LDAPManager.ShareVisitor.class));
+        ShareMigration migration = migration(1, 10);
+
+        assertThat(migration.status().get("state")).isEqualTo("idle");
+        assertThat(migration.startExport(migration.resolve("first.jsonl"))).isTrue();
+        assertThat(migration.startExport(migration.resolve("second.jsonl"))).isFalse();
+
+        release.countDown();
+        assertThat(await(migration).get("state")).isEqualTo("done");
+    }
+
+    private ShareMigration migration(final int parallelism, final int batchSize) {
+        return new ShareMigration(ldapManager, service, directory, parallelism, batchSize, 10);
+    }
+
+    private Path write(final String name, final String... lines) throws IOException {
+        return Files.write(directory.resolve(name), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Object> await(final ShareMigration migration) throws InterruptedException {
+        for (int i = 0; i < 500 && "running".equals(migration.status().get("state")); i++) {
+            Thread.sleep(10);
+        }
+        return migration.status();
+    }
+
+    private static Answer<List<ShareExt>> addedAll() {
+        return new Answer<List<ShareExt>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<ShareExt> answer(final InvocationOnMock invocation) {
+                return new ArrayList<>((List<ShareExt>) invocation.getArguments()[0]);
+            }
+        };
+    }
+
+    private static String line(final String id) {
+        return "{\"id\":\"" + id + "\",\"resourceId\":\"resource-" + id + "\",\"name\":\"name\",\"uri\":\"/alice/"
+                + id + "\",\"policyUri\":\"policy\",\"userId\":\"alice\",\"realm\":\"/\",\"clientId\":\"client\","
+                + "\"pat\":\"pat\"}";
+    }
+
+    private static ShareExt share(final String id) {
+        ShareExt share = new ShareExt("resource-" + id,
+                                      "name",
+                                      "pat",
+                                      "/alice/" + id,
+                                      "policy",
+                                      "alice",
+                                      "/",
+                                      "client");
+        share.setId(id);
+        return share;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharePeerChannelTest {
+
+    private static final String SECRET = "peer-secret";
+    private static final InetSocketAddress LOOPBACK = new InetSocketAddress("127.0.0.1", 0);
+
+    private SharePeerChannel receiver;
+    private RecordingListener listener;
+    private DatagramChannel sender;
+    private final UUID senderId = UUID.randomUUID();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        receiver = new SharePeerChannel(LOOPBACK, Collections.<SocketAddress>emptyList(), null, null, SECRET);
+        listener = new RecordingListener();
+        receiver.register("/", "client", listener);
+        sender = DatagramChannel.open();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        receiver.close();
+        sender.close();
+    }
+
+    @Test
+    public void shouldApplyTheChangesOfAPeer() throws Exception {
+        SharePeerChannel peer = peer(SECRET);
+        try {
+            peer.created(share("1"));
+            peer.removed(share("1"));
+
+            assertThat(listener.events.poll(5, TimeUnit.SECONDS)).isEqualTo("created 1 /alice/photos alice");
+            assertThat(listener.events.poll(5, TimeUnit.SECONDS)).isEqualTo("removed 1 /alice/photos alice");
+            assertThat(peer.metrics().get("sent")).isEqualTo(2L);
+        } finally {
+            peer.close();
+        }
+    }
+
+    @Test
+    public void shouldRejectTheMessagesSignedWithAnotherSecret() throws Exception {
+        SharePeerChannel peer = peer("another-secret");
+        try {
+            peer.created(share("1"));
+
+            awaitRejected(1L);
+            assertThat(listener.events).isEmpty();
+        } finally {
+            peer.close();
+        }
+    }
+
+    @Test
+    public void shouldRejectATamperedMessage() throws Exception {
+        byte[] message = message(1L, System.currentTimeMillis(), SECRET, "1", "/alice/photos");
+        // The last URI character, before the owner and the MAC
+        int uri = message.length - 32 - 2 - "alice".length() - 1;
+        message[uri] = (byte) 'X';
+
+        send(message);
+
+        awaitRejected(1L);
+        assertThat(listener.events).isEmpty();
+    }
+
+    @Test
+    public void shouldRejectAStaleMessage() throws Exception {
+        send(message(1L, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2), SECRET, "1", "/alice/photos"));
+
+        awaitRejected(1L);
+        assertThat(listener.events).isEmpty();
+    }
+
+    @Test
+    public void shouldRejectAReplayedMessage() throws Exception {
+        byte[] message = message(1L, System.currentTimeMillis(), SECRET, "1", "/alice/photos");
+
+        send(message);
+        send(message);
+
+        assertThat(listener.events.poll(5, TimeUnit.SECONDS)).isEqualTo("created 1 /alice/photos alice");
+        awaitRejected(1L);
+        assertThat(listener.events).isEmpty();
+    }
+
+    @Test
+    public void shouldAcceptReorderedMessages() throws Exception {
+        long now = System.currentTimeMillis();
+        send(message(2L, now, SECRET, "2", "/alice/videos"));
+        send(message(1L, now, SECRET, "1", "/alice/photos"));
+        // Too old for the replay window
+        send(message(100L, now, SECRET, "100", "/alice/100"));
+        send(message(3L, now, SECRET, "3", "/alice/3"));
+
+        assertThat(listener.events.poll(5, TimeUnit.SECONDS)).isEqualTo("created 2 /alice/videos alice");
+        assertThat(listener.events.poll(5, TimeUnit.SECONDS)).isEqualTo("created 1 /alice/photos alice");
+        assertThat(listener.events.poll(5, TimeUnit.SECONDS)).isEqualTo("created 100 /alice/100 alice");
+        awaitRejected(1L);
+        assertThat(listener.events).isEmpty();
+    }
+
+    @Test
+    public void shouldCountTheMessagesOfAnUnknownTenant() throws Exception {
+        SharePeerChannel peer = peer(SECRET);
+        try {
+            ShareExt share = share("1");
+            share.setClientId("other-client");
+            peer.created(share);
+
+            for (int i = 0; i < 500 && !Long.valueOf(1L).equals(receiver.metrics().get("unknownTenant")); i++) {
+                Thread.sleep(10);
+            }
+            assertThat(receiver.metrics().get("unknownTenant")).isEqualTo(1L);
+            assertThat(listener.events).isEmpty();
+        } finally {
+            peer.close();
+        }
+    }
+
+    @Test
+    public void shouldParseThePeerAddresses() {
+        assertThat(SharePeerChannel.parseAddress("127.0.0.1:9000")).isEqualTo(new InetSocketAddress("127.0.0.1", 9000));
+        assertThat(SharePeerChannel.parseAddress("[::1]:9000")).isEqualTo(new InetSocketAddress("::1", 9000));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectAnAddressWithoutPort() {
+        SharePeerChannel.parseAddress("127.0.0.1");
+    }
+
+    private SharePeerChannel peer(final String secret) throws Exception {
+        return new SharePeerChannel(LOOPBACK,
+                                    Collections.singletonList(receiver.getLocalAddress()),
+                                    null,
+                                    null,
+                                    secret);
+    }
+
+    private void send(final byte[] message) throws Exception {
+        sender.send(ByteBuffer.wrap(message), receiver.getLocalAddress());
+    }
+
+    private void awaitRejected(final long expected) throws InterruptedException {
+        for (int i = 0; i < 500 && !Long.valueOf(expected).equals(receiver.metrics().get("rejected")); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(receiver.metrics().get("rejected")).isEqualTo(expected);
+    }
+
+    /**
+     * Encodes a share creation message of the test sender, as a peer gateway would.
+     */
+    private byte[] message(final long sequence,
+                           final long timestamp,
+                           final String secret,
+                           final String shareId,
+                           final String uri) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x554d4150);
+        out.writeByte(1);
+        out.writeByte(1);
+        out.writeLong(senderId.getMostSignificantBits());
+        out.writeLong(senderId.getLeastSignificantBits());
+        out.writeLong(sequence);
+        out.writeLong(timestamp);
+        for (String value : new String[] {"/ client", shareId, uri, "alice"}) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(encoded.length);
+            out.write(encoded);
+        }
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        out.write(mac.doFinal(bytes.toByteArray()));
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ShareExt share(final String id) {
+        ShareExt share = new ShareExt("resource-" + id,
+                                      "name",
+                                      "pat",
+                                      "/alice/photos",
+                                      "policy",
+                                      "alice",
+                                      "/",
+                                      "client");
+        share.setId(id);
+        return share;
+    }
+
+    private static final class RecordingListener implements SharePeerChannel.Listener {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void created(final String shareId, final String uri, final String userId) {
+            events.add("created " + shareId + " " + uri + " " + userId);
+        }
+
+        @Override
+        public void removed(final String shareId, final String uri, final String userId) {
+            events.add("removed " + shareId + " " + uri + " " + userId);
+        }
+    }
+}
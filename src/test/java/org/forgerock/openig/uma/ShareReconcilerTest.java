@@ -0,0 +1,255 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShareReconcilerTest {
+
+    private UmaSharingServiceExt service;
+    private LDAPManager ldapManager;
+    /** Shares in LDAP. */
+    private final List<ShareExt> shares = new ArrayList<>();
+    /** Resource set identifiers at the AS. */
+    private final Set<String> resourceSets = new LinkedHashSet<>();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        shares.clear();
+        resourceSets.clear();
+        service = mock(UmaSharingServiceExt.class);
+        ldapManager = mock(LDAPManager.class);
+        when(service.isReady()).thenReturn(true);
+        when(service.getRealm()).thenReturn("/");
+        when(service.getClientId()).thenReturn("client");
+        when(service.listResourceSetIds(any(ShareExt.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                return newResultPromise(new HashSet<>(resourceSets));
+            }
+        });
+        when(service.hasResourceSet(any(ShareExt.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                ShareExt share = (ShareExt) invocation.getArguments()[0];
+                return newResultPromise(resourceSets.contains(share.getResourceId()));
+            }
+        });
+        when(service.removeOrphanResourceSet(any(ShareExt.class), anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                return newResultPromise(resourceSets.remove((String) invocation.getArguments()[1]));
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                shares.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(service).removeOrphanShare(any(ShareExt.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                LDAPManager.ShareVisitor visitor = (LDAPManager.ShareVisitor) invocation.getArguments()[2];
+                for (ShareExt share : new ArrayList<>(shares)) {
+                    visitor.visit(share);
+                }
+                return null;
+            }
+        }).when(ldapManager).searchSharesPaged(any(ShareExt.class), anyInt(), any(LDAPManager.ShareVisitor.class));
+        when(ldapManager.getShare(any(ShareExt.class))).thenAnswer(new Answer<Set<ShareExt>>() {
+            @Override
+            public Set<ShareExt> answer(final InvocationOnMock invocation) {
+                String userId = ((ShareExt) invocation.getArguments()[0]).getUserId();
+                Set<ShareExt> owned = new LinkedHashSet<>();
+                for (ShareExt share : shares) {
+                    if (share.getUserId().equals(userId)) {
+                        owned.add(share);
+                    }
+                }
+                return owned;
+            }
+        });
+    }
+
+    @Test
+    public void shouldReportTheOrphans() throws Exception {
+        shares.addAll(Arrays.asList(share("1", "alice"), share("2", "alice")));
+        resourceSets.addAll(Arrays.asList("resource-1", "resource-9"));
+        ShareReconciler reconciler = reconciler(ShareReconciler.Action.REPORT);
+
+        Map<String, Object> first = run(reconciler, 1);
+
+        assertThat(first.get("complete")).isEqualTo(true);
+        assertThat(first.get("checked")).isEqualTo(2L);
+        assertThat(first.get("owners")).isEqualTo(1L);
+        assertThat(first.get("ldapOrphans")).isEqualTo(1L);
+        // Possibly a share being created: only an orphan when found again
+        assertThat(first.get("asOrphans")).isEqualTo(0L);
+        assertThat(run(reconciler, 2).get("asOrphans")).isEqualTo(1L);
+        verify(service, never()).quarantineShare(anyString());
+        verify(service, never()).removeOrphanShare(any(ShareExt.class));
+        verify(service, never()).removeOrphanResourceSet(any(ShareExt.class), anyString());
+    }
+
+    @Test
+    public void shouldConfirmAnUnlistedResourceSetWithADirectRead() throws Exception {
+        shares.add(share("1", "alice"));
+        resourceSets.add("resource-1");
+        // A truncated listing
+        when(service.listResourceSetIds(any(ShareExt.class)))
+                .thenReturn(newResultPromise((Set<String>) new HashSet<String>()));
+
+        Map<String, Object> run = run(reconciler(ShareReconciler.Action.REPAIR), 1);
+
+        assertThat(run.get("ldapOrphans")).isEqualTo(0L);
+        verify(service, never()).removeOrphanShare(any(ShareExt.class));
+    }
+
+    @Test
+    public void shouldQuarantineAnLdapOrphanUntilItsResourceSetIsBack() throws Exception {
+        shares.addAll(Arrays.asList(share("1", "alice"), share("2", "alice")));
+        resourceSets.add("resource-1");
+        ShareReconciler reconciler = reconciler(ShareReconciler.Action.QUARANTINE);
+
+        assertThat(run(reconciler, 1).get("quarantined")).isEqualTo(1L);
+        assertThat(run(reconciler, 2).get("quarantined")).isEqualTo(0L);
+        verify(service, times(1)).quarantineShare("2");
+
+        resourceSets.add("resource-2");
+        assertThat(run(reconciler, 3).get("released")).isEqualTo(1L);
+        verify(service).releaseShare("2");
+    }
+
+    @Test
+    public void shouldRepairTheOrphans() throws Exception {
+        ShareExt orphan = share("2", "alice");
+        shares.addAll(Arrays.asList(share("1", "alice"), orphan));
+        resourceSets.addAll(Arrays.asList("resource-1", "resource-9"));
+        ShareReconciler reconciler = reconciler(ShareReconciler.Action.REPAIR);
+
+        Map<String, Object> first = run(reconciler, 1);
+        Map<String, Object> second = run(reconciler, 2);
+
+        assertThat(first.get("repaired")).isEqualTo(1L);
+        verify(service).removeOrphanShare(orphan);
+        assertThat(shares).extracting("id").containsExactly("1");
+        assertThat(second.get("asOrphans")).isEqualTo(1L);
+        verify(service).removeOrphanResourceSet(argThat(new OwnedBy("alice")), any(String.class));
+        assertThat(resourceSets).containsExactly("resource-1");
+    }
+
+    @Test
+    public void shouldNotRemoveAResourceSetRegisteredByAShareBeingCreated() throws Exception {
+        shares.add(share("1", "alice"));
+        resourceSets.addAll(Arrays.asList("resource-1", "resource-2"));
+        ShareReconciler reconciler = reconciler(ShareReconciler.Action.REPAIR);
+
+        run(reconciler, 1);
+        // The share is now in LDAP
+        shares.add(share("2", "alice"));
+        Map<String, Object> second = run(reconciler, 2);
+
+        assertThat(second.get("asOrphans")).isEqualTo(0L);
+        verify(service, never()).removeOrphanResourceSet(any(ShareExt.class), anyString());
+    }
+
+    @Test
+    public void shouldCountTheOwnersThatCannotBeVerified() throws Exception {
+        shares.addAll(Arrays.asList(share("1", "alice"), share("2", "alice")));
+        when(service.listResourceSetIds(any(ShareExt.class)))
+                .thenReturn(newExceptionPromise(new UmaException("Expired PAT")));
+
+        Map<String, Object> run = run(reconciler(ShareReconciler.Action.REPAIR), 1);
+
+        assertThat(run.get("unverifiable")).isEqualTo(2L);
+        assertThat(run.get("ldapOrphans")).isEqualTo(0L);
+        verify(service, never()).removeOrphanShare(any(ShareExt.class));
+    }
+
+    @Test
+    public void shouldNotStartBeforeTheServiceIsReady() {
+        when(service.isReady()).thenReturn(false);
+
+        assertThat(reconciler(ShareReconciler.Action.REPORT).start()).isFalse();
+    }
+
+    private ShareReconciler reconciler(final ShareReconciler.Action action) {
+        return new ShareReconciler(service, ldapManager, action, 10, 2, 0L);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> run(final ShareReconciler reconciler, final long runs) throws Exception {
+        assertThat(reconciler.start()).isTrue();
+        for (int i = 0; i < 500; i++) {
+            Map<String, Object> metrics = reconciler.metrics();
+            if (Long.valueOf(runs).equals(metrics.get("runs")) && Boolean.FALSE.equals(metrics.get("running"))) {
+                return (Map<String, Object>) metrics.get("last");
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Reconciliation run " + runs + " did not complete");
+    }
+
+    private static ShareExt share(final String id, final String userId) {
+        ShareExt share = new ShareExt("resource-" + id, "name", "pat", "/uri/" + id, "policy", userId, "/", "client");
+        share.setId(id);
+        return share;
+    }
+
+    private static final class OwnedBy extends ArgumentMatcher<ShareExt> {
+        private final String userId;
+
+        private OwnedBy(final String userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean matches(final Object argument) {
+            return argument instanceof ShareExt && userId.equals(((ShareExt) argument).getUserId());
+        }
+    }
+}
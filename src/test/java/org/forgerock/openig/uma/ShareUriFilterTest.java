@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShareUriFilterTest {
+
+    @Test
+    public void shouldNotRejectUntilReady() {
+        ShareUriFilter filter = new ShareUriFilter(1000, 0.01);
+
+        assertThat(filter.mightContain("/alice/photos")).isTrue();
+
+        filter.setReady();
+        assertThat(filter.isReady()).isTrue();
+        assertThat(filter.mightContain("/alice/photos")).isFalse();
+    }
+
+    @Test
+    public void shouldContainTheAddedUris() {
+        ShareUriFilter filter = new ShareUriFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("/shared/" + i);
+        }
+        filter.setReady();
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(filter.mightContain("/shared/" + i)).isTrue();
+        }
+    }
+
+    @Test
+    public void shouldStayNearTheFalsePositiveRate() {
+        ShareUriFilter filter = new ShareUriFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("/shared/" + i);
+        }
+        filter.setReady();
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("/other/" + i)) {
+                falsePositives++;
+            }
+        }
+        // 1% expected, with a margin for the hash quality
+        assertThat(falsePositives).isLessThan(2000);
+    }
+
+    @Test
+    public void shouldForgetARemovedUri() {
+        ShareUriFilter filter = new ShareUriFilter(1000, 0.01);
+        filter.add("/alice/photos");
+        filter.add("/bob/photos");
+        filter.setReady();
+
+        filter.remove("/alice/photos");
+
+        assertThat(filter.mightContain("/alice/photos")).isFalse();
+        assertThat(filter.mightContain("/bob/photos")).isTrue();
+    }
+
+    @Test
+    public void shouldCountTheSharesOfAUri() {
+        ShareUriFilter filter = new ShareUriFilter(1000, 0.01);
+        filter.add("/shared");
+        filter.add("/shared");
+        filter.setReady();
+
+        filter.remove("/shared");
+        assertThat(filter.mightContain("/shared")).isTrue();
+        filter.remove("/shared");
+        assertThat(filter.mightContain("/shared")).isFalse();
+    }
+
+    @Test
+    public void shouldNeverForgetASaturatedCounter() {
+        ShareUriFilter filter = new ShareUriFilter(1000, 0.01);
+        for (int i = 0; i < 300; i++) {
+            filter.add("/shared");
+        }
+        filter.setReady();
+
+        for (int i = 0; i < 300; i++) {
+            filter.remove("/shared");
+        }
+
+        // A false positive at worst, never a false negative
+        assertThat(filter.mightContain("/shared")).isTrue();
+    }
+
+    @Test
+    public void shouldSizeTheCountersForTheExpectedUris() {
+        ShareUriFilter filter = new ShareUriFilter(1000, 0.01);
+
+        // About 9.6 counters and 7 hashes per URI at 1%
+        assertThat(filter.getSizeInBytes()).isBetween(9000, 10000);
+        assertThat(filter.getHashes()).isEqualTo(7);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectAnInvalidFalsePositiveRate() {
+        new ShareUriFilter(1000, 1.0);
+    }
+}
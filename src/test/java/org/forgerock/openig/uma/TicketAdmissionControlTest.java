@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.openig.el.Bindings;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.uma.TicketAdmissionControl.KeyType.BOTH;
+import static org.forgerock.openig.uma.TicketAdmissionControl.KeyType.CLIENT;
+import static org.forgerock.openig.uma.TicketAdmissionControl.KeyType.SHARE;
+import static org.forgerock.services.context.ClientContext.buildExternalClientContext;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TicketAdmissionControlTest {
+
+    private static final long ONE_HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private final Request request = new Request();
+    private final ShareExt share = share("1");
+
+    @Test
+    public void shouldAdmitABurstThenReject() {
+        TicketAdmissionControl control = new TicketAdmissionControl(CLIENT, null, 2, ONE_HOUR, 3, 100);
+        Context context = client("192.0.2.1");
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(control.tryAcquire(context, request, share)).isZero();
+        }
+        long wait = control.tryAcquire(context, request, share);
+
+        // One ticket every half hour
+        assertThat(wait).isGreaterThan(0L).isLessThanOrEqualTo(ONE_HOUR / 2);
+        assertThat(control.tryAcquire(client("192.0.2.2"), request, share)).isZero();
+    }
+
+    @Test
+    public void shouldRefillAtTheConfiguredRate() throws Exception {
+        long period = TimeUnit.MILLISECONDS.toNanos(50);
+        TicketAdmissionControl control = new TicketAdmissionControl(CLIENT, null, 1, period, 1, 100);
+        Context context = client("192.0.2.1");
+
+        assertThat(control.tryAcquire(context, request, share)).isZero();
+        assertThat(control.tryAcquire(context, request, share)).isGreaterThan(0L).isLessThanOrEqualTo(period);
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(period) + 20);
+        assertThat(control.tryAcquire(context, request, share)).isZero();
+    }
+
+    @Test
+    public void shouldKeyTheBucketsByShare() {
+        TicketAdmissionControl control = new TicketAdmissionControl(SHARE, null, 1, ONE_HOUR, 1, 100);
+
+        assertThat(control.tryAcquire(client("192.0.2.1"), request, share)).isZero();
+        assertThat(control.tryAcquire(client("192.0.2.2"), request, share)).isGreaterThan(0L);
+        assertThat(control.tryAcquire(client("192.0.2.1"), request, share("2"))).isZero();
+    }
+
+    @Test
+    public void shouldKeyTheBucketsByClientAndShare() {
+        TicketAdmissionControl control = new TicketAdmissionControl(BOTH, null, 1, ONE_HOUR, 1, 100);
+
+        assertThat(control.tryAcquire(client("192.0.2.1"), request, share)).isZero();
+        assertThat(control.tryAcquire(client("192.0.2.1"), request, share)).isGreaterThan(0L);
+        assertThat(control.tryAcquire(client("192.0.2.2"), request, share)).isZero();
+        assertThat(control.tryAcquire(client("192.0.2.1"), request, share("2"))).isZero();
+        assertThat(control.size()).isEqualTo(3);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldIdentifyTheClientWithTheExpression() {
+        Expression<String> forwardedFor = mock(Expression.class);
+        when(forwardedFor.eval(any(Bindings.class))).thenReturn("203.0.113.7", "203.0.113.7", "203.0.113.8", "");
+        TicketAdmissionControl control = new TicketAdmissionControl(CLIENT, forwardedFor, 1, ONE_HOUR, 1, 100);
+        // All the clients behind the same proxy
+        Context proxy = client("192.0.2.1");
+
+        assertThat(control.tryAcquire(proxy, request, share)).isZero();
+        assertThat(control.tryAcquire(proxy, request, share)).isGreaterThan(0L);
+        assertThat(control.tryAcquire(proxy, request, share)).isZero();
+        // Falls back to the remote address
+        assertThat(control.tryAcquire(proxy, request, share)).isZero();
+        assertThat(control.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldEvictTheIdleBuckets() throws Exception {
+        // Buckets full again after a microsecond
+        TicketAdmissionControl control = new TicketAdmissionControl(SHARE, null, 1000, 1000000L, 1, 2);
+        control.tryAcquire(new RootContext(), request, share("1"));
+        control.tryAcquire(new RootContext(), request, share("2"));
+        Thread.sleep(10);
+
+        control.tryAcquire(new RootContext(), request, share("3"));
+
+        assertThat(control.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepTheBucketsThatAreNotFull() {
+        TicketAdmissionControl control = new TicketAdmissionControl(SHARE, null, 1, ONE_HOUR, 1, 2);
+        control.tryAcquire(new RootContext(), request, share("1"));
+        control.tryAcquire(new RootContext(), request, share("2"));
+
+        control.tryAcquire(new RootContext(), request, share("3"));
+
+        // Evicting them would admit more tickets than configured
+        assertThat(control.size()).isEqualTo(3);
+        assertThat(control.tryAcquire(new RootContext(), request, share("1"))).isGreaterThan(0L);
+    }
+
+    @Test
+    public void shouldDefaultToAnEmptyClientAddress() {
+        assertThat(TicketAdmissionControl.client(new RootContext())).isEmpty();
+        assertThat(TicketAdmissionControl.client(client("192.0.2.1"))).isEqualTo("192.0.2.1");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectANonPositiveRate() {
+        new TicketAdmissionControl(CLIENT, null, 0, ONE_HOUR, 1, 100);
+    }
+
+    private static Context client(final String address) {
+        return buildExternalClientContext(new RootContext()).remoteAddress(address).build();
+    }
+
+    private static ShareExt share(final String id) {
+        ShareExt share = new ShareExt("resource-" + id, "name", "pat", "/uri/" + id, "policy", "alice", "/", "client");
+        share.setId(id);
+        return share;
+    }
+}
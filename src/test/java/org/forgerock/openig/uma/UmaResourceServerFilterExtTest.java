@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Bindings;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class UmaResourceServerFilterExtTest {
+
+    private Expression<String> tenant;
+    private Filter acme;
+    private Filter globex;
+    private Handler next;
+    private UmaResourceServerFilterExt.TenantFilter filter;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        tenant = mock(Expression.class);
+        acme = mock(Filter.class);
+        globex = mock(Filter.class);
+        next = mock(Handler.class);
+        Map<String, Filter> filters = new LinkedHashMap<>();
+        filters.put("acme", acme);
+        filters.put("globex", globex);
+        filter = new UmaResourceServerFilterExt.TenantFilter(tenant, filters);
+    }
+
+    @Test
+    public void shouldDispatchToTheFilterOfTheTenant() throws Exception {
+        Context context = new RootContext();
+        Request request = new Request();
+        when(tenant.eval(any(Bindings.class))).thenReturn("globex");
+        when(globex.filter(context, request, next)).thenReturn(newResponsePromise(new Response(Status.OK)));
+
+        Response response = filter.filter(context, request, next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        verify(globex).filter(context, request, next);
+        verifyZeroInteractions(acme, next);
+    }
+
+    @Test
+    public void shouldNotFindAnUnknownTenant() throws Exception {
+        when(tenant.eval(any(Bindings.class))).thenReturn("initech");
+
+        Response response = filter.filter(new RootContext(), new Request(), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.NOT_FOUND);
+        verifyZeroInteractions(acme, globex, next);
+    }
+
+    @Test
+    public void shouldNotFindARequestWithoutTenant() throws Exception {
+        when(tenant.eval(any(Bindings.class))).thenReturn(null);
+
+        Response response = filter.filter(new RootContext(), new Request(), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.NOT_FOUND);
+        verifyZeroInteractions(acme, globex, next);
+    }
+}
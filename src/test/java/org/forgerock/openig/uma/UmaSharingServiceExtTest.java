@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.resource.Requests.newDeleteRequest;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UmaSharingServiceExtTest {
+
+    private static final long ONE_HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private Handler handler;
+    private LDAPManager ldapManager;
+    private UmaSharingServiceExt service;
+    private DecisionCache decisionCache;
+    private ShareLookupCache shareLookupCache;
+    private ShareExt share;
+    private ShareExt other;
+    private String prefix;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        handler = mock(Handler.class);
+        ldapManager = mock(LDAPManager.class);
+        AuthorizationServerPool pool = new AuthorizationServerPool(Collections.singletonList(
+                new AuthorizationServerNode(new URI("http://as.example.com/openam/"), "/")));
+        service = new UmaSharingServiceExt(handler, "/", pool, "client", "secret", ldapManager);
+
+        decisionCache = new DecisionCache(ONE_HOUR, 100);
+        shareLookupCache = new ShareLookupCache(ONE_HOUR, 100);
+        service.addDecisionCache(decisionCache);
+        service.setShareLookupCache(shareLookupCache);
+
+        share = share("1", "/alice/photos");
+        other = share("2", "/alice/videos");
+        prefix = ShareExt.lookupKeyPrefix("/", "client");
+        for (ShareExt cached : new ShareExt[] {share, other}) {
+            decisionCache.allow(cached.getId(), "rpt", 0L);
+            shareLookupCache.put(prefix, cached.getRequestURI(), "alice", cached);
+        }
+    }
+
+    @Test
+    public void shouldEvictTheCachedDecisionsAndLookupsOfAQuarantinedShare() {
+        service.quarantineShare("1");
+
+        assertThat(decisionCache.isAllowed("1", "rpt")).isFalse();
+        assertThat(shareLookupCache.get(prefix, "/alice/photos", "alice")).isNull();
+        assertThat(decisionCache.isAllowed("2", "rpt")).isTrue();
+        assertThat(shareLookupCache.get(prefix, "/alice/videos", "alice")).isSameAs(other);
+    }
+
+    @Test
+    public void shouldEvictTheCachedDecisionsAndLookupsOfARemovedShare() throws Exception {
+        when(ldapManager.getShare(any(ShareExt.class))).thenReturn(Collections.singleton(share));
+        when(handler.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(new Response(Status.NO_CONTENT)));
+
+        ShareExt removed = service.removeShare(new RootContext(), newDeleteRequest("shares", "1"), "1", "alice")
+                                  .getOrThrow();
+
+        assertThat(removed).isSameAs(share);
+        verify(ldapManager).removeShare("1", null);
+        assertThat(decisionCache.isAllowed("1", "rpt")).isFalse();
+        assertThat(shareLookupCache.get(prefix, "/alice/photos", "alice")).isNull();
+        assertThat(decisionCache.isAllowed("2", "rpt")).isTrue();
+        assertThat(shareLookupCache.get(prefix, "/alice/videos", "alice")).isSameAs(other);
+    }
+
+    private static ShareExt share(final String id, final String uri) {
+        ShareExt share = new ShareExt("resource-" + id, "name", "pat", uri, "policy", "alice", "/", "client");
+        share.setId(id);
+        return share;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2017 ForgeRock, AS.
+ *
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyrighted 2017 Charan Mann
+ */
+
+package org.forgerock.openig.uma;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UmaTenantTest {
+
+    @Test
+    public void shouldStartTheCallsRightAwayWithoutLimit() {
+        UmaTenant tenant = new UmaTenant("tenant", "/", "client", 0, 0);
+        List<String> started = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            tenant.submitCall(record(started, "call" + i));
+        }
+
+        assertThat(started).hasSize(10);
+        assertThat(tenant.metrics(-1)).doesNotContainKeys("availableCalls", "queuedCalls");
+    }
+
+    @Test
+    public void shouldQueueTheCallsOverQuotaUntilACallIsReleased() {
+        UmaTenant tenant = new UmaTenant("tenant", "/", "client", 0, 2);
+        List<String> started = new ArrayList<>();
+
+        tenant.submitCall(record(started, "first"));
+        tenant.submitCall(record(started, "second"));
+        tenant.submitCall(record(started, "third"));
+        tenant.submitCall(record(started, "fourth"));
+
+        assertThat(started).containsExactly("first", "second");
+        Map<String, Object> metrics = tenant.metrics(-1);
+        assertThat(metrics.get("availableCalls")).isEqualTo(0);
+        assertThat(metrics.get("queuedCalls")).isEqualTo(2);
+        assertThat(metrics.get("callsOverQuota")).isEqualTo(2L);
+
+        tenant.releaseCall();
+        assertThat(started).containsExactly("first", "second", "third");
+        tenant.releaseCall();
+        assertThat(started).containsExactly("first", "second", "third", "fourth");
+
+        tenant.releaseCall();
+        tenant.releaseCall();
+        assertThat(tenant.metrics(-1).get("availableCalls")).isEqualTo(2);
+        assertThat(tenant.metrics(-1).get("queuedCalls")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNeverRunMoreCallsThanTheQuota() throws Exception {
+        final UmaTenant tenant = new UmaTenant("tenant", "/", "client", 0, 3);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(1000);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // As the service offloads: the call runs on the executor, and releases once done
+                        tenant.submitCall(new Runnable() {
+                            @Override
+                            public void run() {
+                                executor.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        int current = inFlight.incrementAndGet();
+                                        int max;
+                                        do {
+                                            max = maxInFlight.get();
+                                        } while (current > max && !maxInFlight.compareAndSet(max, current));
+                                        inFlight.decrementAndGet();
+                                        tenant.releaseCall();
+                                        completed.countDown();
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+
+            assertThat(completed.await(10, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(maxInFlight.get()).isBetween(1, 3);
+        assertThat(tenant.metrics(-1).get("availableCalls")).isEqualTo(3);
+        assertThat(tenant.metrics(-1).get("queuedCalls")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReportTheTenantMetrics() {
+        UmaTenant tenant = new UmaTenant("tenant", "/", "client", 100, 0);
+        tenant.lookedUp();
+        tenant.lookedUp();
+        tenant.created();
+        tenant.removed();
+        tenant.rejected();
+
+        Map<String, Object> metrics = tenant.metrics(42);
+
+        assertThat(metrics.get("realm")).isEqualTo("/");
+        assertThat(metrics.get("clientId")).isEqualTo("client");
+        assertThat(metrics.get("shares")).isEqualTo(42);
+        assertThat(metrics.get("maxShares")).isEqualTo(100);
+        assertThat(metrics.get("lookups")).isEqualTo(2L);
+        assertThat(metrics.get("sharesCreated")).isEqualTo(1L);
+        assertThat(metrics.get("sharesRemoved")).isEqualTo(1L);
+        assertThat(metrics.get("sharesRejected")).isEqualTo(1L);
+        assertThat(tenant.metrics(-1)).doesNotContainKey("shares");
+    }
+
+    private static Runnable record(final List<String> started, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.add(name);
+            }
+        };
+    }
+}